@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodecs;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TickerSymbolTable;
+
+/**
+ * Encoding and decoding a single trade, in each wire format.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    private static final int TRADES = 1024; // power of two, see next()
+
+    @Param({"json", "binary"})
+    public String format;
+
+    @Param({"25", "10000"})
+    public int cardinality;
+
+    private StockTradeCodec codec;
+    private StockTrade[] trades;
+    private ByteBuffer[] payloads;
+    private byte[][] jsonPayloads;
+    private StockTradeView view;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        codec = StockTradeCodecs.forName(format);
+        trades = SyntheticTrades.trades(TRADES, cardinality, 0.6);
+        payloads = new ByteBuffer[TRADES];
+        jsonPayloads = new byte[TRADES][];
+        for (int i = 0; i < TRADES; i++) {
+            payloads[i] = ByteBuffer.wrap(codec.encode(trades[i]));
+            jsonPayloads[i] = trades[i].toJsonAsBytes();
+        }
+        view = new StockTradeView(new TickerSymbolTable(cardinality));
+    }
+
+    private int next() {
+        return next++ & (TRADES - 1);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(trades[next()]);
+    }
+
+    @Benchmark
+    public StockTrade decode() {
+        return codec.decode(payloads[next()]);
+    }
+
+    @Benchmark
+    public long decodeView() {
+        view.decode(payloads[next()]);
+        return view.getQuantity();
+    }
+
+    @Benchmark
+    public byte[] toJsonAsBytes() {
+        return trades[next()].toJsonAsBytes();
+    }
+
+    @Benchmark
+    public StockTrade fromJsonAsBytes() {
+        return StockTrade.fromJsonAsBytes(jsonPayloads[next()]);
+    }
+
+}
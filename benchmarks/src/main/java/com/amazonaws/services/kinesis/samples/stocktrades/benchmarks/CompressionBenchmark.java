@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.CompressedStockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.CompressionDictionary;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodecs;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TickerSymbolTable;
+
+/**
+ * Encoding and decoding a single trade with and without compression. The setup prints the
+ * average payload size of each combination, the number that compression is meant to shrink.
+ * <ul>
+ * <li>plain: the codec alone</li>
+ * <li>deflate: compressed without a dictionary</li>
+ * <li>builtin: compressed with the built in dictionary</li>
+ * <li>trained: compressed with a 4 KB dictionary trained on other trades of the same universe</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+    private static final int TRADES = 1024; // power of two, see next()
+    private static final int TRAINING_TRADES = 10000;
+    private static final int TRAINED_DICTIONARY_BYTES = 4096;
+
+    @Param({"plain", "deflate", "builtin", "trained"})
+    public String compression;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    @Param({"25", "10000"})
+    public int cardinality;
+
+    private StockTradeCodec codec;
+    private StockTrade[] trades;
+    private ByteBuffer[] payloads;
+    private StockTradeView view;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        StockTradeCodec plain = StockTradeCodecs.forName(format);
+        codec = compressed(plain);
+        trades = SyntheticTrades.trades(TRADES, cardinality, 0.6);
+        payloads = new ByteBuffer[TRADES];
+        long bytes = 0;
+        for (int i = 0; i < TRADES; i++) {
+            byte[] payload = codec.encode(trades[i]);
+            payloads[i] = ByteBuffer.wrap(payload);
+            bytes += payload.length;
+        }
+        view = new StockTradeView(new TickerSymbolTable(cardinality));
+        System.out.println(String.format("%n%s %s, %d symbols: %.1f bytes per trade", format, compression,
+                cardinality, (double) bytes / TRADES));
+    }
+
+    private StockTradeCodec compressed(StockTradeCodec plain) {
+        switch (compression) {
+            case "plain":
+                return plain;
+            case "deflate":
+                return new CompressedStockTradeCodec(plain, CompressionDictionary.none());
+            case "builtin":
+                return new CompressedStockTradeCodec(plain, CompressionDictionary.builtIn());
+            case "trained":
+                // trained on trades the benchmark does not encode, the ids and prices differ
+                StockTrade[] samples = SyntheticTrades.trades(TRADES + TRAINING_TRADES, cardinality, 0.6);
+                List<byte[]> training = new ArrayList<byte[]>();
+                for (int i = TRADES; i < samples.length; i++) {
+                    training.add(plain.encode(samples[i]));
+                }
+                CompressionDictionary dictionary = CompressionDictionary.train(2, training,
+                        TRAINED_DICTIONARY_BYTES);
+                CompressionDictionary.register(dictionary);
+                return new CompressedStockTradeCodec(plain, dictionary);
+            default:
+                throw new IllegalArgumentException("Unknown compression " + compression);
+        }
+    }
+
+    private int next() {
+        return next++ & (TRADES - 1);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(trades[next()]);
+    }
+
+    @Benchmark
+    public long decodeView() {
+        view.decode(payloads[next()]);
+        return view.getQuantity();
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.EncodedTradeBatch;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.StockTradeGenerator;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.TradeGeneratorEngine;
+
+/**
+ * Generating random trades, one object at a time as the simple writer does, or encoded into
+ * batches by a worker of the {@link TradeGeneratorEngine}. Run with {@code -t} to see how
+ * each scales with threads: the simple generator is shared, while each thread gets a worker
+ * of its own. The batch benchmark returns the number of trades per batch, so trades per
+ * second is its score times {@code batchRecords}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GeneratorBenchmark {
+
+    private static final StockTradeGenerator GENERATOR = new StockTradeGenerator();
+
+    @Param({"25", "10000"})
+    public int symbols;
+
+    @Param({"0", "1.1"})
+    public double zipfSkew;
+
+    @Param({"500"})
+    public int batchRecords;
+
+    private TradeGeneratorEngine.Worker worker;
+    private EncodedTradeBatch batch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // a worker per benchmark thread, as a multi-threaded producer would use them
+        worker = new TradeGeneratorEngine(42, 1, symbols, zipfSkew).worker(0);
+        batch = new EncodedTradeBatch(batchRecords * 64, batchRecords);
+    }
+
+    @Benchmark
+    public StockTrade getRandomTrade() {
+        return GENERATOR.getRandomTrade();
+    }
+
+    @Benchmark
+    public StockTrade engineNextTrade() {
+        return worker.nextTrade();
+    }
+
+    @Benchmark
+    public int engineFill() {
+        return worker.fill(batch);
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.NoOpMetrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodecs;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.CheckpointScheduler;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StatsRollupHub;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeProcessorConfig;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeRecordProcessor;
+
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+/**
+ * Drives {@link StockTradeRecordProcessor#processRecords(ProcessRecordsInput)} with synthetic
+ * batches, without any AWS access. Throughput is in batches, multiply by the batch size for
+ * records.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessRecordsBenchmark {
+
+    // Keeps the logger, and therefore its level, from being garbage collected
+    private static final Logger PROCESSOR_LOGGER =
+            Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades");
+
+    @Param({"100", "1000", "10000"})
+    public int batchSize;
+
+    @Param({"25", "10000"})
+    public int cardinality;
+
+    @Param({"0.6", "0.95"})
+    public double buyRatio;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    // 0 processes every batch on the calling thread
+    @Param({"0", "1000"})
+    public int parallelThreshold;
+
+    private StatsRollupHub rollupHub;
+    private ForkJoinPool batchPool;
+    private ScheduledExecutorService checkpointExecutor;
+    private StockTradeRecordProcessor processor;
+    private ProcessRecordsInput input;
+
+    @Setup
+    public void setUp() {
+        // the processor logs every batch at info level
+        PROCESSOR_LOGGER.setLevel(Level.WARNING);
+
+        StockTradeProcessorConfig config = new StockTradeProcessorConfig()
+                .parallelThresholdRecords(parallelThreshold);
+        rollupHub = new StatsRollupHub((window, start, end, stats) -> { }, 1000L, 1000L);
+        batchPool = parallelThreshold > 0 ? new ForkJoinPool(config.parallelism()) : null;
+        checkpointExecutor = CheckpointScheduler.newExecutor();
+        processor = new StockTradeRecordProcessor(config, rollupHub, batchPool, checkpointExecutor,
+                NoOpMetrics.INSTANCE);
+        processor.initialize(InitializationInput.builder()
+                .shardId("shardId-000000000000")
+                .extendedSequenceNumber(ExtendedSequenceNumber.TRIM_HORIZON)
+                .build());
+
+        List<KinesisClientRecord> records = SyntheticTrades.records(
+                SyntheticTrades.trades(batchSize, cardinality, buyRatio), StockTradeCodecs.forName(format));
+        input = ProcessRecordsInput.builder()
+                .records(records)
+                .checkpointer(noOpCheckpointer())
+                .millisBehindLatest(0L)
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        rollupHub.close();
+        if (batchPool != null) {
+            batchPool.shutdown();
+        }
+        checkpointExecutor.shutdown();
+    }
+
+    @Benchmark
+    public void processRecords() {
+        processor.processRecords(input);
+    }
+
+    private static RecordProcessorCheckpointer noOpCheckpointer() {
+        return (RecordProcessorCheckpointer) Proxy.newProxyInstance(
+                RecordProcessorCheckpointer.class.getClassLoader(),
+                new Class<?>[] { RecordProcessorCheckpointer.class },
+                (proxy, method, args) -> null);
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodecs;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TickerSymbolTable;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockStats;
+
+/**
+ * Adding a single trade to the stats, in exact and sketch mode.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StockStatsBenchmark {
+
+    private static final int TRADES = 1 << 16; // power of two, see next()
+
+    @Param({"25", "1000", "100000"})
+    public int cardinality;
+
+    @Param({"0.6", "0.95"})
+    public double buyRatio;
+
+    @Param({"exact", "sketch"})
+    public String stats;
+
+    private StockTrade[] trades;
+    private ByteBuffer[] payloads;
+    private StockTradeView view;
+    private StockStats stockStats;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        trades = SyntheticTrades.trades(TRADES, cardinality, buyRatio);
+        payloads = new ByteBuffer[TRADES];
+        for (int i = 0; i < TRADES; i++) {
+            payloads[i] = ByteBuffer.wrap(StockTradeCodecs.BINARY.encode(trades[i]));
+        }
+        TickerSymbolTable symbols = new TickerSymbolTable(cardinality);
+        view = new StockTradeView(symbols);
+        stockStats = "sketch".equals(stats) ? new StockStats(symbols, 64, 200) : new StockStats(symbols);
+    }
+
+    private int next() {
+        return next++ & (TRADES - 1);
+    }
+
+    @Benchmark
+    public void addStockTrade() {
+        int i = next();
+        stockStats.addStockTrade(trades[i], i);
+    }
+
+    @Benchmark
+    public void decodeAndAddStockTrade() {
+        int i = next();
+        view.decode(payloads[i]);
+        stockStats.addStockTrade(view, i);
+    }
+
+}
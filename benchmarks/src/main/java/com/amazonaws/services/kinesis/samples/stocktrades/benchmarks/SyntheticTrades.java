@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TickerDictionary;
+
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * Deterministic synthetic trades shared by the benchmarks.
+ */
+final class SyntheticTrades {
+
+    private SyntheticTrades() {
+    }
+
+    /**
+     * Generates trades over a universe of tickers. The first tickers are those of the
+     * {@link TickerDictionary}, so small universes exercise the compact binary encoding.
+     *
+     * @param count Number of trades
+     * @param cardinality Number of distinct ticker symbols
+     * @param buyRatio Fraction of trades that are buys
+     */
+    static StockTrade[] trades(int count, int cardinality, double buyRatio) {
+        String[] tickers = new String[cardinality];
+        for (int i = 0; i < cardinality; i++) {
+            tickers[i] = i < TickerDictionary.size() ? TickerDictionary.symbol(i) : String.format("T%06d", i);
+        }
+        Random random = new Random(42);
+        StockTrade[] trades = new StockTrade[count];
+        for (int i = 0; i < count; i++) {
+            TradeType type = random.nextDouble() < buyRatio ? TradeType.BUY : TradeType.SELL;
+            double price = Math.round((20 + random.nextDouble() * 500) * 100.0) / 100.0;
+            trades[i] = new StockTrade(tickers[random.nextInt(cardinality)], type, price,
+                    random.nextInt(10000) + 1, i + 1);
+        }
+        return trades;
+    }
+
+    /**
+     * Encodes trades into records without an arrival time, so that the processor uses the
+     * current time as event time and every batch lands in the current window.
+     */
+    static List<KinesisClientRecord> records(StockTrade[] trades, StockTradeCodec codec) {
+        List<KinesisClientRecord> records = new ArrayList<KinesisClientRecord>(trades.length);
+        for (StockTrade trade : trades) {
+            records.add(KinesisClientRecord.builder()
+                    .partitionKey(trade.getTickerSymbol())
+                    .data(ByteBuffer.wrap(codec.encode(trade)).asReadOnlyBuffer())
+                    .build());
+        }
+        return records;
+    }
+
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.local;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
+import software.amazon.awssdk.services.kinesis.model.GetRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.GetRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.GetShardIteratorRequest;
+import software.amazon.awssdk.services.kinesis.model.GetShardIteratorResponse;
+import software.amazon.awssdk.services.kinesis.model.HashKeyRange;
+import software.amazon.awssdk.services.kinesis.model.InvalidArgumentException;
+import software.amazon.awssdk.services.kinesis.model.ListShardsRequest;
+import software.amazon.awssdk.services.kinesis.model.ListShardsResponse;
+import software.amazon.awssdk.services.kinesis.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.kinesis.model.PutRecordRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+import software.amazon.awssdk.services.kinesis.model.Record;
+import software.amazon.awssdk.services.kinesis.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.kinesis.model.SequenceNumberRange;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+import software.amazon.awssdk.services.kinesis.model.StreamDescription;
+import software.amazon.awssdk.services.kinesis.model.StreamStatus;
+
+/**
+ * An in-memory stand-in for Kinesis Data Streams, so that the writer and a full KCL
+ * {@link software.amazon.kinesis.coordinator.Scheduler} can run end to end in one JVM.
+ * <p>
+ * Only the calls made by this project and by KCL polling retrieval are implemented:
+ * DescribeStream, ListShards, PutRecord, PutRecords, GetShardIterator and GetRecords. Every
+ * other call fails with {@link UnsupportedOperationException}, so enhanced fan-out cannot be
+ * used against it. Streams are created up front with a fixed number of shards, which split
+ * the hash key space evenly and never close, and records are routed to them by the MD5 of
+ * their partition key or their explicit hash key, as Kinesis does.
+ * <p>
+ * Each shard enforces per second limits on records and bytes written and on GetRecords calls
+ * and bytes read, by default those of a real shard. Entries over the write limit are rejected
+ * with the ProvisionedThroughputExceededException error code, and reads over the limit fail
+ * with that exception. Each shard keeps a bounded number of records, dropping the oldest
+ * ones, which takes the place of the retention period. Responses complete on a small pool of
+ * threads rather than the caller's, as they would with a real client.
+ */
+public class LocalKinesisClient implements KinesisAsyncClient {
+
+    /** Records a shard accepts per second, as a real shard **/
+    public static final int DEFAULT_WRITE_RECORDS_PER_SECOND = 1000;
+
+    /** Bytes a shard accepts per second, as a real shard **/
+    public static final long DEFAULT_WRITE_BYTES_PER_SECOND = 1024L * 1024L;
+
+    /** GetRecords calls a shard serves per second, as a real shard **/
+    public static final int DEFAULT_READ_CALLS_PER_SECOND = 5;
+
+    /** Bytes a shard returns per second, as a real shard **/
+    public static final long DEFAULT_READ_BYTES_PER_SECOND = 2L * 1024L * 1024L;
+
+    /** Records kept by each shard **/
+    public static final int DEFAULT_RETAINED_RECORDS = 1000000;
+
+    // Limits of a single GetRecords call
+    private static final int MAX_GET_RECORDS = 10000;
+    private static final long MAX_GET_RECORDS_BYTES = 10L * 1024L * 1024L;
+
+    private static final String THROTTLED_ERROR_CODE = "ProvisionedThroughputExceededException";
+    private static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+
+    private final int writeRecordsPerSecond;
+    private final long writeBytesPerSecond;
+    private final int readCallsPerSecond;
+    private final long readBytesPerSecond;
+    private final int retainedRecords;
+
+    private final Map<String, LocalStream> streams = new ConcurrentHashMap<String, LocalStream>();
+    private final ExecutorService responses;
+
+    private final AtomicLong throttledWrites = new AtomicLong();
+    private final AtomicLong throttledReads = new AtomicLong();
+
+    /**
+     * Creates a client whose shards have the limits of real ones.
+     */
+    public LocalKinesisClient() {
+        this(DEFAULT_WRITE_RECORDS_PER_SECOND, DEFAULT_WRITE_BYTES_PER_SECOND, DEFAULT_READ_CALLS_PER_SECOND,
+                DEFAULT_READ_BYTES_PER_SECOND, DEFAULT_RETAINED_RECORDS);
+    }
+
+    /**
+     * Constructor. A limit of 0 disables it.
+     *
+     * @param writeRecordsPerSecond Records each shard accepts per second
+     * @param writeBytesPerSecond Bytes each shard accepts per second, partition keys included
+     * @param readCallsPerSecond GetRecords calls each shard serves per second
+     * @param readBytesPerSecond Bytes each shard returns per second
+     * @param retainedRecords Records kept by each shard before the oldest are dropped
+     */
+    public LocalKinesisClient(int writeRecordsPerSecond, long writeBytesPerSecond, int readCallsPerSecond,
+                              long readBytesPerSecond, int retainedRecords) {
+        this.writeRecordsPerSecond = writeRecordsPerSecond;
+        this.writeBytesPerSecond = writeBytesPerSecond;
+        this.readCallsPerSecond = readCallsPerSecond;
+        this.readBytesPerSecond = readBytesPerSecond;
+        this.retainedRecords = retainedRecords;
+        this.responses = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "local-kinesis");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Creates an active stream.
+     *
+     * @throws IllegalArgumentException if the stream already exists
+     */
+    public void createStream(String streamName, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("A stream needs at least one shard");
+        }
+        if (streams.putIfAbsent(streamName, new LocalStream(streamName, shardCount)) != null) {
+            throw new IllegalArgumentException("Stream " + streamName + " already exists");
+        }
+    }
+
+    /**
+     * @return the number of entries rejected because their shard was over its write limit
+     */
+    public long getThrottledWrites() {
+        return throttledWrites.get();
+    }
+
+    /**
+     * @return the number of GetRecords calls rejected because their shard was over its read limit
+     */
+    public long getThrottledReads() {
+        return throttledReads.get();
+    }
+
+    @Override
+    public String serviceName() {
+        return "kinesis";
+    }
+
+    @Override
+    public void close() {
+        responses.shutdown();
+    }
+
+    @Override
+    public CompletableFuture<DescribeStreamResponse> describeStream(DescribeStreamRequest request) {
+        return respond(() -> {
+            LocalStream stream = stream(request.streamName());
+            return DescribeStreamResponse.builder()
+                    .streamDescription(StreamDescription.builder()
+                            .streamName(stream.name)
+                            .streamARN("arn:aws:kinesis:local:000000000000:stream/" + stream.name)
+                            .streamStatus(StreamStatus.ACTIVE)
+                            .shards(stream.describeShards(null))
+                            .hasMoreShards(false)
+                            .retentionPeriodHours(24)
+                            .build())
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<ListShardsResponse> listShards(ListShardsRequest request) {
+        return respond(() -> ListShardsResponse.builder()
+                .shards(stream(request.streamName()).describeShards(request.exclusiveStartShardId()))
+                .build());
+    }
+
+    @Override
+    public CompletableFuture<PutRecordResponse> putRecord(PutRecordRequest request) {
+        return respond(() -> {
+            LocalStream stream = stream(request.streamName());
+            LocalShard shard = stream.shardFor(request.partitionKey(), request.explicitHashKey());
+            String sequenceNumber = shard.put(request.partitionKey(), request.data());
+            if (sequenceNumber == null) {
+                throttledWrites.incrementAndGet();
+                throw ProvisionedThroughputExceededException.builder()
+                        .message("Rate exceeded for shard " + shard.shardId).build();
+            }
+            return PutRecordResponse.builder().shardId(shard.shardId).sequenceNumber(sequenceNumber).build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<PutRecordsResponse> putRecords(PutRecordsRequest request) {
+        return respond(() -> {
+            LocalStream stream = stream(request.streamName());
+            List<PutRecordsResultEntry> results = new ArrayList<PutRecordsResultEntry>(request.records().size());
+            int failed = 0;
+            for (PutRecordsRequestEntry entry : request.records()) {
+                LocalShard shard = stream.shardFor(entry.partitionKey(), entry.explicitHashKey());
+                String sequenceNumber = shard.put(entry.partitionKey(), entry.data());
+                if (sequenceNumber == null) {
+                    failed++;
+                    results.add(PutRecordsResultEntry.builder().errorCode(THROTTLED_ERROR_CODE)
+                            .errorMessage("Rate exceeded for shard " + shard.shardId).build());
+                } else {
+                    results.add(PutRecordsResultEntry.builder().shardId(shard.shardId)
+                            .sequenceNumber(sequenceNumber).build());
+                }
+            }
+            throttledWrites.addAndGet(failed);
+            return PutRecordsResponse.builder().failedRecordCount(failed).records(results).build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<GetShardIteratorResponse> getShardIterator(GetShardIteratorRequest request) {
+        return respond(() -> {
+            LocalShard shard = stream(request.streamName()).shard(request.shardId());
+            long position;
+            switch (request.shardIteratorType()) {
+                case TRIM_HORIZON:
+                    position = shard.trimHorizon();
+                    break;
+                case LATEST:
+                    position = shard.tip();
+                    break;
+                case AT_SEQUENCE_NUMBER:
+                    position = position(request.startingSequenceNumber());
+                    break;
+                case AFTER_SEQUENCE_NUMBER:
+                    position = position(request.startingSequenceNumber()) + 1;
+                    break;
+                case AT_TIMESTAMP:
+                    position = shard.positionAt(request.timestamp());
+                    break;
+                default:
+                    throw InvalidArgumentException.builder()
+                            .message("Unsupported iterator type " + request.shardIteratorTypeAsString()).build();
+            }
+            return GetShardIteratorResponse.builder()
+                    .shardIterator(iterator(request.streamName(), shard.shardId, position))
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<GetRecordsResponse> getRecords(GetRecordsRequest request) {
+        return respond(() -> {
+            // iterators are <stream>/<shard>/<position>
+            String iterator = request.shardIterator();
+            int positionStart = iterator.lastIndexOf('/');
+            int shardStart = positionStart < 0 ? -1 : iterator.lastIndexOf('/', positionStart - 1);
+            if (shardStart < 0) {
+                throw InvalidArgumentException.builder().message("Invalid shard iterator " + iterator).build();
+            }
+            String streamName = iterator.substring(0, shardStart);
+            LocalShard shard = stream(streamName).shard(iterator.substring(shardStart + 1, positionStart));
+            long position = Long.parseLong(iterator.substring(positionStart + 1));
+            int limit = request.limit() == null ? MAX_GET_RECORDS : Math.min(request.limit(), MAX_GET_RECORDS);
+            GetRecordsResponse.Builder response = GetRecordsResponse.builder();
+            long next = shard.get(position, limit, response);
+            if (next < 0) {
+                throttledReads.incrementAndGet();
+                throw ProvisionedThroughputExceededException.builder()
+                        .message("Rate exceeded for shard " + shard.shardId).build();
+            }
+            return response.nextShardIterator(iterator(streamName, shard.shardId, next)).build();
+        });
+    }
+
+    private <T> CompletableFuture<T> respond(Supplier<T> call) {
+        return CompletableFuture.supplyAsync(call, responses);
+    }
+
+    private LocalStream stream(String streamName) {
+        LocalStream stream = streams.get(streamName);
+        if (stream == null) {
+            throw ResourceNotFoundException.builder().message("Stream " + streamName + " not found").build();
+        }
+        return stream;
+    }
+
+    private static String iterator(String streamName, String shardId, long position) {
+        return streamName + "/" + shardId + "/" + position;
+    }
+
+    /**
+     * Sequence numbers are the position of the record in its shard, as 21 digits, so they
+     * compare as numbers and as strings alike.
+     */
+    private static String sequenceNumber(long position) {
+        return String.format("%021d", position);
+    }
+
+    private static long position(String sequenceNumber) {
+        try {
+            return Long.parseLong(sequenceNumber);
+        } catch (NumberFormatException e) {
+            throw InvalidArgumentException.builder().message("Invalid sequence number " + sequenceNumber).build();
+        }
+    }
+
+    private class LocalStream {
+        private final String name;
+        private final LocalShard[] shards;
+
+        LocalStream(String name, int shardCount) {
+            this.name = name;
+            this.shards = new LocalShard[shardCount];
+            BigInteger width = HASH_KEY_SPACE.divide(BigInteger.valueOf(shardCount));
+            for (int i = 0; i < shardCount; i++) {
+                BigInteger start = width.multiply(BigInteger.valueOf(i));
+                BigInteger end = i == shardCount - 1 ? HASH_KEY_SPACE.subtract(BigInteger.ONE)
+                        : start.add(width).subtract(BigInteger.ONE);
+                shards[i] = new LocalShard(String.format("shardId-%012d", i), start, end);
+            }
+        }
+
+        List<Shard> describeShards(String exclusiveStartShardId) {
+            List<Shard> result = new ArrayList<Shard>(shards.length);
+            for (LocalShard shard : shards) {
+                if (exclusiveStartShardId == null || shard.shardId.compareTo(exclusiveStartShardId) > 0) {
+                    result.add(Shard.builder()
+                            .shardId(shard.shardId)
+                            .hashKeyRange(HashKeyRange.builder()
+                                    .startingHashKey(shard.startingHashKey.toString())
+                                    .endingHashKey(shard.endingHashKey.toString())
+                                    .build())
+                            .sequenceNumberRange(SequenceNumberRange.builder()
+                                    .startingSequenceNumber(sequenceNumber(0))
+                                    .build())
+                            .build());
+                }
+            }
+            return result;
+        }
+
+        LocalShard shard(String shardId) {
+            for (LocalShard shard : shards) {
+                if (shard.shardId.equals(shardId)) {
+                    return shard;
+                }
+            }
+            throw ResourceNotFoundException.builder()
+                    .message("Shard " + shardId + " of stream " + name + " not found").build();
+        }
+
+        LocalShard shardFor(String partitionKey, String explicitHashKey) {
+            BigInteger hashKey = explicitHashKey != null ? new BigInteger(explicitHashKey) : hashKey(partitionKey);
+            // shards split the space evenly, so the first guess is off by one at most
+            int index = hashKey.multiply(BigInteger.valueOf(shards.length)).shiftRight(128).intValue();
+            index = Math.max(0, Math.min(shards.length - 1, index));
+            while (index > 0 && hashKey.compareTo(shards[index].startingHashKey) < 0) {
+                index--;
+            }
+            while (index < shards.length - 1 && hashKey.compareTo(shards[index].endingHashKey) > 0) {
+                index++;
+            }
+            return shards[index];
+        }
+    }
+
+    private static BigInteger hashKey(String partitionKey) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return new BigInteger(1, md5.digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * The records of a shard and what was written to and read from it in the current second.
+     * All methods synchronize on the shard.
+     */
+    private class LocalShard {
+        private final String shardId;
+        private final BigInteger startingHashKey;
+        private final BigInteger endingHashKey;
+
+        // records.get(i) is at position trimmed + i
+        private final List<Record> records = new ArrayList<Record>();
+        private long trimmed;
+
+        private long writeSecond;
+        private int writtenRecords;
+        private long writtenBytes;
+        private long readSecond;
+        private int readCalls;
+        private long readBytes;
+
+        LocalShard(String shardId, BigInteger startingHashKey, BigInteger endingHashKey) {
+            this.shardId = shardId;
+            this.startingHashKey = startingHashKey;
+            this.endingHashKey = endingHashKey;
+        }
+
+        /**
+         * @return the sequence number of the record, or null if the shard is over its write limit
+         */
+        synchronized String put(String partitionKey, SdkBytes data) {
+            long now = System.currentTimeMillis();
+            long second = now / 1000L;
+            if (second != writeSecond) {
+                writeSecond = second;
+                writtenRecords = 0;
+                writtenBytes = 0;
+            }
+            long size = data.asByteBuffer().remaining() + partitionKey.getBytes(StandardCharsets.UTF_8).length;
+            if ((writeRecordsPerSecond > 0 && writtenRecords >= writeRecordsPerSecond)
+                    || (writeBytesPerSecond > 0 && writtenBytes + size > writeBytesPerSecond)) {
+                return null;
+            }
+            writtenRecords++;
+            writtenBytes += size;
+            String sequenceNumber = sequenceNumber(trimmed + records.size());
+            records.add(Record.builder()
+                    .sequenceNumber(sequenceNumber)
+                    .partitionKey(partitionKey)
+                    .data(data)
+                    .approximateArrivalTimestamp(Instant.ofEpochMilli(now))
+                    .build());
+            if (retainedRecords > 0 && records.size() >= 2 * retainedRecords) {
+                // trimmed in bulk, so that each record is moved once on average
+                int dropped = records.size() - retainedRecords;
+                records.subList(0, dropped).clear();
+                trimmed += dropped;
+            }
+            return sequenceNumber;
+        }
+
+        /**
+         * Adds the records from a position to a response, along with how far behind the tip
+         * of the shard they leave the reader.
+         *
+         * @return the position after the last record returned, or -1 if the shard is over its read limit
+         */
+        synchronized long get(long position, int limit, GetRecordsResponse.Builder response) {
+            long now = System.currentTimeMillis();
+            long second = now / 1000L;
+            if (second != readSecond) {
+                readSecond = second;
+                readCalls = 0;
+                readBytes = 0;
+            }
+            if ((readCallsPerSecond > 0 && readCalls >= readCallsPerSecond)
+                    || (readBytesPerSecond > 0 && readBytes >= readBytesPerSecond)) {
+                return -1;
+            }
+            readCalls++;
+            // records dropped meanwhile are skipped, as if the reader had started at the trim horizon
+            int from = (int) Math.max(0L, Math.min(records.size(), position - trimmed));
+            int to = from;
+            long bytes = 0;
+            while (to < records.size() && to - from < limit && bytes < MAX_GET_RECORDS_BYTES) {
+                bytes += records.get(to).data().asByteBuffer().remaining();
+                to++;
+            }
+            readBytes += bytes;
+            long millisBehind = to < records.size()
+                    ? now - records.get(to).approximateArrivalTimestamp().toEpochMilli() : 0L;
+            response.records(new ArrayList<Record>(records.subList(from, to))).millisBehindLatest(millisBehind);
+            return trimmed + to;
+        }
+
+        synchronized long trimHorizon() {
+            return trimmed;
+        }
+
+        synchronized long tip() {
+            return trimmed + records.size();
+        }
+
+        synchronized long positionAt(Instant timestamp) {
+            int low = 0;
+            int high = records.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (records.get(mid).approximateArrivalTimestamp().isBefore(timestamp)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return trimmed + low;
+        }
+    }
+
+}
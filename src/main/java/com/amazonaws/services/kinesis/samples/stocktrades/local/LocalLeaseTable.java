@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeAction;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValueUpdate;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableResponse;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableResponse;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.ExpectedAttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeySchemaElement;
+import software.amazon.awssdk.services.dynamodb.model.KeyType;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ResourceInUseException;
+import software.amazon.awssdk.services.dynamodb.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.TableDescription;
+import software.amazon.awssdk.services.dynamodb.model.TableStatus;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+/**
+ * An in-memory stand-in for the DynamoDB tables KCL keeps its leases and checkpoints in.
+ * <p>
+ * Only the calls made by the KCL lease refresher are implemented: CreateTable, DescribeTable,
+ * GetItem, PutItem, UpdateItem, DeleteItem and Scan. Tables have a single string or number hash
+ * key and are active as soon as they are created. Conditions are given the way KCL gives them,
+ * as legacy expected values that must exist, be absent or equal a value, and updates as legacy
+ * PUT, DELETE or numeric ADD actions. A failed condition fails the call with a
+ * {@link ConditionalCheckFailedException}. Every call on a table is atomic, and responses
+ * complete on a separate thread, as they would with a real client.
+ */
+public class LocalLeaseTable implements DynamoDbAsyncClient {
+
+    private final Map<String, Table> tables = new ConcurrentHashMap<String, Table>();
+    private final ExecutorService responses = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "local-lease-table");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @Override
+    public String serviceName() {
+        return "dynamodb";
+    }
+
+    @Override
+    public void close() {
+        responses.shutdown();
+    }
+
+    @Override
+    public CompletableFuture<CreateTableResponse> createTable(CreateTableRequest request) {
+        return respond(() -> {
+            String hashKey = null;
+            for (KeySchemaElement key : request.keySchema()) {
+                if (key.keyType() == KeyType.HASH) {
+                    hashKey = key.attributeName();
+                } else {
+                    throw new UnsupportedOperationException("Only tables with a hash key alone are supported");
+                }
+            }
+            Table table = new Table(request.tableName(), hashKey);
+            if (tables.putIfAbsent(request.tableName(), table) != null) {
+                throw ResourceInUseException.builder().message("Table " + request.tableName() + " exists").build();
+            }
+            return CreateTableResponse.builder().tableDescription(table.describe()).build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<DescribeTableResponse> describeTable(DescribeTableRequest request) {
+        return respond(() -> DescribeTableResponse.builder().table(table(request.tableName()).describe()).build());
+    }
+
+    @Override
+    public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+        return respond(() -> {
+            Table table = table(request.tableName());
+            synchronized (table) {
+                Map<String, AttributeValue> item = table.items.get(table.keyOf(request.key()));
+                // items are replaced rather than modified, so they can be handed out as they are
+                return item == null ? GetItemResponse.builder().build() : GetItemResponse.builder().item(item).build();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<PutItemResponse> putItem(PutItemRequest request) {
+        return respond(() -> {
+            Table table = table(request.tableName());
+            String key = table.keyOf(request.item());
+            synchronized (table) {
+                check(request.expected(), table.items.get(key));
+                table.items.put(key, Collections.unmodifiableMap(new HashMap<String, AttributeValue>(request.item())));
+            }
+            return PutItemResponse.builder().build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+        return respond(() -> {
+            Table table = table(request.tableName());
+            String key = table.keyOf(request.key());
+            synchronized (table) {
+                Map<String, AttributeValue> current = table.items.get(key);
+                check(request.expected(), current);
+                Map<String, AttributeValue> item = current == null
+                        ? new HashMap<String, AttributeValue>(request.key())
+                        : new HashMap<String, AttributeValue>(current);
+                for (Map.Entry<String, AttributeValueUpdate> update : request.attributeUpdates().entrySet()) {
+                    apply(item, update.getKey(), update.getValue());
+                }
+                table.items.put(key, Collections.unmodifiableMap(item));
+            }
+            return UpdateItemResponse.builder().build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request) {
+        return respond(() -> {
+            Table table = table(request.tableName());
+            String key = table.keyOf(request.key());
+            synchronized (table) {
+                check(request.expected(), table.items.get(key));
+                table.items.remove(key);
+            }
+            return DeleteItemResponse.builder().build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<ScanResponse> scan(ScanRequest request) {
+        return respond(() -> {
+            Table table = table(request.tableName());
+            int limit = request.limit() == null ? Integer.MAX_VALUE : request.limit();
+            List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+            Map<String, AttributeValue> lastKey = null;
+            synchronized (table) {
+                Map<String, Map<String, AttributeValue>> remaining = request.hasExclusiveStartKey()
+                        && !request.exclusiveStartKey().isEmpty()
+                        ? table.items.tailMap(table.keyOf(request.exclusiveStartKey()), false) : table.items;
+                for (Map<String, AttributeValue> item : remaining.values()) {
+                    if (items.size() == limit) {
+                        lastKey = Collections.singletonMap(table.hashKey, items.get(limit - 1).get(table.hashKey));
+                        break;
+                    }
+                    items.add(item);
+                }
+            }
+            ScanResponse.Builder response = ScanResponse.builder().items(items).count(items.size());
+            return lastKey == null ? response.build() : response.lastEvaluatedKey(lastKey).build();
+        });
+    }
+
+    private <T> CompletableFuture<T> respond(Supplier<T> call) {
+        return CompletableFuture.supplyAsync(call, responses);
+    }
+
+    private Table table(String tableName) {
+        Table table = tables.get(tableName);
+        if (table == null) {
+            throw ResourceNotFoundException.builder().message("Table " + tableName + " not found").build();
+        }
+        return table;
+    }
+
+    private static void check(Map<String, ExpectedAttributeValue> expected, Map<String, AttributeValue> item) {
+        for (Map.Entry<String, ExpectedAttributeValue> condition : expected.entrySet()) {
+            ExpectedAttributeValue value = condition.getValue();
+            if (value.comparisonOperator() != null) {
+                throw new UnsupportedOperationException("Comparison operators are not supported");
+            }
+            AttributeValue actual = item == null ? null : item.get(condition.getKey());
+            boolean met;
+            if (value.value() != null) {
+                met = value.value().equals(actual);
+            } else {
+                // exists defaults to true, which requires a value
+                met = Boolean.FALSE.equals(value.exists()) == (actual == null);
+            }
+            if (!met) {
+                throw ConditionalCheckFailedException.builder()
+                        .message("The conditional request failed on " + condition.getKey()).build();
+            }
+        }
+    }
+
+    private static void apply(Map<String, AttributeValue> item, String name, AttributeValueUpdate update) {
+        AttributeAction action = update.action() == null ? AttributeAction.PUT : update.action();
+        switch (action) {
+            case PUT:
+                item.put(name, update.value());
+                break;
+            case DELETE:
+                item.remove(name);
+                break;
+            case ADD:
+                AttributeValue current = item.get(name);
+                long sum = Long.parseLong(update.value().n()) + (current == null ? 0L : Long.parseLong(current.n()));
+                item.put(name, AttributeValue.builder().n(Long.toString(sum)).build());
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported update action " + update.actionAsString());
+        }
+    }
+
+    /**
+     * Items of a table by hash key, in key order so that scans page consistently.
+     */
+    private static class Table {
+        private final String name;
+        private final String hashKey;
+        private final TreeMap<String, Map<String, AttributeValue>> items =
+                new TreeMap<String, Map<String, AttributeValue>>();
+
+        Table(String name, String hashKey) {
+            this.name = name;
+            this.hashKey = hashKey;
+        }
+
+        String keyOf(Map<String, AttributeValue> item) {
+            AttributeValue key = item.get(hashKey);
+            if (key == null) {
+                throw DynamoDbException.builder()
+                        .message("Missing key " + hashKey + " in table " + name).build();
+            }
+            return key.s() != null ? key.s() : key.n();
+        }
+
+        TableDescription describe() {
+            return TableDescription.builder()
+                    .tableName(name)
+                    .tableStatus(TableStatus.ACTIVE)
+                    .keySchema(KeySchemaElement.builder().attributeName(hashKey).keyType(KeyType.HASH).build())
+                    .build();
+        }
+    }
+
+}
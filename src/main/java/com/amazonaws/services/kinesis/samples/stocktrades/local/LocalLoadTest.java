@@ -0,0 +1,474 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.local;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.LogHistogram;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.MetricRegistry;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Metrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.NoOpMetrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.PrefixedMetrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodecs;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.CheckpointScheduler;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.RetrievalSettings;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeProcessorConfig;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeRecordProcessorFactory;
+import com.amazonaws.services.kinesis.samples.stocktrades.sink.StatsPublisher;
+import com.amazonaws.services.kinesis.samples.stocktrades.utils.CommandLineOptions;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.PutRecordsBatcher;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.TradeGeneratorEngine;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataResponse;
+import software.amazon.kinesis.common.ConfigsBuilder;
+import software.amazon.kinesis.common.InitialPositionInStream;
+import software.amazon.kinesis.common.InitialPositionInStreamExtended;
+import software.amazon.kinesis.coordinator.CoordinatorConfig;
+import software.amazon.kinesis.coordinator.Scheduler;
+import software.amazon.kinesis.coordinator.SchedulerCoordinatorFactory;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.LeaseLostInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.lifecycle.events.ShardEndedInput;
+import software.amazon.kinesis.lifecycle.events.ShutdownRequestedInput;
+import software.amazon.kinesis.metrics.NullMetricsFactory;
+import software.amazon.kinesis.processor.ShardRecordProcessor;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * Runs the writer and the processor end to end in one JVM, against {@link LocalKinesisClient}
+ * and {@link LocalLeaseTable}, and reports the throughput and the latency from the time a
+ * trade is accepted by the stream to the time its record is handed to the processor.
+ * <p>
+ * Each stream is fed by its own writer at a fixed rate, through a {@link PutRecordsBatcher},
+ * and consumed by its own KCL {@link Scheduler} with polling retrieval, as
+ * {@link com.amazonaws.services.kinesis.samples.stocktrades.processor.MultiStreamProcessor}
+ * would run it. Since the stand-ins enforce the limits of real shards by default, the numbers
+ * are those of a stream of that many shards, and runs with the same seed write the same trades.
+ * Throughput is also reported per GB of heap in use once the run is over, to compare
+ * deployments such as one scheduler per JVM against several sharing one. With metrics enabled,
+ * the latency of each stage a trade goes through is also reported per shard, from the writer
+ * to the stream when trades carry the time they were produced. Stats sinks can be tried out as
+ * well: the CloudWatch sink puts its metrics to a stand-in that only counts them.
+ */
+public class LocalLoadTest {
+
+    private static final Log LOG = LogFactory.getLog(LocalLoadTest.class);
+
+    private static final Logger ROOT_LOGGER = Logger.getLogger("");
+    private static final Logger PROCESSOR_LOGGER =
+            Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades.processor");
+    private static final Logger LOCAL_LOGGER =
+            Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades.local");
+
+    private static final int DEFAULT_STREAMS = 1;
+    private static final int DEFAULT_SHARDS = 4;
+    private static final double DEFAULT_RATE = 2000;
+    private static final long DEFAULT_DURATION_MILLIS = 60000L;
+    private static final int DEFAULT_SYMBOLS = 25;
+    private static final long REPORT_INTERVAL_MILLIS = 10000L;
+
+    // How long the processors are given to catch up with the writers once they stop
+    private static final long DRAIN_TIMEOUT_MILLIS = 60000L;
+
+    // Writer settings, as in StockTradesWriter
+    private static final long LINGER_MILLIS = 100L;
+    private static final int MAX_IN_FLIGHT = 4;
+    private static final int MAX_RETRIES = 5;
+
+    // Leases are taken over faster than by default, so that processing starts within seconds
+    private static final long FAILOVER_TIME_MILLIS = 2000L;
+
+    private static final String METRICS_MBEAN_NAME =
+            "com.amazonaws.services.kinesis.samples.stocktrades:type=LocalLoadTest";
+
+    private static void checkUsage(CommandLineOptions options) {
+        if (!options.getPositional().isEmpty()) {
+            System.err.println("Usage: " + LocalLoadTest.class.getSimpleName()
+                    + " [--streams=<n>] [--shards=<n>] [--rate=<trades per second per stream>]"
+                    + " [--duration=<duration>] [--format=json|binary] [--produce-timestamps]"
+                    + " [--symbols=<n>] [--seed=<n>]"
+                    + " [--write-records-per-shard=<n>] [--write-bytes-per-shard=<n>]"
+                    + " [--read-calls-per-shard=<n>] [--read-bytes-per-shard=<n>]"
+                    + " [--processing-threads=<n>] [--max-records=<n>] [--idle-time=<duration>] [--prefetch=<batches>] "
+                    + StockTradeProcessorConfig.usage() + " " + StatsPublisher.usage());
+            System.exit(1);
+        }
+    }
+
+    private static void setLogLevels() {
+        ROOT_LOGGER.setLevel(Level.WARNING);
+        PROCESSOR_LOGGER.setLevel(Level.WARNING);
+        LOCAL_LOGGER.setLevel(Level.INFO);
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        checkUsage(options);
+        setLogLevels();
+
+        int streamCount = options.getInt("streams", DEFAULT_STREAMS);
+        int shardCount = options.getInt("shards", DEFAULT_SHARDS);
+        double tradesPerSecond = options.getDouble("rate", DEFAULT_RATE);
+        long durationMillis = options.getDurationMillis("duration", DEFAULT_DURATION_MILLIS);
+        StockTradeCodec codec = StockTradeCodecs.forName(options.getString("format", "json"));
+        int symbols = options.getInt("symbols", DEFAULT_SYMBOLS);
+        long seed = options.getLong("seed", 1L);
+        boolean stampTrades = options.getBoolean("produce-timestamps", false);
+        // 0 leaves each scheduler its own unbounded pool
+        int processingThreads = options.getInt("processing-threads", 0);
+        StockTradeProcessorConfig config = StockTradeProcessorConfig.fromOptions(options);
+        RetrievalSettings retrieval = RetrievalSettings.fromOptions(options, RetrievalSettings.Mode.POLLING);
+        if (retrieval.mode() != RetrievalSettings.Mode.POLLING) {
+            System.err.println("Enhanced fan-out is not simulated, only polling is");
+            System.exit(1);
+        }
+
+        LocalKinesisClient kinesisClient = new LocalKinesisClient(
+                options.getInt("write-records-per-shard", LocalKinesisClient.DEFAULT_WRITE_RECORDS_PER_SECOND),
+                options.getLong("write-bytes-per-shard", LocalKinesisClient.DEFAULT_WRITE_BYTES_PER_SECOND),
+                options.getInt("read-calls-per-shard", LocalKinesisClient.DEFAULT_READ_CALLS_PER_SECOND),
+                options.getLong("read-bytes-per-shard", LocalKinesisClient.DEFAULT_READ_BYTES_PER_SECOND),
+                LocalKinesisClient.DEFAULT_RETAINED_RECORDS);
+        LocalLeaseTable leaseTable = new LocalLeaseTable();
+        LongAdder metricData = new LongAdder();
+        CloudWatchAsyncClient cloudWatchClient = new CloudWatchAsyncClient() {
+            // KCL metrics are disabled, so only the CloudWatch stats sink puts metric data
+            @Override
+            public CompletableFuture<PutMetricDataResponse> putMetricData(PutMetricDataRequest request) {
+                metricData.add(request.metricData().size());
+                return CompletableFuture.completedFuture(PutMetricDataResponse.builder().build());
+            }
+
+            @Override
+            public String serviceName() {
+                return "monitoring";
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        ExecutorService processingExecutor = processingThreads > 0
+                ? Executors.newFixedThreadPool(processingThreads) : null;
+        ScheduledExecutorService checkpointExecutor = CheckpointScheduler.newExecutor();
+        ForkJoinPool batchPool = config.parallelThresholdRecords() > 0 ? new ForkJoinPool(config.parallelism()) : null;
+        MetricRegistry metricRegistry = config.metricsEnabled()
+                ? MetricRegistry.start(METRICS_MBEAN_NAME, config.metricsDumpIntervalMillis()) : null;
+        Metrics metrics = metricRegistry != null ? metricRegistry : NoOpMetrics.INSTANCE;
+        StatsPublisher statsPublisher = StatsPublisher.fromOptions(options, cloudWatchClient);
+        if (statsPublisher != null) {
+            statsPublisher.registerMetrics(metrics);
+        }
+
+        LongAdder processed = new LongAdder();
+        LogHistogram totalLatency = new LogHistogram();
+        AtomicReference<LogHistogram> intervalLatency = new AtomicReference<LogHistogram>(new LogHistogram());
+
+        List<Scheduler> schedulers = new ArrayList<Scheduler>();
+        List<StockTradeRecordProcessorFactory> factories = new ArrayList<StockTradeRecordProcessorFactory>();
+        List<Thread> schedulerThreads = new ArrayList<Thread>();
+        for (int i = 0; i < streamCount; i++) {
+            String streamName = "LocalStockTrades-" + i;
+            kinesisClient.createStream(streamName, shardCount);
+            StockTradeRecordProcessorFactory factory = new StockTradeRecordProcessorFactory(config, streamName,
+                    batchPool, checkpointExecutor, new PrefixedMetrics(metrics, streamName + "."), statsPublisher);
+            factories.add(factory);
+            ConfigsBuilder configsBuilder = new ConfigsBuilder(streamName, "LocalLoadTest-" + i, kinesisClient,
+                    leaseTable, cloudWatchClient, "local-worker",
+                    () -> new LatencyProbe(factory.shardRecordProcessor(), processed, totalLatency, intervalLatency));
+            CoordinatorConfig coordinatorConfig = configsBuilder.coordinatorConfig();
+            if (processingExecutor != null) {
+                coordinatorConfig.coordinatorFactory(new SchedulerCoordinatorFactory() {
+                    @Override
+                    public ExecutorService createExecutorService() {
+                        return processingExecutor;
+                    }
+                });
+            }
+            InitialPositionInStreamExtended trimHorizon =
+                    InitialPositionInStreamExtended.newInitialPosition(InitialPositionInStream.TRIM_HORIZON);
+            Scheduler scheduler = new Scheduler(
+                    configsBuilder.checkpointConfig(),
+                    coordinatorConfig,
+                    configsBuilder.leaseManagementConfig()
+                            .initialPositionInStream(trimHorizon)
+                            .failoverTimeMillis(FAILOVER_TIME_MILLIS),
+                    configsBuilder.lifecycleConfig(),
+                    configsBuilder.metricsConfig().metricsFactory(new NullMetricsFactory()),
+                    configsBuilder.processorConfig(),
+                    configsBuilder.retrievalConfig()
+                            .initialPositionInStreamExtended(trimHorizon)
+                            .retrievalSpecificConfig(retrieval.toRetrievalConfig(streamName, "LocalLoadTest-" + i,
+                                    kinesisClient)));
+            schedulers.add(scheduler);
+            Thread thread = new Thread(scheduler, "scheduler-" + streamName);
+            thread.setDaemon(true);
+            thread.start();
+            schedulerThreads.add(thread);
+        }
+
+        LOG.info("Retrieving records with " + retrieval);
+        LOG.info("Writing " + tradesPerSecond + " trade(s) per second to each of " + streamCount + " stream(s) of "
+                + shardCount + " shard(s) for " + durationMillis + " ms");
+        List<Writer> writers = new ArrayList<Writer>();
+        for (int i = 0; i < streamCount; i++) {
+            Writer writer = new Writer(kinesisClient, "LocalStockTrades-" + i, codec,
+                    new TradeGeneratorEngine(seed + i, 1, symbols, 0), tradesPerSecond, durationMillis, stampTrades);
+            writer.start();
+            writers.add(writer);
+        }
+
+        long startMillis = System.currentTimeMillis();
+        long endMillis = startMillis + durationMillis;
+        long lastProcessed = 0;
+        while (System.currentTimeMillis() < endMillis) {
+            Thread.sleep(Math.min(REPORT_INTERVAL_MILLIS, Math.max(1L, endMillis - System.currentTimeMillis())));
+            long now = processed.sum();
+            LogHistogram.Snapshot latency = intervalLatency.getAndSet(new LogHistogram()).snapshot();
+            LOG.info("Written " + written(writers) + ", processed " + now + " (+" + (now - lastProcessed)
+                    + "), throttled writes " + kinesisClient.getThrottledWrites() + ", throttled reads "
+                    + kinesisClient.getThrottledReads() + ", latency ms p50 " + latency.getQuantile(0.5)
+                    + " p99 " + latency.getQuantile(0.99) + " max " + latency.getMax());
+            lastProcessed = now;
+        }
+        for (Writer writer : writers) {
+            writer.join(DRAIN_TIMEOUT_MILLIS);
+            if (writer.isAlive()) {
+                LOG.warn("Writer " + writer.getName() + " still busy, interrupting it");
+                writer.interrupt();
+            }
+        }
+        long writtenRecords = written(writers);
+        long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (processed.sum() < writtenRecords && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(100L);
+        }
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+        long processedRecords = processed.sum();
+        // the metrics of a shard are removed when its processor shuts down
+        String stageLatencies = metricRegistry != null ? stageLatencies(metricRegistry) : null;
+
+        List<Future<Boolean>> shutdowns = new ArrayList<Future<Boolean>>();
+        for (Scheduler scheduler : schedulers) {
+            shutdowns.add(scheduler.startGracefulShutdown());
+        }
+        for (Future<Boolean> shutdown : shutdowns) {
+            shutdown.get(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        for (Thread thread : schedulerThreads) {
+            thread.join(DRAIN_TIMEOUT_MILLIS);
+        }
+        for (StockTradeRecordProcessorFactory factory : factories) {
+            factory.close();
+        }
+        if (statsPublisher != null) {
+            statsPublisher.close();
+        }
+        long heapBytes = usedHeapBytes();
+
+        LogHistogram.Snapshot latency = totalLatency.snapshot();
+        double recordsPerSecond = processedRecords * 1000.0 / elapsedMillis;
+        System.out.println(String.format("Processed %d of %d record(s) in %.1f s: %.0f records/s",
+                processedRecords, writtenRecords, elapsedMillis / 1000.0, recordsPerSecond));
+        System.out.println(String.format("Latency ms: p50 %d, p99 %d, p99.9 %d, max %d",
+                latency.getQuantile(0.5), latency.getQuantile(0.99), latency.getQuantile(0.999), latency.getMax()));
+        if (stageLatencies != null) {
+            System.out.print(stageLatencies);
+        }
+        if (statsPublisher != null) {
+            System.out.println(statsPublisher + ", CloudWatch stand-in received " + metricData.sum()
+                    + " datum(s)");
+        }
+        System.out.println(String.format("Throttled writes %d, throttled reads %d",
+                kinesisClient.getThrottledWrites(), kinesisClient.getThrottledReads()));
+        System.out.println(String.format("Heap in use %.1f MB, %d thread(s): %.0f records/s per GB of heap",
+                heapBytes / 1048576.0, Thread.activeCount(), recordsPerSecond * (1L << 30) / heapBytes));
+
+        checkpointExecutor.shutdown();
+        if (metricRegistry != null) {
+            metricRegistry.close();
+        }
+        if (processingExecutor != null) {
+            processingExecutor.shutdown();
+        }
+        if (batchPool != null) {
+            batchPool.shutdown();
+        }
+        kinesisClient.close();
+        leaseTable.close();
+        System.exit(processedRecords >= writtenRecords ? 0 : 1);
+    }
+
+    private static long written(List<Writer> writers) {
+        long written = 0;
+        for (Writer writer : writers) {
+            written += writer.batcher.getRecordsSent();
+        }
+        return written;
+    }
+
+    /**
+     * @return the lines of the metrics dump holding the stage latencies of each shard
+     */
+    private static String stageLatencies(MetricRegistry metricRegistry) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : metricRegistry.dump().split("\\R")) {
+            if (line.contains("ToKinesisMillis") || line.contains("ToConsumerMillis")
+                    || line.contains("ToAggregateMicros")) {
+                sb.append(line.trim()).append(System.lineSeparator());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the heap in use after a few collections, so that only live objects are counted
+     */
+    private static long usedHeapBytes() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Writes the trades of one stream at a fixed rate, one trade per record keyed by ticker symbol.
+     */
+    private static class Writer extends Thread {
+        private final StockTradeCodec codec;
+        private final TradeGeneratorEngine engine;
+        private final double tradesPerSecond;
+        private final long durationMillis;
+        private final boolean stampTrades;
+        private final PutRecordsBatcher batcher;
+
+        Writer(LocalKinesisClient kinesisClient, String streamName, StockTradeCodec codec,
+               TradeGeneratorEngine engine, double tradesPerSecond, long durationMillis, boolean stampTrades) {
+            super("writer-" + streamName);
+            setDaemon(true);
+            this.codec = codec;
+            this.engine = engine;
+            this.tradesPerSecond = tradesPerSecond;
+            this.durationMillis = durationMillis;
+            this.stampTrades = stampTrades;
+            this.batcher = new PutRecordsBatcher(kinesisClient, streamName, LINGER_MILLIS, MAX_IN_FLIGHT,
+                    MAX_RETRIES);
+        }
+
+        @Override
+        public void run() {
+            TradeGeneratorEngine.Worker worker = engine.worker(0);
+            long nanosPerTrade = (long) (TimeUnit.SECONDS.toNanos(1) / tradesPerSecond);
+            long startNanos = System.nanoTime();
+            long endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            long nextTradeNanos = startNanos;
+            try {
+                while (System.nanoTime() < endNanos) {
+                    StockTrade trade = worker.nextTrade();
+                    if (stampTrades) {
+                        trade = trade.withProducedMillis(System.currentTimeMillis());
+                    }
+                    batcher.add(trade.getTickerSymbol(), codec.encode(trade));
+                    nextTradeNanos += nanosPerTrade;
+                    long aheadNanos = nextTradeNanos - System.nanoTime();
+                    if (aheadNanos >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                        TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                    }
+                }
+                // sends the last batch and waits for the requests in flight
+                batcher.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wraps a record processor to count the records it is handed and how long after their
+     * arrival in the stream.
+     */
+    private static class LatencyProbe implements ShardRecordProcessor {
+        private final ShardRecordProcessor processor;
+        private final LongAdder processed;
+        private final LogHistogram totalLatency;
+        private final AtomicReference<LogHistogram> intervalLatency;
+
+        LatencyProbe(ShardRecordProcessor processor, LongAdder processed, LogHistogram totalLatency,
+                     AtomicReference<LogHistogram> intervalLatency) {
+            this.processor = processor;
+            this.processed = processed;
+            this.totalLatency = totalLatency;
+            this.intervalLatency = intervalLatency;
+        }
+
+        @Override
+        public void initialize(InitializationInput initializationInput) {
+            processor.initialize(initializationInput);
+        }
+
+        @Override
+        public void processRecords(ProcessRecordsInput processRecordsInput) {
+            long now = System.currentTimeMillis();
+            LogHistogram interval = intervalLatency.get();
+            for (KinesisClientRecord record : processRecordsInput.records()) {
+                long latency = now - record.approximateArrivalTimestamp().toEpochMilli();
+                totalLatency.record(latency);
+                interval.record(latency);
+            }
+            processor.processRecords(processRecordsInput);
+            processed.add(processRecordsInput.records().size());
+        }
+
+        @Override
+        public void leaseLost(LeaseLostInput leaseLostInput) {
+            processor.leaseLost(leaseLostInput);
+        }
+
+        @Override
+        public void shardEnded(ShardEndedInput shardEndedInput) {
+            processor.shardEnded(shardEndedInput);
+        }
+
+        @Override
+        public void shutdownRequested(ShutdownRequestedInput shutdownRequestedInput) {
+            processor.shutdownRequested(shutdownRequestedInput);
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Metrics kept in memory, which can be exposed through JMX and dumped to the log periodically.
+ * <p>
+ * Counters are {@link LongAdder}s, so threads updating the same counter do not contend, and
+ * histograms are {@link LogHistogram}s. Through JMX, every counter and gauge is an attribute,
+ * and every histogram is a set of attributes for its count, mean, percentiles and maximum.
+ */
+public class MetricRegistry implements Metrics, AutoCloseable {
+
+    private static final Log log = LogFactory.getLog(MetricRegistry.class);
+
+    private static final String[] HISTOGRAM_FIELDS = {"count", "mean", "p50", "p90", "p99", "p999", "max"};
+
+    private final Map<String, AdderCounter> counters = new ConcurrentHashMap<String, AdderCounter>();
+    private final Map<String, LogHistogram> histograms = new ConcurrentHashMap<String, LogHistogram>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+    private ScheduledExecutorService dumper;
+    private ObjectName objectName;
+
+    // Counts at the previous dump, to report rates. Only used by the dump thread.
+    private final Map<String, Long> previousCounts = new HashMap<String, Long>();
+    private long previousDumpNanos;
+
+    /**
+     * Creates a registry exposed through JMX and, if the interval is positive, dumped to the log.
+     *
+     * @param mbeanName Object name of the MBean
+     * @param dumpIntervalMillis Interval between dumps, or 0 not to dump
+     */
+    public static MetricRegistry start(String mbeanName, long dumpIntervalMillis) {
+        MetricRegistry registry = new MetricRegistry();
+        try {
+            registry.registerMBean(mbeanName);
+        } catch (JMException e) {
+            log.warn("Could not register metrics MBean " + mbeanName + ", metrics are only dumped.", e);
+        }
+        if (dumpIntervalMillis > 0) {
+            registry.startDump(dumpIntervalMillis);
+        }
+        return registry;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new AdderCounter());
+    }
+
+    @Override
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LogHistogram());
+    }
+
+    @Override
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    @Override
+    public void remove(String prefix) {
+        counters.keySet().removeIf(name -> name.startsWith(prefix));
+        histograms.keySet().removeIf(name -> name.startsWith(prefix));
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     *
+     * @param name Object name, such as "com.amazonaws.samples:type=StockTradesProcessor"
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName(name);
+        server.registerMBean(new MetricsMBean(), objectName);
+    }
+
+    /**
+     * Logs a snapshot of all metrics at a fixed interval, with the rate of every counter since
+     * the previous snapshot.
+     */
+    public synchronized void startDump(long intervalMillis) {
+        if (dumper != null) {
+            throw new IllegalStateException("Already dumping metrics");
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        previousDumpNanos = System.nanoTime();
+        dumper.scheduleAtFixedRate(() -> log.info(dump()), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a snapshot of all metrics, one per line, sorted by name
+     */
+    public String dump() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - previousDumpNanos) / 1e9);
+        previousDumpNanos = now;
+
+        Map<String, String> lines = new TreeMap<String, String>();
+        for (Map.Entry<String, AdderCounter> counter : counters.entrySet()) {
+            long count = counter.getValue().get();
+            Long previous = previousCounts.put(counter.getKey(), count);
+            double rate = (count - (previous == null ? 0 : previous)) / seconds;
+            lines.put(counter.getKey(), String.format("%d (%.1f/s)", count, rate));
+        }
+        previousCounts.keySet().retainAll(counters.keySet());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            lines.put(gauge.getKey(), String.valueOf(gauge.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, LogHistogram> histogram : histograms.entrySet()) {
+            lines.put(histogram.getKey(), histogram.getValue().snapshot().toString());
+        }
+
+        StringBuilder sb = new StringBuilder("Metrics:");
+        for (Map.Entry<String, String> line : lines.entrySet()) {
+            sb.append(String.format("%n  %s: %s", line.getKey(), line.getValue()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stops the periodic dump and unregisters the MBean.
+     */
+    @Override
+    public synchronized void close() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                log.warn("Could not unregister metrics MBean " + objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    private Object readAttribute(String attribute) throws AttributeNotFoundException {
+        AdderCounter counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        LongSupplier gauge = gauges.get(attribute);
+        if (gauge != null) {
+            return gauge.getAsLong();
+        }
+        int dot = attribute.lastIndexOf('.');
+        LogHistogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+        if (histogram != null) {
+            LogHistogram.Snapshot snapshot = histogram.snapshot();
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return snapshot.getCount();
+                case "mean":
+                    return (long) snapshot.getMean();
+                case "p50":
+                    return snapshot.getQuantile(0.5);
+                case "p90":
+                    return snapshot.getQuantile(0.9);
+                case "p99":
+                    return snapshot.getQuantile(0.99);
+                case "p999":
+                    return snapshot.getQuantile(0.999);
+                case "max":
+                    return snapshot.getMax();
+                default:
+                    break;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private static class AdderCounter implements Counter {
+        private final LongAdder adder = new LongAdder();
+
+        @Override
+        public void increment() {
+            adder.increment();
+        }
+
+        @Override
+        public void add(long delta) {
+            adder.add(delta);
+        }
+
+        @Override
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * Read only view of the registry, whose attributes follow the metrics as they come and go.
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            return readAttribute(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, readAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // removed since the attribute names were read, leave it out
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : new TreeMap<String, Object>(counters).keySet()) {
+                attributes.add(attribute(name, "Counter"));
+            }
+            for (String name : new TreeMap<String, Object>(gauges).keySet()) {
+                attributes.add(attribute(name, "Gauge"));
+            }
+            for (String name : new TreeMap<String, Object>(histograms).keySet()) {
+                for (String field : HISTOGRAM_FIELDS) {
+                    attributes.add(attribute(name + "." + field, "Histogram " + field));
+                }
+            }
+            return new MBeanInfo(MetricRegistry.class.getName(), "Stock trades metrics",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+
+        private MBeanAttributeInfo attribute(String name, String description) {
+            return new MBeanAttributeInfo(name, Long.class.getName(), description, true, false, false);
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Creates and names the metrics of the producer and the consumer.
+ * <p>
+ * Metrics are looked up once, when a component is created, and then updated directly, so
+ * updates never go through a map. With {@link NoOpMetrics}, every metric is a shared instance
+ * whose methods do nothing, and components can check {@link #isEnabled()} to skip measuring
+ * altogether.
+ */
+public interface Metrics {
+
+    /**
+     * @return false if updates are discarded, in which case measuring is a waste of time
+     */
+    boolean isEnabled();
+
+    /**
+     * Returns the counter of the given name, creating it if needed.
+     */
+    Counter counter(String name);
+
+    /**
+     * Returns the histogram of the given name, creating it if needed.
+     */
+    Histogram histogram(String name);
+
+    /**
+     * Registers a value that is read when the metrics are reported, replacing any gauge of the
+     * same name.
+     */
+    void gauge(String name, LongSupplier value);
+
+    /**
+     * Removes the metrics whose name starts with the given prefix, such as those of a shard
+     * that is no longer processed.
+     */
+    void remove(String prefix);
+
+}
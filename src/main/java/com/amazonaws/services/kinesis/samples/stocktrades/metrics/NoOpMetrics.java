@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics that discard every update. All counters and histograms are the same stateless
+ * instances, so the calls on the hot path are inlined away.
+ */
+public final class NoOpMetrics implements Metrics {
+
+    public static final NoOpMetrics INSTANCE = new NoOpMetrics();
+
+    private static final Counter COUNTER = new Counter() {
+        @Override
+        public void increment() {
+        }
+
+        @Override
+        public void add(long delta) {
+        }
+
+        @Override
+        public long get() {
+            return 0;
+        }
+    };
+
+    private static final Histogram HISTOGRAM = value -> { };
+
+    private NoOpMetrics() {
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return false;
+    }
+
+    @Override
+    public Counter counter(String name) {
+        return COUNTER;
+    }
+
+    @Override
+    public Histogram histogram(String name) {
+        return HISTOGRAM;
+    }
+
+    @Override
+    public void gauge(String name, LongSupplier value) {
+    }
+
+    @Override
+    public void remove(String prefix) {
+    }
+
+}
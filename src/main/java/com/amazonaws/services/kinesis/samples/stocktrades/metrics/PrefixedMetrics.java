@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics whose names all start with the same prefix, so that components reporting to the same
+ * registry under the same names, such as the shards of different streams, do not collide.
+ */
+public final class PrefixedMetrics implements Metrics {
+
+    private final Metrics metrics;
+    private final String prefix;
+
+    /**
+     * Constructor.
+     *
+     * @param metrics Metrics the names are prefixed for
+     * @param prefix Prefix of every name, usually ending with a dot
+     */
+    public PrefixedMetrics(Metrics metrics, String prefix) {
+        this.metrics = metrics;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return metrics.isEnabled();
+    }
+
+    @Override
+    public Counter counter(String name) {
+        return metrics.counter(prefix + name);
+    }
+
+    @Override
+    public Histogram histogram(String name) {
+        return metrics.histogram(prefix + name);
+    }
+
+    @Override
+    public void gauge(String name, LongSupplier value) {
+        metrics.gauge(prefix + name, value);
+    }
+
+    @Override
+    public void remove(String prefix) {
+        metrics.remove(this.prefix + prefix);
+    }
+
+}
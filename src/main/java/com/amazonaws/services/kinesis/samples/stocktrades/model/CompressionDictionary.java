@@ -0,0 +1,287 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A preset dictionary for compressing stock trade payloads, see {@link CompressedStockTradeCodec}.
+ * <p>
+ * Payloads are too small to compress well on their own, but they share most of their bytes:
+ * field names, ticker symbols and trade types. Deflate can refer back to a dictionary as if it
+ * preceded the payload, so those bytes cost a short back reference each. Every compressed
+ * payload names its dictionary by a one byte id, and both the writer and the processor must
+ * know the dictionary under that id. The contents of an id may therefore never change; a new
+ * dictionary gets a new id. Id 0 stands for no dictionary, and id 1 is the built in
+ * dictionary. Other dictionaries are trained from sample payloads with
+ * {@link #train(int, List, int)}, saved to a file and registered on both sides.
+ */
+public final class CompressionDictionary {
+
+    /** Id of payloads compressed without a dictionary **/
+    public static final int NONE_ID = 0;
+
+    /** Id of the built in dictionary **/
+    public static final int BUILT_IN_ID = 1;
+
+    /** Largest useful dictionary, the size of the deflate window **/
+    public static final int MAX_BYTES = 32 * 1024;
+
+    /** Symbols of the built in dictionary, the first ones of the TickerDictionary, which never change **/
+    private static final int BUILT_IN_SYMBOLS = 25;
+    private static final String[] BUILT_IN_TRADE_TYPES = {"BUY", "SELL"};
+
+    // Length of the substrings counted when training, and of the segments picked
+    private static final int GRAM_BYTES = 6;
+    private static final int SEGMENT_BYTES = 48;
+    private static final int SEGMENT_STRIDE = 8;
+
+    private static final CompressionDictionary NONE = new CompressionDictionary(NONE_ID, new byte[0]);
+    private static final CompressionDictionary BUILT_IN = new CompressionDictionary(BUILT_IN_ID, builtInBytes());
+
+    private static final ConcurrentMap<Integer, CompressionDictionary> REGISTERED =
+            new ConcurrentHashMap<Integer, CompressionDictionary>();
+    static {
+        REGISTERED.put(NONE_ID, NONE);
+        REGISTERED.put(BUILT_IN_ID, BUILT_IN);
+    }
+
+    private final int id;
+    private final byte[] bytes;
+
+    /**
+     * Constructor.
+     *
+     * @param id Id written into every payload compressed with the dictionary, from 0 to 255
+     * @param bytes Contents of the dictionary, the most useful bytes last
+     */
+    public CompressionDictionary(int id, byte[] bytes) {
+        if (id < 0 || id > 255) {
+            throw new IllegalArgumentException("Dictionary id out of range: " + id);
+        }
+        if (bytes.length > MAX_BYTES) {
+            throw new IllegalArgumentException("Dictionary larger than " + MAX_BYTES + " bytes");
+        }
+        this.id = id;
+        this.bytes = bytes.clone();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the contents of the dictionary, which must not be modified
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * @return the empty dictionary, with which payloads are compressed on their own
+     */
+    public static CompressionDictionary none() {
+        return NONE;
+    }
+
+    /**
+     * @return the built in dictionary, which holds the JSON field names and the ticker symbols
+     *         of the {@link TickerDictionary}
+     */
+    public static CompressionDictionary builtIn() {
+        return BUILT_IN;
+    }
+
+    /**
+     * Makes a dictionary known to the decompressors of this process.
+     *
+     * @throws IllegalArgumentException if another dictionary is registered under the same id
+     */
+    public static void register(CompressionDictionary dictionary) {
+        CompressionDictionary previous = REGISTERED.putIfAbsent(dictionary.id, dictionary);
+        if (previous != null && !Arrays.equals(previous.bytes, dictionary.bytes)) {
+            throw new IllegalArgumentException("Another dictionary is registered with id " + dictionary.id);
+        }
+    }
+
+    /**
+     * @param id Dictionary id read from a payload
+     * @return the dictionary registered under the id
+     * @throws IllegalArgumentException if no dictionary is registered under the id
+     */
+    public static CompressionDictionary forId(int id) {
+        CompressionDictionary dictionary = REGISTERED.get(id);
+        if (dictionary == null) {
+            throw new IllegalArgumentException("Unknown compression dictionary " + id);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Reads a dictionary saved with {@link #save(Path)}: the id in the first byte, followed
+     * by the contents.
+     */
+    public static CompressionDictionary load(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        if (data.length == 0) {
+            throw new IOException("Empty dictionary file " + file);
+        }
+        return new CompressionDictionary(data[0] & 0xFF, Arrays.copyOfRange(data, 1, data.length));
+    }
+
+    public void save(Path file) throws IOException {
+        byte[] data = new byte[bytes.length + 1];
+        data[0] = (byte) id;
+        System.arraycopy(bytes, 0, data, 1, bytes.length);
+        Files.write(file, data);
+    }
+
+    /**
+     * Trains a dictionary from sample payloads.
+     * <p>
+     * The samples are cut into overlapping segments, and segments are picked greedily by the
+     * number of times their substrings occur across all samples, counting each substring only
+     * once over all picked segments. The segments picked first end up last in the dictionary,
+     * where deflate reaches them with the shortest distances. A dictionary costs time on
+     * every payload compressed, so a few kilobytes are usually best.
+     *
+     * @param id Id of the new dictionary
+     * @param samples Payloads representative of the stream
+     * @param maxBytes Size limit of the dictionary
+     */
+    public static CompressionDictionary train(int id, List<byte[]> samples, int maxBytes) {
+        Map<Long, int[]> counts = new HashMap<Long, int[]>();
+        for (byte[] sample : samples) {
+            for (int i = 0; i + GRAM_BYTES <= sample.length; i++) {
+                int[] count = counts.get(gram(sample, i));
+                if (count == null) {
+                    counts.put(gram(sample, i), new int[] {1});
+                } else {
+                    count[0]++;
+                }
+            }
+        }
+
+        // Lazy greedy selection: scores only drop as substrings get covered, so a segment whose
+        // recomputed score still beats the next best one is the best
+        PriorityQueue<Segment> queue = new PriorityQueue<Segment>((a, b) -> Long.compare(b.score, a.score));
+        for (byte[] sample : samples) {
+            for (int offset = 0; offset + GRAM_BYTES <= sample.length; offset += SEGMENT_STRIDE) {
+                Segment segment = new Segment(sample, offset, Math.min(SEGMENT_BYTES, sample.length - offset));
+                segment.score = segment.score(counts);
+                queue.add(segment);
+            }
+        }
+        List<Segment> picked = new ArrayList<Segment>();
+        int size = 0;
+        while (!queue.isEmpty() && size < maxBytes) {
+            Segment best = queue.poll();
+            long score = best.score(counts);
+            while (!queue.isEmpty() && score < queue.peek().score) {
+                best.score = score;
+                queue.add(best);
+                best = queue.poll();
+                score = best.score(counts);
+            }
+            if (score == 0) {
+                break;
+            }
+            best.cover(counts);
+            picked.add(best);
+            size += best.length;
+        }
+
+        byte[] bytes = new byte[Math.min(size, maxBytes)];
+        int position = bytes.length;
+        for (Segment segment : picked) {
+            int length = Math.min(segment.length, position);
+            position -= length;
+            System.arraycopy(segment.sample, segment.offset, bytes, position, length);
+            if (position == 0) {
+                break;
+            }
+        }
+        return new CompressionDictionary(id, bytes);
+    }
+
+    private static long gram(byte[] data, int offset) {
+        long gram = 0;
+        for (int i = 0; i < GRAM_BYTES; i++) {
+            gram = (gram << 8) | (data[offset + i] & 0xFF);
+        }
+        return gram;
+    }
+
+    private static final class Segment {
+        private final byte[] sample;
+        private final int offset;
+        private final int length;
+        private long score;
+
+        Segment(byte[] sample, int offset, int length) {
+            this.sample = sample;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        long score(Map<Long, int[]> counts) {
+            long score = 0;
+            for (int i = offset; i + GRAM_BYTES <= offset + length; i++) {
+                score += counts.get(gram(sample, i))[0];
+            }
+            return score;
+        }
+
+        void cover(Map<Long, int[]> counts) {
+            for (int i = offset; i + GRAM_BYTES <= offset + length; i++) {
+                counts.get(gram(sample, i))[0] = 0;
+            }
+        }
+    }
+
+    /**
+     * The JSON written by {@link JsonStockTradeCodec} up to the price, for each built in
+     * symbol and trade type, with the strings common to all trades last.
+     */
+    private static byte[] builtInBytes() {
+        StringBuilder dictionary = new StringBuilder();
+        for (int i = BUILT_IN_SYMBOLS - 1; i >= 0; i--) {
+            dictionary.append("{\"tickerSymbol\":\"").append(TickerDictionary.symbol(i)).append('"');
+        }
+        for (String type : BUILT_IN_TRADE_TYPES) {
+            dictionary.append(",\"tradeType\":\"").append(type).append("\",\"price\":");
+        }
+        dictionary.append(",\"quantity\":").append(",\"id\":");
+        return dictionary.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
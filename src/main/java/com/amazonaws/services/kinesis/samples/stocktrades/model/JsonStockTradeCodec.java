@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Encodes stock trades as JSON objects, the format used by the original tutorial.
+ */
+public class JsonStockTradeCodec implements StockTradeCodec {
+
+    private final static ObjectMapper JSON = new ObjectMapper();
+    static {
+        JSON.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    @Override
+    public StockTradeFormat format() {
+        return StockTradeFormat.JSON;
+    }
+
+    @Override
+    public byte[] encode(StockTrade trade) {
+        try {
+            return JSON.writeValueAsBytes(trade);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not encode stock trade as JSON", e);
+        }
+    }
+
+    @Override
+    public StockTrade decode(ByteBuffer data) {
+        try {
+            if (data.hasArray()) {
+                return JSON.readValue(data.array(), data.arrayOffset() + data.position(), data.remaining(),
+                        StockTrade.class);
+            }
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            return JSON.readValue(bytes, StockTrade.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed JSON stock trade", e);
+        }
+    }
+
+}
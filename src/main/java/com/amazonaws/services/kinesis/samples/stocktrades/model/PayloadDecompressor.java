@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates payloads written by {@link CompressedStockTradeCodec} into a reused buffer, and
+ * passes payloads in any other format through untouched. The dictionary of a payload is
+ * looked up by its id, see {@link CompressionDictionary#forId(int)}.
+ * <p>
+ * The buffer returned is only valid until the next call to {@link #decompress(ByteBuffer)}.
+ * Instances are not thread safe.
+ */
+public class PayloadDecompressor {
+
+    /** Largest payload inflated, the size limit of a Kinesis record **/
+    public static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+
+    private final Inflater inflater = new Inflater(true);
+    private byte[] input = new byte[256];
+    private byte[] output = new byte[512];
+    private ByteBuffer outputView = ByteBuffer.wrap(output);
+
+    /**
+     * @param data Record payload; its position and limit are left unchanged
+     * @return the inflated payload, or the payload itself if it is not compressed
+     * @throws IllegalArgumentException if the payload is malformed or its dictionary is unknown
+     */
+    public ByteBuffer decompress(ByteBuffer data) {
+        int position = data.position();
+        if (!data.hasRemaining() || data.get(position) != StockTradeFormat.DEFLATE_V1.getHeader()) {
+            return data;
+        }
+        if (data.remaining() < 2) {
+            throw new IllegalArgumentException("Truncated compressed stock trade");
+        }
+        CompressionDictionary dictionary = CompressionDictionary.forId(data.get(position + 1) & 0xFF);
+
+        // Raw inflating needs an extra dummy byte after the deflate stream
+        int length = data.remaining() - 2;
+        if (input.length < length + 1) {
+            input = new byte[Math.max(length + 1, input.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            input[i] = data.get(position + 2 + i);
+        }
+        input[length] = 0;
+
+        inflater.reset();
+        if (dictionary.size() > 0) {
+            inflater.setDictionary(dictionary.bytes());
+        }
+        inflater.setInput(input, 0, length + 1);
+        int inflated = 0;
+        try {
+            while (!inflater.finished()) {
+                if (inflated == output.length) {
+                    if (output.length >= MAX_PAYLOAD_BYTES) {
+                        throw new IllegalArgumentException("Compressed stock trade inflates beyond "
+                                + MAX_PAYLOAD_BYTES + " bytes");
+                    }
+                    output = Arrays.copyOf(output, Math.min(output.length * 2, MAX_PAYLOAD_BYTES));
+                    outputView = ByteBuffer.wrap(output);
+                }
+                int n = inflater.inflate(output, inflated, output.length - inflated);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IllegalArgumentException("Truncated compressed stock trade");
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed compressed stock trade: " + e.getMessage());
+        }
+        if (inflated > 0 && output[0] == StockTradeFormat.DEFLATE_V1.getHeader()) {
+            throw new IllegalArgumentException("Nested compressed stock trade");
+        }
+        outputView.clear();
+        outputView.limit(inflated);
+        return outputView;
+    }
+
+}
@@ -15,23 +15,18 @@
 
 package com.amazonaws.services.kinesis.samples.stocktrades.model;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 /**
  * Captures the key elements of a stock trade, such as the ticker symbol, price,
  * number of shares, the type of the trade (buy or sell), and an id uniquely identifying
- * the trade.
+ * the trade. A trade may also carry the time its producer sent it, so that consumers can
+ * tell how long it took to reach them.
  */
 public class StockTrade {
 
-    private final static ObjectMapper JSON = new ObjectMapper();
-    static {
-        JSON.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-    }
-
     /**
      * Represents the type of the stock trade eg buy or sell.
      */
@@ -45,6 +40,7 @@ public class StockTrade {
     private double price;
     private long quantity;
     private long id;
+    private long producedMillis;
 
     public StockTrade() {
     }
@@ -57,6 +53,12 @@ public class StockTrade {
         this.id = id;
     }
 
+    public StockTrade(String tickerSymbol, TradeType tradeType, double price, long quantity, long id,
+                      long producedMillis) {
+        this(tickerSymbol, tradeType, price, quantity, id);
+        this.producedMillis = producedMillis;
+    }
+
     public String getTickerSymbol() {
         return tickerSymbol;
     }
@@ -77,18 +79,34 @@ public class StockTrade {
         return id;
     }
 
+    /**
+     * @return the time the producer sent the trade, in milliseconds since the epoch, or 0 if
+     *         the trade does not carry it
+     */
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public long getProducedMillis() {
+        return producedMillis;
+    }
+
+    /**
+     * @return a copy of the trade stamped with the time its producer sends it
+     */
+    public StockTrade withProducedMillis(long producedMillis) {
+        return new StockTrade(tickerSymbol, tradeType, price, quantity, id, producedMillis);
+    }
+
     public byte[] toJsonAsBytes() {
         try {
-            return JSON.writeValueAsBytes(this);
-        } catch (IOException e) {
+            return StockTradeCodecs.JSON.encode(this);
+        } catch (IllegalArgumentException e) {
             return null;
         }
     }
 
     public static StockTrade fromJsonAsBytes(byte[] bytes) {
         try {
-            return JSON.readValue(bytes, StockTrade.class);
-        } catch (IOException e) {
+            return StockTradeCodecs.JSON.decode(ByteBuffer.wrap(bytes));
+        } catch (IllegalArgumentException e) {
             return null;
         }
     }
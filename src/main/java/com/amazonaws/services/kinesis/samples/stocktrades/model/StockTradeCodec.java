@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts stock trades to and from record payloads. The first byte of every payload
+ * identifies its {@link StockTradeFormat}, so records written by different codecs can be
+ * mixed in one stream and told apart with {@link StockTradeCodecs#decode(ByteBuffer)}.
+ */
+public interface StockTradeCodec {
+
+    /**
+     * @return the format written by this codec
+     */
+    StockTradeFormat format();
+
+    /**
+     * Encodes the trade into a new payload.
+     *
+     * @param trade Stock trade instance
+     * @return the encoded payload
+     * @throws IllegalArgumentException if the trade cannot be encoded
+     */
+    byte[] encode(StockTrade trade);
+
+    /**
+     * Decodes a payload starting at the buffer's position. The buffer's position and limit
+     * are left unchanged.
+     *
+     * @param data Record payload
+     * @return the decoded trade
+     * @throws IllegalArgumentException if the payload is malformed or in another format
+     */
+    StockTrade decode(ByteBuffer data);
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Shared codec instances, and decoding of payloads in any known format.
+ */
+public final class StockTradeCodecs {
+
+    public static final JsonStockTradeCodec JSON = new JsonStockTradeCodec();
+    public static final BinaryStockTradeCodec BINARY = new BinaryStockTradeCodec();
+
+    private StockTradeCodecs() {
+    }
+
+    /**
+     * Returns the codec writing the named format.
+     *
+     * @param name "json" or "binary"
+     * @return the codec
+     * @throws IllegalArgumentException if the name is not known
+     */
+    public static StockTradeCodec forName(String name) {
+        if ("json".equalsIgnoreCase(name)) {
+            return JSON;
+        } else if ("binary".equalsIgnoreCase(name)) {
+            return BINARY;
+        }
+        throw new IllegalArgumentException("Unknown stock trade format: " + name);
+    }
+
+    /**
+     * Returns the codec able to read the format identified by the payload's header byte.
+     * Compressed payloads have no shared codec, see {@link #decode(ByteBuffer)}.
+     *
+     * @param format Payload format
+     * @return the codec
+     */
+    public static StockTradeCodec forFormat(StockTradeFormat format) {
+        switch (format) {
+            case JSON:
+                return JSON;
+            case BINARY_V1:
+                return BINARY;
+            default:
+                throw new IllegalArgumentException("No codec for format " + format);
+        }
+    }
+
+    /**
+     * Decodes a payload in any known format, detected from its header byte.
+     *
+     * @param data Record payload; its position and limit are left unchanged
+     * @return the decoded trade
+     * @throws IllegalArgumentException if the payload is empty, malformed or in an unknown format
+     */
+    public static StockTrade decode(ByteBuffer data) {
+        if (!data.hasRemaining()) {
+            throw new IllegalArgumentException("Empty stock trade payload");
+        }
+        StockTradeFormat format = StockTradeFormat.fromHeader(data.get(data.position()));
+        if (format == null) {
+            throw new IllegalArgumentException("Unknown stock trade format header " + data.get(data.position()));
+        }
+        if (format == StockTradeFormat.DEFLATE_V1) {
+            return decode(new PayloadDecompressor().decompress(data));
+        }
+        return forFormat(format).decode(data);
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+/**
+ * Wire formats of stock trade payloads, identified by the first byte of the payload.
+ * <p>
+ * JSON payloads carry no extra prefix: a JSON object always starts with '{', which serves as
+ * its header byte, so records written before the binary format existed are still recognized.
+ * Header byte values are never reused; a new layout gets a new value.
+ * <p>
+ * {@link #DEFLATE_V1} is an envelope rather than a layout of its own: the payload inside is
+ * in one of the other formats, see {@link CompressedStockTradeCodec}.
+ */
+public enum StockTradeFormat {
+    JSON((byte) '{'),
+    BINARY_V1((byte) 0x01),
+    DEFLATE_V1((byte) 0x02);
+
+    private static final StockTradeFormat[] FORMATS = values();
+
+    private final byte header;
+
+    StockTradeFormat(byte header) {
+        this.header = header;
+    }
+
+    public byte getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the format identified by a payload's first byte.
+     *
+     * @param header First byte of the payload
+     * @return the format, or null if the byte does not identify a known format
+     */
+    public static StockTradeFormat fromHeader(byte header) {
+        for (StockTradeFormat format : FORMATS) {
+            if (format.header == header) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+/**
+ * A reusable, mutable view of a stock trade that is decoded in place from a record payload.
+ * Decoding reads the buffer with absolute gets, so neither the payload nor the decoded trade
+ * is copied, and ticker symbols are resolved through a {@link TickerSymbolTable}. Once the
+ * symbols of a stream have been seen, decoding a binary or a plain JSON payload allocates
+ * nothing. JSON payloads the fast path does not understand, such as strings with escapes,
+ * fall back to {@link JsonStockTradeCodec}. Compressed payloads are inflated into a reused
+ * buffer first, see {@link PayloadDecompressor}.
+ * <p>
+ * The values of the view are only valid until the next call to {@link #decode(ByteBuffer)}.
+ * Instances are not thread safe.
+ */
+public class StockTradeView {
+
+    private static final TradeType[] TRADE_TYPES = TradeType.values();
+    private static final byte[][] TRADE_TYPE_NAMES = new byte[TRADE_TYPES.length][];
+    static {
+        for (int i = 0; i < TRADE_TYPES.length; i++) {
+            TRADE_TYPE_NAMES[i] = TRADE_TYPES[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final byte[] TICKER_SYMBOL = ascii("tickerSymbol");
+    private static final byte[] TRADE_TYPE = ascii("tradeType");
+    private static final byte[] PRICE = ascii("price");
+    private static final byte[] QUANTITY = ascii("quantity");
+    private static final byte[] ID = ascii("id");
+    private static final byte[] PRODUCED_MILLIS = ascii("producedMillis");
+
+    /** Largest mantissa that converts to a double exactly **/
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final TickerSymbolTable symbols;
+
+    // Created on the first compressed payload
+    private PayloadDecompressor decompressor;
+
+    private String tickerSymbol;
+    private int tickerId;
+    private TradeType tradeType;
+    private double price;
+    private long quantity;
+    private long id;
+    private long producedMillis;
+
+    // scratch state of the JSON scanner
+    private int cursor;
+    private long numberValue;
+    private double doubleValue;
+    private int stringStart;
+    private int stringLength;
+
+    /**
+     * Constructor.
+     *
+     * @param symbols Table used to intern ticker symbols
+     */
+    public StockTradeView(TickerSymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    public String getTickerSymbol() {
+        return tickerSymbol;
+    }
+
+    /**
+     * @return the id of the ticker symbol in the view's symbol table, or
+     *         {@link TickerSymbolTable#NO_ID} if the table is full
+     */
+    public int getTickerId() {
+        return tickerId;
+    }
+
+    public TradeType getTradeType() {
+        return tradeType;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public long getQuantity() {
+        return quantity;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return the time the producer sent the trade, or 0 if the trade does not carry it
+     */
+    public long getProducedMillis() {
+        return producedMillis;
+    }
+
+    public TickerSymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * @return a new immutable copy of the trade currently held by the view
+     */
+    public StockTrade toStockTrade() {
+        return new StockTrade(tickerSymbol, tradeType, price, quantity, id, producedMillis);
+    }
+
+    /**
+     * Decodes a payload in any known format into this view. The buffer's position and limit
+     * are left unchanged.
+     *
+     * @param data Record payload
+     * @throws IllegalArgumentException if the payload is malformed or in an unknown format
+     */
+    public void decode(ByteBuffer data) {
+        if (!data.hasRemaining()) {
+            throw new IllegalArgumentException("Empty stock trade payload");
+        }
+        byte header = data.get(data.position());
+        if (header == StockTradeFormat.DEFLATE_V1.getHeader()) {
+            if (decompressor == null) {
+                decompressor = new PayloadDecompressor();
+            }
+            data = decompressor.decompress(data);
+            header = data.hasRemaining() ? data.get(data.position()) : 0;
+        }
+        if (header == StockTradeFormat.BINARY_V1.getHeader()) {
+            decodeBinary(data);
+        } else if (header == StockTradeFormat.JSON.getHeader()) {
+            if (!decodeJson(data)) {
+                set(StockTradeCodecs.JSON.decode(data));
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown stock trade format header " + header);
+        }
+    }
+
+    private void set(StockTrade trade) {
+        if (trade.getTickerSymbol() == null || trade.getTradeType() == null) {
+            throw new IllegalArgumentException("Incomplete stock trade");
+        }
+        tickerId = symbols.intern(trade.getTickerSymbol());
+        tickerSymbol = tickerId == TickerSymbolTable.NO_ID ? trade.getTickerSymbol() : symbols.symbol(tickerId);
+        tradeType = trade.getTradeType();
+        price = trade.getPrice();
+        quantity = trade.getQuantity();
+        id = trade.getId();
+        producedMillis = trade.getProducedMillis();
+    }
+
+    private void decodeBinary(ByteBuffer data) {
+        int index = data.position();
+        int limit = data.limit();
+        if (limit - index < 2) {
+            throw new IllegalArgumentException("Truncated binary stock trade");
+        }
+        byte typeByte = data.get(index + 1);
+        tradeType = BinaryStockTradeCodec.tradeType(typeByte);
+        index += 2;
+
+        id = Varints.read(data, index, limit);
+        index += Varints.size(id);
+
+        long tickerRef = Varints.read(data, index, limit);
+        index += Varints.size(tickerRef);
+        if (tickerRef < 0 || tickerRef > TickerDictionary.size()) {
+            throw new IllegalArgumentException("Unknown ticker reference " + tickerRef);
+        }
+        if (tickerRef > 0) {
+            setTicker(TickerDictionary.symbol((int) tickerRef - 1));
+        } else {
+            long length = Varints.read(data, index, limit);
+            index += Varints.size(length);
+            if (length > BinaryStockTradeCodec.MAX_TICKER_BYTES || index + length > limit) {
+                throw new IllegalArgumentException("Malformed ticker symbol");
+            }
+            setTicker(data, index, (int) length);
+            index += length;
+        }
+
+        long zigZagCents = Varints.read(data, index, limit);
+        index += Varints.size(zigZagCents);
+        price = BinaryStockTradeCodec.fromCents(Varints.zigZagDecode(zigZagCents));
+        quantity = Varints.read(data, index, limit);
+        producedMillis = 0;
+        if (BinaryStockTradeCodec.hasProducedMillis(typeByte)) {
+            index += Varints.size(quantity);
+            producedMillis = Varints.read(data, index, limit);
+        }
+    }
+
+    private void setTicker(String symbol) {
+        tickerId = symbols.intern(symbol);
+        tickerSymbol = tickerId == TickerSymbolTable.NO_ID ? symbol : symbols.symbol(tickerId);
+    }
+
+    private void setTicker(ByteBuffer data, int offset, int length) {
+        tickerId = symbols.intern(data, offset, length);
+        if (tickerId == TickerSymbolTable.NO_ID) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = data.get(offset + i);
+            }
+            tickerSymbol = new String(bytes, StandardCharsets.UTF_8);
+        } else {
+            tickerSymbol = symbols.symbol(tickerId);
+        }
+    }
+
+    /**
+     * Scans a flat JSON object as written by {@link JsonStockTradeCodec}, in any field order.
+     *
+     * @return false if the payload uses JSON the scanner does not handle, in which case the
+     *         caller falls back to the full JSON parser
+     */
+    private boolean decodeJson(ByteBuffer data) {
+        int limit = data.limit();
+        cursor = data.position() + 1;
+        boolean hasTicker = false;
+        boolean hasTradeType = false;
+        price = 0;
+        quantity = 0;
+        id = 0;
+        producedMillis = 0;
+
+        if (!skipWhitespace(data, limit)) {
+            return false;
+        }
+        if (data.get(cursor) == '}') {
+            return false;
+        }
+        while (true) {
+            if (!scanString(data, limit)) {
+                return false;
+            }
+            int nameStart = stringStart;
+            int nameLength = stringLength;
+            if (!skipWhitespace(data, limit) || data.get(cursor) != ':') {
+                return false;
+            }
+            cursor++;
+            if (!skipWhitespace(data, limit)) {
+                return false;
+            }
+
+            if (nameEquals(data, nameStart, nameLength, TICKER_SYMBOL)) {
+                if (!scanString(data, limit)) {
+                    return false;
+                }
+                setTicker(data, stringStart, stringLength);
+                hasTicker = true;
+            } else if (nameEquals(data, nameStart, nameLength, TRADE_TYPE)) {
+                if (!scanString(data, limit)) {
+                    return false;
+                }
+                tradeType = null;
+                for (int i = 0; i < TRADE_TYPE_NAMES.length; i++) {
+                    if (nameEquals(data, stringStart, stringLength, TRADE_TYPE_NAMES[i])) {
+                        tradeType = TRADE_TYPES[i];
+                    }
+                }
+                if (tradeType == null) {
+                    return false;
+                }
+                hasTradeType = true;
+            } else if (nameEquals(data, nameStart, nameLength, PRICE)) {
+                if (!scanNumber(data, limit, true)) {
+                    return false;
+                }
+                price = doubleValue;
+            } else if (nameEquals(data, nameStart, nameLength, QUANTITY)) {
+                if (!scanNumber(data, limit, false)) {
+                    return false;
+                }
+                quantity = numberValue;
+            } else if (nameEquals(data, nameStart, nameLength, ID)) {
+                if (!scanNumber(data, limit, false)) {
+                    return false;
+                }
+                id = numberValue;
+            } else if (nameEquals(data, nameStart, nameLength, PRODUCED_MILLIS)) {
+                if (!scanNumber(data, limit, false)) {
+                    return false;
+                }
+                producedMillis = numberValue;
+            } else if (!skipScalar(data, limit)) {
+                return false;
+            }
+
+            if (!skipWhitespace(data, limit)) {
+                return false;
+            }
+            byte next = data.get(cursor++);
+            if (next == '}') {
+                break;
+            }
+            if (next != ',' || !skipWhitespace(data, limit)) {
+                return false;
+            }
+        }
+        return hasTicker && hasTradeType;
+    }
+
+    private boolean skipWhitespace(ByteBuffer data, int limit) {
+        while (cursor < limit) {
+            byte b = data.get(cursor);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return true;
+            }
+            cursor++;
+        }
+        return false;
+    }
+
+    private boolean scanString(ByteBuffer data, int limit) {
+        if (cursor >= limit || data.get(cursor) != '"') {
+            return false;
+        }
+        stringStart = ++cursor;
+        while (cursor < limit) {
+            byte b = data.get(cursor);
+            if (b == '"') {
+                stringLength = cursor - stringStart;
+                cursor++;
+                return true;
+            }
+            if (b == '\\') {
+                return false;
+            }
+            cursor++;
+        }
+        return false;
+    }
+
+    private boolean scanNumber(ByteBuffer data, int limit, boolean allowFraction) {
+        boolean negative = false;
+        if (cursor < limit && data.get(cursor) == '-') {
+            negative = true;
+            cursor++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        while (cursor < limit) {
+            byte b = data.get(cursor);
+            if (b >= '0' && b <= '9') {
+                if (++digits > 18) {
+                    return false;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (fraction) {
+                    scale++;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+            cursor++;
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (cursor < limit && (data.get(cursor) == 'e' || data.get(cursor) == 'E')) {
+            cursor++;
+            boolean negativeExponent = false;
+            if (cursor < limit && (data.get(cursor) == '-' || data.get(cursor) == '+')) {
+                negativeExponent = data.get(cursor) == '-';
+                cursor++;
+            }
+            int exponent = 0;
+            int exponentDigits = 0;
+            while (cursor < limit && data.get(cursor) >= '0' && data.get(cursor) <= '9') {
+                exponent = exponent * 10 + (data.get(cursor++) - '0');
+                if (++exponentDigits > 3) {
+                    return false;
+                }
+            }
+            if (exponentDigits == 0) {
+                return false;
+            }
+            scale += negativeExponent ? exponent : -exponent;
+        }
+
+        if (!allowFraction) {
+            if (scale > 0) {
+                return false;
+            }
+            for (; scale < 0; scale++) {
+                if (mantissa > Long.MAX_VALUE / 10) {
+                    return false;
+                }
+                mantissa *= 10;
+            }
+            numberValue = negative ? -mantissa : mantissa;
+            return true;
+        }
+
+        // exact when both the mantissa and the power of ten are exact doubles
+        if (mantissa > MAX_EXACT_MANTISSA || scale > 22 || scale < -22) {
+            return false;
+        }
+        double value = scale >= 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa * POWERS_OF_TEN[-scale];
+        doubleValue = negative ? -value : value;
+        return true;
+    }
+
+    private boolean skipScalar(ByteBuffer data, int limit) {
+        if (cursor >= limit) {
+            return false;
+        }
+        byte b = data.get(cursor);
+        if (b == '"') {
+            return scanString(data, limit);
+        }
+        if (b == '{' || b == '[') {
+            return false;
+        }
+        while (cursor < limit) {
+            b = data.get(cursor);
+            if (b == ',' || b == '}' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                return true;
+            }
+            cursor++;
+        }
+        return false;
+    }
+
+    private static boolean nameEquals(ByteBuffer data, int offset, int length, byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data.get(offset + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ID %d: %s %d shares of %s for $%.02f",
+                id, tradeType, quantity, tickerSymbol, price);
+    }
+
+}
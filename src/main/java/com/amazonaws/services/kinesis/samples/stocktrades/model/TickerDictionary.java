@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Well known ticker symbols that the binary format encodes as a small index instead of a string.
+ * Both the writer and the processor must agree on this list, so symbols may only ever be appended.
+ */
+public final class TickerDictionary {
+
+    private static final String[] SYMBOLS = {
+        "AAPL", "XOM", "GOOG", "BRK.A", "MSFT", "WFC", "JNJ", "WMT", "CHL", "GE",
+        "NVS", "PG", "JPM", "RDS.A", "CVX", "PFE", "FB", "VZ", "PTR", "BUD",
+        "ORCL", "KO", "T", "DIS", "AMZN"
+    };
+
+    private static final Map<String, Integer> INDEXES = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < SYMBOLS.length; i++) {
+            INDEXES.put(SYMBOLS[i], i);
+        }
+    }
+
+    private TickerDictionary() {
+    }
+
+    /**
+     * @return the number of symbols in the dictionary
+     */
+    public static int size() {
+        return SYMBOLS.length;
+    }
+
+    /**
+     * @param index Dictionary index
+     * @return the symbol at the index
+     * @throws IllegalArgumentException if the index is out of range
+     */
+    public static String symbol(int index) {
+        if (index < 0 || index >= SYMBOLS.length) {
+            throw new IllegalArgumentException("Unknown ticker dictionary index " + index);
+        }
+        return SYMBOLS[index];
+    }
+
+    /**
+     * @param symbol Ticker symbol
+     * @return the index of the symbol, or -1 if it is not in the dictionary
+     */
+    public static int indexOf(String symbol) {
+        Integer index = INDEXES.get(symbol);
+        return index == null ? -1 : index;
+    }
+
+}
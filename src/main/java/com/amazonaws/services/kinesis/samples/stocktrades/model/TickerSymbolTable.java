@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Interns ticker symbols and assigns them dense int ids, in order of first appearance.
+ * Symbols can be looked up from a String or straight from the UTF-8 bytes of a payload,
+ * so a symbol that has been seen before is resolved without allocating anything.
+ * <p>
+ * The table is an open addressing hash table of symbols and ids, keyed by
+ * {@link String#hashCode()}, which is cached by the String itself. Once the table holds
+ * the maximum number of symbols, new symbols are no longer interned and get the id -1.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class TickerSymbolTable {
+
+    /** Id returned for symbols that could not be interned because the table is full **/
+    public static final int NO_ID = -1;
+
+    private final int maxSymbols;
+    private String[] slots;
+    private int[] slotIds;
+    private String[] symbolsById;
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSymbols Maximum number of symbols interned by the table
+     */
+    public TickerSymbolTable(int maxSymbols) {
+        this.maxSymbols = maxSymbols;
+        int capacity = 64;
+        slots = new String[capacity];
+        slotIds = new int[capacity];
+        symbolsById = new String[capacity / 2];
+    }
+
+    /**
+     * @return the number of interned symbols
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param id Symbol id
+     * @return the interned symbol with the id
+     */
+    public String symbol(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("Unknown symbol id " + id);
+        }
+        return symbolsById[id];
+    }
+
+    /**
+     * Returns the id of a symbol, interning it if it has not been seen before.
+     *
+     * @param symbol Ticker symbol
+     * @return the id of the symbol, or {@link #NO_ID} if the table is full
+     */
+    public int intern(String symbol) {
+        int hash = symbol.hashCode();
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            String existing = slots[slot];
+            if (existing == null) {
+                return insert(slot, symbol);
+            }
+            if (existing == symbol || existing.equals(symbol)) {
+                return slotIds[slot];
+            }
+        }
+    }
+
+    /**
+     * Returns the id of a symbol without interning it.
+     *
+     * @param symbol Ticker symbol
+     * @return the id of the symbol, or {@link #NO_ID} if it has not been interned
+     */
+    public int idOf(String symbol) {
+        int mask = slots.length - 1;
+        for (int slot = mix(symbol.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            String existing = slots[slot];
+            if (existing == null) {
+                return NO_ID;
+            }
+            if (existing == symbol || existing.equals(symbol)) {
+                return slotIds[slot];
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the symbol whose UTF-8 bytes are at the given range of the buffer,
+     * interning it if it has not been seen before. Does not allocate for ASCII symbols
+     * that are already interned.
+     *
+     * @param data Buffer holding the symbol; its position and limit are not used or changed
+     * @param offset Index of the first byte of the symbol
+     * @param length Number of bytes of the symbol
+     * @return the id of the symbol, or {@link #NO_ID} if the table is full
+     */
+    public int intern(ByteBuffer data, int offset, int length) {
+        // compute the same hash as String.hashCode(), which is only possible for ASCII
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = data.get(offset + i);
+            if (b < 0) {
+                return intern(decode(data, offset, length));
+            }
+            hash = 31 * hash + b;
+        }
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            String existing = slots[slot];
+            if (existing == null) {
+                return insert(slot, decode(data, offset, length));
+            }
+            if (existing.hashCode() == hash && matches(existing, data, offset, length)) {
+                return slotIds[slot];
+            }
+        }
+    }
+
+    private int insert(int slot, String symbol) {
+        if (size >= maxSymbols) {
+            return NO_ID;
+        }
+        int id = size++;
+        slots[slot] = symbol;
+        slotIds[slot] = id;
+        if (id == symbolsById.length) {
+            symbolsById = Arrays.copyOf(symbolsById, id * 2);
+        }
+        symbolsById[id] = symbol;
+        // keep the load factor at or below one half
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        String[] oldSlots = slots;
+        int[] oldIds = slotIds;
+        slots = new String[capacity];
+        slotIds = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != null) {
+                int slot = mix(oldSlots[i].hashCode()) & mask;
+                while (slots[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = oldSlots[i];
+                slotIds[slot] = oldIds[i];
+            }
+        }
+    }
+
+    private static boolean matches(String symbol, ByteBuffer data, int offset, int length) {
+        if (symbol.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (symbol.charAt(i) != data.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(ByteBuffer data, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = data.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int mix(int hash) {
+        // spread the poorly distributed low bits of String.hashCode() for short symbols
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base 128 variable length integers, as used by protocol buffers. All reads use absolute
+ * indexes, so they never move the buffer's position.
+ */
+public final class Varints {
+
+    /** Maximum number of bytes of a varint encoded long **/
+    public static final int MAX_VARINT_SIZE = 10;
+
+    private Varints() {
+    }
+
+    /**
+     * @param value Value to encode
+     * @return the number of bytes needed to encode the value
+     */
+    public static int size(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the value at the buffer's position and advances the position.
+     */
+    public static void write(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Writes the value into the array at the given offset.
+     *
+     * @return the offset following the value
+     */
+    public static int write(byte[] out, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Reads the varint at the given index. The number of bytes read can be obtained with
+     * {@link #size(long)} of the returned value.
+     *
+     * @throws IllegalArgumentException if the varint is truncated or too long
+     */
+    public static long read(ByteBuffer in, int index, int limit) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (index >= limit) {
+                throw new IllegalArgumentException("Truncated varint");
+            }
+            byte b = in.get(index++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Maps signed values to unsigned ones so that small negative values stay small.
+     */
+    public static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}
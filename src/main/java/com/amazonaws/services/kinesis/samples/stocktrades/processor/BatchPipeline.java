@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Hands the batches of a shard over from the KCL thread that retrieves them to a stage that
+ * applies them, through a bounded {@link SpscRing}.
+ * <p>
+ * The stage runs on an executor that may be shared by many shards. A drain task is scheduled
+ * whenever a batch is submitted and none is running, so at most one thread applies the
+ * batches of a shard at any time, in order, and the ring keeps a single consumer. A drain task
+ * applies at most a ring's worth of batches before it makes way for other shards. When the
+ * ring is full, the submitting thread either waits for room, which holds up retrieval of the
+ * shard, or sheds the batch, which is then never applied.
+ * <p>
+ * Apart from the getters, methods are meant to be called by the shard's KCL thread.
+ *
+ * @param <T> Type of the batches
+ */
+public class BatchPipeline<T> {
+
+    /**
+     * What to do with a batch submitted while the ring is full.
+     */
+    public enum FullPolicy {
+        /** Wait for the stage to make room **/
+        BLOCK,
+        /** Drop the batch **/
+        SHED
+    }
+
+    // Upper bound of a wait, in case a wake up is missed
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final SpscRing<T> ring;
+    private final Consumer<T> stage;
+    private final Executor executor;
+    private final FullPolicy fullPolicy;
+
+    // Set while a drain task is scheduled or running
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Object idle = new Object();
+    private volatile boolean stopped;
+    private volatile Thread blockedProducer;
+
+    private final AtomicLong shedBatches = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Number of batches the ring holds, rounded up to a power of two
+     * @param stage Applies a batch, on a thread of the executor
+     * @param executor Runs the drain tasks
+     * @param fullPolicy What to do when the ring is full
+     */
+    public BatchPipeline(int capacity, Consumer<T> stage, Executor executor, FullPolicy fullPolicy) {
+        this.ring = new SpscRing<T>(capacity);
+        this.stage = stage;
+        this.executor = executor;
+        this.fullPolicy = fullPolicy;
+    }
+
+    /**
+     * Submits a batch to the stage.
+     *
+     * @return false if the ring was full and the batch was shed, or the pipeline is stopped
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public boolean submit(T batch) throws InterruptedException {
+        if (stopped) {
+            return false;
+        }
+        if (!ring.offer(batch)) {
+            if (fullPolicy == FullPolicy.SHED) {
+                shedBatches.incrementAndGet();
+                return false;
+            }
+            long startNanos = System.nanoTime();
+            try {
+                do {
+                    blockedProducer = Thread.currentThread();
+                    // the stage may have made room before seeing this thread waiting
+                    if (ring.offer(batch)) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    if (stopped) {
+                        return false;
+                    }
+                } while (true);
+            } finally {
+                blockedProducer = null;
+                blockedNanos.addAndGet(System.nanoTime() - startNanos);
+            }
+        }
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until every batch submitted so far has been applied.
+     */
+    public void awaitDrained() throws InterruptedException {
+        synchronized (idle) {
+            while (draining.get() || (!stopped && !ring.isEmpty())) {
+                idle.wait(TimeUnit.NANOSECONDS.toMillis(MAX_PARK_NANOS));
+            }
+        }
+    }
+
+    /**
+     * Stops applying batches, once the batch being applied, if any, is done. Batches still in
+     * the ring are discarded.
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        awaitDrained();
+    }
+
+    /**
+     * @return the number of batches waiting in the ring
+     */
+    public int getQueuedBatches() {
+        return ring.size();
+    }
+
+    public long getShedBatches() {
+        return shedBatches.get();
+    }
+
+    /**
+     * @return the time submitters spent waiting for room in the ring
+     */
+    public long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+    }
+
+    private void drain() {
+        int applied = 0;
+        T batch;
+        while (!stopped && applied < ring.capacity() && (batch = ring.poll()) != null) {
+            Thread producer = blockedProducer;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+            stage.accept(batch);
+            applied++;
+        }
+        synchronized (idle) {
+            draining.set(false);
+            idle.notifyAll();
+        }
+        // a batch submitted after the last poll found the task still running and did not schedule one
+        if (!stopped && !ring.isEmpty() && draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Histogram;
+
+import software.amazon.kinesis.exceptions.InvalidStateException;
+import software.amazon.kinesis.exceptions.KinesisClientLibDependencyException;
+import software.amazon.kinesis.exceptions.ShutdownException;
+import software.amazon.kinesis.exceptions.ThrottlingException;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * Decides when a shard checkpoints, and checkpoints off the processing thread.
+ * <p>
+ * The scheduler tracks the sequence and sub-sequence number of the last record that was fully
+ * aggregated, and checkpoints exactly there rather than at the latest record retrieved. A
+ * checkpoint is due once a budget of records, bytes or time since the previous one is used
+ * up. Checkpoints run on a separate executor, so a slow or throttled lease table does not
+ * hold up processing: throttled checkpoints are retried with exponential backoff and equal
+ * jitter, and at most one checkpoint of a shard is in flight. After a checkpoint fails for
+ * good, the next one is due only once a backoff that grows with consecutive failures has
+ * passed. The latency of every checkpoint, retries included, is recorded. Work that must be
+ * done just before or after a checkpoint, such as saving the state it covers, runs on the
+ * executor as part of it.
+ * <p>
+ * Apart from the getters, methods are meant to be called by the shard's processor thread.
+ */
+public class CheckpointScheduler {
+
+    private static final Log log = LogFactory.getLog(CheckpointScheduler.class);
+
+    private static final long BASE_BACKOFF_MILLIS = 100L;
+    private static final long MAX_BACKOFF_MILLIS = 10000L;
+
+    private final String shardId;
+    private final long maxRecords;
+    private final long maxBytes;
+    private final long maxIntervalMillis;
+    private final int maxRetries;
+    private final ScheduledExecutorService executor;
+    private final Histogram latencyMillis;
+
+    // Position of the last record fully aggregated, and what was processed since the last checkpoint
+    private String sequenceNumber;
+    private long subSequenceNumber;
+    private long records;
+    private long bytes;
+    private long lastCheckpointMillis = System.currentTimeMillis();
+
+    // Completes when the checkpoint in flight, if any, is done
+    private volatile CompletableFuture<Boolean> inFlight;
+    private volatile boolean cancelled;
+    // Set when a checkpoint failed, so that the next one is due once the backoff has passed
+    private volatile boolean failed;
+    private volatile int consecutiveFailures;
+    private volatile long nextAttemptMillis;
+
+    private final AtomicLong checkpoints = new AtomicLong();
+    private final AtomicLong throttledAttempts = new AtomicLong();
+    private final AtomicLong failedCheckpoints = new AtomicLong();
+    private final AtomicLong lastLatencyMillis = new AtomicLong();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param shardId Shard checkpointed, for logging
+     * @param maxRecords Records processed before a checkpoint is due, or 0 for no limit
+     * @param maxBytes Payload bytes processed before a checkpoint is due, or 0 for no limit
+     * @param maxIntervalMillis Time after which a checkpoint is due, or 0 for no limit
+     * @param maxRetries Number of times a throttled checkpoint is retried
+     * @param executor Executor running the checkpoints, which may be shared by several shards
+     * @param latencyMillis Receives the latency of every checkpoint saved
+     */
+    public CheckpointScheduler(String shardId, long maxRecords, long maxBytes, long maxIntervalMillis,
+                               int maxRetries, ScheduledExecutorService executor, Histogram latencyMillis) {
+        this.shardId = shardId;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.maxRetries = maxRetries;
+        this.executor = executor;
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return a single daemon thread executor, suitable for the checkpoints of a whole worker
+     */
+    public static ScheduledExecutorService newExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Records that a batch of records has been fully aggregated.
+     *
+     * @return the number of payload bytes in the batch
+     */
+    public long recordsProcessed(List<KinesisClientRecord> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        long batchBytes = 0;
+        for (KinesisClientRecord record : batch) {
+            batchBytes += record.data().remaining();
+        }
+        bytes += batchBytes;
+        records += batch.size();
+        KinesisClientRecord last = batch.get(batch.size() - 1);
+        sequenceNumber = last.sequenceNumber();
+        subSequenceNumber = last.subSequenceNumber();
+        return batchBytes;
+    }
+
+    /**
+     * @return true if a budget is used up, no checkpoint is in flight and the backoff after a
+     *         failed checkpoint, if any, has passed
+     */
+    public boolean isDue() {
+        if (sequenceNumber == null || isInFlight() || System.currentTimeMillis() < nextAttemptMillis) {
+            return false;
+        }
+        return failed
+                || (records > 0 && maxIntervalMillis > 0
+                        && System.currentTimeMillis() - lastCheckpointMillis >= maxIntervalMillis)
+                || (maxRecords > 0 && records >= maxRecords)
+                || (maxBytes > 0 && bytes >= maxBytes);
+    }
+
+    /**
+     * Starts a checkpoint at the last record processed if one is due.
+     *
+     * @param checkpointer Checkpointer of the shard
+     * @param onCheckpointed Run on the executor once the checkpoint is saved, or null
+     * @return true if a checkpoint was started
+     */
+    public boolean checkpointIfDue(RecordProcessorCheckpointer checkpointer, Runnable onCheckpointed) {
+        return checkpointIfDue(checkpointer, null, onCheckpointed);
+    }
+
+    /**
+     * Starts a checkpoint at the last record processed if one is due.
+     *
+     * @param checkpointer Checkpointer of the shard
+     * @param beforeCheckpoint Run on the executor once before the checkpoint is first attempted, or null
+     * @param onCheckpointed Run on the executor once the checkpoint is saved, or null
+     * @return true if a checkpoint was started
+     */
+    public boolean checkpointIfDue(RecordProcessorCheckpointer checkpointer, Runnable beforeCheckpoint,
+                                   Runnable onCheckpointed) {
+        if (!isDue()) {
+            return false;
+        }
+        start(checkpointer, beforeCheckpoint, onCheckpointed);
+        return true;
+    }
+
+    /**
+     * Waits for the checkpoint in flight, if any, then checkpoints at the last record processed.
+     * Used when the processor shuts down, where the checkpoint must be saved before returning.
+     *
+     * @return true if the checkpoint was saved
+     */
+    public boolean checkpointNow(RecordProcessorCheckpointer checkpointer) {
+        awaitInFlight();
+        if (sequenceNumber == null) {
+            return true;
+        }
+        start(checkpointer, null, null);
+        return awaitInFlight();
+    }
+
+    /**
+     * Waits for the checkpoint in flight, if any.
+     *
+     * @return false if that checkpoint failed
+     */
+    public boolean awaitInFlight() {
+        CompletableFuture<Boolean> current = inFlight;
+        if (current == null) {
+            return true;
+        }
+        try {
+            return current.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops retrying, after the lease was lost.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the sequence number of the last record processed, where the next checkpoint
+     *         will be, or null if no record was processed yet
+     */
+    public String getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public long getSubSequenceNumber() {
+        return subSequenceNumber;
+    }
+
+    public boolean isInFlight() {
+        CompletableFuture<Boolean> current = inFlight;
+        return current != null && !current.isDone();
+    }
+
+    public long getCheckpoints() {
+        return checkpoints.get();
+    }
+
+    public long getThrottledAttempts() {
+        return throttledAttempts.get();
+    }
+
+    public long getFailedCheckpoints() {
+        return failedCheckpoints.get();
+    }
+
+    /**
+     * @return the time taken by the last checkpoint saved, retries included
+     */
+    public long getLastLatencyMillis() {
+        return lastLatencyMillis.get();
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    private void start(RecordProcessorCheckpointer checkpointer, Runnable beforeCheckpoint,
+                       Runnable onCheckpointed) {
+        String sequence = sequenceNumber;
+        long subSequence = subSequenceNumber;
+        records = 0;
+        bytes = 0;
+        lastCheckpointMillis = System.currentTimeMillis();
+        failed = false;
+        CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+        inFlight = result;
+        long startNanos = System.nanoTime();
+        executor.execute(() -> {
+            if (beforeCheckpoint != null) {
+                try {
+                    beforeCheckpoint.run();
+                } catch (RuntimeException e) {
+                    log.error("Unexpected error before checkpointing shard " + shardId + ".", e);
+                }
+            }
+            attempt(checkpointer, sequence, subSequence, 0, startNanos, onCheckpointed, result);
+        });
+    }
+
+    private void attempt(RecordProcessorCheckpointer checkpointer, String sequence, long subSequence, int retries,
+                         long startNanos, Runnable onCheckpointed,
+                         CompletableFuture<Boolean> result) {
+        if (cancelled) {
+            result.complete(false);
+            return;
+        }
+        try {
+            checkpointer.checkpoint(sequence, subSequence);
+        } catch (ThrottlingException e) {
+            throttledAttempts.incrementAndGet();
+            if (retries < maxRetries) {
+                long backoff = backoffMillis(retries);
+                log.info("Checkpoint of shard " + shardId + " throttled, retrying in " + backoff + " ms");
+                try {
+                    executor.schedule(() -> attempt(checkpointer, sequence, subSequence, retries + 1, startNanos,
+                            onCheckpointed, result), backoff, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException rejected) {
+                    fail("Cannot retry checkpoint of shard " + shardId + ", executor is shut down.", e, result);
+                }
+                return;
+            }
+            fail("Checkpoint of shard " + shardId + " still throttled after " + retries + " retries.", e, result);
+            return;
+        } catch (ShutdownException e) {
+            // the lease moved to another worker, which checkpoints from now on
+            log.info("Skipping checkpoint of shard " + shardId + ", processor was shut down.", e);
+            result.complete(false);
+            return;
+        } catch (InvalidStateException | KinesisClientLibDependencyException e) {
+            fail("Cannot save checkpoint of shard " + shardId + " to the lease table.", e, result);
+            return;
+        } catch (RuntimeException e) {
+            fail("Unexpected error checkpointing shard " + shardId + ".", e, result);
+            return;
+        }
+
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        consecutiveFailures = 0;
+        nextAttemptMillis = 0;
+        checkpoints.incrementAndGet();
+        lastLatencyMillis.set(latency);
+        maxLatencyMillis.accumulateAndGet(latency, Math::max);
+        latencyMillis.record(latency);
+        log.info("Checkpointed shard " + shardId + " at " + sequence + "/" + subSequence + " in " + latency
+                + " ms after " + retries + " retries");
+        try {
+            if (onCheckpointed != null) {
+                onCheckpointed.run();
+            }
+        } catch (RuntimeException e) {
+            log.error("Unexpected error after checkpointing shard " + shardId + ".", e);
+        } finally {
+            // the checkpoint is saved either way, and waiters must not hang on a failed callback
+            result.complete(true);
+        }
+    }
+
+    private void fail(String message, Exception e, CompletableFuture<Boolean> result) {
+        // the next checkpoint, due once the backoff has passed, covers these records as well
+        int failures = consecutiveFailures + 1;
+        consecutiveFailures = failures;
+        nextAttemptMillis = System.currentTimeMillis() + backoffMillis(failures - 1);
+        failed = true;
+        failedCheckpoints.incrementAndGet();
+        log.error(message, e);
+        result.complete(false);
+    }
+
+    private static long backoffMillis(int retries) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(retries, 16));
+        // equal jitter, as for the writer's retries: at least half the ceiling
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+}
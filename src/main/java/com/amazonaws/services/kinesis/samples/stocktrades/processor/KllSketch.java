@@ -0,0 +1,314 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * KLL quantile sketch of a stream of doubles (Karnin, Lang and Liberty, "Optimal Quantile
+ * Approximation in Streams").
+ * <p>
+ * Values are kept in a stack of compactors. An item at level h stands for 2^h values, and
+ * the capacity of a level shrinks geometrically by 2/3 below the top level, down to a minimum
+ * of 8 items. A full level is sorted and every other item, starting at a random offset, is
+ * promoted to the next level. The sketch therefore holds about {@code 3k} values whatever the
+ * length of the stream. With parameter {@code k}, the normalized rank error is about
+ * {@code 1.7 / k} (roughly 1% at k = 200) with high probability. Sketches with the same
+ * {@code k} can be merged, with the same error bound on the combined stream.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class KllSketch {
+
+    private static final int MIN_LEVEL_CAPACITY = 8;
+
+    private final int k;
+    private double[][] levels = new double[0][];
+    private int[] levelSizes = new int[0];
+    private int[] levelCapacities = new int[0];
+    private int numLevels;
+    private long count;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private long randomState = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Constructor.
+     *
+     * @param k Accuracy parameter; larger values use more memory for a smaller error
+     */
+    public KllSketch(int k) {
+        if (k < MIN_LEVEL_CAPACITY) {
+            throw new IllegalArgumentException("k must be at least " + MIN_LEVEL_CAPACITY);
+        }
+        this.k = k;
+        addLevel();
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @return the number of values seen by the sketch
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public void update(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (count == 0 || value < min) {
+            min = value;
+        }
+        if (count == 0 || value > max) {
+            max = value;
+        }
+        count++;
+        append(0, value);
+        if (levelSizes[0] >= levelCapacities[0]) {
+            compress();
+        }
+    }
+
+    /**
+     * Adds the values of another sketch to this one.
+     */
+    public void merge(KllSketch other) {
+        if (other.k != k) {
+            throw new IllegalArgumentException("Cannot merge KLL sketches with k " + k + " and " + other.k);
+        }
+        if (other.count == 0) {
+            return;
+        }
+        if (count == 0 || other.min < min) {
+            min = other.min;
+        }
+        if (count == 0 || other.max > max) {
+            max = other.max;
+        }
+        count += other.count;
+        for (int h = 0; h < other.numLevels; h++) {
+            while (numLevels <= h) {
+                addLevel();
+            }
+            double[] items = other.levels[h];
+            int size = other.levelSizes[h];
+            for (int i = 0; i < size; i++) {
+                append(h, items[i]);
+            }
+        }
+        compress();
+    }
+
+    /**
+     * Returns an approximation of the value at the given rank.
+     *
+     * @param fraction Normalized rank, between 0 and 1, such as 0.99 for the 99th percentile
+     * @return the approximate quantile, or NaN if the sketch is empty
+     */
+    public double getQuantile(double fraction) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (fraction <= 0) {
+            return min;
+        }
+        if (fraction >= 1) {
+            return max;
+        }
+        int retained = 0;
+        for (int h = 0; h < numLevels; h++) {
+            retained += levelSizes[h];
+        }
+        double[] values = new double[retained];
+        long[] weights = new long[retained];
+        int n = 0;
+        for (int h = 0; h < numLevels; h++) {
+            double[] items = levels[h];
+            int size = levelSizes[h];
+            for (int i = 0; i < size; i++) {
+                values[n] = items[i];
+                weights[n++] = 1L << h;
+            }
+        }
+        sortTogether(values, weights, n);
+
+        long totalWeight = 0;
+        for (int i = 0; i < n; i++) {
+            totalWeight += weights[i];
+        }
+        long target = (long) Math.ceil(fraction * totalWeight);
+        long cumulative = 0;
+        for (int i = 0; i < n; i++) {
+            cumulative += weights[i];
+            if (cumulative >= target) {
+                return values[i];
+            }
+        }
+        return max;
+    }
+
+    public void clear() {
+        levels = new double[0][];
+        levelSizes = new int[0];
+        levelCapacities = new int[0];
+        numLevels = 0;
+        addLevel();
+        count = 0;
+        min = Double.NaN;
+        max = Double.NaN;
+    }
+
+    /**
+     * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    public int serializedSize() {
+        int bytes = 4 + 8 + 8 + 8 + 4;
+        for (int h = 0; h < numLevels; h++) {
+            bytes += 4 + levelSizes[h] * 8;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the sketch at the buffer's position.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.putInt(k);
+        out.putLong(count);
+        out.putDouble(min);
+        out.putDouble(max);
+        out.putInt(numLevels);
+        for (int h = 0; h < numLevels; h++) {
+            int size = levelSizes[h];
+            out.putInt(size);
+            double[] items = levels[h];
+            for (int i = 0; i < size; i++) {
+                out.putDouble(items[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a sketch written by {@link #writeTo(ByteBuffer)} at the buffer's position.
+     */
+    public static KllSketch readFrom(ByteBuffer in) {
+        KllSketch sketch = new KllSketch(in.getInt());
+        sketch.count = in.getLong();
+        sketch.min = in.getDouble();
+        sketch.max = in.getDouble();
+        int numLevels = in.getInt();
+        if (numLevels < 1 || numLevels > 64) {
+            throw new IllegalArgumentException("Corrupt KLL sketch");
+        }
+        for (int h = 0; h < numLevels; h++) {
+            while (sketch.numLevels <= h) {
+                sketch.addLevel();
+            }
+            int size = in.getInt();
+            for (int i = 0; i < size; i++) {
+                sketch.append(h, in.getDouble());
+            }
+        }
+        return sketch;
+    }
+
+    private void addLevel() {
+        levels = Arrays.copyOf(levels, numLevels + 1);
+        levelSizes = Arrays.copyOf(levelSizes, numLevels + 1);
+        levelCapacities = Arrays.copyOf(levelCapacities, numLevels + 1);
+        levels[numLevels] = new double[MIN_LEVEL_CAPACITY];
+        numLevels++;
+        // capacities depend on the depth below the top level, so they all change
+        for (int h = 0; h < numLevels; h++) {
+            int depth = numLevels - 1 - h;
+            levelCapacities[h] = Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(k * Math.pow(2.0 / 3.0, depth)));
+        }
+    }
+
+    private void append(int level, double value) {
+        double[] items = levels[level];
+        int size = levelSizes[level];
+        if (size == items.length) {
+            items = Arrays.copyOf(items, size * 2);
+            levels[level] = items;
+        }
+        items[size] = value;
+        levelSizes[level] = size + 1;
+    }
+
+    private void compress() {
+        for (int h = 0; h < numLevels; h++) {
+            int size = levelSizes[h];
+            if (size < levelCapacities[h]) {
+                continue;
+            }
+            if (h + 1 == numLevels) {
+                addLevel();
+            }
+            double[] items = levels[h];
+            Arrays.sort(items, 0, size);
+            // an odd item out stays at this level
+            int start = size % 2;
+            int offset = nextRandomBit();
+            for (int i = start + offset; i < size; i += 2) {
+                append(h + 1, items[i]);
+            }
+            levelSizes[h] = start;
+        }
+    }
+
+    private int nextRandomBit() {
+        // xorshift, so that the sketch is deterministic for a given input
+        randomState ^= randomState << 13;
+        randomState ^= randomState >>> 7;
+        randomState ^= randomState << 17;
+        return (int) (randomState >>> 63);
+    }
+
+    private static void sortTogether(double[] values, long[] weights, int n) {
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+        double[] sortedValues = new double[n];
+        long[] sortedWeights = new long[n];
+        for (int i = 0; i < n; i++) {
+            sortedValues[i] = values[order[i]];
+            sortedWeights[i] = weights[order[i]];
+        }
+        System.arraycopy(sortedValues, 0, values, 0, n);
+        System.arraycopy(sortedWeights, 0, weights, 0, n);
+    }
+
+}
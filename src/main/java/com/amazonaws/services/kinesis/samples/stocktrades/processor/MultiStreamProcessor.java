@@ -0,0 +1,330 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.MetricRegistry;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Metrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.NoOpMetrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.PrefixedMetrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.sink.StatsPublisher;
+import com.amazonaws.services.kinesis.samples.stocktrades.utils.CommandLineOptions;
+
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.kinesis.common.ConfigsBuilder;
+import software.amazon.kinesis.common.KinesisClientUtil;
+import software.amazon.kinesis.coordinator.Scheduler;
+import software.amazon.kinesis.coordinator.SchedulerCoordinatorFactory;
+
+/**
+ * Processes several stock trade streams, possibly for several applications, in one JVM.
+ * <p>
+ * Each stream has its own KCL {@link Scheduler}, lease table and processor settings, but all
+ * of them share one Kinesis, one DynamoDB and one CloudWatch client, and therefore one set of
+ * connection pools and Netty event loops. Records of all the streams are processed on a single
+ * bounded pool of threads, instead of the unbounded pool of each scheduler, and the threads
+ * that checkpoint, aggregate large batches in parallel and report metrics are shared as well.
+ * <p>
+ * Streams are listed in a file, one per line, as an application name, a stream name and the
+ * processor and retrieval options of the stream. Options given on the command line apply to every stream,
+ * unless a line overrides them. Blank lines and lines starting with # are ignored:
+ * <pre>
+ *   # application   stream        options
+ *   TradesApp       StockTrades   --windows=1m,10s
+ *   TradesApp       BondTrades    --stats=sketch --retrieval=polling --idle-time=500ms
+ * </pre>
+ * Metrics are enabled for all the streams or none, from the command line, and named after the
+ * application and stream of each shard.
+ */
+public class MultiStreamProcessor {
+
+    private static final Log LOG = LogFactory.getLog(MultiStreamProcessor.class);
+
+    private static final String METRICS_MBEAN_NAME =
+            "com.amazonaws.services.kinesis.samples.stocktrades:type=MultiStreamProcessor";
+
+    private static final Logger ROOT_LOGGER = Logger.getLogger("");
+    private static final Logger PROCESSOR_LOGGER =
+            Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeRecordProcessor");
+    private static final Logger METRICS_LOGGER =
+            Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades.metrics");
+
+    // How long schedulers are given to checkpoint and release their leases on shutdown
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60L;
+
+    private static void checkUsage(CommandLineOptions options) {
+        if (options.getPositional().size() != 2) {
+            System.err.println("Usage: " + MultiStreamProcessor.class.getSimpleName()
+                    + " <streams file> <region> [--processing-threads=<n>] " + RetrievalSettings.usage() + " "
+                    + StockTradeProcessorConfig.usage() + " " + StatsPublisher.usage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Same log levels as {@link StockTradesProcessor}.
+     */
+    private static void setLogLevels() {
+        ROOT_LOGGER.setLevel(Level.WARNING);
+        PROCESSOR_LOGGER.setLevel(Level.WARNING);
+        METRICS_LOGGER.setLevel(Level.INFO);
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        checkUsage(options);
+
+        setLogLevels();
+
+        Region region = Region.of(options.getPositional().get(1));
+        List<StreamSpec> streams;
+        try {
+            streams = StreamSpec.parse(Paths.get(options.getPositional().get(0)), args);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Cannot read streams file " + options.getPositional().get(0) + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        StockTradeProcessorConfig sharedConfig = StockTradeProcessorConfig.fromOptions(options);
+        int processingThreads = options.getInt("processing-threads",
+                Math.max(8, 2 * Runtime.getRuntime().availableProcessors()));
+
+        KinesisAsyncClient kinesisClient =
+                KinesisClientUtil.createKinesisAsyncClient(KinesisAsyncClient.builder().region(region));
+        DynamoDbAsyncClient dynamoClient = DynamoDbAsyncClient.builder().region(region).build();
+        CloudWatchAsyncClient cloudWatchClient = CloudWatchAsyncClient.builder().region(region).build();
+
+        ExecutorService processingExecutor = newProcessingExecutor(processingThreads);
+        ScheduledExecutorService checkpointExecutor = CheckpointScheduler.newExecutor();
+        ForkJoinPool batchPool = null;
+        for (StreamSpec stream : streams) {
+            if (stream.config.parallelThresholdRecords() > 0) {
+                batchPool = new ForkJoinPool(sharedConfig.parallelism());
+                break;
+            }
+        }
+        MetricRegistry metricRegistry = sharedConfig.metricsEnabled()
+                ? MetricRegistry.start(METRICS_MBEAN_NAME, sharedConfig.metricsDumpIntervalMillis()) : null;
+        Metrics metrics = metricRegistry != null ? metricRegistry : NoOpMetrics.INSTANCE;
+        StatsPublisher statsPublisher;
+        try {
+            statsPublisher = StatsPublisher.fromOptions(options, cloudWatchClient);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (statsPublisher != null) {
+            statsPublisher.registerMetrics(metrics);
+        }
+
+        // the processing executor outlives every scheduler, which never shuts it down
+        SchedulerCoordinatorFactory coordinatorFactory = new SchedulerCoordinatorFactory() {
+            @Override
+            public ExecutorService createExecutorService() {
+                return processingExecutor;
+            }
+        };
+
+        String workerId = UUID.randomUUID().toString();
+        List<Scheduler> schedulers = new ArrayList<Scheduler>();
+        List<StockTradeRecordProcessorFactory> factories = new ArrayList<StockTradeRecordProcessorFactory>();
+        for (StreamSpec stream : streams) {
+            StockTradeRecordProcessorFactory factory = new StockTradeRecordProcessorFactory(stream.config,
+                    stream.streamName, batchPool, checkpointExecutor,
+                    new PrefixedMetrics(metrics, stream.applicationName + "." + stream.streamName + "."),
+                    statsPublisher);
+            ConfigsBuilder configsBuilder = new ConfigsBuilder(stream.streamName, stream.applicationName,
+                    kinesisClient, dynamoClient, cloudWatchClient, workerId, factory);
+            schedulers.add(new Scheduler(
+                    configsBuilder.checkpointConfig(),
+                    configsBuilder.coordinatorConfig().coordinatorFactory(coordinatorFactory),
+                    configsBuilder.leaseManagementConfig(),
+                    configsBuilder.lifecycleConfig(),
+                    configsBuilder.metricsConfig(),
+                    configsBuilder.processorConfig(),
+                    configsBuilder.retrievalConfig().retrievalSpecificConfig(stream.retrieval.toRetrievalConfig(
+                            stream.streamName, stream.applicationName, kinesisClient))));
+            factories.add(factory);
+        }
+
+        // on SIGTERM, the JVM exits once the hook returns, so it also waits for the clean up below
+        CountDownLatch closed = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            shutdown(schedulers);
+            try {
+                closed.await(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "multi-stream-shutdown"));
+
+        AtomicInteger failedSchedulers = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < schedulers.size(); i++) {
+            Scheduler scheduler = schedulers.get(i);
+            StreamSpec stream = streams.get(i);
+            Thread thread = new Thread(() -> {
+                try {
+                    scheduler.run();
+                } catch (Throwable t) {
+                    LOG.error("Caught throwable while processing stream " + stream.streamName + ".", t);
+                    failedSchedulers.incrementAndGet();
+                }
+            }, "scheduler-" + stream.applicationName + "-" + stream.streamName);
+            thread.start();
+            threads.add(thread);
+        }
+        LOG.info("Processing " + streams.size() + " stream(s) on " + processingThreads + " thread(s)");
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (StockTradeRecordProcessorFactory factory : factories) {
+            factory.close();
+        }
+        if (statsPublisher != null) {
+            statsPublisher.close();
+        }
+        processingExecutor.shutdown();
+        checkpointExecutor.shutdown();
+        if (batchPool != null) {
+            batchPool.shutdown();
+        }
+        if (metricRegistry != null) {
+            metricRegistry.close();
+        }
+        kinesisClient.close();
+        dynamoClient.close();
+        cloudWatchClient.close();
+        closed.countDown();
+        System.exit(failedSchedulers.get() == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return a pool of daemon threads of fixed size, queueing the tasks of all the schedulers
+     */
+    private static ExecutorService newProcessingExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "record-processor-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Asks every scheduler to checkpoint and release its leases, all at once.
+     */
+    private static void shutdown(List<Scheduler> schedulers) {
+        List<Future<Boolean>> shutdowns = new ArrayList<Future<Boolean>>();
+        for (Scheduler scheduler : schedulers) {
+            shutdowns.add(scheduler.startGracefulShutdown());
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_TIMEOUT_SECONDS);
+        for (Future<Boolean> shutdown : shutdowns) {
+            try {
+                shutdown.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (Exception e) {
+                LOG.warn("A scheduler did not shut down gracefully.", e);
+            }
+        }
+    }
+
+    /**
+     * A stream to process, as listed in the streams file.
+     */
+    private static class StreamSpec {
+        private final String applicationName;
+        private final String streamName;
+        private final StockTradeProcessorConfig config;
+        private final RetrievalSettings retrieval;
+
+        StreamSpec(String applicationName, String streamName, StockTradeProcessorConfig config,
+                   RetrievalSettings retrieval) {
+            this.applicationName = applicationName;
+            this.streamName = streamName;
+            this.config = config;
+            this.retrieval = retrieval;
+        }
+
+        /**
+         * Reads a streams file. The options of each line are applied over those of the
+         * command line.
+         *
+         * @throws IllegalArgumentException if a line is invalid
+         */
+        static List<StreamSpec> parse(Path file, String[] commandLine) throws IOException {
+            List<String> sharedOptions = new ArrayList<String>();
+            for (String arg : commandLine) {
+                if (arg.startsWith("--")) {
+                    sharedOptions.add(arg);
+                }
+            }
+            List<StreamSpec> streams = new ArrayList<StreamSpec>();
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                List<String> args = new ArrayList<String>(sharedOptions);
+                args.addAll(Arrays.asList(trimmed.split("\\s+")));
+                CommandLineOptions options = new CommandLineOptions(args.toArray(new String[0]));
+                if (options.getPositional().size() != 2) {
+                    throw new IllegalArgumentException("line " + lineNumber
+                            + " should be <application name> <stream name> [options]");
+                }
+                streams.add(new StreamSpec(options.getPositional().get(0), options.getPositional().get(1),
+                        StockTradeProcessorConfig.fromOptions(options), RetrievalSettings.fromOptions(options)));
+            }
+            if (streams.isEmpty()) {
+                throw new IllegalArgumentException("no stream listed");
+            }
+            return streams;
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Histogram;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TickerSymbolTable;
+
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * Decodes and aggregates large batches of records of one shard on a shared fork join pool.
+ * <p>
+ * A batch is split into contiguous chunks. Each chunk is decoded and pre-aggregated into pane
+ * partials by its own {@link Chunk}, which owns its symbol table, view and stats, so chunks
+ * share no mutable state. Once every chunk is done, the calling thread merges the partials
+ * into the {@link WindowedStockStats} in ascending pane order, see
+ * {@link WindowedStockStats#mergePane(long, StockStats, long)}. The batch is therefore fully
+ * aggregated when {@link #process(List)} returns, as it is when records are processed one by
+ * one, and checkpointing is unaffected.
+ * <p>
+ * Instances belong to a single record processor and are not thread safe.
+ */
+public class ParallelBatchAggregator {
+
+    private static final Log log = LogFactory.getLog(ParallelBatchAggregator.class);
+
+    // Chunks smaller than this are not worth a task of their own
+    private static final int MIN_CHUNK_RECORDS = 256;
+
+    private final ForkJoinPool pool;
+    private final int thresholdRecords;
+    private final WindowedStockStats windowedStats;
+    private final Chunk[] chunks;
+    private final List<PanePartial> partials = new ArrayList<PanePartial>();
+
+    /**
+     * Constructor.
+     *
+     * @param pool Pool running the chunks, usually shared by all the processors of a worker
+     * @param thresholdRecords Smallest batch that is split into chunks
+     * @param windowedStats Stats the batches are merged into
+     * @param statsFactory Creates the pane partials with a given symbol table, of the same kind
+     *        as the panes
+     * @param maxSymbols Maximum number of distinct symbols interned by each chunk
+     */
+    public ParallelBatchAggregator(ForkJoinPool pool, int thresholdRecords, WindowedStockStats windowedStats,
+                                   Function<TickerSymbolTable, StockStats> statsFactory, int maxSymbols) {
+        this.pool = pool;
+        this.thresholdRecords = Math.max(thresholdRecords, 2 * MIN_CHUNK_RECORDS);
+        this.windowedStats = windowedStats;
+        chunks = new Chunk[pool.getParallelism()];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk(windowedStats.getPaneMillis(), statsFactory, maxSymbols);
+        }
+    }
+
+    /**
+     * @return true if the batch is large enough to be split into chunks
+     */
+    public boolean accepts(List<KinesisClientRecord> records) {
+        return records.size() >= thresholdRecords;
+    }
+
+    /**
+     * Aggregates a batch of records into the windowed stats, returning once all are counted.
+     */
+    public void process(List<KinesisClientRecord> records) {
+        process(records, null);
+    }
+
+    /**
+     * Aggregates a batch of records into the windowed stats, see {@link #process(List)}, and
+     * records how long the trades carrying the time they were produced took to reach Kinesis.
+     *
+     * @param produceToKinesisMillis Receives the latency of each stamped trade, or null
+     */
+    public void process(List<KinesisClientRecord> records, Histogram produceToKinesisMillis) {
+        int size = records.size();
+        int chunkCount = Math.max(1, Math.min(chunks.length, size / MIN_CHUNK_RECORDS));
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            Chunk chunk = chunks[i];
+            int from = (int) ((long) size * i / chunkCount);
+            int to = (int) ((long) size * (i + 1) / chunkCount);
+            tasks[i] = pool.submit(() -> chunk.aggregate(records, from, to, produceToKinesisMillis));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        partials.clear();
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i].collect(partials);
+        }
+        partials.sort((a, b) -> Long.compare(a.paneIndex, b.paneIndex));
+        for (PanePartial partial : partials) {
+            windowedStats.mergePane(partial.maxEventTimeMillis, partial.stats, partial.trades);
+        }
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i].reset();
+        }
+    }
+
+    /**
+     * The trades of a chunk falling into one pane.
+     */
+    private static class PanePartial {
+        private final StockStats stats;
+        private long paneIndex;
+        private long maxEventTimeMillis;
+        private long trades;
+
+        PanePartial(StockStats stats) {
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * Decodes and aggregates a range of records. Partials are pooled and reused across batches.
+     */
+    private static class Chunk {
+        private final long paneMillis;
+        private final Function<TickerSymbolTable, StockStats> statsFactory;
+        private final TickerSymbolTable symbols;
+        private final StockTradeView tradeView;
+        private final List<PanePartial> panes = new ArrayList<PanePartial>();
+        private int paneCount;
+
+        Chunk(long paneMillis, Function<TickerSymbolTable, StockStats> statsFactory, int maxSymbols) {
+            this.paneMillis = paneMillis;
+            this.statsFactory = statsFactory;
+            this.symbols = new TickerSymbolTable(maxSymbols);
+            this.tradeView = new StockTradeView(symbols);
+        }
+
+        void aggregate(List<KinesisClientRecord> records, int from, int to, Histogram produceToKinesisMillis) {
+            PanePartial current = null;
+            for (int i = from; i < to; i++) {
+                KinesisClientRecord record = records.get(i);
+                try {
+                    // ByteBuffer positions are not shared between chunks, each record is read by one only
+                    tradeView.decode(record.data());
+                } catch (IllegalArgumentException e) {
+                    log.warn("Skipping record. Unable to parse record into StockTrade. Partition Key: "
+                            + record.partitionKey() + ". " + e.getMessage());
+                    continue;
+                }
+                long eventTimeMillis = StockTradeRecordProcessor.eventTimeMillis(record);
+                long paneIndex = Math.floorDiv(eventTimeMillis, paneMillis);
+                if (current == null || current.paneIndex != paneIndex) {
+                    current = paneFor(paneIndex);
+                }
+                current.stats.addStockTrade(tradeView, eventTimeMillis);
+                current.maxEventTimeMillis = Math.max(current.maxEventTimeMillis, eventTimeMillis);
+                current.trades++;
+                if (produceToKinesisMillis != null && tradeView.getProducedMillis() > 0) {
+                    produceToKinesisMillis.record(eventTimeMillis - tradeView.getProducedMillis());
+                }
+            }
+        }
+
+        private PanePartial paneFor(long paneIndex) {
+            // a batch rarely spans more than a few panes, so a linear search is enough
+            for (int i = 0; i < paneCount; i++) {
+                if (panes.get(i).paneIndex == paneIndex) {
+                    return panes.get(i);
+                }
+            }
+            if (paneCount == panes.size()) {
+                panes.add(new PanePartial(statsFactory.apply(symbols)));
+            }
+            PanePartial pane = panes.get(paneCount++);
+            pane.paneIndex = paneIndex;
+            pane.maxEventTimeMillis = Long.MIN_VALUE;
+            pane.trades = 0;
+            return pane;
+        }
+
+        void collect(List<PanePartial> partials) {
+            for (int i = 0; i < paneCount; i++) {
+                partials.add(panes.get(i));
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < paneCount; i++) {
+                panes.get(i).stats.clear();
+            }
+            paneCount = 0;
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.LogHistogram;
+
+/**
+ * Reports the throughput and lag of the shards processed by a worker at a fixed interval, to
+ * compare retrieval settings, see {@link RetrievalSettings}.
+ * <p>
+ * Each shard processor registers a {@link ShardProgress} and records every batch it is
+ * handed, with the millisBehindLatest of the batch, that is how far the batch is from the tip
+ * of the shard. For every interval, a reporter thread prints the records, bytes and batches
+ * processed per second, the average batch size, the distribution of millisBehindLatest over
+ * the batches and the shard furthest behind. With a lag objective, it also prints the share
+ * of batches that were further behind than the objective. Recording a batch never blocks.
+ */
+public class ProgressReport implements AutoCloseable {
+
+    private static final Log log = LogFactory.getLog(ProgressReport.class);
+
+    private final String scope;
+    private final long lagObjectiveMillis;
+    private final ScheduledExecutorService reporter;
+
+    private final Set<ShardProgress> shards = ConcurrentHashMap.newKeySet();
+
+    // What was processed since the last report
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchesOverObjective = new LongAdder();
+    private final AtomicReference<LogHistogram> lagMillis = new AtomicReference<LogHistogram>(new LogHistogram());
+
+    // Only touched by the reporter thread
+    private long lastReportNanos = System.nanoTime();
+
+    /**
+     * Constructor. Starts the reporter thread.
+     *
+     * @param scope What the shards belong to, such as a stream, named in the reports
+     * @param intervalMillis Interval between reports
+     * @param lagObjectiveMillis Lag that batches should not exceed, or 0 for none
+     */
+    public ProgressReport(String scope, long intervalMillis, long lagObjectiveMillis) {
+        this.scope = scope;
+        this.lagObjectiveMillis = lagObjectiveMillis;
+        this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "progress-report");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleWithFixedDelay(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a shard whose progress is to be reported.
+     */
+    public ShardProgress register(String shardId) {
+        ShardProgress shard = new ShardProgress(shardId);
+        shards.add(shard);
+        return shard;
+    }
+
+    /**
+     * Stops the reporter thread.
+     */
+    @Override
+    public void close() {
+        reporter.shutdown();
+        try {
+            reporter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void report() {
+        try {
+            System.out.println(summary());
+        } catch (RuntimeException e) {
+            // keep the schedule alive
+            log.error("Failed to report progress.", e);
+        }
+    }
+
+    /**
+     * @return the report of the interval since the previous one, and starts the next interval
+     */
+    String summary() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(now - lastReportNanos)) / 1000.0;
+        lastReportNanos = now;
+        long intervalRecords = records.sumThenReset();
+        long intervalBytes = bytes.sumThenReset();
+        long intervalBatches = batches.sumThenReset();
+        long overObjective = batchesOverObjective.sumThenReset();
+        LogHistogram.Snapshot lag = lagMillis.getAndSet(new LogHistogram()).snapshot();
+
+        StringBuilder sb = new StringBuilder(String.format("%s progress over %.0f s, %d shard(s): ", scope, seconds,
+                shards.size()));
+        if (intervalBatches == 0) {
+            return sb.append("no records").toString();
+        }
+        sb.append(String.format("%.0f records/s, %.2f MB/s, %.1f batches/s of %d records", intervalRecords / seconds,
+                intervalBytes / seconds / 1048576.0, intervalBatches / seconds, intervalRecords / intervalBatches));
+        if (lag.getCount() > 0) {
+            sb.append(String.format(", millisBehindLatest p50 %d, p99 %d, max %d", lag.getQuantile(0.5),
+                    lag.getQuantile(0.99), lag.getMax()));
+        }
+        ShardProgress furthest = null;
+        for (ShardProgress shard : shards) {
+            if (furthest == null || shard.millisBehindLatest > furthest.millisBehindLatest) {
+                furthest = shard;
+            }
+        }
+        if (furthest != null && furthest.millisBehindLatest >= 0) {
+            sb.append(", furthest behind ").append(furthest.shardId).append(" at ")
+                    .append(furthest.millisBehindLatest).append(" ms");
+        }
+        if (lagObjectiveMillis > 0 && lag.getCount() > 0) {
+            sb.append(String.format(", %.1f%% of batches over the %d ms objective",
+                    100.0 * overObjective / lag.getCount(), lagObjectiveMillis));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The progress of one shard. Its methods are meant to be called by the shard's processor
+     * thread.
+     */
+    public class ShardProgress {
+        private final String shardId;
+        private volatile long millisBehindLatest = -1L;
+
+        private ShardProgress(String shardId) {
+            this.shardId = shardId;
+        }
+
+        /**
+         * Records a batch handed to the processor.
+         *
+         * @param batchRecords Number of records in the batch
+         * @param batchBytes Payload bytes in the batch
+         * @param batchMillisBehindLatest How far the batch was from the tip of the shard, or null
+         *        if unknown
+         */
+        public void batchProcessed(int batchRecords, long batchBytes, Long batchMillisBehindLatest) {
+            records.add(batchRecords);
+            bytes.add(batchBytes);
+            batches.increment();
+            if (batchMillisBehindLatest != null) {
+                long lag = batchMillisBehindLatest;
+                millisBehindLatest = lag;
+                lagMillis.get().record(lag);
+                if (lagObjectiveMillis > 0 && lag > lagObjectiveMillis) {
+                    batchesOverObjective.increment();
+                }
+            }
+        }
+
+        /**
+         * Stops reporting the shard, once its processor shuts down.
+         */
+        public void unregister() {
+            shards.remove(this);
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.utils.CommandLineOptions;
+
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.kinesis.retrieval.RetrievalSpecificConfig;
+import software.amazon.kinesis.retrieval.fanout.FanOutConfig;
+import software.amazon.kinesis.retrieval.polling.PollingConfig;
+import software.amazon.kinesis.retrieval.polling.SimpleRecordsFetcherFactory;
+
+/**
+ * How a scheduler retrieves the records of its shards.
+ * <p>
+ * With enhanced fan-out, the default of KCL, each shard pushes its records to the consumer
+ * over SubscribeToShard as soon as they arrive, with 2 MB/s of read throughput per shard
+ * reserved for the consumer, at an extra cost per shard hour and per GB. With polling, the
+ * consumer calls GetRecords and shares the 5 calls and 2 MB per second of each shard with
+ * the other polling consumers, at no extra cost. Polling is tuned with:
+ * <ul>
+ *   <li>the maximum number of records per GetRecords call,</li>
+ *   <li>the idle time between calls, which bounds how stale records are when the consumer
+ *       keeps up, and how many calls it makes,</li>
+ *   <li>the number of batches fetched ahead of the processor, which lets it catch up faster
+ *       after a burst at the cost of memory.</li>
+ * </ul>
+ */
+public class RetrievalSettings {
+
+    /**
+     * Retrieval modes.
+     */
+    public enum Mode {
+        FANOUT,
+        POLLING
+    }
+
+    /** Default maximum number of records per GetRecords call, that of KCL and of the API **/
+    public static final int DEFAULT_MAX_RECORDS = 10000;
+
+    /** Default idle time between GetRecords calls of a shard, that of KCL **/
+    public static final long DEFAULT_IDLE_MILLIS = 1500L;
+
+    /** Default number of batches fetched ahead of the processor, that of KCL **/
+    public static final int DEFAULT_PREFETCH_BATCHES = 3;
+
+    private Mode mode = Mode.FANOUT;
+    private int maxRecords = DEFAULT_MAX_RECORDS;
+    private long idleMillis = DEFAULT_IDLE_MILLIS;
+    private int prefetchBatches = DEFAULT_PREFETCH_BATCHES;
+
+    /**
+     * Reads the settings from command line options, keeping the defaults for options that
+     * are not given.
+     *
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    public static RetrievalSettings fromOptions(CommandLineOptions options) {
+        return fromOptions(options, Mode.FANOUT);
+    }
+
+    /**
+     * Reads the settings from command line options, see {@link #fromOptions(CommandLineOptions)}.
+     *
+     * @param defaultMode Mode used unless the options name one
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    public static RetrievalSettings fromOptions(CommandLineOptions options, Mode defaultMode) {
+        RetrievalSettings settings = new RetrievalSettings();
+        String mode = options.getString("retrieval", defaultMode == Mode.FANOUT ? "fanout" : "polling");
+        switch (mode) {
+            case "fanout":
+                settings.fanOut();
+                break;
+            case "polling":
+                settings.polling(options.getInt("max-records", settings.maxRecords),
+                        options.getDurationMillis("idle-time", settings.idleMillis),
+                        options.getInt("prefetch", settings.prefetchBatches));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown retrieval mode " + mode);
+        }
+        return settings;
+    }
+
+    /**
+     * @return command line options understood by {@link #fromOptions(CommandLineOptions)}
+     */
+    public static String usage() {
+        return "[--retrieval=fanout|polling [--max-records=<n>] [--idle-time=<duration>] [--prefetch=<batches>]]";
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public int maxRecords() {
+        return maxRecords;
+    }
+
+    public long idleMillis() {
+        return idleMillis;
+    }
+
+    public int prefetchBatches() {
+        return prefetchBatches;
+    }
+
+    /**
+     * Retrieves records with enhanced fan-out.
+     */
+    public RetrievalSettings fanOut() {
+        this.mode = Mode.FANOUT;
+        return this;
+    }
+
+    /**
+     * Retrieves records with GetRecords.
+     *
+     * @param maxRecords Maximum number of records per call, at most 10000
+     * @param idleMillis Time a shard waits between calls
+     * @param prefetchBatches Number of batches fetched ahead of the processor, at least 1
+     * @throws IllegalArgumentException if a setting is out of range
+     */
+    public RetrievalSettings polling(int maxRecords, long idleMillis, int prefetchBatches) {
+        if (maxRecords < 1 || maxRecords > DEFAULT_MAX_RECORDS || idleMillis < 0 || prefetchBatches < 1) {
+            throw new IllegalArgumentException("Invalid polling settings: " + maxRecords + " record(s), idle "
+                    + idleMillis + " ms, " + prefetchBatches + " batch(es) ahead");
+        }
+        this.mode = Mode.POLLING;
+        this.maxRecords = maxRecords;
+        this.idleMillis = idleMillis;
+        this.prefetchBatches = prefetchBatches;
+        return this;
+    }
+
+    /**
+     * Creates the KCL retrieval settings of a stream.
+     *
+     * @param streamName Stream consumed
+     * @param applicationName Application consuming it, which names the fan-out consumer
+     * @param kinesisClient Client retrieving the records
+     */
+    public RetrievalSpecificConfig toRetrievalConfig(String streamName, String applicationName,
+                                                     KinesisAsyncClient kinesisClient) {
+        if (mode == Mode.FANOUT) {
+            return new FanOutConfig(kinesisClient).streamName(streamName).applicationName(applicationName);
+        }
+        // KCL 2.2 waits between calls as told by the fetcher factory, not by the polling config
+        SimpleRecordsFetcherFactory fetcherFactory = new SimpleRecordsFetcherFactory();
+        fetcherFactory.idleMillisBetweenCalls(idleMillis);
+        fetcherFactory.maxPendingProcessRecordsInput(prefetchBatches);
+        // otherwise the default cap of 30000 records ahead would limit deep prefetching of full batches
+        fetcherFactory.maxRecordsCount(prefetchBatches * maxRecords);
+        return new PollingConfig(streamName, kinesisClient)
+                .maxRecords(maxRecords)
+                .idleTimeBetweenReadsInMillis(idleMillis)
+                .recordsFetcherFactory(fetcherFactory);
+    }
+
+    @Override
+    public String toString() {
+        if (mode == Mode.FANOUT) {
+            return "enhanced fan-out";
+        }
+        return "polling up to " + maxRecords + " record(s) every " + idleMillis + " ms, " + prefetchBatches
+                + " batch(es) ahead";
+    }
+
+}
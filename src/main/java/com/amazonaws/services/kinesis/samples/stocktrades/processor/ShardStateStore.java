@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the windowed stats of a shard, and the trade ids it has seen if it drops duplicates,
+ * in a local file, so that a worker that restarts picks up its open windows where it left
+ * them instead of starting them over empty.
+ * <p>
+ * The state is saved with every checkpoint and tagged with the sequence number checkpointed.
+ * It is serialized on the processor thread, written to a staging file and forced to disk
+ * before the checkpoint is attempted, and moved over the state file once the checkpoint is
+ * saved. The state file therefore always reflects exactly a checkpoint, and it is only
+ * restored when the shard resumes from that very checkpoint. When the checkpoint moved on
+ * without it, for example because another worker held the lease meanwhile or the worker
+ * died between checkpointing and moving the file, the state is discarded and the windows
+ * start over empty, as they would without a store.
+ * <p>
+ * Files are laid out as follows, and a file that fails its CRC is discarded:
+ * <pre>
+ *   magic             int      0x4B535353
+ *   version           byte
+ *   sequence number   short length and ASCII bytes
+ *   sub-sequence      long
+ *   state             int length and the bytes written by {@link WindowedStockStats#writeTo(ByteBuffer)}
+ *   ids seen          int length, 0 if duplicates are kept, and the bytes written by
+ *                     {@link TradeIdDeduplicator#writeTo(ByteBuffer)}
+ *   crc               int      CRC32 of all the above
+ * </pre>
+ * Apart from {@link #stage()} and {@link #commit()}, which run on the checkpoint executor,
+ * methods are meant to be called by the shard's processor thread.
+ */
+public class ShardStateStore {
+
+    private static final Log log = LogFactory.getLog(ShardStateStore.class);
+
+    private static final int MAGIC = 0x4B535353;
+    private static final byte VERSION = 2;
+
+    private final String shardId;
+    private final Path file;
+    private final Path stagedFile;
+
+    // Reused for every snapshot; at most one checkpoint of the shard is in flight
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private volatile boolean staged;
+
+    /**
+     * Constructor.
+     *
+     * @param directory Directory holding the state files of all shards of the worker, created
+     *        if it does not exist
+     * @param shardId Shard whose state is kept
+     */
+    public ShardStateStore(Path directory, String shardId) throws IOException {
+        Files.createDirectories(directory);
+        this.shardId = shardId;
+        this.file = directory.resolve(shardId + ".state");
+        this.stagedFile = directory.resolve(shardId + ".state.tmp");
+    }
+
+    /**
+     * Serializes the state to be saved with the checkpoint about to start.
+     *
+     * @param stats Windowed stats of the shard, fully aggregated up to the position checkpointed
+     * @param deduplicator Ids seen by the shard up to the same position, or null
+     * @param sequenceNumber Sequence number checkpointed
+     * @param subSequenceNumber Sub-sequence number checkpointed
+     */
+    public void capture(WindowedStockStats stats, TradeIdDeduplicator deduplicator, String sequenceNumber,
+                        long subSequenceNumber) {
+        byte[] sequence = sequenceNumber.getBytes(StandardCharsets.US_ASCII);
+        int stateSize = stats.serializedSize();
+        int idsSize = deduplicator == null ? 0 : deduplicator.serializedSize();
+        int size = 4 + 1 + 2 + sequence.length + 8 + 4 + stateSize + 4 + idsSize + 4;
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.putShort((short) sequence.length);
+        buffer.put(sequence);
+        buffer.putLong(subSequenceNumber);
+        buffer.putInt(stateSize);
+        stats.writeTo(buffer);
+        buffer.putInt(idsSize);
+        if (deduplicator != null) {
+            deduplicator.writeTo(buffer);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        staged = false;
+    }
+
+    /**
+     * Writes the captured state to the staging file and forces it to disk. A state that fails
+     * to be written is logged and skipped: the checkpoint goes ahead without it.
+     */
+    public void stage() {
+        try (FileChannel channel = FileChannel.open(stagedFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = buffer.duplicate();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+            staged = true;
+        } catch (IOException e) {
+            log.error("Cannot save the state of shard " + shardId + " to " + stagedFile, e);
+        }
+    }
+
+    /**
+     * Replaces the state file with the staged one, once the checkpoint is saved.
+     */
+    public void commit() {
+        if (!staged) {
+            return;
+        }
+        staged = false;
+        try {
+            Files.move(stagedFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.error("Cannot replace the state of shard " + shardId + " at " + file, e);
+        }
+    }
+
+    /**
+     * Restores the state saved with the checkpoint the shard resumes from, if any.
+     *
+     * @param stats Windowed stats of the shard, which are left empty if nothing is restored
+     * @param deduplicator Ids seen by the shard, or null. They are left empty if nothing is
+     *        restored, or if duplicates were kept when the state was saved.
+     * @param sequenceNumber Sequence number the shard resumes from
+     * @param subSequenceNumber Sub-sequence number the shard resumes from
+     * @return true if the state was restored
+     */
+    public boolean restore(WindowedStockStats stats, TradeIdDeduplicator deduplicator, String sequenceNumber,
+                           Long subSequenceNumber) {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            log.warn("Cannot read the state of shard " + shardId + " from " + file + ", starting empty.", e);
+            return false;
+        }
+        try {
+            if (data.limit() < 4 || !hasValidCrc(data) || data.getInt() != MAGIC || data.get() != VERSION) {
+                throw new IllegalArgumentException("not a valid state file");
+            }
+            byte[] sequence = new byte[data.getShort() & 0xFFFF];
+            data.get(sequence);
+            String savedSequence = new String(sequence, StandardCharsets.US_ASCII);
+            long savedSubSequence = data.getLong();
+            if (!savedSequence.equals(sequenceNumber)
+                    || savedSubSequence != (subSequenceNumber == null ? 0L : subSequenceNumber)) {
+                log.info("Discarding the state of shard " + shardId + " saved at " + savedSequence + "/"
+                        + savedSubSequence + ", the shard resumes from " + sequenceNumber + "/" + subSequenceNumber);
+                return false;
+            }
+            int stateSize = data.getInt();
+            ByteBuffer state = data.slice();
+            state.limit(stateSize);
+            data.position(data.position() + stateSize);
+            int idsSize = data.getInt();
+            if (deduplicator != null && idsSize > 0) {
+                ByteBuffer ids = data.slice();
+                ids.limit(idsSize);
+                deduplicator.restore(ids);
+            }
+            stats.restore(state);
+            return true;
+        } catch (RuntimeException e) {
+            // the stats clear themselves when they fail to restore, the ids may have been restored already
+            if (deduplicator != null) {
+                deduplicator.clear();
+            }
+            log.warn("Discarding the state of shard " + shardId + " in " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the saved state, once the windows it holds have been reported.
+     */
+    public void delete() {
+        try {
+            Files.deleteIfExists(stagedFile);
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Cannot delete the state of shard " + shardId + " at " + file, e);
+        }
+    }
+
+    private static boolean hasValidCrc(ByteBuffer data) {
+        ByteBuffer content = data.duplicate();
+        content.limit(data.limit() - 4);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return (int) crc.getValue() == data.getInt(data.limit() - 4);
+    }
+
+}
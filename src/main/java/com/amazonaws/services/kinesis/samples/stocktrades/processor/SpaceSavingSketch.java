@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving sketch of the most frequent keys of a stream, using a fixed number of counters.
+ * <p>
+ * With {@code capacity} counters and {@code n} updates, every reported count overestimates the
+ * true count by at most its error, which is itself at most {@code n / capacity}. Every key
+ * occurring more than {@code n / capacity} times is guaranteed to be tracked. Two sketches
+ * are merged following Agarwal et al., "Mergeable Summaries", which keeps the same bound for
+ * the combined stream.
+ * <p>
+ * The counters are kept in a binary min-heap, so an update costs O(log capacity).
+ * Instances are not thread safe.
+ */
+public class SpaceSavingSketch {
+
+    private final int capacity;
+    private final String[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private final Map<String, Integer> positions;
+    private int size;
+    private long totalCount;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Number of counters
+     */
+    public SpaceSavingSketch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        keys = new String[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        positions = new HashMap<String, Integer>(capacity * 2);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of updates seen by the sketch
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return the largest possible overestimation of any count, {@code n / capacity}
+     */
+    public long getMaxError() {
+        return size < capacity ? 0 : counts[0];
+    }
+
+    /**
+     * Counts one occurrence of the key.
+     */
+    public void update(String key) {
+        update(key, 1L, 0L);
+    }
+
+    private void update(String key, long count, long error) {
+        totalCount += count;
+        Integer position = positions.get(key);
+        if (position != null) {
+            counts[position] += count;
+            errors[position] += error;
+            siftDown(position);
+        } else if (size < capacity) {
+            int i = size++;
+            keys[i] = key;
+            counts[i] = count;
+            errors[i] = error;
+            positions.put(key, i);
+            siftUp(i);
+        } else {
+            // replace the key with the smallest count, which becomes the error of the new key
+            positions.remove(keys[0]);
+            long min = counts[0];
+            keys[0] = key;
+            counts[0] = min + count;
+            errors[0] = min + error;
+            positions.put(key, 0);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Adds the counts of another sketch to this one.
+     */
+    public void merge(SpaceSavingSketch other) {
+        // keys missing from a full sketch may have occurred up to its minimum count times
+        long thisMin = size < capacity ? 0 : counts[0];
+        long otherMin = other.size < other.capacity ? 0 : other.counts[0];
+
+        List<Entry> merged = new ArrayList<Entry>(size + other.size);
+        for (int i = 0; i < size; i++) {
+            Integer otherPosition = other.positions.get(keys[i]);
+            long otherCount = otherPosition == null ? otherMin : other.counts[otherPosition];
+            long otherError = otherPosition == null ? otherMin : other.errors[otherPosition];
+            merged.add(new Entry(keys[i], counts[i] + otherCount, errors[i] + otherError));
+        }
+        for (int i = 0; i < other.size; i++) {
+            if (!positions.containsKey(other.keys[i])) {
+                merged.add(new Entry(other.keys[i], other.counts[i] + thisMin, other.errors[i] + thisMin));
+            }
+        }
+        merged.sort((a, b) -> Long.compare(b.count, a.count));
+
+        long total = totalCount + other.totalCount;
+        clear();
+        for (int i = 0; i < merged.size() && i < capacity; i++) {
+            Entry entry = merged.get(i);
+            update(entry.key, entry.count, entry.error);
+        }
+        totalCount = total;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        positions.clear();
+        size = 0;
+        totalCount = 0;
+    }
+
+    public boolean isEmpty() {
+        return totalCount == 0;
+    }
+
+    /**
+     * @param limit Maximum number of entries to return
+     * @return the keys with the largest counts, in descending order of count
+     */
+    public List<Entry> top(int limit) {
+        List<Entry> entries = new ArrayList<Entry>(size);
+        for (int i = 0; i < size; i++) {
+            entries.add(new Entry(keys[i], counts[i], errors[i]));
+        }
+        entries.sort((a, b) -> Long.compare(b.count, a.count));
+        return entries.size() > limit ? entries.subList(0, limit) : entries;
+    }
+
+    /**
+     * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    public int serializedSize() {
+        int bytes = 4 + 4 + 8;
+        for (int i = 0; i < size; i++) {
+            bytes += 2 + keys[i].getBytes(StandardCharsets.UTF_8).length + 8 + 8;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the sketch at the buffer's position.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.putInt(capacity);
+        out.putInt(size);
+        out.putLong(totalCount);
+        for (int i = 0; i < size; i++) {
+            byte[] key = keys[i].getBytes(StandardCharsets.UTF_8);
+            out.putShort((short) key.length);
+            out.put(key);
+            out.putLong(counts[i]);
+            out.putLong(errors[i]);
+        }
+    }
+
+    /**
+     * Reads a sketch written by {@link #writeTo(ByteBuffer)} at the buffer's position.
+     */
+    public static SpaceSavingSketch readFrom(ByteBuffer in) {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(in.getInt());
+        int size = in.getInt();
+        long totalCount = in.getLong();
+        if (size > sketch.capacity) {
+            throw new IllegalArgumentException("Corrupt Space-Saving sketch");
+        }
+        for (int i = 0; i < size; i++) {
+            byte[] key = new byte[in.getShort() & 0xFFFF];
+            in.get(key);
+            long count = in.getLong();
+            long error = in.getLong();
+            sketch.update(new String(key, StandardCharsets.UTF_8), count, error);
+        }
+        sketch.totalCount = totalCount;
+        return sketch;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (counts[parent] <= counts[i]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            int smallest = left + 1 < size && counts[left + 1] < counts[left] ? left + 1 : left;
+            if (counts[i] <= counts[smallest]) {
+                break;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        long count = counts[i];
+        counts[i] = counts[j];
+        counts[j] = count;
+        long error = errors[i];
+        errors[i] = errors[j];
+        errors[j] = error;
+        positions.put(keys[i], i);
+        positions.put(keys[j], j);
+    }
+
+    /**
+     * A key with its estimated count. The true count lies between {@code count - error}
+     * and {@code count}.
+     */
+    public static class Entry {
+        private final String key;
+        private final long count;
+        private final long error;
+
+        Entry(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock free queue for exactly one producer thread and one consumer thread at a
+ * time. Slots are published with ordered writes rather than full fences, and each side caches
+ * the other side's index, so an offer or a poll usually touches no shared cache line but its
+ * slot.
+ *
+ * @param <T> Type of the elements
+ */
+public class SpscRing<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+
+    // Index of the next slot to write, only advanced by the producer
+    private final AtomicLong tail = new AtomicLong();
+    // Index of the next slot to read, only advanced by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    // The consumer's index as last seen by the producer, and the other way round
+    private long cachedHead;
+    private long cachedTail;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Minimum number of elements held, rounded up to a power of two
+     */
+    public SpscRing(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<T>(size);
+        this.mask = size - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds an element, to be called by the producer.
+     *
+     * @return false if the ring is full
+     */
+    public boolean offer(T element) {
+        long index = tail.get();
+        if (index - cachedHead > mask) {
+            cachedHead = head.get();
+            if (index - cachedHead > mask) {
+                return false;
+            }
+        }
+        slots.lazySet((int) index & mask, element);
+        tail.lazySet(index + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element, to be called by the consumer.
+     *
+     * @return the element, or null if the ring is empty
+     */
+    public T poll() {
+        long index = head.get();
+        if (index >= cachedTail) {
+            cachedTail = tail.get();
+            if (index >= cachedTail) {
+                return null;
+            }
+        }
+        int slot = (int) index & mask;
+        T element = slots.get(slot);
+        slots.lazySet(slot, null);
+        head.lazySet(index + 1);
+        return element;
+    }
+
+    /**
+     * @return the number of elements in the ring, exact only when neither side is active
+     */
+    public int size() {
+        return (int) Math.max(0L, tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+}
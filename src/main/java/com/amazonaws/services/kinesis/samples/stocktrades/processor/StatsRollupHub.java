@@ -0,0 +1,366 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Rolls the window stats of all the shards processed by a worker up into worker wide stats.
+ * <p>
+ * Each shard processor registers a {@link ShardCell} and publishes a copy of the stats of
+ * every window it closes. Publishing only appends to a lock free queue owned by the shard, so
+ * shard processors never contend with each other or wait for the reporter. A single reporter
+ * thread drains the queues on a schedule, merges the partials of each window and reports a
+ * window once it is complete.
+ * <p>
+ * Since a shard is reprocessed from its last checkpoint when its lease moves to another
+ * worker, partials only count once the shard has checkpointed past them. Partials published
+ * after the last checkpoint are retracted when the lease is lost, and committed when the shard
+ * ends or shuts down. A window is complete when the watermark of every live shard with
+ * trades, as of its last checkpoint, has passed the window's end, and no shard still holds an
+ * uncommitted partial of it. A shard registers as having no trades, so a shard that gets no
+ * records, and thus never checkpoints, holds up no window. A shard that falls behind does not
+ * hold up the report forever: windows are reported anyway after the maximum delay, and
+ * partials committed for a window that was already reported are counted as late and dropped.
+ */
+public class StatsRollupHub implements AutoCloseable {
+
+    private static final Log log = LogFactory.getLog(StatsRollupHub.class);
+
+    private static final long UNSET = Long.MIN_VALUE;
+
+    private final WindowListener listener;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService reporter;
+
+    private final Set<ShardCell> cells = ConcurrentHashMap.newKeySet();
+
+    // The state below is only touched by the reporter thread
+
+    // Partials not yet covered by a checkpoint, and the watermark as of the last checkpoint
+    private final Map<ShardCell, List<Event>> pendingByCell = new HashMap<ShardCell, List<Event>>();
+    private final Map<ShardCell, Long> committedWatermarks = new HashMap<ShardCell, Long>();
+
+    // Merged committed partials of the windows not yet reported, in order of window end
+    private final TreeMap<Long, Map<WindowSpec, Rollup>> rollupsByEnd = new TreeMap<Long, Map<WindowSpec, Rollup>>();
+
+    // End of the last window reported for each window spec
+    private final Map<WindowSpec, Long> reportedThrough = new HashMap<WindowSpec, Long>();
+
+    private final AtomicLong latePartials = new AtomicLong();
+
+    /**
+     * Constructor. Starts the reporter thread.
+     *
+     * @param listener Receives the worker wide stats of each complete window, on the reporter thread
+     * @param reportIntervalMillis How often partials are merged and complete windows reported
+     * @param maxDelayMillis How long a window may wait for lagging shards before being reported
+     */
+    public StatsRollupHub(WindowListener listener, long reportIntervalMillis, long maxDelayMillis) {
+        this.listener = listener;
+        this.maxDelayMillis = maxDelayMillis;
+        this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats-rollup-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleWithFixedDelay(this::report, reportIntervalMillis, reportIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a shard whose window stats are to be rolled up. Until its first checkpoint, the
+     * shard counts as having no trades.
+     */
+    public ShardCell register(String shardId) {
+        ShardCell cell = new ShardCell(shardId);
+        // a shard without trades holds up no window, however long it goes without a checkpoint
+        cell.commit(0, UNSET);
+        cells.add(cell);
+        return cell;
+    }
+
+    /**
+     * @return the number of committed partials dropped because their window had already been reported
+     */
+    public long getLatePartials() {
+        return latePartials.get();
+    }
+
+    /**
+     * Stops the reporter thread, after reporting every window that has committed partials.
+     */
+    @Override
+    public void close() {
+        reporter.shutdown();
+        try {
+            reporter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        drain();
+        reportWindows(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    private void report() {
+        try {
+            long now = System.currentTimeMillis();
+            drain();
+            reportWindows(completeThrough(), now - maxDelayMillis);
+        } catch (RuntimeException e) {
+            // keep the schedule alive, the next round starts from a consistent state
+            log.error("Failed to roll up stock stats.", e);
+        }
+    }
+
+    private void drain() {
+        for (ShardCell cell : cells) {
+            Event event;
+            while ((event = cell.events.poll()) != null) {
+                apply(cell, event);
+            }
+        }
+    }
+
+    private void apply(ShardCell cell, Event event) {
+        List<Event> pending = pendingByCell.get(cell);
+        if (pending == null) {
+            pending = new ArrayList<Event>();
+            pendingByCell.put(cell, pending);
+        }
+        switch (event.type) {
+            case PUBLISH:
+                pending.add(event);
+                break;
+            case COMMIT:
+                commit(pending, event.ordinal);
+                committedWatermarks.put(cell, event.watermarkMillis);
+                break;
+            case RETRACT:
+                log.info("Retracting " + pending.size() + " uncommitted window(s) of shard " + cell.shardId);
+                remove(cell);
+                break;
+            case FINISH:
+                commit(pending, Long.MAX_VALUE);
+                remove(cell);
+                break;
+            default:
+                throw new IllegalStateException("Unknown event " + event.type);
+        }
+    }
+
+    private void commit(List<Event> pending, long throughOrdinal) {
+        long now = System.currentTimeMillis();
+        int committed = 0;
+        for (Event partial : pending) {
+            if (partial.ordinal > throughOrdinal) {
+                break;
+            }
+            committed++;
+            Map<WindowSpec, Rollup> rollups = rollupsByEnd.get(partial.endMillis);
+            Rollup rollup = rollups == null ? null : rollups.get(partial.window);
+            if (rollup != null) {
+                rollup.stats.merge(partial.stats);
+                rollup.shards++;
+                continue;
+            }
+            Long reported = reportedThrough.get(partial.window);
+            if (reported != null && partial.endMillis <= reported) {
+                latePartials.incrementAndGet();
+                continue;
+            }
+            if (rollups == null) {
+                rollups = new HashMap<WindowSpec, Rollup>();
+                rollupsByEnd.put(partial.endMillis, rollups);
+            }
+            // the partial is a private copy, so it becomes the rollup itself
+            rollups.put(partial.window, new Rollup(partial.startMillis, partial.stats, now));
+        }
+        pending.subList(0, committed).clear();
+    }
+
+    private void remove(ShardCell cell) {
+        cells.remove(cell);
+        pendingByCell.remove(cell);
+        committedWatermarks.remove(cell);
+        // events published after the shard let go of its cell are ignored
+        cell.events.clear();
+    }
+
+    /**
+     * @return the end of the last window every live shard is done with, or MAX_VALUE if there
+     *         is no live shard
+     */
+    private long completeThrough() {
+        long min = Long.MAX_VALUE;
+        for (ShardCell cell : cells) {
+            Long watermark = committedWatermarks.get(cell);
+            if (watermark != null && watermark != UNSET) {
+                // a shard without any trade as of its checkpoint holds up no window
+                min = Math.min(min, watermark);
+            }
+            List<Event> pending = pendingByCell.get(cell);
+            if (pending != null) {
+                // nor may a window be reported while a partial of it waits for a checkpoint
+                for (Event partial : pending) {
+                    min = Math.min(min, partial.endMillis - 1);
+                }
+            }
+        }
+        return min;
+    }
+
+    private void reportWindows(long completeThrough, long createdBefore) {
+        Iterator<Map.Entry<Long, Map<WindowSpec, Rollup>>> it = rollupsByEnd.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Map<WindowSpec, Rollup>> entry = it.next();
+            long endMillis = entry.getKey();
+            Iterator<Map.Entry<WindowSpec, Rollup>> rollups = entry.getValue().entrySet().iterator();
+            while (rollups.hasNext()) {
+                Map.Entry<WindowSpec, Rollup> rollup = rollups.next();
+                if (endMillis > completeThrough && rollup.getValue().createdMillis >= createdBefore) {
+                    continue;
+                }
+                WindowSpec window = rollup.getKey();
+                log.info("Reporting " + window + " window ending at " + endMillis + " from "
+                        + rollup.getValue().shards + " shard(s)");
+                listener.windowClosed(window, rollup.getValue().startMillis, endMillis, rollup.getValue().stats);
+                Long reported = reportedThrough.get(window);
+                reportedThrough.put(window, reported == null ? endMillis : Math.max(reported, endMillis));
+                rollups.remove();
+            }
+            if (entry.getValue().isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private enum EventType {
+        PUBLISH, COMMIT, RETRACT, FINISH
+    }
+
+    private static class Event {
+        private final EventType type;
+        private final WindowSpec window;
+        private final long startMillis;
+        private final long endMillis;
+        private final StockStats stats;
+        private final long watermarkMillis;
+        private final long ordinal;
+
+        Event(EventType type, long ordinal, WindowSpec window, long startMillis, long endMillis, StockStats stats,
+              long watermarkMillis) {
+            this.type = type;
+            this.ordinal = ordinal;
+            this.window = window;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.stats = stats;
+            this.watermarkMillis = watermarkMillis;
+        }
+    }
+
+    private static class Rollup {
+        private final long startMillis;
+        private final StockStats stats;
+        private final long createdMillis;
+        private int shards = 1;
+
+        Rollup(long startMillis, StockStats stats, long createdMillis) {
+            this.startMillis = startMillis;
+            this.stats = stats;
+            this.createdMillis = createdMillis;
+        }
+    }
+
+    /**
+     * The contribution of one shard to the hub. Its methods are meant to be called by the
+     * shard's processor thread, except where noted, and never block.
+     */
+    public static class ShardCell {
+        private final String shardId;
+        private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<Event>();
+        private long published;
+
+        private ShardCell(String shardId) {
+            this.shardId = shardId;
+        }
+
+        public String getShardId() {
+            return shardId;
+        }
+
+        /**
+         * Publishes the stats of a closed window. The stats are copied, so the caller may reuse them.
+         */
+        public void publish(WindowSpec window, long startMillis, long endMillis, StockStats stats) {
+            events.offer(new Event(EventType.PUBLISH, ++published, window, startMillis, endMillis, stats.copy(),
+                    UNSET));
+        }
+
+        /**
+         * @return a mark of the windows published so far, to be committed once they are covered
+         *         by a checkpoint
+         */
+        public long mark() {
+            return published;
+        }
+
+        /**
+         * Marks the windows published up to a mark as covered by a checkpoint. May be called from
+         * any thread, but marks must be committed in order.
+         *
+         * @param mark Mark taken when the checkpointed position was recorded, see {@link #mark()}
+         * @param watermarkMillis Watermark of the shard when the mark was taken
+         */
+        public void commit(long mark, long watermarkMillis) {
+            events.offer(new Event(EventType.COMMIT, mark, null, 0, 0, null, watermarkMillis));
+        }
+
+        /**
+         * Drops the windows published since the last checkpoint and unregisters the shard, after
+         * its lease was lost.
+         */
+        public void retract() {
+            events.offer(new Event(EventType.RETRACT, 0, null, 0, 0, null, UNSET));
+        }
+
+        /**
+         * Commits the windows published so far and unregisters the shard, after its final
+         * checkpoint.
+         */
+        public void finish() {
+            events.offer(new Event(EventType.FINISH, 0, null, 0, 0, null, UNSET));
+        }
+    }
+
+}
@@ -15,61 +15,554 @@
 
 package com.amazonaws.services.kinesis.samples.stocktrades.processor;
 
-import java.util.EnumMap;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
 import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TickerSymbolTable;
 
 /**
  * Maintains running statistics of stock trades passed to it.
- *
+ * <p>
+ * Ticker symbols are mapped to dense int ids once, by a {@link TickerSymbolTable}, and the
+ * statistics are kept in primitive arrays indexed by trade type and symbol id, so adding a
+ * trade neither boxes nor allocates. When the table is shared with the {@link StockTradeView}
+ * that decoded the trade, the symbol id of the view is used directly, without any lookup.
+ * <p>
+ * Besides the counts per trade type, the open, high, low and close prices, the share volume,
+ * the notional value and the VWAP of every ticker are tracked. Open and close are the prices
+ * of the trades with the earliest and latest event time. All statistics are mergeable:
+ * {@link #merge(StockStats)} combines two partial aggregates associatively, so stats of
+ * different shards or windows can be rolled up without replaying trades. When event times
+ * are equal, open is taken from the instance merged into and close from the one merged.
+ * <p>
+ * Exact statistics grow with the number of distinct tickers. For unbounded ticker universes,
+ * instances created with {@link #StockStats(TickerSymbolTable, int, int)} keep
+ * {@link TradeSketches} of fixed size instead: approximate top tickers per trade type and
+ * price and quantity distributions. Per ticker prices are not tracked in that mode.
  */
 public class StockStats {
 
+    private static final TradeType[] TRADE_TYPES = TradeType.values();
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Version of the layout written by {@link #writeTo(ByteBuffer)} **/
+    private static final byte SERIAL_VERSION = 1;
+
+    // Bytes written per traded symbol besides the symbol itself: its length, the count,
+    // volume and notional of each trade type, and the four prices and two event times
+    private static final int SERIAL_SYMBOL_BYTES = 2 + TRADE_TYPES.length * 3 * 8 + 6 * 8;
+
+    // Maps ticker symbols to the indexes of the arrays below
+    private final TickerSymbolTable symbols;
+
     // Keeps count of trades for each ticker symbol for each trade type
-    private EnumMap<TradeType, Map<String, Long>> countsByTradeType;
+    private long[][] countsByTradeType;
+
+    // Keeps the number of shares traded for each ticker symbol for each trade type
+    private long[][] volumesByTradeType;
+
+    // Keeps the value traded (price times quantity) for each ticker symbol for each trade type
+    private double[][] notionalsByTradeType;
+
+    // Keeps the open, high, low and close price for each ticker symbol, and the event
+    // times of the opening and closing trade
+    private double[] opens;
+    private double[] highs;
+    private double[] lows;
+    private double[] closes;
+    private long[] openTimes;
+    private long[] closeTimes;
+
+    // Keeps the symbol id of the most popular stock for each trade type, or -1
+    private final int[] mostPopularByTradeType;
 
-    // Keeps the ticker symbol for the most popular stock for each trade type
-    private EnumMap<TradeType, String> mostPopularByTradeType;
+    // Replaces the exact statistics above when not null
+    private final TradeSketches sketches;
+
+    // Trades that were not counted because the symbol table is full
+    private long droppedTrades;
 
     /**
      * Constructor.
      */
     public StockStats() {
-        countsByTradeType = new EnumMap<TradeType, Map<String, Long>>(TradeType.class);
-        for (TradeType tradeType: TradeType.values()) {
-            countsByTradeType.put(tradeType, new HashMap<String, Long>());
-        }
+        this(new TickerSymbolTable(Integer.MAX_VALUE));
+    }
 
-        mostPopularByTradeType = new EnumMap<TradeType, String>(TradeType.class);
+    /**
+     * Creates statistics that map ticker symbols through the given table. Sharing the table
+     * with the {@link StockTradeView} decoding the trades saves a lookup per trade.
+     *
+     * @param symbols Symbol table
+     */
+    public StockStats(TickerSymbolTable symbols) {
+        this(symbols, null);
     }
 
     /**
-     * Updates the statistics taking into account the new stock trade received.
+     * Creates approximate statistics of fixed size, backed by {@link TradeSketches}.
+     *
+     * @param symbols Symbol table
+     * @param topK Number of counters used to find the most popular stocks of each trade type
+     * @param quantileK Accuracy parameter of the price and quantity distributions
+     */
+    public StockStats(TickerSymbolTable symbols, int topK, int quantileK) {
+        this(symbols, new TradeSketches(topK, quantileK));
+    }
+
+    private StockStats(TickerSymbolTable symbols, TradeSketches sketches) {
+        this.symbols = symbols;
+        this.sketches = sketches;
+        int capacity = sketches != null ? INITIAL_CAPACITY : Math.max(INITIAL_CAPACITY, symbols.size());
+        countsByTradeType = new long[TRADE_TYPES.length][capacity];
+        volumesByTradeType = new long[TRADE_TYPES.length][capacity];
+        notionalsByTradeType = new double[TRADE_TYPES.length][capacity];
+        opens = new double[capacity];
+        highs = new double[capacity];
+        lows = new double[capacity];
+        closes = new double[capacity];
+        openTimes = new long[capacity];
+        closeTimes = new long[capacity];
+        resetPrices(0, capacity);
+        mostPopularByTradeType = new int[TRADE_TYPES.length];
+        Arrays.fill(mostPopularByTradeType, -1);
+    }
+
+    /**
+     * Updates the statistics taking into account the new stock trade received, using the
+     * current time as its event time.
      *
      * @param trade Stock trade instance
      */
     public void addStockTrade(StockTrade trade) {
-        // update buy/sell count
-        TradeType type = trade.getTradeType();
-        Map<String, Long> counts = countsByTradeType.get(type);
-        Long count = counts.get(trade.getTickerSymbol());
-        if (count == null) {
-            count = 0L;
+        addStockTrade(trade, System.currentTimeMillis());
+    }
+
+    /**
+     * Updates the statistics taking into account the new stock trade received.
+     *
+     * @param trade Stock trade instance
+     * @param eventTimeMillis Event time of the trade, which orders the open and close prices
+     */
+    public void addStockTrade(StockTrade trade, long eventTimeMillis) {
+        if (sketches != null) {
+            sketches.addStockTrade(trade.getTickerSymbol(), trade.getTradeType(), trade.getPrice(),
+                    trade.getQuantity());
+            return;
         }
-        counts.put(trade.getTickerSymbol(), ++count);
+        addStockTrade(symbols.intern(trade.getTickerSymbol()), trade.getTradeType(), trade.getPrice(),
+                trade.getQuantity(), eventTimeMillis);
+    }
+
+    /**
+     * Updates the statistics taking into account the trade currently held by the view, using
+     * the current time as its event time.
+     *
+     * @param trade Stock trade view
+     */
+    public void addStockTrade(StockTradeView trade) {
+        addStockTrade(trade, System.currentTimeMillis());
+    }
 
-        // update most popular stock
-        String mostPopular = mostPopularByTradeType.get(type);
-        if (mostPopular == null ||
-                countsByTradeType.get(type).get(mostPopular) < count) {
-            mostPopularByTradeType.put(type, trade.getTickerSymbol());
+    /**
+     * Updates the statistics taking into account the trade currently held by the view.
+     *
+     * @param trade Stock trade view
+     * @param eventTimeMillis Event time of the trade, which orders the open and close prices
+     */
+    public void addStockTrade(StockTradeView trade, long eventTimeMillis) {
+        if (sketches != null) {
+            sketches.addStockTrade(trade.getTickerSymbol(), trade.getTradeType(), trade.getPrice(),
+                    trade.getQuantity());
+            return;
+        }
+        int symbolId = trade.getSymbols() == symbols ? trade.getTickerId() : symbols.intern(trade.getTickerSymbol());
+        addStockTrade(symbolId, trade.getTradeType(), trade.getPrice(), trade.getQuantity(), eventTimeMillis);
+    }
+
+    private void addStockTrade(int symbolId, TradeType type, double price, long quantity, long eventTimeMillis) {
+        if (symbolId == TickerSymbolTable.NO_ID) {
+            droppedTrades++;
+            return;
+        }
+        if (symbolId >= countsByTradeType[0].length) {
+            grow(symbolId + 1);
+        }
+
+        // update buy/sell count, volume and notional
+        int t = type.ordinal();
+        long count = ++countsByTradeType[t][symbolId];
+        volumesByTradeType[t][symbolId] += quantity;
+        notionalsByTradeType[t][symbolId] += price * quantity;
+
+        // update open, high, low and close
+        updatePrices(symbolId, price, eventTimeMillis, price, price, price, eventTimeMillis);
+
+        // update most popular stock; counts only ever grow by one, so comparing with the
+        // current leader is enough to keep track of the maximum
+        int mostPopular = mostPopularByTradeType[t];
+        if (mostPopular < 0 || countsByTradeType[t][mostPopular] < count) {
+            mostPopularByTradeType[t] = symbolId;
+        }
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, countsByTradeType[0].length * 2);
+        for (int t = 0; t < TRADE_TYPES.length; t++) {
+            countsByTradeType[t] = Arrays.copyOf(countsByTradeType[t], capacity);
+            volumesByTradeType[t] = Arrays.copyOf(volumesByTradeType[t], capacity);
+            notionalsByTradeType[t] = Arrays.copyOf(notionalsByTradeType[t], capacity);
+        }
+        int oldCapacity = opens.length;
+        opens = Arrays.copyOf(opens, capacity);
+        highs = Arrays.copyOf(highs, capacity);
+        lows = Arrays.copyOf(lows, capacity);
+        closes = Arrays.copyOf(closes, capacity);
+        openTimes = Arrays.copyOf(openTimes, capacity);
+        closeTimes = Arrays.copyOf(closeTimes, capacity);
+        resetPrices(oldCapacity, capacity);
+    }
+
+    private void resetPrices(int from, int to) {
+        Arrays.fill(highs, from, to, Double.NEGATIVE_INFINITY);
+        Arrays.fill(lows, from, to, Double.POSITIVE_INFINITY);
+        Arrays.fill(openTimes, from, to, Long.MAX_VALUE);
+        Arrays.fill(closeTimes, from, to, Long.MIN_VALUE);
+    }
+
+    private void updatePrices(int symbolId, double open, long openTime, double high, double low,
+                              double close, long closeTime) {
+        if (openTime < openTimes[symbolId]) {
+            opens[symbolId] = open;
+            openTimes[symbolId] = openTime;
+        }
+        if (closeTime >= closeTimes[symbolId]) {
+            closes[symbolId] = close;
+            closeTimes[symbolId] = closeTime;
+        }
+        if (high > highs[symbolId]) {
+            highs[symbolId] = high;
+        }
+        if (low < lows[symbolId]) {
+            lows[symbolId] = low;
+        }
+    }
+
+    /**
+     * Adds the statistics of another instance to this one. Both instances may use different
+     * symbol tables, in which case symbols are matched by name.
+     *
+     * @param other Statistics to add
+     */
+    public void merge(StockStats other) {
+        if ((sketches == null) != (other.sketches == null)) {
+            throw new IllegalArgumentException("Cannot merge exact and approximate stock stats");
+        }
+        if (sketches != null) {
+            sketches.merge(other.sketches);
+            droppedTrades += other.droppedTrades;
+            return;
+        }
+        int otherSize = other.symbols.size();
+        for (int otherId = 0; otherId < otherSize && otherId < other.countsByTradeType[0].length; otherId++) {
+            int symbolId = -1;
+            for (int t = 0; t < TRADE_TYPES.length; t++) {
+                if (other.countsByTradeType[t][otherId] == 0) {
+                    continue;
+                }
+                if (symbolId < 0) {
+                    symbolId = other.symbols == symbols ? otherId : symbols.intern(other.symbols.symbol(otherId));
+                    if (symbolId == TickerSymbolTable.NO_ID) {
+                        droppedTrades += other.countsByTradeType[t][otherId];
+                        symbolId = -1;
+                        continue;
+                    }
+                    if (symbolId >= countsByTradeType[0].length) {
+                        grow(symbolId + 1);
+                    }
+                }
+                countsByTradeType[t][symbolId] += other.countsByTradeType[t][otherId];
+                volumesByTradeType[t][symbolId] += other.volumesByTradeType[t][otherId];
+                notionalsByTradeType[t][symbolId] += other.notionalsByTradeType[t][otherId];
+            }
+            if (symbolId >= 0) {
+                updatePrices(symbolId, other.opens[otherId], other.openTimes[otherId], other.highs[otherId],
+                        other.lows[otherId], other.closes[otherId], other.closeTimes[otherId]);
+            }
         }
+        droppedTrades += other.droppedTrades;
+        updateMostPopular();
+    }
+
+    /**
+     * Returns a copy of the statistics with a symbol table of its own, so that the copy can be
+     * handed to another thread while this instance keeps interning symbols.
+     */
+    public StockStats copy() {
+        StockStats copy = new StockStats(new TickerSymbolTable(Integer.MAX_VALUE),
+                sketches == null ? null : sketches.copy());
+        if (sketches == null) {
+            copy.merge(this);
+        } else {
+            copy.droppedTrades = droppedTrades;
+        }
+        return copy;
+    }
+
+    /**
+     * Resets all statistics, keeping the allocated arrays for reuse.
+     */
+    public void clear() {
+        if (sketches != null) {
+            sketches.clear();
+            droppedTrades = 0;
+            return;
+        }
+        for (int t = 0; t < TRADE_TYPES.length; t++) {
+            Arrays.fill(countsByTradeType[t], 0L);
+            Arrays.fill(volumesByTradeType[t], 0L);
+            Arrays.fill(notionalsByTradeType[t], 0.0);
+        }
+        resetPrices(0, opens.length);
+        Arrays.fill(mostPopularByTradeType, -1);
+        droppedTrades = 0;
+    }
+
+    /**
+     * @return true if no trade has been added since construction or the last {@link #clear()}
+     */
+    public boolean isEmpty() {
+        if (sketches != null) {
+            return sketches.isEmpty() && droppedTrades == 0;
+        }
+        for (int t = 0; t < TRADE_TYPES.length; t++) {
+            if (mostPopularByTradeType[t] >= 0) {
+                return false;
+            }
+        }
+        return droppedTrades == 0;
+    }
+
+    /**
+     * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    public int serializedSize() {
+        int bytes = 1 + 1 + 8;
+        if (sketches != null) {
+            return bytes + sketches.serializedSize();
+        }
+        bytes += 4;
+        int size = Math.min(symbols.size(), opens.length);
+        for (int symbolId = 0; symbolId < size; symbolId++) {
+            if (openTimes[symbolId] != Long.MAX_VALUE) {
+                bytes += SERIAL_SYMBOL_BYTES + symbols.symbol(symbolId).getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the statistics at the buffer's position, naming tickers by symbol rather than by
+     * id, so that they can be read back with any symbol table.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.put(SERIAL_VERSION);
+        out.put((byte) (sketches != null ? 1 : 0));
+        out.putLong(droppedTrades);
+        if (sketches != null) {
+            sketches.writeTo(out);
+            return;
+        }
+        int size = Math.min(symbols.size(), opens.length);
+        int traded = 0;
+        for (int symbolId = 0; symbolId < size; symbolId++) {
+            if (openTimes[symbolId] != Long.MAX_VALUE) {
+                traded++;
+            }
+        }
+        out.putInt(traded);
+        for (int symbolId = 0; symbolId < size; symbolId++) {
+            if (openTimes[symbolId] == Long.MAX_VALUE) {
+                continue;
+            }
+            byte[] symbol = symbols.symbol(symbolId).getBytes(StandardCharsets.UTF_8);
+            out.putShort((short) symbol.length);
+            out.put(symbol);
+            for (int t = 0; t < TRADE_TYPES.length; t++) {
+                out.putLong(countsByTradeType[t][symbolId]);
+                out.putLong(volumesByTradeType[t][symbolId]);
+                out.putDouble(notionalsByTradeType[t][symbolId]);
+            }
+            out.putDouble(opens[symbolId]);
+            out.putDouble(highs[symbolId]);
+            out.putDouble(lows[symbolId]);
+            out.putDouble(closes[symbolId]);
+            out.putLong(openTimes[symbolId]);
+            out.putLong(closeTimes[symbolId]);
+        }
+    }
+
+    /**
+     * Adds statistics written by {@link #writeTo(ByteBuffer)} at the buffer's position to this
+     * instance, as {@link #merge(StockStats)} would.
+     *
+     * @throws IllegalArgumentException if the statistics are corrupt or of the other kind
+     */
+    public void mergeFrom(ByteBuffer in) {
+        byte version = in.get();
+        if (version != SERIAL_VERSION) {
+            throw new IllegalArgumentException("Unsupported stock stats version " + version);
+        }
+        boolean sketched = in.get() != 0;
+        if (sketched != (sketches != null)) {
+            throw new IllegalArgumentException("Cannot merge exact and approximate stock stats");
+        }
+        droppedTrades += in.getLong();
+        if (sketches != null) {
+            sketches.merge(TradeSketches.readFrom(in));
+            return;
+        }
+        int traded = in.getInt();
+        if (traded < 0 || (long) traded * SERIAL_SYMBOL_BYTES > in.remaining()) {
+            throw new IllegalArgumentException("Corrupt stock stats");
+        }
+        for (int i = 0; i < traded; i++) {
+            byte[] symbol = new byte[in.getShort() & 0xFFFF];
+            in.get(symbol);
+            int symbolId = symbols.intern(new String(symbol, StandardCharsets.UTF_8));
+            if (symbolId != TickerSymbolTable.NO_ID && symbolId >= countsByTradeType[0].length) {
+                grow(symbolId + 1);
+            }
+            for (int t = 0; t < TRADE_TYPES.length; t++) {
+                long count = in.getLong();
+                long volume = in.getLong();
+                double notional = in.getDouble();
+                if (symbolId == TickerSymbolTable.NO_ID) {
+                    droppedTrades += count;
+                    continue;
+                }
+                countsByTradeType[t][symbolId] += count;
+                volumesByTradeType[t][symbolId] += volume;
+                notionalsByTradeType[t][symbolId] += notional;
+            }
+            double open = in.getDouble();
+            double high = in.getDouble();
+            double low = in.getDouble();
+            double close = in.getDouble();
+            long openTime = in.getLong();
+            long closeTime = in.getLong();
+            if (symbolId != TickerSymbolTable.NO_ID) {
+                updatePrices(symbolId, open, openTime, high, low, close, closeTime);
+            }
+        }
+        updateMostPopular();
+    }
+
+    private void updateMostPopular() {
+        for (int t = 0; t < TRADE_TYPES.length; t++) {
+            long[] counts = countsByTradeType[t];
+            int mostPopular = -1;
+            for (int id = 0; id < counts.length; id++) {
+                if (counts[id] > 0 && (mostPopular < 0 || counts[id] > counts[mostPopular])) {
+                    mostPopular = id;
+                }
+            }
+            mostPopularByTradeType[t] = mostPopular;
+        }
+    }
+
+    /**
+     * Returns the price and volume statistics of a ticker.
+     *
+     * @param tickerSymbol Ticker symbol
+     * @return the statistics, or null if there were no trades for the ticker or the stats
+     *         are approximate
+     */
+    public TickerSummary getTickerSummary(String tickerSymbol) {
+        if (sketches != null) {
+            return null;
+        }
+        int symbolId = symbols.idOf(tickerSymbol);
+        if (symbolId == TickerSymbolTable.NO_ID || symbolId >= opens.length
+                || openTimes[symbolId] == Long.MAX_VALUE) {
+            return null;
+        }
+        return summarize(symbolId);
+    }
+
+    /**
+     * @return the price and volume statistics of every ticker that was traded, in order of
+     *         first appearance of the ticker
+     */
+    public List<TickerSummary> getTickerSummaries() {
+        List<TickerSummary> summaries = new ArrayList<TickerSummary>();
+        if (sketches != null) {
+            return summaries;
+        }
+        int size = Math.min(symbols.size(), opens.length);
+        for (int symbolId = 0; symbolId < size; symbolId++) {
+            if (openTimes[symbolId] != Long.MAX_VALUE) {
+                summaries.add(summarize(symbolId));
+            }
+        }
+        return summaries;
+    }
+
+    private TickerSummary summarize(int symbolId) {
+        long trades = 0;
+        long volume = 0;
+        double notional = 0;
+        for (int t = 0; t < TRADE_TYPES.length; t++) {
+            trades += countsByTradeType[t][symbolId];
+            volume += volumesByTradeType[t][symbolId];
+            notional += notionalsByTradeType[t][symbolId];
+        }
+        return new TickerSummary(symbols.symbol(symbolId), trades, volume, notional, opens[symbolId],
+                highs[symbolId], lows[symbolId], closes[symbolId]);
+    }
+
+    /**
+     * @return the number of trades counted, not including those dropped
+     */
+    public long getTradeCount() {
+        if (sketches != null) {
+            return sketches.getPrices().getCount();
+        }
+        long trades = 0;
+        int size = Math.min(symbols.size(), opens.length);
+        for (int t = 0; t < TRADE_TYPES.length; t++) {
+            for (int symbolId = 0; symbolId < size; symbolId++) {
+                trades += countsByTradeType[t][symbolId];
+            }
+        }
+        return trades;
+    }
+
+    /**
+     * @return the number of trades ignored because their symbol could not be interned
+     */
+    public long getDroppedTrades() {
+        return droppedTrades;
+    }
+
+    /**
+     * @return the sketches backing approximate stats, or null for exact stats
+     */
+    public TradeSketches getSketches() {
+        return sketches;
     }
 
     public String toString() {
+        if (sketches != null) {
+            return sketches.toString();
+        }
         return String.format(
                 "Most popular stock being bought: %s, %d buys.%n" +
                 "Most popular stock being sold: %s, %d sells.",
@@ -77,12 +570,21 @@ public class StockStats {
                 getMostPopularStock(TradeType.SELL), getMostPopularStockCount(TradeType.SELL));
     }
 
-    private String getMostPopularStock(TradeType tradeType) {
-        return mostPopularByTradeType.get(tradeType);
+    /**
+     * @return the ticker with the most trades of the given type, or null if there were none
+     *         or the stats are approximate
+     */
+    public String getMostPopularStock(TradeType tradeType) {
+        int mostPopular = mostPopularByTradeType[tradeType.ordinal()];
+        return mostPopular < 0 ? null : symbols.symbol(mostPopular);
     }
 
-    private Long getMostPopularStockCount(TradeType tradeType) {
-        String mostPopular = getMostPopularStock(tradeType);
-        return countsByTradeType.get(tradeType).get(mostPopular);
+    /**
+     * @return the number of trades of the given type of {@link #getMostPopularStock(TradeType)},
+     *         or null if there is no such ticker
+     */
+    public Long getMostPopularStockCount(TradeType tradeType) {
+        int mostPopular = mostPopularByTradeType[tradeType.ordinal()];
+        return mostPopular < 0 ? null : countsByTradeType[tradeType.ordinal()][mostPopular];
     }
 }
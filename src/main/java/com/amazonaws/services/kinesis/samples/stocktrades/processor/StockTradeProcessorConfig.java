@@ -0,0 +1,379 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.CompressionDictionary;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TickerSymbolTable;
+import com.amazonaws.services.kinesis.samples.stocktrades.utils.CommandLineOptions;
+
+/**
+ * Settings shared by all stock trade record processors created by a factory.
+ */
+public class StockTradeProcessorConfig {
+
+    // Maximum number of distinct ticker symbols interned by each decoder of exact stats
+    static final int MAX_INTERNED_SYMBOLS = 100000;
+
+    private List<WindowSpec> windows = Collections.singletonList(WindowSpec.tumbling(60000L)); // 1 minute
+    private long allowedLatenessMillis = 5000L;
+    private int sketchTopK = 0; // exact stats
+    private int sketchQuantileK = 200;
+    private long rollupIntervalMillis = 10000L;
+    private long rollupMaxDelayMillis = 120000L;
+    private int parallelThresholdRecords = 0; // disabled
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private long checkpointIntervalMillis = 60000L; // 1 minute
+    private long checkpointRecords = 0; // no limit
+    private long checkpointBytes = 0; // no limit
+    private boolean metricsEnabled = false;
+    private long metricsDumpIntervalMillis = 60000L;
+    private Path stateDirectory = null; // windows are not saved
+    private int dedupWindowIds = 0; // duplicates are counted
+    private long progressIntervalMillis = 60000L;
+    private long lagObjectiveMillis = 0; // none
+    private int pipelineBatches = 0; // batches are processed by the KCL thread
+    private BatchPipeline.FullPolicy pipelineFullPolicy = BatchPipeline.FullPolicy.BLOCK;
+    private int pipelineThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Reads the settings from command line options, keeping the defaults for options that
+     * are not given. Compression dictionaries given as options are registered right away,
+     * since payloads name their dictionary by id.
+     *
+     * @throws IllegalArgumentException if a compression dictionary cannot be read, or the
+     *         policy of full pipelines is unknown
+     */
+    public static StockTradeProcessorConfig fromOptions(CommandLineOptions options) {
+        StockTradeProcessorConfig config = new StockTradeProcessorConfig();
+        if (options.has("windows")) {
+            config.windows(WindowSpec.parseList(options.getString("windows", null)));
+        }
+        config.allowedLatenessMillis(options.getDurationMillis("allowed-lateness", config.allowedLatenessMillis));
+        config.rollupIntervalMillis(options.getDurationMillis("rollup-interval", config.rollupIntervalMillis));
+        config.rollupMaxDelayMillis(options.getDurationMillis("rollup-max-delay", config.rollupMaxDelayMillis));
+        config.parallelThresholdRecords(options.getInt("parallel-threshold", config.parallelThresholdRecords));
+        config.parallelism(options.getInt("parallelism", config.parallelism));
+        config.checkpointIntervalMillis(options.getDurationMillis("checkpoint-interval",
+                config.checkpointIntervalMillis));
+        config.checkpointRecords(options.getLong("checkpoint-records", config.checkpointRecords));
+        config.checkpointBytes(options.getLong("checkpoint-bytes", config.checkpointBytes));
+        config.metrics(options.getBoolean("metrics", config.metricsEnabled),
+                options.getDurationMillis("metrics-interval", config.metricsDumpIntervalMillis));
+        if ("sketch".equals(options.getString("stats", "exact"))) {
+            config.sketches(options.getInt("top-k", 64), options.getInt("quantile-k", config.sketchQuantileK));
+        }
+        if (options.has("state-dir")) {
+            config.stateDirectory(Paths.get(options.getString("state-dir", null)));
+        }
+        config.dedupWindowIds(options.getInt("dedup-window", config.dedupWindowIds));
+        config.progressIntervalMillis(options.getDurationMillis("progress-interval", config.progressIntervalMillis));
+        config.lagObjectiveMillis(options.getDurationMillis("lag-objective", config.lagObjectiveMillis));
+        if (options.has("pipeline")) {
+            String fullPolicy = options.getString("pipeline-full", "block");
+            BatchPipeline.FullPolicy policy;
+            switch (fullPolicy) {
+                case "block":
+                    policy = BatchPipeline.FullPolicy.BLOCK;
+                    break;
+                case "shed":
+                    policy = BatchPipeline.FullPolicy.SHED;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown policy of full pipelines " + fullPolicy);
+            }
+            config.pipeline(options.getInt("pipeline", config.pipelineBatches), policy,
+                    options.getInt("pipeline-threads", config.pipelineThreads));
+        }
+        if (options.has("compression-dictionaries")) {
+            for (String file : options.getString("compression-dictionaries", "").split(",")) {
+                try {
+                    CompressionDictionary.register(CompressionDictionary.load(Paths.get(file)));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Cannot read compression dictionary " + file, e);
+                }
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @return command line options understood by {@link #fromOptions(CommandLineOptions)}
+     */
+    public static String usage() {
+        return "[--windows=<window>[,<window>...]] [--allowed-lateness=<duration>]"
+                + " [--stats=exact|sketch [--top-k=<counters>] [--quantile-k=<k>]]"
+                + " [--rollup-interval=<duration>] [--rollup-max-delay=<duration>]"
+                + " [--parallel-threshold=<records> [--parallelism=<threads>]]"
+                + " [--checkpoint-interval=<duration>] [--checkpoint-records=<n>] [--checkpoint-bytes=<n>]"
+                + " [--metrics [--metrics-interval=<duration>]] [--state-dir=<directory>]"
+                + " [--dedup-window=<ids>] [--progress-interval=<duration>] [--lag-objective=<duration>]"
+                + " [--pipeline=<batches> [--pipeline-full=block|shed] [--pipeline-threads=<threads>]]"
+                + " [--compression-dictionaries=<file>[,<file>...]]";
+    }
+
+    public List<WindowSpec> windows() {
+        return windows;
+    }
+
+    /**
+     * Sets the windows over which stats are reported, such as 10s or 1m/10s.
+     */
+    public StockTradeProcessorConfig windows(List<WindowSpec> windows) {
+        this.windows = windows;
+        return this;
+    }
+
+    public long allowedLatenessMillis() {
+        return allowedLatenessMillis;
+    }
+
+    /**
+     * Sets how far behind the latest event time a trade may arrive and still be counted.
+     */
+    public StockTradeProcessorConfig allowedLatenessMillis(long allowedLatenessMillis) {
+        this.allowedLatenessMillis = allowedLatenessMillis;
+        return this;
+    }
+
+    public long rollupIntervalMillis() {
+        return rollupIntervalMillis;
+    }
+
+    /**
+     * Sets how often the stats of all shards are rolled up into worker wide stats.
+     */
+    public StockTradeProcessorConfig rollupIntervalMillis(long rollupIntervalMillis) {
+        this.rollupIntervalMillis = rollupIntervalMillis;
+        return this;
+    }
+
+    public long rollupMaxDelayMillis() {
+        return rollupMaxDelayMillis;
+    }
+
+    /**
+     * Sets how long worker wide stats of a window may wait for lagging shards. It should be
+     * well above the checkpoint interval, since shard stats only count once checkpointed.
+     */
+    public StockTradeProcessorConfig rollupMaxDelayMillis(long rollupMaxDelayMillis) {
+        this.rollupMaxDelayMillis = rollupMaxDelayMillis;
+        return this;
+    }
+
+    public int parallelThresholdRecords() {
+        return parallelThresholdRecords;
+    }
+
+    /**
+     * Sets the smallest batch of records that is decoded and aggregated in parallel, or 0 to
+     * process every batch on the calling thread.
+     */
+    public StockTradeProcessorConfig parallelThresholdRecords(int parallelThresholdRecords) {
+        this.parallelThresholdRecords = parallelThresholdRecords;
+        return this;
+    }
+
+    public int parallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads shared by all shards to process large batches.
+     */
+    public StockTradeProcessorConfig parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public long checkpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    /**
+     * Sets the time after which a shard checkpoints, or 0 for no limit.
+     */
+    public StockTradeProcessorConfig checkpointIntervalMillis(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        return this;
+    }
+
+    public long checkpointRecords() {
+        return checkpointRecords;
+    }
+
+    /**
+     * Sets the number of records after which a shard checkpoints, or 0 for no limit.
+     */
+    public StockTradeProcessorConfig checkpointRecords(long checkpointRecords) {
+        this.checkpointRecords = checkpointRecords;
+        return this;
+    }
+
+    public long checkpointBytes() {
+        return checkpointBytes;
+    }
+
+    /**
+     * Sets the number of payload bytes after which a shard checkpoints, or 0 for no limit.
+     */
+    public StockTradeProcessorConfig checkpointBytes(long checkpointBytes) {
+        this.checkpointBytes = checkpointBytes;
+        return this;
+    }
+
+    public boolean metricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public long metricsDumpIntervalMillis() {
+        return metricsDumpIntervalMillis;
+    }
+
+    /**
+     * Enables metrics, exposed through JMX and dumped to the log at the given interval.
+     *
+     * @param enabled Whether metrics are collected at all
+     * @param dumpIntervalMillis Interval between dumps, or 0 for JMX only
+     */
+    public StockTradeProcessorConfig metrics(boolean enabled, long dumpIntervalMillis) {
+        this.metricsEnabled = enabled;
+        this.metricsDumpIntervalMillis = dumpIntervalMillis;
+        return this;
+    }
+
+    public Path stateDirectory() {
+        return stateDirectory;
+    }
+
+    /**
+     * Sets the local directory where the windowed stats of each shard are saved at every
+     * checkpoint, see {@link ShardStateStore}, or null to start windows over after a restart.
+     */
+    public StockTradeProcessorConfig stateDirectory(Path stateDirectory) {
+        this.stateDirectory = stateDirectory;
+        return this;
+    }
+
+    public int dedupWindowIds() {
+        return dedupWindowIds;
+    }
+
+    /**
+     * Sets the number of recent trade ids checked for duplicates by each shard, see
+     * {@link TradeIdDeduplicator}, or 0 to count every trade. Shards dropping duplicates
+     * process every batch on the calling thread, whatever the parallel threshold.
+     */
+    public StockTradeProcessorConfig dedupWindowIds(int dedupWindowIds) {
+        this.dedupWindowIds = dedupWindowIds;
+        return this;
+    }
+
+    public long progressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    /**
+     * Sets how often the throughput and lag of the shards are reported, see {@link ProgressReport},
+     * or 0 to not report them.
+     */
+    public StockTradeProcessorConfig progressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    public long lagObjectiveMillis() {
+        return lagObjectiveMillis;
+    }
+
+    /**
+     * Sets how far behind the tip of their shard batches should be at most, reported along
+     * with the progress, or 0 for no objective.
+     */
+    public StockTradeProcessorConfig lagObjectiveMillis(long lagObjectiveMillis) {
+        this.lagObjectiveMillis = lagObjectiveMillis;
+        return this;
+    }
+
+    public int pipelineBatches() {
+        return pipelineBatches;
+    }
+
+    public BatchPipeline.FullPolicy pipelineFullPolicy() {
+        return pipelineFullPolicy;
+    }
+
+    public int pipelineThreads() {
+        return pipelineThreads;
+    }
+
+    /**
+     * Hands the batches of each shard over to an aggregation stage running on a pool of its
+     * own, see {@link BatchPipeline}, so that the KCL thread can fetch the next batch meanwhile.
+     *
+     * @param batches Number of batches of a shard waiting for the stage at most, or 0 to
+     *        process every batch on the KCL thread
+     * @param fullPolicy What to do with a batch when that many are waiting. Shed batches are
+     *        never counted, as later checkpoints move past them.
+     * @param threads Number of threads running the stage for all shards
+     */
+    public StockTradeProcessorConfig pipeline(int batches, BatchPipeline.FullPolicy fullPolicy, int threads) {
+        this.pipelineBatches = batches;
+        this.pipelineFullPolicy = fullPolicy;
+        this.pipelineThreads = threads;
+        return this;
+    }
+
+    public boolean sketched() {
+        return sketchTopK > 0;
+    }
+
+    /**
+     * Switches to approximate stats of fixed size, see {@link TradeSketches}.
+     *
+     * @param topK Number of counters used to find the most popular stocks of each trade type
+     * @param quantileK Accuracy parameter of the price and quantity distributions
+     */
+    public StockTradeProcessorConfig sketches(int topK, int quantileK) {
+        this.sketchTopK = topK;
+        this.sketchQuantileK = quantileK;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of distinct ticker symbols interned by each decoder. Sketches
+     *         only track the top k tickers, so they intern no more than that; other symbols are
+     *         decoded into new Strings.
+     */
+    public int maxInternedSymbols() {
+        return sketched() ? sketchTopK : MAX_INTERNED_SYMBOLS;
+    }
+
+    /**
+     * Creates empty stats of the configured kind.
+     *
+     * @param symbols Symbol table of the processor
+     */
+    public StockStats newStockStats(TickerSymbolTable symbols) {
+        return sketched() ? new StockStats(symbols, sketchTopK, sketchQuantileK) : new StockStats(symbols);
+    }
+
+}
@@ -15,12 +15,19 @@
 
 package com.amazonaws.services.kinesis.samples.stocktrades.processor;
 
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import software.amazon.kinesis.exceptions.InvalidStateException;
 import software.amazon.kinesis.exceptions.ShutdownException;
-import software.amazon.kinesis.exceptions.ThrottlingException;
 import software.amazon.kinesis.lifecycle.events.InitializationInput;
 import software.amazon.kinesis.lifecycle.events.LeaseLostInput;
 import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
@@ -28,8 +35,14 @@ import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
 import software.amazon.kinesis.lifecycle.events.ShardEndedInput;
 import software.amazon.kinesis.lifecycle.events.ShutdownRequestedInput;
 import software.amazon.kinesis.processor.ShardRecordProcessor;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
 
-import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Counter;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Histogram;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Metrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.NoOpMetrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TickerSymbolTable;
 import software.amazon.kinesis.retrieval.KinesisClientRecord;
 
 /**
@@ -42,16 +55,139 @@ public class StockTradeRecordProcessor implements ShardRecordProcessor {
 
     private String kinesisShardId;
 
-    // Reporting interval
-    private static final long REPORTING_INTERVAL_MILLIS = 60000L; // 1 minute
-    private long nextReportingTimeInMillis;
+    // Number of times a throttled checkpoint is retried
+    private static final int MAX_CHECKPOINT_RETRIES = 5;
+
+    // Decides when to checkpoint, and checkpoints on the checkpoint executor
+    private final StockTradeProcessorConfig config;
+    private final ScheduledExecutorService checkpointExecutor;
+    private CheckpointScheduler checkpointScheduler;
+
+    // Shared by the decoder and the stats, so that symbols are looked up once per record
+    private final TickerSymbolTable symbols;
+
+    // Aggregates stats for stock trades over windows of event time
+    private final WindowedStockStats windowedStats;
+
+    // Reused for every record, so that decoding does not allocate
+    private final StockTradeView tradeView;
+
+    // Rolls the stats of this shard up with those of the other shards of the worker, if any
+    private final StatsRollupHub rollupHub;
+    private StatsRollupHub.ShardCell rollupCell;
+
+    // Processes large batches in parallel, if enabled
+    private final ParallelBatchAggregator batchAggregator;
+
+    // Drops trades whose id was already seen, if enabled
+    private final TradeIdDeduplicator deduplicator;
+
+    // Saves the windowed stats with every checkpoint, if enabled
+    private ShardStateStore stateStore;
+
+    // Reports the throughput and lag of the shard with the others of the worker, if enabled
+    private final ProgressReport progressReport;
+    private ProgressReport.ShardProgress progress;
 
-    // Checkpointing interval
-    private static final long CHECKPOINT_INTERVAL_MILLIS = 60000L; // 1 minute
-    private long nextCheckpointTimeInMillis;
+    // Hands batches over to an aggregation stage off the KCL thread, if enabled. The stage then
+    // does all of the processing below, checkpoints included, one batch at a time.
+    private final BatchPipeline<DeliveredBatch> pipeline;
+    private final AtomicLong shedRecords = new AtomicLong();
+
+    // Shed batches are logged once in SHED_LOG_INTERVAL
+    private static final int SHED_LOG_INTERVAL = 1000;
+
+    // Decoding is timed for one record in DECODE_SAMPLE_MASK + 1, as timing costs about as much
+    private static final int DECODE_SAMPLE_MASK = 63;
+
+    // Metrics of this shard, named after it once it is known
+    private final Metrics metrics;
+    private final boolean timed;
+    private String metricsPrefix;
+    private Counter recordsCounter;
+    private Counter bytesCounter;
+    private Histogram decodeNanos;
+    private Histogram batchMicros;
+    private volatile long millisBehindLatest;
+    private int decodeSample;
+
+    // Latency of the stages a trade goes through: from its producer to Kinesis, for trades
+    // carrying the time they were produced, from Kinesis to this processor, and from the
+    // delivery of its batch to its aggregation, sampled like decoding
+    private Histogram produceToKinesisMillis;
+    private Histogram kinesisToConsumerMillis;
+    private Histogram decodeToAggregateMicros;
+    private long batchDeliveredMillis;
+    private long batchDeliveredNanos;
+
+    /**
+     * Creates a processor reporting stats for one minute tumbling windows.
+     */
+    public StockTradeRecordProcessor() {
+        this(new StockTradeProcessorConfig());
+    }
+
+    /**
+     * Creates a processor reporting its own stats, independently of other shards.
+     */
+    public StockTradeRecordProcessor(StockTradeProcessorConfig config) {
+        this(config, null, null, CheckpointScheduler.newExecutor(), NoOpMetrics.INSTANCE);
+    }
+
+    /**
+     * Creates a processor publishing its stats to a hub shared with the other shards of the worker.
+     *
+     * @param config Processor settings
+     * @param rollupHub Hub rolling up the stats of all shards, or null to report them per shard
+     * @param batchPool Pool processing batches above the parallel threshold, or null to process
+     *        every batch on the calling thread
+     * @param checkpointExecutor Executor running the checkpoints, see {@link CheckpointScheduler}
+     * @param metrics Receives the metrics of the shard
+     */
+    public StockTradeRecordProcessor(StockTradeProcessorConfig config, StatsRollupHub rollupHub,
+                                     ForkJoinPool batchPool, ScheduledExecutorService checkpointExecutor,
+                                     Metrics metrics) {
+        this(config, rollupHub, batchPool, checkpointExecutor, metrics, null, null);
+    }
 
-    // Aggregates stats for stock trades
-    private StockStats stockStats = new StockStats();
+    /**
+     * Creates a processor publishing its stats to a hub, and its progress to a report, shared
+     * with the other shards of the worker.
+     *
+     * @param config Processor settings
+     * @param rollupHub Hub rolling up the stats of all shards, or null to report them per shard
+     * @param batchPool Pool processing batches above the parallel threshold, or null to process
+     *        every batch on the calling thread
+     * @param checkpointExecutor Executor running the checkpoints, see {@link CheckpointScheduler}
+     * @param metrics Receives the metrics of the shard
+     * @param progressReport Report of the throughput and lag of all shards, or null
+     * @param aggregationExecutor Executor running the aggregation stage of all shards, used when
+     *        the config enables it, see {@link StockTradeProcessorConfig#pipelineBatches()}
+     */
+    public StockTradeRecordProcessor(StockTradeProcessorConfig config, StatsRollupHub rollupHub,
+                                     ForkJoinPool batchPool, ScheduledExecutorService checkpointExecutor,
+                                     Metrics metrics, ProgressReport progressReport,
+                                     Executor aggregationExecutor) {
+        this.metrics = metrics;
+        this.progressReport = progressReport;
+        this.timed = metrics.isEnabled();
+        this.config = config;
+        this.rollupHub = rollupHub;
+        this.checkpointExecutor = checkpointExecutor;
+        symbols = new TickerSymbolTable(config.maxInternedSymbols());
+        tradeView = new StockTradeView(symbols);
+        windowedStats = new WindowedStockStats(config.windows(), config.allowedLatenessMillis(),
+                () -> config.newStockStats(symbols), this::reportStats);
+        deduplicator = config.dedupWindowIds() > 0 ? new TradeIdDeduplicator(config.dedupWindowIds()) : null;
+        // ids must be checked in order of arrival, so batches are not split
+        batchAggregator = batchPool == null || deduplicator != null ? null
+                : new ParallelBatchAggregator(batchPool, config.parallelThresholdRecords(), windowedStats,
+                        config::newStockStats, config.maxInternedSymbols());
+        pipeline = config.pipelineBatches() <= 0 || aggregationExecutor == null ? null
+                : new BatchPipeline<DeliveredBatch>(config.pipelineBatches(),
+                        batch -> processBatch(batch.input, batch.deliveredMillis, batch.deliveredNanos),
+                        aggregationExecutor, config.pipelineFullPolicy());
+    }
 
     @Override
     public void initialize(InitializationInput initializationInput) {
@@ -59,26 +195,137 @@ public class StockTradeRecordProcessor implements ShardRecordProcessor {
         log.info("Initializing record processor for shard: " + kinesisShardId);
         log.info("Initializing @ Sequence: " + initializationInput.extendedSequenceNumber().toString());
 
-        nextReportingTimeInMillis = System.currentTimeMillis() + REPORTING_INTERVAL_MILLIS;
-        nextCheckpointTimeInMillis = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MILLIS;
+        metricsPrefix = "shard." + kinesisShardId + ".";
+        recordsCounter = metrics.counter(metricsPrefix + "records");
+        bytesCounter = metrics.counter(metricsPrefix + "bytes");
+        decodeNanos = metrics.histogram(metricsPrefix + "decodeNanos");
+        batchMicros = metrics.histogram(metricsPrefix + "batchMicros");
+        produceToKinesisMillis = metrics.histogram(metricsPrefix + "produceToKinesisMillis");
+        kinesisToConsumerMillis = metrics.histogram(metricsPrefix + "kinesisToConsumerMillis");
+        decodeToAggregateMicros = metrics.histogram(metricsPrefix + "decodeToAggregateMicros");
+        metrics.gauge(metricsPrefix + "millisBehindLatest", () -> millisBehindLatest);
+        metrics.gauge(metricsPrefix + "lateTrades", windowedStats::getLateTrades);
+        if (deduplicator != null) {
+            metrics.gauge(metricsPrefix + "duplicateTrades", deduplicator::getDuplicates);
+            metrics.gauge(metricsPrefix + "uncheckedTradeIds", deduplicator::getUnchecked);
+        }
+        if (pipeline != null) {
+            metrics.gauge(metricsPrefix + "pipelineQueuedBatches", pipeline::getQueuedBatches);
+            metrics.gauge(metricsPrefix + "pipelineShedBatches", pipeline::getShedBatches);
+            metrics.gauge(metricsPrefix + "pipelineShedRecords", shedRecords::get);
+            metrics.gauge(metricsPrefix + "pipelineBlockedMillis", pipeline::getBlockedMillis);
+        }
+
+        checkpointScheduler = new CheckpointScheduler(kinesisShardId, config.checkpointRecords(),
+                config.checkpointBytes(), config.checkpointIntervalMillis(), MAX_CHECKPOINT_RETRIES,
+                checkpointExecutor, metrics.histogram(metricsPrefix + "checkpointMillis"));
+        metrics.gauge(metricsPrefix + "checkpointFailures", checkpointScheduler::getFailedCheckpoints);
+        metrics.gauge(metricsPrefix + "checkpointThrottled", checkpointScheduler::getThrottledAttempts);
+        if (rollupHub != null) {
+            rollupCell = rollupHub.register(kinesisShardId);
+        }
+        if (progressReport != null) {
+            progress = progressReport.register(kinesisShardId);
+        }
+        if (config.stateDirectory() != null) {
+            restoreState(initializationInput);
+        }
+    }
+
+    /**
+     * Restores the windows saved with the checkpoint the shard resumes from, if any.
+     */
+    private void restoreState(InitializationInput initializationInput) {
+        try {
+            stateStore = new ShardStateStore(config.stateDirectory(), kinesisShardId);
+        } catch (IOException e) {
+            log.error("Cannot open the state directory " + config.stateDirectory() + ", windows are not saved.", e);
+            return;
+        }
+        ExtendedSequenceNumber position = initializationInput.extendedSequenceNumber();
+        long startNanos = System.nanoTime();
+        boolean restored = stateStore.restore(windowedStats, deduplicator, position.sequenceNumber(),
+                position.subSequenceNumber());
+        if (restored) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            metrics.histogram(metricsPrefix + "restoreMillis").record(millis);
+            log.info("Restored the windows of shard " + kinesisShardId + " in " + millis + " ms");
+        }
     }
 
     @Override
     public void processRecords(ProcessRecordsInput processRecordsInput) {
+        long deliveredMillis = timed ? System.currentTimeMillis() : 0L;
+        long deliveredNanos = timed ? System.nanoTime() : 0L;
+        if (pipeline == null) {
+            processBatch(processRecordsInput, deliveredMillis, deliveredNanos);
+            return;
+        }
+        boolean submitted;
+        try {
+            submitted = pipeline.submit(new DeliveredBatch(processRecordsInput, deliveredMillis, deliveredNanos));
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting to hand a batch of shard " + kinesisShardId + " over, dropping it.");
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (!submitted) {
+            long shed = shedRecords.addAndGet(processRecordsInput.records().size());
+            long batches = pipeline.getShedBatches();
+            if (batches % SHED_LOG_INTERVAL == 1) {
+                log.warn("Aggregation stage of shard " + kinesisShardId + " is full, shed " + batches
+                        + " batch(es) of " + shed + " record(s) so far");
+            }
+        }
+    }
+
+    /**
+     * Processes a batch, on the KCL thread or on the aggregation stage.
+     *
+     * @param deliveredMillis Time the batch was delivered to the processor, if timed
+     * @param deliveredNanos Same as above, as returned by {@link System#nanoTime()}
+     */
+    private void processBatch(ProcessRecordsInput processRecordsInput, long deliveredMillis, long deliveredNanos) {
          try {
-            log.info("Processing " + processRecordsInput.records().size() + " record(s)");
-            processRecordsInput.records().forEach(r -> processRecord(r));
-            // If it is time to report stats as per the reporting interval, report stats
-            if (System.currentTimeMillis() > nextReportingTimeInMillis) {
-                reportStats();
-                resetStats();
-                nextReportingTimeInMillis = System.currentTimeMillis() + REPORTING_INTERVAL_MILLIS;
+            long startNanos = timed ? System.nanoTime() : 0L;
+            batchDeliveredMillis = deliveredMillis;
+            batchDeliveredNanos = deliveredNanos;
+            if (log.isDebugEnabled()) {
+                log.debug("Processing " + processRecordsInput.records().size() + " record(s)");
+            }
+            // Windows are reported from within processRecord, as the event time passes their end
+            if (batchAggregator != null && batchAggregator.accepts(processRecordsInput.records())) {
+                batchAggregator.process(processRecordsInput.records(), timed ? produceToKinesisMillis : null);
+                if (timed) {
+                    // the trades of a parallel batch are all aggregated at once
+                    decodeToAggregateMicros.record((System.nanoTime() - batchDeliveredNanos) / 1000L);
+                    for (KinesisClientRecord record : processRecordsInput.records()) {
+                        kinesisToConsumerMillis.record(batchDeliveredMillis - eventTimeMillis(record));
+                    }
+                }
+            } else {
+                for (KinesisClientRecord record : processRecordsInput.records()) {
+                    processRecord(record);
+                }
             }
 
-            // Checkpoint once every checkpoint interval
-            if (System.currentTimeMillis() > nextCheckpointTimeInMillis) {
+            // Checkpoint at the last record of the batch once a record, byte or time budget is used up
+            long bytes = checkpointScheduler.recordsProcessed(processRecordsInput.records());
+            if (checkpointScheduler.isDue()) {
                 checkpoint(processRecordsInput.checkpointer());
-                nextCheckpointTimeInMillis = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MILLIS;
+            }
+
+            recordsCounter.add(processRecordsInput.records().size());
+            bytesCounter.add(bytes);
+            if (processRecordsInput.millisBehindLatest() != null) {
+                millisBehindLatest = processRecordsInput.millisBehindLatest();
+            }
+            if (progress != null) {
+                progress.batchProcessed(processRecordsInput.records().size(), bytes,
+                        processRecordsInput.millisBehindLatest());
+            }
+            if (timed) {
+                batchMicros.record((System.nanoTime() - startNanos) / 1000L);
             }
         } catch (Throwable t) {
             log.error("Caught throwable while processing records. Aborting.");
@@ -87,21 +334,80 @@ public class StockTradeRecordProcessor implements ShardRecordProcessor {
 
     }
 
-    private void reportStats() {
-        // TODO: Implement method
+    private void reportStats(WindowSpec window, long startMillis, long endMillis, StockStats stats) {
+        if (rollupCell != null) {
+            log.info("Publishing shard " + kinesisShardId + " stats for " + window + " window ending at "
+                    + Instant.ofEpochMilli(endMillis));
+            rollupCell.publish(window, startMillis, endMillis, stats);
+            return;
+        }
+        System.out.println("****** Shard " + kinesisShardId + " stats for " + window + " window ["
+                + Instant.ofEpochMilli(startMillis) + ", " + Instant.ofEpochMilli(endMillis) + ") ******\n" +
+                stats + "\n" +
+                "****************************************************************\n");
     }
 
-    private void resetStats() {
-        // TODO: Implement method
+    private void processRecord(KinesisClientRecord record) {
+        boolean sampled = timed && (++decodeSample & DECODE_SAMPLE_MASK) == 0;
+        try {
+            // The payload may be JSON or binary, told apart by its first byte. It is decoded in place.
+            if (sampled) {
+                long startNanos = System.nanoTime();
+                tradeView.decode(record.data());
+                decodeNanos.record(System.nanoTime() - startNanos);
+            } else {
+                tradeView.decode(record.data());
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("Skipping record. Unable to parse record into StockTrade. Partition Key: "
+                    + record.partitionKey() + ". " + e.getMessage());
+            return;
+        }
+        if (deduplicator != null && !deduplicator.accept(tradeView.getId())) {
+            if (log.isDebugEnabled()) {
+                log.debug("Dropping duplicate trade " + tradeView.getId() + " at " + record.sequenceNumber());
+            }
+            return;
+        }
+        long eventTimeMillis = eventTimeMillis(record);
+        windowedStats.addStockTrade(eventTimeMillis, tradeView);
+        if (timed) {
+            if (tradeView.getProducedMillis() > 0) {
+                // clocks of producers and Kinesis may disagree, negative latencies count as 0
+                produceToKinesisMillis.record(eventTimeMillis - tradeView.getProducedMillis());
+            }
+            kinesisToConsumerMillis.record(batchDeliveredMillis - eventTimeMillis);
+            if (sampled) {
+                decodeToAggregateMicros.record((System.nanoTime() - batchDeliveredNanos) / 1000L);
+            }
+        }
     }
 
-    private void processRecord(KinesisClientRecord record) {
-        // TODO: Implement method
+    /**
+     * Returns the event time of a record, which is the time Kinesis accepted it.
+     */
+    static long eventTimeMillis(KinesisClientRecord record) {
+        Instant arrival = record.approximateArrivalTimestamp();
+        return arrival == null ? System.currentTimeMillis() : arrival.toEpochMilli();
     }
 
     @Override
     public void leaseLost(LeaseLostInput leaseLostInput) {
         log.info("Lost lease, so terminating.");
+        // the new owner of the lease processes the batches still waiting again
+        stopPipeline(false);
+        unregisterProgress();
+        if (checkpointScheduler != null) {
+            checkpointScheduler.cancel();
+            // a checkpoint already saving may still succeed and commit its windows, which must
+            // reach the hub before the retraction unregisters the shard
+            checkpointScheduler.awaitInFlight();
+            metrics.remove(metricsPrefix);
+        }
+        if (rollupCell != null) {
+            // the new owner of the lease processes again everything after the last checkpoint
+            rollupCell.retract();
+        }
     }
 
     @Override
@@ -109,32 +415,119 @@ public class StockTradeRecordProcessor implements ShardRecordProcessor {
         try {
             // Important to checkpoint after reaching end of shard, so we can start processing data from child shards.
             log.info("Reached shard end checkpointing.");
+            stopPipeline(true);
+            unregisterProgress();
+            windowedStats.flush();
+            // a checkpoint at an earlier record must not land after the shard end checkpoint
+            checkpointScheduler.awaitInFlight();
             shardEndedInput.checkpointer().checkpoint();
+            if (rollupCell != null) {
+                rollupCell.finish();
+            }
+            if (stateStore != null) {
+                stateStore.delete();
+            }
+            metrics.remove(metricsPrefix);
         } catch (ShutdownException | InvalidStateException e) {
             log.error("Exception while checkpointing at shard end. Giving up.", e);
+            if (rollupCell != null) {
+                rollupCell.retract();
+            }
         }
     }
 
     @Override
     public void shutdownRequested(ShutdownRequestedInput shutdownRequestedInput) {
         log.info("Scheduler is shutting down, checkpointing.");
-        checkpoint(shutdownRequestedInput.checkpointer());
+        stopPipeline(true);
+        unregisterProgress();
+        windowedStats.flush();
+        boolean checkpointed = checkpointScheduler.checkpointNow(shutdownRequestedInput.checkpointer());
+        if (checkpointed && stateStore != null) {
+            // the flushed windows were reported, there is nothing left to restore
+            stateStore.delete();
+        }
+        metrics.remove(metricsPrefix);
+        if (rollupCell != null) {
+            if (checkpointed) {
+                rollupCell.finish();
+            } else {
+                rollupCell.retract();
+            }
+        }
+
+    }
 
+    /**
+     * Stops the aggregation stage, if any, so that the shard is no longer processed from another
+     * thread.
+     *
+     * @param drain Whether the batches waiting for the stage are processed first, or discarded
+     */
+    private void stopPipeline(boolean drain) {
+        if (pipeline == null) {
+            return;
+        }
+        try {
+            if (drain) {
+                pipeline.awaitDrained();
+            }
+            pipeline.stop();
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while stopping the aggregation stage of shard " + kinesisShardId);
+            Thread.currentThread().interrupt();
+        }
     }
 
+    private void unregisterProgress() {
+        if (progress != null) {
+            progress.unregister();
+        }
+    }
+
+    /**
+     * Starts a checkpoint in the background. Once saved, it also commits the windows published
+     * so far to the rollup hub, since they no longer need to be processed again, and replaces
+     * the saved state with the one captured here.
+     */
     private void checkpoint(RecordProcessorCheckpointer checkpointer) {
         log.info("Checkpointing shard " + kinesisShardId);
-        try {
-            checkpointer.checkpoint();
-        } catch (ShutdownException se) {
-            // Ignore checkpoint if the processor instance has been shutdown (fail over).
-            log.info("Caught shutdown exception, skipping checkpoint.", se);
-        } catch (ThrottlingException e) {
-            // Skip checkpoint when throttled. In practice, consider a backoff and retry policy.
-            log.error("Caught throttling exception, skipping checkpoint.", e);
-        } catch (InvalidStateException e) {
-            // This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
-            log.error("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.", e);
+        Runnable commitWindows = null;
+        if (rollupCell != null) {
+            StatsRollupHub.ShardCell cell = rollupCell;
+            long mark = cell.mark();
+            long watermarkMillis = windowedStats.getWatermarkMillis();
+            commitWindows = () -> cell.commit(mark, watermarkMillis);
+        }
+        if (stateStore == null) {
+            checkpointScheduler.checkpointIfDue(checkpointer, commitWindows);
+            return;
+        }
+        // the batch is fully aggregated, so the stats reflect exactly the position checkpointed
+        stateStore.capture(windowedStats, deduplicator, checkpointScheduler.getSequenceNumber(),
+                checkpointScheduler.getSubSequenceNumber());
+        ShardStateStore store = stateStore;
+        Runnable onCheckpointed = commitWindows;
+        checkpointScheduler.checkpointIfDue(checkpointer, store::stage, () -> {
+            store.commit();
+            if (onCheckpointed != null) {
+                onCheckpointed.run();
+            }
+        });
+    }
+
+    /**
+     * A batch waiting for the aggregation stage, with the time it was delivered.
+     */
+    private static class DeliveredBatch {
+        private final ProcessRecordsInput input;
+        private final long deliveredMillis;
+        private final long deliveredNanos;
+
+        DeliveredBatch(ProcessRecordsInput input, long deliveredMillis, long deliveredNanos) {
+            this.input = input;
+            this.deliveredMillis = deliveredMillis;
+            this.deliveredNanos = deliveredNanos;
         }
     }
 
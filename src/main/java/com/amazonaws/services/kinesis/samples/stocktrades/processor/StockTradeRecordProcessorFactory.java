@@ -30,17 +30,194 @@ package com.amazonaws.services.kinesis.samples.stocktrades.processor;
  */
 
 
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.MetricRegistry;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Metrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.NoOpMetrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.sink.StatsPublisher;
+
 import software.amazon.kinesis.processor.ShardRecordProcessor;
 import software.amazon.kinesis.processor.ShardRecordProcessorFactory;
 
 /**
- * Used to create new stock trade record processors.
+ * Used to create new stock trade record processors. The processors created by a factory
+ * share a {@link StatsRollupHub}, which reports stats across all the shards of the worker, a
+ * {@link ProgressReport} of their throughput and lag, and
+ * the pool that processes large batches in parallel when enabled, the thread that saves
+ * checkpoints and the metrics. When several streams are processed by the same JVM, see
+ * {@link MultiStreamProcessor}, each stream has its own factory and hub, while the threads and
+ * metrics are shared by all the factories and owned by the caller. The pool running the
+ * aggregation stage of the processors, when batches are handed over to one, always belongs
+ * to the factory. Besides being printed, the stats reported can be published to sinks such as
+ * files or CloudWatch, see {@link StatsPublisher}.
  *
  */
-public class StockTradeRecordProcessorFactory implements ShardRecordProcessorFactory {
+public class StockTradeRecordProcessorFactory implements ShardRecordProcessorFactory, AutoCloseable {
+
+    private static final String METRICS_MBEAN_NAME =
+            "com.amazonaws.services.kinesis.samples.stocktrades:type=StockTradesProcessor";
+
+    private final StockTradeProcessorConfig config;
+    private final String streamName;
+    private final StatsRollupHub rollupHub;
+    private final ProgressReport progressReport;
+    private final ForkJoinPool batchPool;
+    private final ScheduledExecutorService checkpointExecutor;
+    private final ExecutorService aggregationExecutor;
+    private final MetricRegistry metricRegistry;
+    private final Metrics metrics;
+    private final StatsPublisher statsPublisher;
+    // False when the pools and metrics are shared with other factories
+    private final boolean ownsResources;
+
+    public StockTradeRecordProcessorFactory() {
+        this(new StockTradeProcessorConfig());
+    }
+
+    public StockTradeRecordProcessorFactory(StockTradeProcessorConfig config) {
+        this(config, (StatsPublisher) null);
+    }
+
+    /**
+     * Creates a factory for a single stream, owning its threads and metrics.
+     *
+     * @param config Processor settings
+     * @param statsPublisher Publishes the stats reported to sinks, or null to only print them.
+     *        Closed with the factory.
+     */
+    public StockTradeRecordProcessorFactory(StockTradeProcessorConfig config, StatsPublisher statsPublisher) {
+        this.config = config;
+        this.streamName = null;
+        this.rollupHub = new StatsRollupHub(this::reportStats, config.rollupIntervalMillis(),
+                config.rollupMaxDelayMillis());
+        this.progressReport = newProgressReport(config, null);
+        this.batchPool = config.parallelThresholdRecords() > 0 ? new ForkJoinPool(config.parallelism()) : null;
+        this.checkpointExecutor = CheckpointScheduler.newExecutor();
+        this.aggregationExecutor = newAggregationExecutor(config);
+        this.metricRegistry = config.metricsEnabled()
+                ? MetricRegistry.start(METRICS_MBEAN_NAME, config.metricsDumpIntervalMillis()) : null;
+        this.metrics = metricRegistry != null ? metricRegistry : NoOpMetrics.INSTANCE;
+        this.statsPublisher = statsPublisher;
+        if (statsPublisher != null) {
+            statsPublisher.registerMetrics(metrics);
+        }
+        this.ownsResources = true;
+    }
+
+    /**
+     * Creates a factory for one of several streams, whose processors use threads and metrics
+     * shared with the other streams. Closing the factory leaves them running.
+     *
+     * @param config Processor settings of the stream
+     * @param streamName Stream processed, named in the stats reported
+     * @param batchPool Pool processing batches above the parallel threshold, or null to process
+     *        every batch on the calling thread
+     * @param checkpointExecutor Executor running the checkpoints
+     * @param metrics Receives the metrics of the stream's shards, see {@link PrefixedMetrics}
+     */
+    public StockTradeRecordProcessorFactory(StockTradeProcessorConfig config, String streamName,
+                                            ForkJoinPool batchPool, ScheduledExecutorService checkpointExecutor,
+                                            Metrics metrics) {
+        this(config, streamName, batchPool, checkpointExecutor, metrics, null);
+    }
+
+    /**
+     * Creates a factory for one of several streams, see above, publishing the stats reported
+     * to sinks shared with the other streams.
+     *
+     * @param statsPublisher Publishes the stats reported to sinks, or null to only print them.
+     *        Left open when the factory is closed.
+     */
+    public StockTradeRecordProcessorFactory(StockTradeProcessorConfig config, String streamName,
+                                            ForkJoinPool batchPool, ScheduledExecutorService checkpointExecutor,
+                                            Metrics metrics, StatsPublisher statsPublisher) {
+        this.config = config;
+        this.streamName = streamName;
+        this.rollupHub = new StatsRollupHub(this::reportStats, config.rollupIntervalMillis(),
+                config.rollupMaxDelayMillis());
+        this.progressReport = newProgressReport(config, streamName);
+        this.batchPool = config.parallelThresholdRecords() > 0 ? batchPool : null;
+        this.checkpointExecutor = checkpointExecutor;
+        this.aggregationExecutor = newAggregationExecutor(config);
+        this.metricRegistry = null;
+        this.metrics = metrics;
+        this.statsPublisher = statsPublisher;
+        this.ownsResources = false;
+    }
+
     @Override
     public ShardRecordProcessor shardRecordProcessor() {
-        return new StockTradeRecordProcessor();
+        return new StockTradeRecordProcessor(config, rollupHub, batchPool, checkpointExecutor, metrics,
+                progressReport, aggregationExecutor);
+    }
+
+    /**
+     * Reports the windows still held by the rollup hub and stops it, the progress report and
+     * the aggregation stage, and the shared threads and stats sinks unless they belong to the
+     * caller.
+     */
+    @Override
+    public void close() {
+        rollupHub.close();
+        if (progressReport != null) {
+            progressReport.close();
+        }
+        if (aggregationExecutor != null) {
+            aggregationExecutor.shutdown();
+        }
+        if (!ownsResources) {
+            return;
+        }
+        if (batchPool != null) {
+            batchPool.shutdown();
+        }
+        checkpointExecutor.shutdown();
+        if (statsPublisher != null) {
+            statsPublisher.close();
+        }
+        if (metricRegistry != null) {
+            metricRegistry.close();
+        }
+    }
+
+    private static ProgressReport newProgressReport(StockTradeProcessorConfig config, String streamName) {
+        if (config.progressIntervalMillis() <= 0) {
+            return null;
+        }
+        return new ProgressReport(scope(streamName), config.progressIntervalMillis(), config.lagObjectiveMillis());
+    }
+
+    private static ExecutorService newAggregationExecutor(StockTradeProcessorConfig config) {
+        if (config.pipelineBatches() <= 0) {
+            return null;
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(config.pipelineThreads(), r -> {
+            Thread t = new Thread(r, "aggregation-stage-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static String scope(String streamName) {
+        return streamName == null ? "Worker" : "Stream " + streamName;
+    }
+
+    private void reportStats(WindowSpec window, long startMillis, long endMillis, StockStats stats) {
+        String scope = scope(streamName);
+        System.out.println("****** " + scope + " stats for " + window + " window ["
+                + Instant.ofEpochMilli(startMillis) + ", " + Instant.ofEpochMilli(endMillis) + ") ******\n" +
+                stats + "\n" +
+                "****************************************************************\n");
+        if (statsPublisher != null) {
+            statsPublisher.publish(scope, window, startMillis, endMillis, stats);
+        }
     }
 
 }
@@ -22,6 +22,9 @@ import java.util.logging.Logger;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.amazonaws.services.kinesis.samples.stocktrades.sink.StatsPublisher;
+import com.amazonaws.services.kinesis.samples.stocktrades.utils.CommandLineOptions;
+
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
@@ -29,6 +32,7 @@ import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
 import software.amazon.kinesis.common.ConfigsBuilder;
 import software.amazon.kinesis.common.KinesisClientUtil;
 import software.amazon.kinesis.coordinator.Scheduler;
+import software.amazon.kinesis.retrieval.RetrievalConfig;
 
 /**
  * Uses the Kinesis Client Library (KCL) 2.2.9 to continuously consume and process stock trade
@@ -44,11 +48,14 @@ public class StockTradesProcessor {
     private static final Logger ROOT_LOGGER = Logger.getLogger("");
     private static final Logger PROCESSOR_LOGGER =
             Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeRecordProcessor");
+    private static final Logger METRICS_LOGGER =
+            Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades.metrics");
 
-    private static void checkUsage(String[] args) {
-        if (args.length != 3) {
+    private static void checkUsage(CommandLineOptions options) {
+        if (options.getPositional().size() != 3) {
             System.err.println("Usage: " + StockTradesProcessor.class.getSimpleName()
-                    + " <application name> <stream name> <region>");
+                    + " <application name> <stream name> <region> " + RetrievalSettings.usage() + " "
+                    + StockTradeProcessorConfig.usage() + " " + StatsPublisher.usage());
             System.exit(1);
         }
     }
@@ -63,27 +70,51 @@ public class StockTradesProcessor {
         ROOT_LOGGER.setLevel(Level.WARNING);
         // Set this to INFO for logging at INFO level. Suppressed for this example as it can be noisy.
         PROCESSOR_LOGGER.setLevel(Level.WARNING);
+        // Metrics are only dumped when enabled on the command line
+        METRICS_LOGGER.setLevel(Level.INFO);
     }
 
     public static void main(String[] args) throws Exception {
-        checkUsage(args);
+        CommandLineOptions options = new CommandLineOptions(args);
+        checkUsage(options);
 
         setLogLevels();
 
-        String applicationName = args[0];
-        String streamName = args[1];
-        Region region = Region.of(args[2]);
+        String applicationName = options.getPositional().get(0);
+        String streamName = options.getPositional().get(1);
+        Region region = Region.of(options.getPositional().get(2));
 
         if (region == null) {
-            System.err.println(args[2] + " is not a valid AWS region.");
+            System.err.println(options.getPositional().get(2) + " is not a valid AWS region.");
+            System.exit(1);
+        }
+
+        RetrievalSettings retrieval;
+        try {
+            retrieval = RetrievalSettings.fromOptions(options);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
             System.exit(1);
+            return;
         }
+        LOG.info("Retrieving records with " + retrieval);
 
         KinesisAsyncClient kinesisClient = KinesisClientUtil.createKinesisAsyncClient(KinesisAsyncClient.builder().region(region));
         DynamoDbAsyncClient dynamoClient = DynamoDbAsyncClient.builder().region(region).build();
         CloudWatchAsyncClient cloudWatchClient = CloudWatchAsyncClient.builder().region(region).build();
-        StockTradeRecordProcessorFactory shardRecordProcessor = new StockTradeRecordProcessorFactory();
+        StatsPublisher statsPublisher;
+        try {
+            statsPublisher = StatsPublisher.fromOptions(options, cloudWatchClient);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        StockTradeRecordProcessorFactory shardRecordProcessor = new StockTradeRecordProcessorFactory(
+                StockTradeProcessorConfig.fromOptions(options), statsPublisher);
         ConfigsBuilder configsBuilder = new ConfigsBuilder(streamName, applicationName, kinesisClient, dynamoClient, cloudWatchClient, UUID.randomUUID().toString(), shardRecordProcessor);
+        RetrievalConfig retrievalConfig = configsBuilder.retrievalConfig()
+                .retrievalSpecificConfig(retrieval.toRetrievalConfig(streamName, applicationName, kinesisClient));
 
         Scheduler scheduler = new Scheduler(
                 configsBuilder.checkpointConfig(),
@@ -92,7 +123,7 @@ public class StockTradesProcessor {
                 configsBuilder.lifecycleConfig(),
                 configsBuilder.metricsConfig(),
                 configsBuilder.processorConfig(),
-                configsBuilder.retrievalConfig()
+                retrievalConfig
         );
         int exitCode = 0;
         try {
@@ -101,6 +132,7 @@ public class StockTradesProcessor {
             LOG.error("Caught throwable while processing data.", t);
             exitCode = 1;
         }
+        shardRecordProcessor.close();
         System.exit(exitCode);
 
     }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+/**
+ * Price and volume statistics of a single ticker, as returned by {@link StockStats}.
+ */
+public class TickerSummary {
+
+    private final String tickerSymbol;
+    private final long trades;
+    private final long volume;
+    private final double notional;
+    private final double open;
+    private final double high;
+    private final double low;
+    private final double close;
+
+    public TickerSummary(String tickerSymbol, long trades, long volume, double notional,
+                         double open, double high, double low, double close) {
+        this.tickerSymbol = tickerSymbol;
+        this.trades = trades;
+        this.volume = volume;
+        this.notional = notional;
+        this.open = open;
+        this.high = high;
+        this.low = low;
+        this.close = close;
+    }
+
+    public String getTickerSymbol() {
+        return tickerSymbol;
+    }
+
+    public long getTrades() {
+        return trades;
+    }
+
+    /**
+     * @return the total number of shares traded
+     */
+    public long getVolume() {
+        return volume;
+    }
+
+    /**
+     * @return the total value traded, the sum of price times quantity
+     */
+    public double getNotional() {
+        return notional;
+    }
+
+    /**
+     * @return the volume weighted average price
+     */
+    public double getVwap() {
+        return volume == 0 ? 0.0 : notional / volume;
+    }
+
+    public double getOpen() {
+        return open;
+    }
+
+    public double getHigh() {
+        return high;
+    }
+
+    public double getLow() {
+        return low;
+    }
+
+    public double getClose() {
+        return close;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: O %.02f H %.02f L %.02f C %.02f VWAP %.02f, %d shares in %d trades, $%.02f",
+                tickerSymbol, open, high, low, close, getVwap(), volume, trades, notional);
+    }
+
+}
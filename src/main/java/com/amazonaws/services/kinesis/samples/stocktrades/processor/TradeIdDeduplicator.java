@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Drops trades of a shard whose id was already seen, such as those written twice by a
+ * producer that retried a put which had in fact succeeded.
+ * <p>
+ * Ids are expected to grow roughly in order of arrival, as the writer issues them. The
+ * deduplicator keeps the highest id seen and a bitmap of the ids seen among the most recent
+ * ones, from the highest id down: one bit per id, so a window of 2^20 ids takes 128 KiB.
+ * Checking an id is a couple of array accesses, and memory does not grow with the stream.
+ * Ids that fall behind the window cannot be checked; they are counted and let through, so
+ * the window must span more ids than a producer may issue between a write and its retry.
+ * Ids must be unique across producers, and across the runs of a producer, or trades sharing
+ * an id with one still in the window, which may have been restored from a previous run of
+ * the consumer, are dropped as duplicates. {@code StockTradesWriter} starts the ids of each
+ * run above those of earlier runs for that reason; a producer counting its ids from 1 again
+ * after a restart would lose its first trades.
+ * <p>
+ * The deduplicator is saved with the windowed stats at every checkpoint, see
+ * {@link ShardStateStore}, so both cover the same records after a restart. Instances are
+ * not thread safe.
+ */
+public class TradeIdDeduplicator {
+
+    private static final byte SERIAL_VERSION = 1;
+
+    private final int windowIds;
+    private final int mask;
+    private final long[] words;
+
+    // Highest id seen, if any. Bit (id & mask) is set for the ids seen in (highId - windowIds, highId].
+    private boolean empty = true;
+    private long highId;
+
+    private long duplicates;
+    private long unchecked;
+
+    /**
+     * Constructor.
+     *
+     * @param windowIds Number of recent ids checked, rounded up to a power of two of at least 64
+     */
+    public TradeIdDeduplicator(int windowIds) {
+        if (windowIds <= 0 || windowIds > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid deduplication window of " + windowIds + " ids");
+        }
+        this.windowIds = Math.max(64, Integer.highestOneBit(windowIds - 1) << 1);
+        this.mask = this.windowIds - 1;
+        this.words = new long[this.windowIds >>> 6];
+    }
+
+    /**
+     * Records a trade id.
+     *
+     * @return false if the id was already seen, in which case the trade should be dropped
+     */
+    public boolean accept(long id) {
+        if (empty) {
+            empty = false;
+            highId = id;
+            set(id);
+            return true;
+        }
+        if (id > highId) {
+            // the bits of the ids entering the window still hold ids leaving it
+            long distance = id - highId;
+            if (distance < 0 || distance >= windowIds) {
+                Arrays.fill(words, 0L);
+            } else {
+                clear(highId + 1, (int) distance);
+            }
+            highId = id;
+            set(id);
+            return true;
+        }
+        long behind = highId - id;
+        if (behind < 0 || behind >= windowIds) {
+            // behind the window; a negative distance overflowed
+            unchecked++;
+            return true;
+        }
+        int bit = (int) (id & mask);
+        long word = words[bit >>> 6];
+        long flag = 1L << bit;
+        if ((word & flag) != 0) {
+            duplicates++;
+            return false;
+        }
+        words[bit >>> 6] = word | flag;
+        return true;
+    }
+
+    public int getWindowIds() {
+        return windowIds;
+    }
+
+    /**
+     * @return the number of trades dropped as duplicates
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return the number of trades let through because their id was behind the window
+     */
+    public long getUnchecked() {
+        return unchecked;
+    }
+
+    /**
+     * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    public int serializedSize() {
+        return 1 + 4 + 1 + 8 + 8 * words.length;
+    }
+
+    /**
+     * Writes the ids seen, to be read back by {@link #restore(ByteBuffer)}.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.put(SERIAL_VERSION);
+        out.putInt(windowIds);
+        out.put((byte) (empty ? 0 : 1));
+        out.putLong(highId);
+        for (long word : words) {
+            out.putLong(word);
+        }
+    }
+
+    /**
+     * Replaces the ids seen with those written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @throws IllegalArgumentException if the data is invalid or was written with another
+     *         window, in which case the deduplicator is left empty
+     */
+    public void restore(ByteBuffer in) {
+        clear();
+        if (in.remaining() < serializedSize() || in.get() != SERIAL_VERSION) {
+            throw new IllegalArgumentException("Invalid deduplication state");
+        }
+        int savedWindowIds = in.getInt();
+        if (savedWindowIds != windowIds) {
+            throw new IllegalArgumentException("Deduplication state has a window of " + savedWindowIds
+                    + " ids instead of " + windowIds);
+        }
+        boolean savedEmpty = in.get() == 0;
+        highId = in.getLong();
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.getLong();
+        }
+        empty = savedEmpty;
+    }
+
+    /**
+     * Forgets every id seen.
+     */
+    public void clear() {
+        empty = true;
+        Arrays.fill(words, 0L);
+    }
+
+    private void set(long id) {
+        int bit = (int) (id & mask);
+        words[bit >>> 6] |= 1L << bit;
+    }
+
+    /**
+     * Clears the bits of count ids from a given one, with count below the window.
+     */
+    private void clear(long fromId, int count) {
+        int bit = (int) (fromId & mask);
+        while (count > 0) {
+            int offset = bit & 63;
+            int n = Math.min(count, 64 - offset);
+            long bits = n == 64 ? -1L : ((1L << n) - 1) << offset;
+            words[bit >>> 6] &= ~bits;
+            count -= n;
+            bit = (bit + n) & mask;
+        }
+    }
+
+}
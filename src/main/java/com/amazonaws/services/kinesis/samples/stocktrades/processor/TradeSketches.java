@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+/**
+ * Fixed size, approximate statistics of stock trades: a {@link SpaceSavingSketch} of the most
+ * traded tickers for each trade type, and {@link KllSketch} distributions of prices and
+ * quantities. Memory use depends only on the configured sizes, never on the number of
+ * distinct tickers.
+ */
+public class TradeSketches {
+
+    /** Version of the layout written by {@link #writeTo(ByteBuffer)} **/
+    private static final byte SERIAL_VERSION = 1;
+
+    private static final TradeType[] TRADE_TYPES = TradeType.values();
+
+    private final SpaceSavingSketch[] topTickersByTradeType;
+    private final KllSketch prices;
+    private final KllSketch quantities;
+
+    /**
+     * Constructor.
+     *
+     * @param topK Number of counters of the top tickers sketch of each trade type. Counts are
+     *        overestimated by at most 1/topK of the trades of that type.
+     * @param quantileK Accuracy parameter of the price and quantity sketches
+     */
+    public TradeSketches(int topK, int quantileK) {
+        topTickersByTradeType = new SpaceSavingSketch[TRADE_TYPES.length];
+        for (int t = 0; t < TRADE_TYPES.length; t++) {
+            topTickersByTradeType[t] = new SpaceSavingSketch(topK);
+        }
+        prices = new KllSketch(quantileK);
+        quantities = new KllSketch(quantileK);
+    }
+
+    private TradeSketches(SpaceSavingSketch[] topTickersByTradeType, KllSketch prices, KllSketch quantities) {
+        this.topTickersByTradeType = topTickersByTradeType;
+        this.prices = prices;
+        this.quantities = quantities;
+    }
+
+    public void addStockTrade(String tickerSymbol, TradeType tradeType, double price, long quantity) {
+        topTickersByTradeType[tradeType.ordinal()].update(tickerSymbol);
+        prices.update(price);
+        quantities.update(quantity);
+    }
+
+    public void merge(TradeSketches other) {
+        for (int t = 0; t < TRADE_TYPES.length; t++) {
+            topTickersByTradeType[t].merge(other.topTickersByTradeType[t]);
+        }
+        prices.merge(other.prices);
+        quantities.merge(other.quantities);
+    }
+
+    public void clear() {
+        for (SpaceSavingSketch sketch : topTickersByTradeType) {
+            sketch.clear();
+        }
+        prices.clear();
+        quantities.clear();
+    }
+
+    /**
+     * @return a copy of the sketches, sharing no state with them
+     */
+    public TradeSketches copy() {
+        TradeSketches copy = new TradeSketches(topTickersByTradeType[0].getCapacity(), prices.getK());
+        copy.merge(this);
+        return copy;
+    }
+
+    public boolean isEmpty() {
+        return prices.isEmpty();
+    }
+
+    public SpaceSavingSketch getTopTickers(TradeType tradeType) {
+        return topTickersByTradeType[tradeType.ordinal()];
+    }
+
+    public KllSketch getPrices() {
+        return prices;
+    }
+
+    public KllSketch getQuantities() {
+        return quantities;
+    }
+
+    /**
+     * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    public int serializedSize() {
+        int bytes = 1;
+        for (SpaceSavingSketch sketch : topTickersByTradeType) {
+            bytes += sketch.serializedSize();
+        }
+        return bytes + prices.serializedSize() + quantities.serializedSize();
+    }
+
+    /**
+     * Writes the sketches at the buffer's position, so that they can be shipped to and merged
+     * by another process.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.put(SERIAL_VERSION);
+        for (SpaceSavingSketch sketch : topTickersByTradeType) {
+            sketch.writeTo(out);
+        }
+        prices.writeTo(out);
+        quantities.writeTo(out);
+    }
+
+    /**
+     * Reads sketches written by {@link #writeTo(ByteBuffer)} at the buffer's position.
+     */
+    public static TradeSketches readFrom(ByteBuffer in) {
+        byte version = in.get();
+        if (version != SERIAL_VERSION) {
+            throw new IllegalArgumentException("Unsupported trade sketches version " + version);
+        }
+        SpaceSavingSketch[] topTickers = new SpaceSavingSketch[TRADE_TYPES.length];
+        for (int t = 0; t < TRADE_TYPES.length; t++) {
+            topTickers[t] = SpaceSavingSketch.readFrom(in);
+        }
+        return new TradeSketches(topTickers, KllSketch.readFrom(in), KllSketch.readFrom(in));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (TradeType tradeType : TRADE_TYPES) {
+            SpaceSavingSketch top = getTopTickers(tradeType);
+            sb.append(String.format("Top stocks by %s trades (counts within +%d):",
+                    tradeType.name().toLowerCase(), top.getMaxError()));
+            for (SpaceSavingSketch.Entry entry : top.top(5)) {
+                sb.append(' ').append(entry.getKey()).append(' ').append(entry.getCount());
+            }
+            sb.append(String.format("%n"));
+        }
+        sb.append(String.format("Price p50 %.02f, p99 %.02f; quantity p50 %.0f, p99 %.0f.",
+                prices.getQuantile(0.5), prices.getQuantile(0.99),
+                quantities.getQuantile(0.5), quantities.getQuantile(0.99)));
+        return sb.toString();
+    }
+
+}
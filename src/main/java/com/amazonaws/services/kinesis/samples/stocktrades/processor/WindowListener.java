@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+/**
+ * Receives the stats of each window closed by {@link WindowedStockStats}.
+ */
+public interface WindowListener {
+
+    /**
+     * Called once per window, in order of window end for each window spec.
+     *
+     * @param window Spec of the window
+     * @param startMillis Start of the window, inclusive, in event time
+     * @param endMillis End of the window, exclusive, in event time
+     * @param stats Stats of the window; only valid for the duration of the call
+     */
+    void windowClosed(WindowSpec window, long startMillis, long endMillis, StockStats stats);
+
+}
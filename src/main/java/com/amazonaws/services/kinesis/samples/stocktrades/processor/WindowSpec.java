@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.utils.CommandLineOptions;
+
+/**
+ * Describes a time window over which stock stats are reported. Windows are aligned to the
+ * epoch: a window ends at every multiple of its slide and covers the preceding width. A
+ * tumbling window is a sliding window whose slide equals its width.
+ */
+public class WindowSpec {
+
+    private final long widthMillis;
+    private final long slideMillis;
+
+    private WindowSpec(long widthMillis, long slideMillis) {
+        if (widthMillis <= 0 || slideMillis <= 0 || slideMillis > widthMillis) {
+            throw new IllegalArgumentException("Invalid window of width " + widthMillis
+                    + " ms sliding by " + slideMillis + " ms");
+        }
+        this.widthMillis = widthMillis;
+        this.slideMillis = slideMillis;
+    }
+
+    public static WindowSpec tumbling(long widthMillis) {
+        return new WindowSpec(widthMillis, widthMillis);
+    }
+
+    public static WindowSpec sliding(long widthMillis, long slideMillis) {
+        return new WindowSpec(widthMillis, slideMillis);
+    }
+
+    /**
+     * Parses a window such as "10s" (tumbling) or "1m/10s" (one minute wide, sliding by ten
+     * seconds).
+     */
+    public static WindowSpec parse(String spec) {
+        int slash = spec.indexOf('/');
+        if (slash < 0) {
+            return tumbling(CommandLineOptions.parseDurationMillis(spec));
+        }
+        return sliding(CommandLineOptions.parseDurationMillis(spec.substring(0, slash)),
+                CommandLineOptions.parseDurationMillis(spec.substring(slash + 1)));
+    }
+
+    /**
+     * Parses a comma separated list of windows.
+     */
+    public static List<WindowSpec> parseList(String specs) {
+        List<WindowSpec> windows = new ArrayList<WindowSpec>();
+        for (String spec : specs.split(",")) {
+            windows.add(parse(spec.trim()));
+        }
+        return windows;
+    }
+
+    public long getWidthMillis() {
+        return widthMillis;
+    }
+
+    public long getSlideMillis() {
+        return slideMillis;
+    }
+
+    public boolean isTumbling() {
+        return widthMillis == slideMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof WindowSpec)) {
+            return false;
+        }
+        WindowSpec other = (WindowSpec) o;
+        return widthMillis == other.widthMillis && slideMillis == other.slideMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(widthMillis) * 31 + Long.hashCode(slideMillis);
+    }
+
+    @Override
+    public String toString() {
+        String width = formatMillis(widthMillis);
+        return isTumbling() ? width : width + "/" + formatMillis(slideMillis);
+    }
+
+    private static String formatMillis(long millis) {
+        if (millis % 3600000L == 0) {
+            return millis / 3600000L + "h";
+        } else if (millis % 60000L == 0) {
+            return millis / 60000L + "m";
+        } else if (millis % 1000L == 0) {
+            return millis / 1000L + "s";
+        }
+        return millis + "ms";
+    }
+
+}
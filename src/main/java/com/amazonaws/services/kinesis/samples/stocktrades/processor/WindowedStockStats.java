@@ -0,0 +1,405 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+
+/**
+ * Aggregates stock trades into tumbling and sliding windows of event time.
+ * <p>
+ * Trades are pre-aggregated into panes, whose width is the greatest common divisor of the
+ * widths and slides of all windows. The panes are kept in a ring buffer that is just large
+ * enough to cover the widest window plus the allowed lateness, and are reused once they fall
+ * out of every window. Closing a window merges its panes, so its cost depends on the number
+ * of panes and symbols, not on the number of trades, and any number of windows can be served
+ * from a single pass over the trades.
+ * <p>
+ * The watermark trails the largest event time seen by the allowed lateness. A window is
+ * closed and reported as soon as the watermark passes its end. Trades that would fall into
+ * a window that has already been reported are counted as late and dropped. Since event time
+ * only advances with incoming trades, the last windows of an idle shard are only reported by
+ * {@link #flush()}.
+ * <p>
+ * The whole state, panes and watermark included, can be saved with {@link #writeTo(ByteBuffer)}
+ * and restored with {@link #restore(ByteBuffer)}, so that windows survive a restart.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class WindowedStockStats {
+
+    private static final long UNSET = Long.MIN_VALUE;
+
+    private final WindowSpec[] windows;
+    private final WindowListener listener;
+    private final long allowedLatenessMillis;
+    private final long paneMillis;
+    private final long maxWidthMillis;
+
+    // Ring buffer of panes, and the start time of the pane held by each slot
+    private final StockStats[] panes;
+    private final long[] paneStarts;
+
+    // End of the next window to be reported, for each window spec
+    private final long[] nextWindowEnds;
+
+    // Reused to merge the panes of a window
+    private final StockStats windowStats;
+
+    private long maxEventTimeMillis = UNSET;
+    private long watermarkMillis = UNSET;
+    private long lateTrades;
+
+    /**
+     * Constructor.
+     *
+     * @param windows Windows to report
+     * @param allowedLatenessMillis How far behind the latest event time a trade may arrive
+     *        and still be counted
+     * @param statsFactory Creates the stats of each pane, all of the same kind
+     * @param listener Receives the stats of each closed window
+     */
+    public WindowedStockStats(List<WindowSpec> windows, long allowedLatenessMillis,
+                              Supplier<StockStats> statsFactory, WindowListener listener) {
+        if (windows.isEmpty()) {
+            throw new IllegalArgumentException("At least one window is required");
+        }
+        this.windows = windows.toArray(new WindowSpec[windows.size()]);
+        this.listener = listener;
+        this.allowedLatenessMillis = allowedLatenessMillis;
+
+        long pane = 0;
+        long maxWidth = 0;
+        for (WindowSpec window : this.windows) {
+            pane = gcd(gcd(pane, window.getWidthMillis()), window.getSlideMillis());
+            maxWidth = Math.max(maxWidth, window.getWidthMillis());
+        }
+        this.paneMillis = pane;
+        this.maxWidthMillis = maxWidth;
+
+        int slots = (int) ((maxWidth + allowedLatenessMillis + pane - 1) / pane) + 2;
+        panes = new StockStats[slots];
+        paneStarts = new long[slots];
+        for (int i = 0; i < slots; i++) {
+            panes[i] = statsFactory.get();
+            paneStarts[i] = UNSET;
+        }
+        nextWindowEnds = new long[this.windows.length];
+        Arrays.fill(nextWindowEnds, UNSET);
+        windowStats = statsFactory.get();
+    }
+
+    /**
+     * Adds a trade to the panes, first closing any window that the trade's event time pushes
+     * the watermark past.
+     *
+     * @param eventTimeMillis Event time of the trade
+     * @param trade Stock trade view
+     * @return false if the trade was late and dropped
+     */
+    public boolean addStockTrade(long eventTimeMillis, StockTradeView trade) {
+        StockStats pane = paneFor(eventTimeMillis);
+        if (pane == null) {
+            lateTrades++;
+            return false;
+        }
+        pane.addStockTrade(trade, eventTimeMillis);
+        return true;
+    }
+
+    /**
+     * Adds a trade to the panes, see {@link #addStockTrade(long, StockTradeView)}.
+     */
+    public boolean addStockTrade(long eventTimeMillis, StockTrade trade) {
+        StockStats pane = paneFor(eventTimeMillis);
+        if (pane == null) {
+            lateTrades++;
+            return false;
+        }
+        pane.addStockTrade(trade, eventTimeMillis);
+        return true;
+    }
+
+    /**
+     * Merges trades that were pre-aggregated elsewhere into a single pane. The watermark is
+     * advanced as if the latest of these trades had just been added, so merging the partials
+     * of a batch in ascending pane order windows the batch as if its trades had arrived in
+     * event time order.
+     *
+     * @param maxEventTimeMillis Latest event time of the trades, which must all fall into the
+     *        same pane, see {@link #getPaneMillis()}
+     * @param paneStats Stats of the trades, of the same kind as those of the panes
+     * @param trades Number of trades in the stats
+     * @return false if the pane was late and dropped
+     */
+    public boolean mergePane(long maxEventTimeMillis, StockStats paneStats, long trades) {
+        StockStats pane = paneFor(maxEventTimeMillis);
+        if (pane == null) {
+            lateTrades += trades;
+            return false;
+        }
+        pane.merge(paneStats);
+        return true;
+    }
+
+    /**
+     * Reports every window that holds trades, regardless of the watermark, and starts over.
+     * Used when the shard ends or the processor shuts down.
+     */
+    public void flush() {
+        if (maxEventTimeMillis != UNSET) {
+            advanceWatermark(maxEventTimeMillis + maxWidthMillis);
+        }
+        clearPanes();
+    }
+
+    public long getWatermarkMillis() {
+        return watermarkMillis;
+    }
+
+    public long getPaneMillis() {
+        return paneMillis;
+    }
+
+    /**
+     * @return the number of trades dropped because their window had already been reported
+     */
+    public long getLateTrades() {
+        return lateTrades;
+    }
+
+    /**
+     * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    public int serializedSize() {
+        int bytes = 4 + windows.length * 3 * 8 + 3 * 8 + 4;
+        for (int slot = 0; slot < panes.length; slot++) {
+            if (paneStarts[slot] != UNSET && !panes[slot].isEmpty()) {
+                bytes += 8 + panes[slot].serializedSize();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the windows, the watermark and the non empty panes at the buffer's position.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.putInt(windows.length);
+        for (int i = 0; i < windows.length; i++) {
+            out.putLong(windows[i].getWidthMillis());
+            out.putLong(windows[i].getSlideMillis());
+            out.putLong(nextWindowEnds[i]);
+        }
+        out.putLong(maxEventTimeMillis);
+        out.putLong(watermarkMillis);
+        out.putLong(lateTrades);
+        int count = 0;
+        for (int slot = 0; slot < panes.length; slot++) {
+            if (paneStarts[slot] != UNSET && !panes[slot].isEmpty()) {
+                count++;
+            }
+        }
+        out.putInt(count);
+        for (int slot = 0; slot < panes.length; slot++) {
+            if (paneStarts[slot] != UNSET && !panes[slot].isEmpty()) {
+                out.putLong(paneStarts[slot]);
+                panes[slot].writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Replaces the state with one written by {@link #writeTo(ByteBuffer)} at the buffer's
+     * position. Nothing is reported: windows closed before the state was written were
+     * reported then.
+     *
+     * @throws IllegalArgumentException if the state is corrupt or was written with other
+     *         windows or lateness, in which case the state is left empty
+     */
+    public void restore(ByteBuffer in) {
+        clearPanes();
+        try {
+            if (in.getInt() != windows.length) {
+                throw new IllegalArgumentException("Saved windows differ from the configured ones");
+            }
+            for (int i = 0; i < windows.length; i++) {
+                if (in.getLong() != windows[i].getWidthMillis() || in.getLong() != windows[i].getSlideMillis()) {
+                    throw new IllegalArgumentException("Saved windows differ from the configured ones");
+                }
+                nextWindowEnds[i] = in.getLong();
+            }
+            maxEventTimeMillis = in.getLong();
+            watermarkMillis = in.getLong();
+            lateTrades = in.getLong();
+            int count = in.getInt();
+            if (count < 0 || count > panes.length) {
+                throw new IllegalArgumentException("Saved panes do not fit the configured lateness");
+            }
+            for (int i = 0; i < count; i++) {
+                long paneStart = in.getLong();
+                int slot = (int) Math.floorMod(Math.floorDiv(paneStart, paneMillis), (long) panes.length);
+                if (Math.floorMod(paneStart, paneMillis) != 0 || paneStarts[slot] != UNSET) {
+                    throw new IllegalArgumentException("Saved panes do not fit the configured lateness");
+                }
+                paneStarts[slot] = paneStart;
+                panes[slot].mergeFrom(in);
+            }
+        } catch (RuntimeException e) {
+            clearPanes();
+            lateTrades = 0;
+            throw e instanceof IllegalArgumentException ? e : new IllegalArgumentException("Corrupt saved state", e);
+        }
+    }
+
+    private void clearPanes() {
+        for (int slot = 0; slot < panes.length; slot++) {
+            if (paneStarts[slot] != UNSET) {
+                panes[slot].clear();
+            }
+        }
+        Arrays.fill(paneStarts, UNSET);
+        Arrays.fill(nextWindowEnds, UNSET);
+        maxEventTimeMillis = UNSET;
+        watermarkMillis = UNSET;
+    }
+
+    /**
+     * Returns the pane for the event time, advancing the watermark first.
+     *
+     * @return the pane, or null if the event time falls into a reported window
+     */
+    private StockStats paneFor(long eventTimeMillis) {
+        if (maxEventTimeMillis == UNSET) {
+            // start from the earliest time still allowed, so that trades arriving later but
+            // within the lateness are not dropped before any window was reported
+            long earliestMillis = eventTimeMillis - allowedLatenessMillis;
+            for (int i = 0; i < windows.length; i++) {
+                long slide = windows[i].getSlideMillis();
+                nextWindowEnds[i] = Math.floorDiv(earliestMillis, slide) * slide + slide;
+            }
+        }
+        if (maxEventTimeMillis == UNSET || eventTimeMillis > maxEventTimeMillis) {
+            maxEventTimeMillis = eventTimeMillis;
+            advanceWatermark(eventTimeMillis - allowedLatenessMillis);
+        }
+        if (eventTimeMillis < closedBeforeMillis()) {
+            return null;
+        }
+
+        long paneIndex = Math.floorDiv(eventTimeMillis, paneMillis);
+        int slot = (int) Math.floorMod(paneIndex, (long) panes.length);
+        long paneStart = paneIndex * paneMillis;
+        if (paneStarts[slot] != paneStart) {
+            // the slot holds a pane that has fallen out of every window
+            if (paneStarts[slot] != UNSET) {
+                panes[slot].clear();
+            }
+            paneStarts[slot] = paneStart;
+        }
+        return panes[slot];
+    }
+
+    /**
+     * @return the time before which trades would fall into a window that was already reported
+     */
+    private long closedBeforeMillis() {
+        long closedBefore = UNSET;
+        for (int i = 0; i < windows.length; i++) {
+            closedBefore = Math.max(closedBefore, nextWindowEnds[i] - windows[i].getSlideMillis());
+        }
+        return closedBefore;
+    }
+
+    private void advanceWatermark(long watermark) {
+        if (watermark <= watermarkMillis) {
+            return;
+        }
+        watermarkMillis = watermark;
+        for (int i = 0; i < windows.length; i++) {
+            WindowSpec window = windows[i];
+            while (nextWindowEnds[i] <= watermark) {
+                long end = nextWindowEnds[i];
+                if (!closeWindow(window, end)) {
+                    // skip straight past empty windows, which matters after a gap in the stream
+                    long nextData = firstPaneWithDataFrom(end);
+                    if (nextData == UNSET) {
+                        nextWindowEnds[i] = Math.floorDiv(watermark, window.getSlideMillis())
+                                * window.getSlideMillis() + window.getSlideMillis();
+                        break;
+                    }
+                    long firstEnd = Math.floorDiv(nextData, window.getSlideMillis())
+                            * window.getSlideMillis() + window.getSlideMillis();
+                    nextWindowEnds[i] = Math.max(end + window.getSlideMillis(), firstEnd);
+                } else {
+                    nextWindowEnds[i] = end + window.getSlideMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the panes of the window ending at the given time and reports it.
+     *
+     * @return false if the window was empty and therefore not reported
+     */
+    private boolean closeWindow(WindowSpec window, long endMillis) {
+        long startMillis = endMillis - window.getWidthMillis();
+        windowStats.clear();
+        boolean hasData = false;
+        for (long paneStart = startMillis; paneStart < endMillis; paneStart += paneMillis) {
+            int slot = (int) Math.floorMod(Math.floorDiv(paneStart, paneMillis), (long) panes.length);
+            if (paneStarts[slot] == paneStart && !panes[slot].isEmpty()) {
+                windowStats.merge(panes[slot]);
+                hasData = true;
+            }
+        }
+        if (hasData) {
+            listener.windowClosed(window, startMillis, endMillis, windowStats);
+        }
+        return hasData;
+    }
+
+    /**
+     * @return the start of the earliest non empty pane at or after the given time, or UNSET
+     */
+    private long firstPaneWithDataFrom(long fromMillis) {
+        long first = UNSET;
+        for (int slot = 0; slot < panes.length; slot++) {
+            long paneStart = paneStarts[slot];
+            if (paneStart != UNSET && paneStart >= fromMillis && !panes[slot].isEmpty()
+                    && (first == UNSET || paneStart < first)) {
+                first = paneStart;
+            }
+        }
+        return first;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the records of a capture, one after the other, from a memory mapped file.
+ * <p>
+ * Two formats are read: the binary segment format written by {@link SegmentWriter}, and JSON
+ * lines, one stock trade per line, as written by the JSON codec. The format is told apart by
+ * the magic number at the start of segments. JSON lines carry no arrival time, and their
+ * partition key is the ticker symbol of the trade.
+ * <p>
+ * The file is mapped in large windows, so captures larger than 2 GB can be read. The data of
+ * a record is a read only view of the mapping rather than a copy, and remains valid after the
+ * reader has moved on.
+ */
+public abstract class CaptureReader implements AutoCloseable {
+
+    /** Arrival time of records whose arrival time was not captured **/
+    public static final long UNKNOWN_ARRIVAL = -1L;
+
+    // Bytes mapped at a time. Mappings are released by the garbage collector.
+    private static final long WINDOW_BYTES = 256L << 20;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long windowEnd;
+
+    protected CaptureReader(Path file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    /**
+     * Opens a capture, in either format.
+     */
+    public static CaptureReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            channel.read(magic, 0);
+            if (!magic.hasRemaining() && magic.getInt(0) == SegmentWriter.MAGIC) {
+                return new SegmentReader(file, channel);
+            }
+            return new JsonLinesReader(file, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false at the end of the capture
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public abstract boolean next() throws IOException;
+
+    /**
+     * @return the data of the current record
+     */
+    public abstract ByteBuffer data();
+
+    public abstract String partitionKey();
+
+    /**
+     * @return the arrival time of the current record, or {@link #UNKNOWN_ARRIVAL}
+     */
+    public abstract long arrivalMillis();
+
+    /**
+     * @return the offset of the next record in the file
+     */
+    public abstract long position();
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * Returns a mapping of the file that holds the given range, mapping a new window if the
+     * current one does not. Index the mapping with {@link #index(long)}.
+     *
+     * @throws IOException if the range goes past the end of the file
+     */
+    protected final ByteBuffer map(long position, long length) throws IOException {
+        if (position + length > size) {
+            throw new IOException("Truncated capture " + file + " at offset " + position);
+        }
+        if (window == null || position < windowStart || position + length > windowEnd) {
+            long mapLength = Math.min(Math.max(WINDOW_BYTES, length), size - position);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, mapLength);
+            windowStart = position;
+            windowEnd = position + mapLength;
+        }
+        return window;
+    }
+
+    /**
+     * @return the index of a file offset in the current mapping
+     */
+    protected final int index(long position) {
+        return (int) (position - windowStart);
+    }
+
+    /**
+     * @return the offset of the end of the current mapping in the file
+     */
+    protected final long mappedEnd() {
+        return windowEnd;
+    }
+
+    /**
+     * @return a read only view of part of the current mapping, starting at position 0 like the
+     *         data of a record retrieved from Kinesis
+     */
+    protected final ByteBuffer slice(long position, int length) {
+        ByteBuffer slice = window.asReadOnlyBuffer();
+        slice.limit(index(position) + length);
+        slice.position(index(position));
+        return slice.slice();
+    }
+
+}
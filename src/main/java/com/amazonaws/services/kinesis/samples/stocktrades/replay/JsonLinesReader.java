@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodecs;
+
+/**
+ * Reads captures made of JSON stock trades, one per line. Blank lines are skipped.
+ */
+class JsonLinesReader extends CaptureReader {
+
+    // Longest line accepted
+    private static final int MAX_LINE_BYTES = 1 << 20;
+
+    // Partition key of lines that are not stock trades, which the processor skips
+    private static final String UNPARSEABLE_KEY = "unparseable";
+
+    private long position;
+    private String partitionKey;
+    private ByteBuffer data;
+
+    JsonLinesReader(Path file, FileChannel channel) throws IOException {
+        super(file, channel);
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (position < size()) {
+            ByteBuffer in = map(position, Math.min(MAX_LINE_BYTES, size() - position));
+            long end = position;
+            long limit = mappedEnd();
+            while (end < limit && in.get(index(end)) != '\n') {
+                end++;
+            }
+            if (end == limit && limit < size()) {
+                throw new IOException("Line longer than " + MAX_LINE_BYTES + " bytes in " + getFile()
+                        + " at offset " + position);
+            }
+            long start = position;
+            position = Math.min(end + 1, size());
+
+            long trimmed = end;
+            while (trimmed > start && Character.isWhitespace(in.get(index(trimmed - 1)))) {
+                trimmed--;
+            }
+            if (trimmed == start) {
+                continue;
+            }
+            data = slice(start, (int) (trimmed - start));
+            try {
+                partitionKey = StockTradeCodecs.decode(data.duplicate()).getTickerSymbol();
+            } catch (IllegalArgumentException e) {
+                partitionKey = UNPARSEABLE_KEY;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public ByteBuffer data() {
+        return data;
+    }
+
+    @Override
+    public String partitionKey() {
+        return partitionKey;
+    }
+
+    @Override
+    public long arrivalMillis() {
+        return UNKNOWN_ARRIVAL;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+}
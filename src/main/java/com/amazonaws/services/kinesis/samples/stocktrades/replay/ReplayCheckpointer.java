@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.replay;
+
+import software.amazon.awssdk.services.kinesis.model.Record;
+import software.amazon.kinesis.processor.Checkpointer;
+import software.amazon.kinesis.processor.PreparedCheckpointer;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+
+/**
+ * Checkpointer of a replayed shard, which keeps the last checkpoint in memory instead of a
+ * lease table. Checkpoints always succeed. Prepared checkpoints are not supported.
+ */
+public class ReplayCheckpointer implements RecordProcessorCheckpointer {
+
+    /** Checkpoint saved once a shard has been processed to its end **/
+    public static final String SHARD_END = "SHARD_END";
+
+    private volatile String sequenceNumber;
+    private volatile long subSequenceNumber;
+    private volatile String largestSequenceNumber;
+    private volatile long checkpoints;
+
+    /**
+     * Records the sequence number of the last record handed to the processor, which
+     * {@link #checkpoint()} checkpoints at.
+     */
+    void recordsDelivered(String largestSequenceNumber) {
+        this.largestSequenceNumber = largestSequenceNumber;
+    }
+
+    /**
+     * Checkpoints at the last record delivered, or at the end of the shard once the shard
+     * has ended.
+     */
+    @Override
+    public void checkpoint() {
+        save(largestSequenceNumber, 0);
+    }
+
+    @Override
+    public void checkpoint(Record record) {
+        save(record.sequenceNumber(), 0);
+    }
+
+    @Override
+    public void checkpoint(String sequenceNumber) {
+        save(sequenceNumber, 0);
+    }
+
+    @Override
+    public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+        save(sequenceNumber, subSequenceNumber);
+    }
+
+    @Override
+    public PreparedCheckpointer prepareCheckpoint() {
+        throw new UnsupportedOperationException("Prepared checkpoints are not replayed");
+    }
+
+    @Override
+    public PreparedCheckpointer prepareCheckpoint(Record record) {
+        throw new UnsupportedOperationException("Prepared checkpoints are not replayed");
+    }
+
+    @Override
+    public PreparedCheckpointer prepareCheckpoint(String sequenceNumber) {
+        throw new UnsupportedOperationException("Prepared checkpoints are not replayed");
+    }
+
+    @Override
+    public PreparedCheckpointer prepareCheckpoint(String sequenceNumber, long subSequenceNumber) {
+        throw new UnsupportedOperationException("Prepared checkpoints are not replayed");
+    }
+
+    @Override
+    public Checkpointer checkpointer() {
+        throw new UnsupportedOperationException("There is no lease table in a replay");
+    }
+
+    public String getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public long getSubSequenceNumber() {
+        return subSequenceNumber;
+    }
+
+    public long getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * Marks the shard as ended, so that {@link #checkpoint()} saves {@link #SHARD_END}.
+     */
+    void shardEnded() {
+        largestSequenceNumber = SHARD_END;
+    }
+
+    private synchronized void save(String sequenceNumber, long subSequenceNumber) {
+        if (sequenceNumber == null) {
+            throw new IllegalArgumentException("No record to checkpoint at");
+        }
+        this.sequenceNumber = sequenceNumber;
+        this.subSequenceNumber = subSequenceNumber;
+        checkpoints++;
+    }
+
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.replay;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.lifecycle.events.ShardEndedInput;
+import software.amazon.kinesis.processor.ShardRecordProcessor;
+import software.amazon.kinesis.processor.ShardRecordProcessorFactory;
+import software.amazon.kinesis.retrieval.AggregatorUtil;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+/**
+ * Replays a capture through record processors, without Kinesis or a lease table.
+ * <p>
+ * Records are assigned to simulated shards the way Kinesis does, by the MD5 hash of their
+ * partition key, over shards that split the hash key space evenly. Each shard has a processor
+ * from the factory and a thread of its own, as with the KCL, and is fed batches of records
+ * through a short queue, so a slow shard holds up the reader rather than piling up memory.
+ * Records in the KPL aggregated format are de-aggregated before they reach the processor, as
+ * the KCL does.
+ * The capture is read either as fast as the processors go, or at the pace at which it was
+ * recorded, optionally sped up. Once the capture is exhausted, every shard ends.
+ */
+public class ReplayEngine {
+
+    private static final Log log = LogFactory.getLog(ReplayEngine.class);
+
+    // Batches queued per shard
+    private static final int QUEUE_BATCHES = 4;
+
+    private static final long REPORT_INTERVAL_MILLIS = 10000L;
+
+    // Marks the end of a shard in its queue
+    private static final List<KinesisClientRecord> END_OF_SHARD = Collections.emptyList();
+
+    private final ShardRecordProcessorFactory factory;
+    private final int shardCount;
+    private final int batchRecords;
+    private final double speedup;
+
+    /**
+     * Constructor.
+     *
+     * @param factory Creates the processor of each shard
+     * @param shardCount Number of simulated shards
+     * @param batchRecords Maximum number of records passed to a processor at once
+     * @param speedup How much faster than recorded the capture is replayed, or 0 to replay as
+     *        fast as possible. Records without an arrival time are never held back.
+     */
+    public ReplayEngine(ShardRecordProcessorFactory factory, int shardCount, int batchRecords, double speedup) {
+        if (shardCount < 1 || batchRecords < 1 || speedup < 0) {
+            throw new IllegalArgumentException("Invalid replay settings: " + shardCount + " shard(s), "
+                    + batchRecords + " record(s) per batch, speedup " + speedup);
+        }
+        this.factory = factory;
+        this.shardCount = shardCount;
+        this.batchRecords = batchRecords;
+        this.speedup = speedup;
+    }
+
+    /**
+     * Replays a capture, returning once every shard has ended.
+     */
+    public Result replay(CaptureReader reader) throws IOException, InterruptedException {
+        Shard[] shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(String.format("shardId-%012d", i), factory.shardRecordProcessor());
+            shards[i].thread.start();
+        }
+        Map<String, Shard> shardsByKey = new HashMap<String, Shard>();
+
+        long startNanos = System.nanoTime();
+        long firstArrivalMillis = CaptureReader.UNKNOWN_ARRIVAL;
+        long nextReportMillis = System.currentTimeMillis() + REPORT_INTERVAL_MILLIS;
+        long records = 0;
+        long bytes = 0;
+        boolean completed = false;
+        try {
+            while (reader.next()) {
+                long arrivalMillis = reader.arrivalMillis();
+                if (speedup > 0 && arrivalMillis != CaptureReader.UNKNOWN_ARRIVAL) {
+                    if (firstArrivalMillis == CaptureReader.UNKNOWN_ARRIVAL) {
+                        firstArrivalMillis = arrivalMillis;
+                    }
+                    long dueNanos = startNanos
+                            + (long) (TimeUnit.MILLISECONDS.toNanos(arrivalMillis - firstArrivalMillis) / speedup);
+                    long aheadNanos = dueNanos - System.nanoTime();
+                    if (aheadNanos >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                        // hand over what has arrived so far before waiting for the next record
+                        for (Shard shard : shards) {
+                            shard.flush();
+                        }
+                        TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                    }
+                }
+
+                String partitionKey = reader.partitionKey();
+                Shard shard = shardsByKey.get(partitionKey);
+                if (shard == null) {
+                    shard = shards[shardFor(partitionKey, shardCount)];
+                    shardsByKey.put(partitionKey, shard);
+                }
+                ByteBuffer data = reader.data();
+                bytes += data.remaining();
+                records++;
+                shard.add(partitionKey, data, arrivalMillis);
+
+                if (System.currentTimeMillis() > nextReportMillis) {
+                    log.info("Replayed " + records + " record(s), " + (100 * reader.position() / reader.size())
+                            + "% of " + reader.getFile());
+                    nextReportMillis = System.currentTimeMillis() + REPORT_INTERVAL_MILLIS;
+                }
+            }
+            for (Shard shard : shards) {
+                shard.flush();
+                shard.end();
+            }
+            completed = true;
+        } finally {
+            for (Shard shard : shards) {
+                if (!completed) {
+                    // the shards would otherwise wait for records that never come
+                    shard.thread.interrupt();
+                }
+            }
+            for (Shard shard : shards) {
+                shard.thread.join();
+            }
+        }
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long[] shardRecords = new long[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shardRecords[i] = shards[i].delivered;
+        }
+        return new Result(records, bytes, elapsedNanos, shardRecords);
+    }
+
+    /**
+     * @return the shard of a partition key, among shards splitting the hash key space evenly
+     */
+    static int shardFor(String partitionKey, int shardCount) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("MD5").digest(partitionKey.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+        return new BigInteger(1, hash).multiply(BigInteger.valueOf(shardCount)).shiftRight(128).intValue();
+    }
+
+    /**
+     * Outcome of a replay.
+     */
+    public static class Result {
+        private final long records;
+        private final long bytes;
+        private final long elapsedNanos;
+        private final long[] shardRecords;
+
+        Result(long records, long bytes, long elapsedNanos, long[] shardRecords) {
+            this.records = records;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.shardRecords = shardRecords;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return the number of records processed by each shard
+         */
+        public long[] getShardRecords() {
+            return shardRecords.clone();
+        }
+
+        public double getRecordsPerSecond() {
+            return records * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        public double getMegabytesPerSecond() {
+            return bytes * 1e9 / Math.max(1, elapsedNanos) / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Replayed %d record(s), %.1f MB, in %.3f s: %.0f records/s, %.1f MB/s",
+                    records, bytes / (1024.0 * 1024.0), elapsedNanos / 1e9, getRecordsPerSecond(),
+                    getMegabytesPerSecond()));
+            for (int i = 0; i < shardRecords.length; i++) {
+                sb.append(String.format("%n  shard %d: %d record(s)", i, shardRecords[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A simulated shard, whose processor runs on a thread of its own.
+     */
+    private class Shard implements Runnable {
+        private final String shardId;
+        private final ShardRecordProcessor processor;
+        private final ReplayCheckpointer checkpointer = new ReplayCheckpointer();
+        private final AggregatorUtil aggregatorUtil = new AggregatorUtil();
+        private final BlockingQueue<List<KinesisClientRecord>> queue =
+                new ArrayBlockingQueue<List<KinesisClientRecord>>(QUEUE_BATCHES);
+        private final Thread thread;
+
+        // Only touched by the reader thread
+        private List<KinesisClientRecord> batch = new ArrayList<KinesisClientRecord>();
+        private long sequenceNumber;
+        private long delivered;
+
+        Shard(String shardId, ShardRecordProcessor processor) {
+            this.shardId = shardId;
+            this.processor = processor;
+            this.thread = new Thread(this, "replay-" + shardId);
+        }
+
+        void add(String partitionKey, ByteBuffer data, long arrivalMillis) throws InterruptedException {
+            batch.add(KinesisClientRecord.builder()
+                    .sequenceNumber(Long.toString(++sequenceNumber))
+                    .subSequenceNumber(0)
+                    .partitionKey(partitionKey)
+                    .data(data)
+                    .approximateArrivalTimestamp(arrivalMillis == CaptureReader.UNKNOWN_ARRIVAL
+                            ? null : Instant.ofEpochMilli(arrivalMillis))
+                    .build());
+            if (batch.size() >= batchRecords) {
+                flush();
+            }
+        }
+
+        void flush() throws InterruptedException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            submit(batch);
+            delivered += batch.size();
+            batch = new ArrayList<KinesisClientRecord>(batchRecords);
+        }
+
+        void end() throws InterruptedException {
+            submit(END_OF_SHARD);
+        }
+
+        private void submit(List<KinesisClientRecord> records) throws InterruptedException {
+            while (!queue.offer(records, 100, TimeUnit.MILLISECONDS)) {
+                if (!thread.isAlive()) {
+                    throw new IllegalStateException("Processor of " + shardId + " stopped");
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            processor.initialize(InitializationInput.builder()
+                    .shardId(shardId)
+                    .extendedSequenceNumber(ExtendedSequenceNumber.TRIM_HORIZON)
+                    .build());
+            try {
+                while (true) {
+                    List<KinesisClientRecord> records = queue.take();
+                    if (records == END_OF_SHARD) {
+                        break;
+                    }
+                    checkpointer.recordsDelivered(records.get(records.size() - 1).sequenceNumber());
+                    processor.processRecords(ProcessRecordsInput.builder()
+                            .records(aggregatorUtil.deaggregate(records))
+                            .checkpointer(checkpointer)
+                            .build());
+                }
+            } catch (InterruptedException e) {
+                log.warn("Replay of " + shardId + " interrupted, the shard does not end.");
+                return;
+            }
+            checkpointer.shardEnded();
+            processor.shardEnded(ShardEndedInput.builder().checkpointer(checkpointer).build());
+            log.info("Replay of " + shardId + " ended at checkpoint " + checkpointer.getSequenceNumber());
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Reads captures in the segment format, see {@link SegmentWriter}.
+ */
+class SegmentReader extends CaptureReader {
+
+    private static final int HEADER_BYTES = 8;
+    // arrival time and key length
+    private static final int RECORD_PREFIX_BYTES = 10;
+
+    private final byte[] keyBytes = new byte[SegmentWriter.MAX_KEY_BYTES];
+    private long position = HEADER_BYTES;
+    private long arrivalMillis;
+    private String partitionKey;
+    private ByteBuffer data;
+
+    SegmentReader(Path file, FileChannel channel) throws IOException {
+        super(file, channel);
+        ByteBuffer header = map(0, HEADER_BYTES);
+        int version = header.getInt(index(4));
+        if (version != SegmentWriter.VERSION) {
+            throw new IOException("Unsupported segment version " + version + " in " + file);
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (position == size()) {
+            return false;
+        }
+        ByteBuffer in = map(position, RECORD_PREFIX_BYTES);
+        arrivalMillis = in.getLong(index(position));
+        int keyLength = in.getShort(index(position) + 8) & 0xFFFF;
+        if (keyLength == 0 || keyLength > SegmentWriter.MAX_KEY_BYTES) {
+            throw new IOException("Malformed record in " + getFile() + " at offset " + position);
+        }
+
+        long keyPosition = position + RECORD_PREFIX_BYTES;
+        in = map(position, RECORD_PREFIX_BYTES + keyLength + 4);
+        for (int i = 0; i < keyLength; i++) {
+            keyBytes[i] = in.get(index(keyPosition) + i);
+        }
+        partitionKey = new String(keyBytes, 0, keyLength, StandardCharsets.UTF_8);
+        int dataLength = in.getInt(index(keyPosition + keyLength));
+        if (dataLength < 0) {
+            throw new IOException("Malformed record in " + getFile() + " at offset " + position);
+        }
+
+        long dataPosition = keyPosition + keyLength + 4;
+        map(position, dataPosition - position + dataLength);
+        data = slice(dataPosition, dataLength);
+        position = dataPosition + dataLength;
+        return true;
+    }
+
+    @Override
+    public ByteBuffer data() {
+        return data;
+    }
+
+    @Override
+    public String partitionKey() {
+        return partitionKey;
+    }
+
+    @Override
+    public long arrivalMillis() {
+        return arrivalMillis;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes a capture in the binary segment format, which {@link CaptureReader} replays.
+ * <p>
+ * A segment starts with a header, followed by records laid out back to back:
+ * <pre>
+ *   header   int     magic number, "KSTR"
+ *            int     format version, 1
+ *   record   long    approximate arrival time in epoch millis, or -1 if unknown
+ *            short   length of the partition key, unsigned
+ *            bytes   partition key, UTF-8
+ *            int     length of the data
+ *            bytes   data, a stock trade as written by any codec
+ * </pre>
+ * All numbers are big endian.
+ */
+public class SegmentWriter implements AutoCloseable {
+
+    static final int MAGIC = 0x4B535452; // "KSTR"
+    static final int VERSION = 1;
+
+    /** Longest partition key accepted, in bytes, as in Kinesis **/
+    static final int MAX_KEY_BYTES = 256;
+
+    private final DataOutputStream out;
+    private long records;
+
+    public SegmentWriter(Path file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param arrivalMillis Arrival time of the record, or {@link CaptureReader#UNKNOWN_ARRIVAL}
+     * @param partitionKey Partition key of the record
+     * @param data Data of the record, from its position to its limit. The position is not moved.
+     */
+    public void append(long arrivalMillis, String partitionKey, ByteBuffer data) throws IOException {
+        byte[] key = partitionKey.getBytes(StandardCharsets.UTF_8);
+        if (key.length == 0 || key.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Invalid partition key: " + partitionKey);
+        }
+        out.writeLong(arrivalMillis);
+        out.writeShort(key.length);
+        out.write(key);
+        out.writeInt(data.remaining());
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            out.write(bytes);
+        }
+        records++;
+    }
+
+    /**
+     * Appends a record, see {@link #append(long, String, ByteBuffer)}.
+     */
+    public void append(long arrivalMillis, String partitionKey, byte[] data) throws IOException {
+        append(arrivalMillis, partitionKey, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @return the number of records appended
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.CompressedStockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.CompressionDictionary;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.PayloadDecompressor;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodecs;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeFormat;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeProcessorConfig;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeRecordProcessorFactory;
+import com.amazonaws.services.kinesis.samples.stocktrades.utils.CommandLineOptions;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.AggregatedRecordBuilder;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.EncodedTradeBatch;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.ShardAggregator;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.TradeGeneratorEngine;
+
+/**
+ * Replays a capture of stock trades through the stock trade record processors, without
+ * Kinesis, DynamoDB or CloudWatch, and reports the throughput. This makes it possible to
+ * profile the processors locally and reproducibly.
+ * <p>
+ * With {@code --generate}, writes a synthetic capture in the segment format instead, see
+ * {@link SegmentWriter}. With {@code --train-dictionary}, trains a compression dictionary
+ * from the payloads of a capture, see {@link CompressionDictionary}.
+ */
+public class StockTradesReplay {
+
+    private static final Log LOG = LogFactory.getLog(StockTradesReplay.class);
+
+    private static final Logger ROOT_LOGGER = Logger.getLogger("");
+    private static final Logger PROCESSOR_LOGGER =
+            Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeRecordProcessor");
+    private static final Logger METRICS_LOGGER =
+            Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades.metrics");
+    private static final Logger REPLAY_LOGGER =
+            Logger.getLogger("com.amazonaws.services.kinesis.samples.stocktrades.replay");
+
+    private static final int DEFAULT_SHARDS = 4;
+    private static final int DEFAULT_BATCH_RECORDS = 1000;
+
+    /** Default rate at which generated trades are recorded to have arrived **/
+    private static final double DEFAULT_GENERATED_RATE = 1000;
+
+    /** Number of payloads a dictionary is trained from, read from the start of the capture **/
+    private static final int TRAINING_SAMPLES = 10000;
+
+    /** Default size of a trained dictionary, small enough to cost little per payload compressed **/
+    private static final int DEFAULT_DICTIONARY_BYTES = 4096;
+
+    private static void checkUsage(CommandLineOptions options) {
+        if (options.getPositional().size() != 1) {
+            System.err.println("Usage: " + StockTradesReplay.class.getSimpleName()
+                    + " <capture file> [--shards=<n>] [--batch-records=<n>] [--pace=max|recorded [--speedup=<factor>]] "
+                    + StockTradeProcessorConfig.usage());
+            System.err.println("   or: " + StockTradesReplay.class.getSimpleName()
+                    + " <capture file> --generate=<trades> [--format=json|binary] [--rate=<trades per second>]"
+                    + " [--seed=<seed>] [--symbols=<count>] [--zipf=<skew>] [--aggregate]"
+                    + " [--compress [--compression-dictionary=<file>]]");
+            System.err.println("   or: " + StockTradesReplay.class.getSimpleName()
+                    + " <capture file> --train-dictionary=<file> --dictionary-id=<id> [--dictionary-bytes=<n>]");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Same log levels as the processor application, plus the progress of the replay.
+     */
+    private static void setLogLevels() {
+        ROOT_LOGGER.setLevel(Level.WARNING);
+        PROCESSOR_LOGGER.setLevel(Level.WARNING);
+        METRICS_LOGGER.setLevel(Level.INFO);
+        REPLAY_LOGGER.setLevel(Level.INFO);
+    }
+
+    /**
+     * Writes synthetic trades to a segment, as if they had arrived at the given rate from now on.
+     * With --aggregate, consecutive trades are packed into KPL aggregated records, each keyed
+     * and timed by its first trade. With --compress, each trade is compressed first.
+     */
+    private static void generate(Path file, CommandLineOptions options) throws IOException {
+        long trades = options.getLong("generate", 0);
+        StockTradeCodec codec = StockTradeCodecs.forName(options.getString("format", "binary"));
+        double rate = options.getDouble("rate", DEFAULT_GENERATED_RATE);
+        long seed = options.getLong("seed", System.nanoTime());
+        TradeGeneratorEngine engine = new TradeGeneratorEngine(seed, 1, options.getInt("symbols", 25),
+                options.getDouble("zipf", 0));
+        TradeGeneratorEngine.Worker worker = engine.worker(0);
+        CompressedStockTradeCodec compressor = options.getBoolean("compress", false)
+                ? new CompressedStockTradeCodec(codec, compressionDictionary(options)) : null;
+        LOG.info("Generating " + trades + " trade(s) with seed " + seed + " into " + file);
+
+        long startMillis = System.currentTimeMillis();
+        EncodedTradeBatch batch = new EncodedTradeBatch(1 << 16, 1000);
+        try (SegmentWriter writer = new SegmentWriter(file)) {
+            AggregatingAppender appender = new AggregatingAppender(writer, options.getBoolean("aggregate", false));
+            for (long i = 0; i < trades; ) {
+                if (codec.format() == StockTradeFormat.BINARY_V1) {
+                    worker.fill(batch);
+                    for (int j = 0; j < batch.size() && i < trades; j++, i++) {
+                        byte[] data = batch.recordBytes(j);
+                        appender.append(startMillis + (long) (i * 1000 / rate), engine.symbol(batch.symbol(j)),
+                                compressor != null ? compressor.compress(data) : data);
+                    }
+                } else {
+                    StockTrade trade = worker.nextTrade();
+                    appender.append(startMillis + (long) (i * 1000 / rate), trade.getTickerSymbol(),
+                            compressor != null ? compressor.encode(trade) : codec.encode(trade));
+                    i++;
+                }
+            }
+            appender.flush();
+        }
+    }
+
+    /**
+     * @return the dictionary named by --compression-dictionary, or the built in one
+     */
+    private static CompressionDictionary compressionDictionary(CommandLineOptions options) throws IOException {
+        return options.has("compression-dictionary")
+                ? CompressionDictionary.load(Paths.get(options.getString("compression-dictionary", null)))
+                : CompressionDictionary.builtIn();
+    }
+
+    /**
+     * Trains a compression dictionary from the first payloads of a capture and saves it,
+     * reporting how well the payloads compress with it.
+     */
+    private static void trainDictionary(Path file, CommandLineOptions options) throws IOException {
+        int id = options.getInt("dictionary-id", CompressionDictionary.NONE_ID);
+        if (id <= CompressionDictionary.BUILT_IN_ID) {
+            throw new IllegalArgumentException("--dictionary-id must be above " + CompressionDictionary.BUILT_IN_ID);
+        }
+        List<byte[]> samples = new ArrayList<byte[]>();
+        PayloadDecompressor decompressor = new PayloadDecompressor();
+        try (CaptureReader reader = CaptureReader.open(file)) {
+            while (samples.size() < TRAINING_SAMPLES && reader.next()) {
+                ByteBuffer data = decompressor.decompress(reader.data());
+                byte[] sample = new byte[data.remaining()];
+                data.get(sample);
+                samples.add(sample);
+            }
+        }
+        CompressionDictionary dictionary = CompressionDictionary.train(id, samples,
+                options.getInt("dictionary-bytes", DEFAULT_DICTIONARY_BYTES));
+        Path output = Paths.get(options.getString("train-dictionary", null));
+        dictionary.save(output);
+
+        long plainBytes = 0;
+        long builtInBytes = 0;
+        long trainedBytes = 0;
+        CompressedStockTradeCodec builtIn = new CompressedStockTradeCodec(StockTradeCodecs.JSON,
+                CompressionDictionary.builtIn());
+        CompressedStockTradeCodec trained = new CompressedStockTradeCodec(StockTradeCodecs.JSON, dictionary);
+        for (byte[] sample : samples) {
+            plainBytes += sample.length;
+            builtInBytes += builtIn.compress(sample).length;
+            trainedBytes += trained.compress(sample).length;
+        }
+        int count = Math.max(1, samples.size());
+        System.out.println(String.format("Saved dictionary %d of %d bytes to %s. Bytes per payload over %d sample(s):"
+                + " %.1f plain, %.1f with the built in dictionary, %.1f with this dictionary", id, dictionary.size(),
+                output, samples.size(), (double) plainBytes / count, (double) builtInBytes / count,
+                (double) trainedBytes / count));
+    }
+
+    /**
+     * Appends records to a segment, optionally aggregating them first.
+     */
+    private static class AggregatingAppender {
+        private final SegmentWriter writer;
+        private final AggregatedRecordBuilder builder;
+        private long arrivalMillis;
+        private String partitionKey;
+
+        AggregatingAppender(SegmentWriter writer, boolean aggregate) {
+            this.writer = writer;
+            this.builder = aggregate ? new AggregatedRecordBuilder() : null;
+        }
+
+        void append(long arrivalMillis, String partitionKey, byte[] data) throws IOException {
+            if (builder == null) {
+                writer.append(arrivalMillis, partitionKey, data);
+                return;
+            }
+            if (builder.sizeWith(partitionKey, null, data.length) > ShardAggregator.DEFAULT_MAX_BYTES) {
+                flush();
+            }
+            if (builder.getRecordCount() == 0) {
+                this.arrivalMillis = arrivalMillis;
+                this.partitionKey = partitionKey;
+            }
+            builder.add(partitionKey, null, data);
+        }
+
+        void flush() throws IOException {
+            if (builder != null && builder.getRecordCount() > 0) {
+                writer.append(arrivalMillis, partitionKey, builder.build());
+                builder.clear();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        checkUsage(options);
+
+        setLogLevels();
+
+        Path file = Paths.get(options.getPositional().get(0));
+        if (options.has("generate")) {
+            generate(file, options);
+            return;
+        }
+        if (options.has("train-dictionary")) {
+            trainDictionary(file, options);
+            return;
+        }
+
+        double speedup = "recorded".equals(options.getString("pace", "max")) ? options.getDouble("speedup", 1) : 0;
+        ReplayEngine.Result result;
+        try (StockTradeRecordProcessorFactory factory = new StockTradeRecordProcessorFactory(
+                StockTradeProcessorConfig.fromOptions(options));
+             CaptureReader reader = CaptureReader.open(file)) {
+            ReplayEngine engine = new ReplayEngine(factory, options.getInt("shards", DEFAULT_SHARDS),
+                    options.getInt("batch-records", DEFAULT_BATCH_RECORDS), speedup);
+            result = engine.replay(reader);
+        }
+        System.out.println(result);
+    }
+
+}
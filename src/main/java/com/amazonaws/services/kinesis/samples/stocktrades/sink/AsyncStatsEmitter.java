@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.sink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Emits window reports to a {@link StatsSink} on a thread of its own.
+ * <p>
+ * {@link #submit(WindowReport)} only offers the report to a bounded queue, so it never
+ * blocks: when the queue is full, the report is dropped and counted. The emitter thread
+ * takes every report waiting at once, turns them into points and hands them to the sink in
+ * batches as large as it accepts, so a burst of windows closing together costs few calls.
+ * Points the sink fails to emit are dropped and counted as well.
+ */
+public class AsyncStatsEmitter implements AutoCloseable {
+
+    private static final Log log = LogFactory.getLog(AsyncStatsEmitter.class);
+
+    // Dropped reports are logged once in DROP_LOG_INTERVAL
+    private static final int DROP_LOG_INTERVAL = 100;
+
+    // How often the emitter thread checks whether it is closed while the queue is empty
+    private static final long POLL_MILLIS = 200L;
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 30000L;
+
+    private final StatsSink sink;
+    private final boolean perTicker;
+    private final BlockingQueue<WindowReport> queue;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private final AtomicLong droppedReports = new AtomicLong();
+    private final AtomicLong emittedPoints = new AtomicLong();
+    private final AtomicLong failedPoints = new AtomicLong();
+
+    /**
+     * Constructor. Starts the emitter thread.
+     *
+     * @param sink Sink the points are emitted to, closed with the emitter
+     * @param capacity Number of reports waiting at most
+     * @param perTicker Whether to emit the metrics of every ticker, see
+     *        {@link WindowReport#toPoints(boolean, List)}
+     */
+    public AsyncStatsEmitter(StatsSink sink, int capacity, boolean perTicker) {
+        this.sink = sink;
+        this.perTicker = perTicker;
+        this.queue = new ArrayBlockingQueue<WindowReport>(capacity);
+        this.thread = new Thread(this::run, "stats-emitter-" + sink.name());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getName() {
+        return sink.name();
+    }
+
+    /**
+     * Queues a report to be emitted, unless the queue is full or the emitter is closed.
+     *
+     * @return false if the report was dropped
+     */
+    public boolean submit(WindowReport report) {
+        if (!closed && queue.offer(report)) {
+            return true;
+        }
+        drop();
+        return false;
+    }
+
+    /**
+     * Counts a report dropped without being submitted, as the queue was full.
+     */
+    void drop() {
+        long dropped = droppedReports.incrementAndGet();
+        if (dropped % DROP_LOG_INTERVAL == 1) {
+            log.warn("Stats sink " + sink.name() + " is falling behind, dropped " + dropped + " report(s) so far");
+        }
+    }
+
+    /**
+     * @return true if the queue is full, in which case reports submitted now are dropped
+     */
+    public boolean isFull() {
+        return queue.remainingCapacity() == 0;
+    }
+
+    public long getQueuedReports() {
+        return queue.size();
+    }
+
+    public long getDroppedReports() {
+        return droppedReports.get();
+    }
+
+    public long getEmittedPoints() {
+        return emittedPoints.get();
+    }
+
+    public long getFailedPoints() {
+        return failedPoints.get();
+    }
+
+    /**
+     * Stops accepting reports, emits those still queued and closes the sink.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            log.warn("Stats sink " + sink.name() + " did not finish emitting within " + CLOSE_TIMEOUT_MILLIS
+                    + " ms");
+        }
+        try {
+            sink.close();
+        } catch (IOException e) {
+            log.error("Failed to close stats sink " + sink.name() + ".", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sink.name() + ": " + emittedPoints.get() + " point(s) emitted, " + failedPoints.get()
+                + " failed, " + droppedReports.get() + " report(s) dropped";
+    }
+
+    private void run() {
+        List<WindowReport> reports = new ArrayList<WindowReport>();
+        List<StatsPoint> points = new ArrayList<StatsPoint>();
+        while (true) {
+            WindowReport first;
+            try {
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first == null) {
+                if (closed) {
+                    // nothing is submitted once closed, so the queue stays empty
+                    break;
+                }
+                continue;
+            }
+            reports.add(first);
+            queue.drainTo(reports);
+            emit(reports, points);
+        }
+    }
+
+    private void emit(List<WindowReport> reports, List<StatsPoint> points) {
+        for (WindowReport report : reports) {
+            report.toPoints(perTicker, points);
+        }
+        reports.clear();
+        int batchSize = Math.max(1, sink.maxBatchPoints());
+        for (int from = 0; from < points.size(); from += batchSize) {
+            List<StatsPoint> batch = points.subList(from, Math.min(points.size(), from + batchSize));
+            try {
+                sink.emit(batch);
+                emittedPoints.addAndGet(batch.size());
+            } catch (IOException | RuntimeException e) {
+                failedPoints.addAndGet(batch.size());
+                log.error("Failed to emit " + batch.size() + " point(s) to stats sink " + sink.name() + ".", e);
+            }
+        }
+        points.clear();
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.sink;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
+
+/**
+ * Puts points to CloudWatch as custom metrics, through the client the KCL already uses. Each
+ * point becomes a datum of the metric it names, with the dimensions Scope, Window and, for per
+ * ticker metrics, Ticker, timestamped at the end of its window. CloudWatch rejects data more
+ * than two weeks old, so windows of replayed captures are better emitted to files.
+ * <p>
+ * The client is shared and left open when the sink is closed.
+ */
+public class CloudWatchStatsSink implements StatsSink {
+
+    /** Most data accepted by a PutMetricData call **/
+    static final int MAX_BATCH_POINTS = 20;
+
+    private static final long REQUEST_TIMEOUT_SECONDS = 30L;
+
+    private final CloudWatchAsyncClient client;
+    private final String namespace;
+
+    /**
+     * Constructor.
+     *
+     * @param client CloudWatch client
+     * @param namespace Namespace of the metrics
+     */
+    public CloudWatchStatsSink(CloudWatchAsyncClient client, String namespace) {
+        this.client = client;
+        this.namespace = namespace;
+    }
+
+    @Override
+    public String name() {
+        return "cloudwatch";
+    }
+
+    @Override
+    public int maxBatchPoints() {
+        return MAX_BATCH_POINTS;
+    }
+
+    @Override
+    public void emit(List<StatsPoint> points) throws IOException {
+        List<MetricDatum> data = new ArrayList<MetricDatum>(points.size());
+        for (StatsPoint point : points) {
+            List<Dimension> dimensions = new ArrayList<Dimension>(3);
+            dimensions.add(Dimension.builder().name("Scope").value(point.getScope()).build());
+            dimensions.add(Dimension.builder().name("Window").value(point.getWindow()).build());
+            if (point.getTickerSymbol() != null) {
+                dimensions.add(Dimension.builder().name("Ticker").value(point.getTickerSymbol()).build());
+            }
+            data.add(MetricDatum.builder()
+                    .metricName(point.getMetric())
+                    .dimensions(dimensions)
+                    .timestamp(Instant.ofEpochMilli(point.getTimestampMillis()))
+                    .value(point.getValue())
+                    .unit(StandardUnit.NONE)
+                    .build());
+        }
+        PutMetricDataRequest request = PutMetricDataRequest.builder().namespace(namespace).metricData(data).build();
+        try {
+            client.putMetricData(request).get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException("PutMetricData failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("PutMetricData timed out after " + REQUEST_TIMEOUT_SECONDS + " s", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while putting metric data", e);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
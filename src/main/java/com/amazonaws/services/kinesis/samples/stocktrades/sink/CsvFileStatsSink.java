@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.sink;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Appends points to CSV files in a local directory, one point per line:
+ * <pre>
+ *   timestamp,scope,window,metric,ticker,value
+ *   2015-10-21T16:29:00Z,Worker,1m,trades,,48210.0
+ * </pre>
+ * The timestamp is the end of the window. A new file, named after the time it was opened,
+ * is started once the current one is older than the roll interval or larger than the roll
+ * size, so that old files can be shipped or deleted while the processor runs.
+ */
+public class CsvFileStatsSink implements StatsSink {
+
+    static final String HEADER = "timestamp,scope,window,metric,ticker,value";
+
+    private static final DateTimeFormatter FILE_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+
+    private final Path directory;
+    private final long rollIntervalMillis;
+    private final long rollBytes;
+
+    private Writer out;
+    private long openedMillis;
+    private long written;
+
+    /**
+     * Constructor. Files are created on the first emit.
+     *
+     * @param directory Directory of the files, created if needed
+     * @param rollIntervalMillis Age of a file after which the next one is started
+     * @param rollBytes Size of a file after which the next one is started
+     */
+    public CsvFileStatsSink(Path directory, long rollIntervalMillis, long rollBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.rollIntervalMillis = rollIntervalMillis;
+        this.rollBytes = rollBytes;
+    }
+
+    @Override
+    public String name() {
+        return "csv";
+    }
+
+    @Override
+    public void emit(List<StatsPoint> points) throws IOException {
+        long now = System.currentTimeMillis();
+        if (out == null || now - openedMillis >= rollIntervalMillis || written >= rollBytes) {
+            roll(now);
+        }
+        StringBuilder line = new StringBuilder(128);
+        for (StatsPoint point : points) {
+            line.setLength(0);
+            line.append(Instant.ofEpochMilli(point.getTimestampMillis())).append(',');
+            appendField(line, point.getScope()).append(',');
+            appendField(line, point.getWindow()).append(',');
+            appendField(line, point.getMetric()).append(',');
+            if (point.getTickerSymbol() != null) {
+                appendField(line, point.getTickerSymbol());
+            }
+            line.append(',').append(point.getValue()).append('\n');
+            out.append(line);
+            written += line.length();
+        }
+        // the lines are visible to readers of the file once a batch is emitted
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void roll(long now) throws IOException {
+        close();
+        String name = "stats-" + FILE_TIME.format(Instant.ofEpochMilli(now));
+        Path file = directory.resolve(name + ".csv");
+        for (int i = 1; Files.exists(file); i++) {
+            file = directory.resolve(name + "-" + i + ".csv");
+        }
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        out.write(HEADER);
+        out.write('\n');
+        openedMillis = now;
+        written = HEADER.length() + 1;
+    }
+
+    private static StringBuilder appendField(StringBuilder line, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return line.append(value);
+        }
+        return line.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+}
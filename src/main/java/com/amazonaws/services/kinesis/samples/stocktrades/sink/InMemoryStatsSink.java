@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.sink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the points emitted in memory, in place of a real sink in local runs and tests. It can
+ * be made to fail or to slow down, to see how the emitter copes with a sink in trouble.
+ */
+public class InMemoryStatsSink implements StatsSink {
+
+    private final int maxBatchPoints;
+    private final List<StatsPoint> points = new ArrayList<StatsPoint>();
+    private int batches;
+    private volatile long delayMillis;
+    private volatile boolean failing;
+
+    public InMemoryStatsSink() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBatchPoints Largest batch accepted, such as that of the sink stood in for
+     */
+    public InMemoryStatsSink(int maxBatchPoints) {
+        this.maxBatchPoints = maxBatchPoints;
+    }
+
+    @Override
+    public String name() {
+        return "memory";
+    }
+
+    @Override
+    public int maxBatchPoints() {
+        return maxBatchPoints;
+    }
+
+    @Override
+    public void emit(List<StatsPoint> batch) throws IOException {
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failing) {
+            throw new IOException("Simulated failure");
+        }
+        synchronized (this) {
+            points.addAll(batch);
+            batches++;
+        }
+    }
+
+    /**
+     * Makes every emit take at least the given time.
+     */
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Makes every emit fail, or succeed again.
+     */
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    /**
+     * @return a copy of the points emitted so far, in order
+     */
+    public synchronized List<StatsPoint> getPoints() {
+        return new ArrayList<StatsPoint>(points);
+    }
+
+    public synchronized int getBatches() {
+        return batches;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
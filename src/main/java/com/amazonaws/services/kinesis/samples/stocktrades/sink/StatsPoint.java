@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.sink;
+
+/**
+ * One value of the stats of a window, as emitted to a {@link StatsSink}. A point is named by
+ * the scope and window it belongs to, the metric, and the ticker for per ticker metrics.
+ */
+public class StatsPoint {
+
+    private final long timestampMillis;
+    private final String scope;
+    private final String window;
+    private final String metric;
+    private final String tickerSymbol;
+    private final double value;
+
+    /**
+     * Constructor.
+     *
+     * @param timestampMillis End of the window, in event time
+     * @param scope What the stats cover, such as a stream
+     * @param window Spec of the window, such as 1m
+     * @param metric Name of the metric
+     * @param tickerSymbol Ticker the value is about, or null
+     * @param value Value
+     */
+    public StatsPoint(long timestampMillis, String scope, String window, String metric, String tickerSymbol,
+                      double value) {
+        this.timestampMillis = timestampMillis;
+        this.scope = scope;
+        this.window = window;
+        this.metric = metric;
+        this.tickerSymbol = tickerSymbol;
+        this.value = value;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public String getWindow() {
+        return window;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public String getTickerSymbol() {
+        return tickerSymbol;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return scope + " " + window + " " + metric + (tickerSymbol == null ? "" : " " + tickerSymbol) + " = "
+                + value + " @ " + timestampMillis;
+    }
+
+}
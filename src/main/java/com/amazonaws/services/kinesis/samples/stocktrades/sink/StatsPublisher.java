@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.sink;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Metrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockStats;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.WindowSpec;
+import com.amazonaws.services.kinesis.samples.stocktrades.utils.CommandLineOptions;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+
+/**
+ * Publishes the stats of closed windows to any number of {@link StatsSink}s, each driven by
+ * its own {@link AsyncStatsEmitter}, so that a slow sink holds up neither the caller nor the
+ * other sinks. The stats are copied once per window and shared by the emitters, and not at
+ * all when every emitter is full. May be shared by the factories of several streams.
+ */
+public class StatsPublisher implements AutoCloseable {
+
+    static final int DEFAULT_QUEUE_REPORTS = 1000;
+    static final long DEFAULT_ROLL_INTERVAL_MILLIS = 3600000L; // 1 hour
+    static final long DEFAULT_ROLL_BYTES = 64L << 20;
+    static final String STATSD_PREFIX = "stocktrades";
+    static final String DEFAULT_NAMESPACE = "StockTrades";
+
+    private final List<AsyncStatsEmitter> emitters;
+
+    public StatsPublisher(List<AsyncStatsEmitter> emitters) {
+        this.emitters = new ArrayList<AsyncStatsEmitter>(emitters);
+    }
+
+    /**
+     * Creates the sinks given as command line options, if any.
+     *
+     * @param options Command line options
+     * @param cloudWatchClient Client used by the CloudWatch sink
+     * @return the publisher, or null if no sink is given
+     * @throws IllegalArgumentException if a sink is unknown or cannot be opened
+     */
+    public static StatsPublisher fromOptions(CommandLineOptions options, CloudWatchAsyncClient cloudWatchClient) {
+        if (!options.has("stats-sinks")) {
+            return null;
+        }
+        int capacity = options.getInt("stats-queue", DEFAULT_QUEUE_REPORTS);
+        boolean perTicker = options.getBoolean("stats-per-ticker", false);
+        List<AsyncStatsEmitter> emitters = new ArrayList<AsyncStatsEmitter>();
+        for (String spec : options.getString("stats-sinks", "").split(",")) {
+            StatsSink sink;
+            try {
+                sink = newSink(spec, options, cloudWatchClient);
+            } catch (IOException | RuntimeException e) {
+                for (AsyncStatsEmitter emitter : emitters) {
+                    emitter.close();
+                }
+                throw new IllegalArgumentException("Cannot open stats sink " + spec + ": " + e.getMessage(), e);
+            }
+            emitters.add(new AsyncStatsEmitter(sink, capacity, perTicker));
+        }
+        return new StatsPublisher(emitters);
+    }
+
+    private static StatsSink newSink(String spec, CommandLineOptions options, CloudWatchAsyncClient cloudWatchClient)
+            throws IOException {
+        int colon = spec.indexOf(':');
+        String type = colon < 0 ? spec : spec.substring(0, colon);
+        String argument = colon < 0 ? null : spec.substring(colon + 1);
+        switch (type) {
+            case "csv":
+                if (argument == null) {
+                    throw new IllegalArgumentException("missing directory");
+                }
+                return new CsvFileStatsSink(Paths.get(argument),
+                        options.getDurationMillis("stats-roll-interval", DEFAULT_ROLL_INTERVAL_MILLIS),
+                        options.getLong("stats-roll-bytes", DEFAULT_ROLL_BYTES));
+            case "statsd":
+                int port = argument == null ? -1 : argument.lastIndexOf(':');
+                if (port < 0) {
+                    throw new IllegalArgumentException("missing host and port");
+                }
+                return new StatsdStatsSink(new InetSocketAddress(argument.substring(0, port),
+                        Integer.parseInt(argument.substring(port + 1))), STATSD_PREFIX);
+            case "cloudwatch":
+                return new CloudWatchStatsSink(cloudWatchClient, argument == null ? DEFAULT_NAMESPACE : argument);
+            case "memory":
+                return new InMemoryStatsSink();
+            default:
+                throw new IllegalArgumentException("unknown sink type " + type);
+        }
+    }
+
+    /**
+     * @return command line options understood by {@link #fromOptions(CommandLineOptions, CloudWatchAsyncClient)}
+     */
+    public static String usage() {
+        return "[--stats-sinks=<sink>[,<sink>...] [--stats-queue=<reports>] [--stats-per-ticker]"
+                + " [--stats-roll-interval=<duration>] [--stats-roll-bytes=<n>]]"
+                + " where <sink> is csv:<directory>, statsd:<host>:<port>, cloudwatch[:<namespace>] or memory";
+    }
+
+    /**
+     * Queues the stats of a window to every sink, without blocking. The stats are copied, so
+     * the caller may reuse them.
+     *
+     * @param scope What the stats cover, such as a stream
+     */
+    public void publish(String scope, WindowSpec window, long startMillis, long endMillis, StockStats stats) {
+        WindowReport report = null;
+        for (AsyncStatsEmitter emitter : emitters) {
+            if (emitter.isFull()) {
+                emitter.drop();
+                continue;
+            }
+            if (report == null) {
+                report = new WindowReport(scope, window, startMillis, endMillis, stats.copy());
+            }
+            emitter.submit(report);
+        }
+    }
+
+    public List<AsyncStatsEmitter> getEmitters() {
+        return Collections.unmodifiableList(emitters);
+    }
+
+    /**
+     * Registers gauges of the queued and dropped reports and the emitted and failed points of
+     * every sink, named statsSinks.&lt;sink&gt;.*.
+     */
+    public void registerMetrics(Metrics metrics) {
+        for (AsyncStatsEmitter emitter : emitters) {
+            String prefix = "statsSinks." + emitter.getName() + ".";
+            metrics.gauge(prefix + "queuedReports", emitter::getQueuedReports);
+            metrics.gauge(prefix + "droppedReports", emitter::getDroppedReports);
+            metrics.gauge(prefix + "emittedPoints", emitter::getEmittedPoints);
+            metrics.gauge(prefix + "failedPoints", emitter::getFailedPoints);
+        }
+    }
+
+    /**
+     * Emits the reports still queued and closes the sinks.
+     */
+    @Override
+    public void close() {
+        for (AsyncStatsEmitter emitter : emitters) {
+            emitter.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Stats sinks:");
+        for (AsyncStatsEmitter emitter : emitters) {
+            sb.append(' ').append(emitter).append(';');
+        }
+        if (!emitters.isEmpty()) {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+}
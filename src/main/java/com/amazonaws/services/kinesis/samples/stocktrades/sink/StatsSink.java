@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of the stats of closed windows, such as files or a metrics service.
+ * <p>
+ * Sinks are driven by an {@link AsyncStatsEmitter}, which calls them from a single thread of
+ * its own, so they may block and need not be thread safe. The emitter hands points over in
+ * batches of at most {@link #maxBatchPoints()}.
+ */
+public interface StatsSink extends Closeable {
+
+    /**
+     * @return a short name of the sink, for logging and metrics
+     */
+    String name();
+
+    /**
+     * @return the largest number of points passed to a single {@link #emit(List)}
+     */
+    default int maxBatchPoints() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Emits a batch of points.
+     *
+     * @throws IOException if the points could not be emitted, in which case they are dropped
+     */
+    void emit(List<StatsPoint> points) throws IOException;
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.sink;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Sends points as StatsD gauges over UDP, one line per point:
+ * <pre>
+ *   stocktrades.Worker.1m.mostPopularBuyTrades.AMZN:1520|g
+ * </pre>
+ * Characters other than letters, digits, '-' and '_' in the names are replaced by '_'.
+ * Lines are packed into datagrams of at most {@link #MAX_PACKET_BYTES}, which fit in the MTU
+ * of most networks. Delivery is not acknowledged, so points lost on the way are not counted.
+ */
+public class StatsdStatsSink implements StatsSink {
+
+    /** Largest datagram sent, so that it is not fragmented on an Ethernet network **/
+    static final int MAX_PACKET_BYTES = 1432;
+
+    private final String prefix;
+    private final DatagramChannel channel;
+    private final ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_BYTES);
+    private final StringBuilder line = new StringBuilder(128);
+
+    /**
+     * Constructor.
+     *
+     * @param address Address of the StatsD server or agent
+     * @param prefix Prefix of every metric name, such as stocktrades
+     */
+    public StatsdStatsSink(InetSocketAddress address, String prefix) throws IOException {
+        this.prefix = prefix;
+        this.channel = DatagramChannel.open();
+        channel.connect(address);
+    }
+
+    @Override
+    public String name() {
+        return "statsd";
+    }
+
+    @Override
+    public void emit(List<StatsPoint> points) throws IOException {
+        packet.clear();
+        for (StatsPoint point : points) {
+            byte[] bytes = format(point);
+            if (packet.position() > 0 && bytes.length + 1 > packet.remaining()) {
+                send();
+            }
+            if (bytes.length > packet.remaining()) {
+                // too long for a datagram of its own, which is only possible with absurd names
+                continue;
+            }
+            if (packet.position() > 0) {
+                packet.put((byte) '\n');
+            }
+            packet.put(bytes);
+        }
+        if (packet.position() > 0) {
+            send();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private byte[] format(StatsPoint point) {
+        line.setLength(0);
+        if (!prefix.isEmpty()) {
+            appendName(prefix).append('.');
+        }
+        appendName(point.getScope()).append('.');
+        appendName(point.getWindow()).append('.');
+        appendName(point.getMetric());
+        if (point.getTickerSymbol() != null) {
+            line.append('.');
+            appendName(point.getTickerSymbol());
+        }
+        line.append(':');
+        double value = point.getValue();
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            line.append((long) value);
+        } else {
+            line.append(value);
+        }
+        line.append("|g");
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private StringBuilder appendName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_';
+            line.append(valid ? c : '_');
+        }
+        return line;
+    }
+
+    private void send() throws IOException {
+        packet.flip();
+        channel.write(packet);
+        packet.clear();
+    }
+
+}
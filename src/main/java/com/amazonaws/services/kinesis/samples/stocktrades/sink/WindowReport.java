@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.services.kinesis.samples.stocktrades.sink;
+
+import java.util.List;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.KllSketch;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.SpaceSavingSketch;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockStats;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.TickerSummary;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.TradeSketches;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.WindowSpec;
+
+/**
+ * The stats of a closed window, waiting to be emitted. The stats are a private copy, only
+ * read once handed over, so a report may be shared by several emitters.
+ */
+public class WindowReport {
+
+    private static final TradeType[] TRADE_TYPES = TradeType.values();
+    private static final String[] MOST_POPULAR_METRICS = new String[TRADE_TYPES.length];
+
+    static {
+        for (TradeType tradeType : TRADE_TYPES) {
+            String name = tradeType.name();
+            MOST_POPULAR_METRICS[tradeType.ordinal()] = "mostPopular" + name.charAt(0)
+                    + name.substring(1).toLowerCase() + "Trades";
+        }
+    }
+
+    private final String scope;
+    private final String window;
+    private final long startMillis;
+    private final long endMillis;
+    private final StockStats stats;
+
+    /**
+     * Constructor.
+     *
+     * @param scope What the stats cover, such as a stream
+     * @param window Spec of the window
+     * @param startMillis Start of the window, inclusive, in event time
+     * @param endMillis End of the window, exclusive, in event time
+     * @param stats Stats of the window, which must no longer be updated
+     */
+    public WindowReport(String scope, WindowSpec window, long startMillis, long endMillis, StockStats stats) {
+        this.scope = scope;
+        this.window = window.toString();
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.stats = stats;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    /**
+     * Adds the points of the window: the trades counted and dropped, the most popular ticker
+     * of each trade type, and the price and quantity quantiles for approximate stats.
+     *
+     * @param perTicker Whether to also add the trades, volume, notional, VWAP and prices of
+     *        every ticker, for exact stats
+     * @param points Receives the points
+     */
+    public void toPoints(boolean perTicker, List<StatsPoint> points) {
+        points.add(point("trades", null, stats.getTradeCount()));
+        points.add(point("droppedTrades", null, stats.getDroppedTrades()));
+        TradeSketches sketches = stats.getSketches();
+        for (TradeType tradeType : TRADE_TYPES) {
+            String metric = MOST_POPULAR_METRICS[tradeType.ordinal()];
+            if (sketches != null) {
+                List<SpaceSavingSketch.Entry> top = sketches.getTopTickers(tradeType).top(1);
+                if (!top.isEmpty()) {
+                    points.add(point(metric, top.get(0).getKey(), top.get(0).getCount()));
+                }
+            } else if (stats.getMostPopularStock(tradeType) != null) {
+                points.add(point(metric, stats.getMostPopularStock(tradeType),
+                        stats.getMostPopularStockCount(tradeType)));
+            }
+        }
+        if (sketches != null) {
+            addQuantiles("price", sketches.getPrices(), points);
+            addQuantiles("quantity", sketches.getQuantities(), points);
+            return;
+        }
+        if (perTicker) {
+            for (TickerSummary summary : stats.getTickerSummaries()) {
+                String ticker = summary.getTickerSymbol();
+                points.add(point("tickerTrades", ticker, summary.getTrades()));
+                points.add(point("tickerVolume", ticker, summary.getVolume()));
+                points.add(point("tickerNotional", ticker, summary.getNotional()));
+                points.add(point("tickerVwap", ticker, summary.getVwap()));
+                points.add(point("tickerOpen", ticker, summary.getOpen()));
+                points.add(point("tickerHigh", ticker, summary.getHigh()));
+                points.add(point("tickerLow", ticker, summary.getLow()));
+                points.add(point("tickerClose", ticker, summary.getClose()));
+            }
+        }
+    }
+
+    private void addQuantiles(String name, KllSketch sketch, List<StatsPoint> points) {
+        if (sketch.isEmpty()) {
+            return;
+        }
+        points.add(point(name + "P50", null, sketch.getQuantile(0.5)));
+        points.add(point(name + "P99", null, sketch.getQuantile(0.99)));
+    }
+
+    private StatsPoint point(String metric, String tickerSymbol, double value) {
+        return new StatsPoint(endMillis, scope, window, metric, tickerSymbol, value);
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits command line arguments into positional arguments and {@code --name=value} options.
+ * An option given without a value, such as {@code --verbose}, is treated as {@code true}.
+ */
+public class CommandLineOptions {
+
+    private final List<String> positional = new ArrayList<String>();
+    private final Map<String, String> options = new HashMap<String, String>();
+
+    public CommandLineOptions(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    options.put(arg.substring(2), "true");
+                } else {
+                    options.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+    }
+
+    public List<String> getPositional() {
+        return Collections.unmodifiableList(positional);
+    }
+
+    public boolean has(String name) {
+        return options.containsKey(name);
+    }
+
+    public String getString(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Returns a duration option in milliseconds, see {@link #parseDurationMillis(String)}.
+     */
+    public long getDurationMillis(String name, long defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : parseDurationMillis(value);
+    }
+
+    /**
+     * Parses a duration such as "250ms", "10s", "5m" or "1h". A number without a unit is
+     * taken as milliseconds.
+     *
+     * @throws IllegalArgumentException if the duration cannot be parsed
+     */
+    public static long parseDurationMillis(String value) {
+        String v = value.trim().toLowerCase();
+        long unit = 1L;
+        if (v.endsWith("ms")) {
+            v = v.substring(0, v.length() - 2);
+        } else if (v.endsWith("s")) {
+            unit = 1000L;
+            v = v.substring(0, v.length() - 1);
+        } else if (v.endsWith("m")) {
+            unit = 60000L;
+            v = v.substring(0, v.length() - 1);
+        } else if (v.endsWith("h")) {
+            unit = 3600000L;
+            v = v.substring(0, v.length() - 1);
+        }
+        try {
+            return Long.parseLong(v.trim()) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duration: " + value);
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.Varints;
+
+/**
+ * Packs several user records into one Kinesis record in the aggregated record format of the
+ * Kinesis Producer Library, which the KCL de-aggregates transparently. The format is:
+ * <pre>
+ *   magic     4 bytes   F3 89 9A C2
+ *   message   protobuf  AggregatedRecord
+ *   checksum  16 bytes  MD5 of the message
+ * </pre>
+ * where the message is, in protobuf terms:
+ * <pre>
+ *   message AggregatedRecord {
+ *     repeated string partition_key_table     = 1;
+ *     repeated string explicit_hash_key_table = 2;
+ *     repeated Record records                 = 3;
+ *   }
+ *   message Record {
+ *     required uint64 partition_key_index     = 1;
+ *     optional uint64 explicit_hash_key_index = 2;
+ *     required bytes  data                    = 3;
+ *   }
+ * </pre>
+ * Partition keys and explicit hash keys repeated across records are stored once. The
+ * message is small enough to be written by hand, so no protobuf runtime is needed.
+ * <p>
+ * Instances are reusable after {@link #clear()}, and are not thread safe.
+ */
+public class AggregatedRecordBuilder {
+
+    /** Magic number at the start of aggregated records **/
+    public static final byte[] MAGIC = { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2 };
+
+    private static final int CHECKSUM_BYTES = 16;
+
+    // Protobuf tags, field number << 3 | wire type
+    private static final int PARTITION_KEY_TABLE_TAG = 1 << 3 | 2;
+    private static final int EXPLICIT_HASH_KEY_TABLE_TAG = 2 << 3 | 2;
+    private static final int RECORDS_TAG = 3 << 3 | 2;
+    private static final int PARTITION_KEY_INDEX_TAG = 1 << 3;
+    private static final int EXPLICIT_HASH_KEY_INDEX_TAG = 2 << 3;
+    private static final int DATA_TAG = 3 << 3 | 2;
+
+    private final Map<String, Integer> partitionKeyIndexes = new HashMap<String, Integer>();
+    private final List<byte[]> partitionKeys = new ArrayList<byte[]>();
+    private final Map<String, Integer> explicitHashKeyIndexes = new HashMap<String, Integer>();
+    private final List<byte[]> explicitHashKeys = new ArrayList<byte[]>();
+    private final List<UserRecord> records = new ArrayList<UserRecord>();
+    private int messageBytes;
+
+    /**
+     * @return the size of the aggregated record if the user record were added
+     */
+    public int sizeWith(String partitionKey, String explicitHashKey, int dataLength) {
+        int bytes = MAGIC.length + messageBytes + CHECKSUM_BYTES;
+        Integer keyIndex = partitionKeyIndexes.get(partitionKey);
+        if (keyIndex == null) {
+            keyIndex = partitionKeys.size();
+            bytes += tableEntrySize(partitionKey.getBytes(StandardCharsets.UTF_8).length);
+        }
+        Integer hashKeyIndex = null;
+        if (explicitHashKey != null) {
+            hashKeyIndex = explicitHashKeyIndexes.get(explicitHashKey);
+            if (hashKeyIndex == null) {
+                hashKeyIndex = explicitHashKeys.size();
+                bytes += tableEntrySize(explicitHashKey.getBytes(StandardCharsets.UTF_8).length);
+            }
+        }
+        return bytes + tableEntrySize(recordSize(keyIndex, hashKeyIndex, dataLength));
+    }
+
+    /**
+     * Adds a user record.
+     *
+     * @param partitionKey Partition key of the user record
+     * @param explicitHashKey Explicit hash key of the user record, or null
+     * @param data Data of the user record, which is not copied
+     */
+    public void add(String partitionKey, String explicitHashKey, byte[] data) {
+        Integer keyIndex = partitionKeyIndexes.get(partitionKey);
+        if (keyIndex == null) {
+            keyIndex = partitionKeys.size();
+            byte[] key = partitionKey.getBytes(StandardCharsets.UTF_8);
+            partitionKeyIndexes.put(partitionKey, keyIndex);
+            partitionKeys.add(key);
+            messageBytes += tableEntrySize(key.length);
+        }
+        Integer hashKeyIndex = null;
+        if (explicitHashKey != null) {
+            hashKeyIndex = explicitHashKeyIndexes.get(explicitHashKey);
+            if (hashKeyIndex == null) {
+                hashKeyIndex = explicitHashKeys.size();
+                byte[] key = explicitHashKey.getBytes(StandardCharsets.UTF_8);
+                explicitHashKeyIndexes.put(explicitHashKey, hashKeyIndex);
+                explicitHashKeys.add(key);
+                messageBytes += tableEntrySize(key.length);
+            }
+        }
+        UserRecord record = new UserRecord(keyIndex, hashKeyIndex, data);
+        records.add(record);
+        messageBytes += tableEntrySize(record.size);
+    }
+
+    /**
+     * @return the number of user records added
+     */
+    public int getRecordCount() {
+        return records.size();
+    }
+
+    /**
+     * @return the size of the aggregated record
+     */
+    public int size() {
+        return MAGIC.length + messageBytes + CHECKSUM_BYTES;
+    }
+
+    /**
+     * @return the aggregated record
+     */
+    public byte[] build() {
+        byte[] out = new byte[size()];
+        System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+        int offset = MAGIC.length;
+        for (byte[] key : partitionKeys) {
+            offset = writeBytes(out, offset, PARTITION_KEY_TABLE_TAG, key);
+        }
+        for (byte[] key : explicitHashKeys) {
+            offset = writeBytes(out, offset, EXPLICIT_HASH_KEY_TABLE_TAG, key);
+        }
+        for (UserRecord record : records) {
+            out[offset++] = (byte) RECORDS_TAG;
+            offset = Varints.write(out, offset, record.size);
+            out[offset++] = (byte) PARTITION_KEY_INDEX_TAG;
+            offset = Varints.write(out, offset, record.partitionKeyIndex);
+            if (record.explicitHashKeyIndex != null) {
+                out[offset++] = (byte) EXPLICIT_HASH_KEY_INDEX_TAG;
+                offset = Varints.write(out, offset, record.explicitHashKeyIndex);
+            }
+            offset = writeBytes(out, offset, DATA_TAG, record.data);
+        }
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+        md5.update(out, MAGIC.length, messageBytes);
+        System.arraycopy(md5.digest(), 0, out, offset, CHECKSUM_BYTES);
+        return out;
+    }
+
+    public void clear() {
+        partitionKeyIndexes.clear();
+        partitionKeys.clear();
+        explicitHashKeyIndexes.clear();
+        explicitHashKeys.clear();
+        records.clear();
+        messageBytes = 0;
+    }
+
+    private static int writeBytes(byte[] out, int offset, int tag, byte[] bytes) {
+        out[offset++] = (byte) tag;
+        offset = Varints.write(out, offset, bytes.length);
+        System.arraycopy(bytes, 0, out, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    /**
+     * @return the size of a length delimited field with a one byte tag
+     */
+    private static int tableEntrySize(int length) {
+        return 1 + Varints.size(length) + length;
+    }
+
+    private static int recordSize(int partitionKeyIndex, Integer explicitHashKeyIndex, int dataLength) {
+        int size = 1 + Varints.size(partitionKeyIndex) + tableEntrySize(dataLength);
+        if (explicitHashKeyIndex != null) {
+            size += 1 + Varints.size(explicitHashKeyIndex);
+        }
+        return size;
+    }
+
+    private static class UserRecord {
+        private final int partitionKeyIndex;
+        private final Integer explicitHashKeyIndex;
+        private final byte[] data;
+        private final int size;
+
+        UserRecord(int partitionKeyIndex, Integer explicitHashKeyIndex, byte[] data) {
+            this.partitionKeyIndex = partitionKeyIndex;
+            this.explicitHashKeyIndex = explicitHashKeyIndex;
+            this.data = data;
+            this.size = recordSize(partitionKeyIndex, explicitHashKeyIndex, data.length);
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoded trades packed back to back into one buffer, as filled by a
+ * {@link TradeGeneratorEngine.Worker}. The batch remembers where each record ends and the
+ * symbol of its trade, which producers use as partition key.
+ * <p>
+ * A batch is reused from one fill to the next, so records must be consumed or copied before
+ * the batch is filled again.
+ */
+public class EncodedTradeBatch {
+
+    private final ByteBuffer buffer;
+    private final int[] ends;
+    private final int[] symbols;
+    private final long[] ids;
+    private int count;
+
+    /**
+     * Constructor.
+     *
+     * @param capacityBytes Size of the buffer
+     * @param maxRecords Maximum number of records in the batch
+     */
+    public EncodedTradeBatch(int capacityBytes, int maxRecords) {
+        this.buffer = ByteBuffer.allocate(capacityBytes);
+        this.ends = new int[maxRecords];
+        this.symbols = new int[maxRecords];
+        this.ids = new long[maxRecords];
+    }
+
+    /**
+     * @return the number of records in the batch
+     */
+    public int size() {
+        return count;
+    }
+
+    public int maxRecords() {
+        return ends.length;
+    }
+
+    /**
+     * @return the total size of the records, in bytes
+     */
+    public int bytes() {
+        return count == 0 ? 0 : ends[count - 1];
+    }
+
+    /**
+     * @return a read only view of the record, sharing the batch's buffer
+     */
+    public ByteBuffer record(int index) {
+        ByteBuffer record = buffer.asReadOnlyBuffer();
+        record.limit(end(index));
+        record.position(start(index));
+        return record;
+    }
+
+    /**
+     * @return a copy of the record
+     */
+    public byte[] recordBytes(int index) {
+        byte[] bytes = new byte[end(index) - start(index)];
+        System.arraycopy(buffer.array(), start(index), bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * @return the index of the record's symbol in the universe of the engine that filled the batch
+     */
+    public int symbol(int index) {
+        checkIndex(index);
+        return symbols[index];
+    }
+
+    /**
+     * @return the id of the record's trade
+     */
+    public long tradeId(int index) {
+        checkIndex(index);
+        return ids[index];
+    }
+
+    private int start(int index) {
+        checkIndex(index);
+        return index == 0 ? 0 : ends[index - 1];
+    }
+
+    private int end(int index) {
+        checkIndex(index);
+        return ends[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + count);
+        }
+    }
+
+    // Filling, used by the engine's workers
+
+    void clear() {
+        buffer.clear();
+        count = 0;
+    }
+
+    boolean isFull() {
+        return count == ends.length;
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    void recordWritten(int symbol, long id) {
+        ends[count] = buffer.position();
+        symbols[count] = symbol;
+        ids[count] = id;
+        count++;
+    }
+
+}
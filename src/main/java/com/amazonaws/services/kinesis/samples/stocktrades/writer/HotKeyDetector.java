@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds the tickers that are traded too heavily for a single shard, and decides how many salt
+ * buckets their partition keys should be spread over.
+ * <p>
+ * The detector counts the puts of each ticker, and once per interval compares each ticker's
+ * rate with the hot rate, which should be well below the write limit of a shard. A ticker is
+ * spread over as many buckets as its rate needs, and the number of buckets of a ticker is
+ * doubled whenever its puts are throttled in an interval. Buckets are only halved after the
+ * ticker has needed less than half of them for several intervals in a row, so a ticker does
+ * not flap between hot and cold.
+ */
+public class HotKeyDetector {
+
+    private static final Log LOG = LogFactory.getLog(HotKeyDetector.class);
+
+    private static final long DEFAULT_INTERVAL_MILLIS = 1000L;
+
+    // Intervals in a row a ticker must need fewer buckets before its buckets are halved
+    private static final int COOL_DOWN_INTERVALS = 10;
+
+    private final double hotRecordsPerSecond;
+    private final int maxSaltBuckets;
+    private final long intervalMillis;
+    private final Map<String, KeyStats> keys = new ConcurrentHashMap<String, KeyStats>();
+
+    private volatile long nextRollMillis;
+    private long intervalStartMillis;
+
+    /**
+     * Constructor, with intervals of a second.
+     *
+     * @param hotRecordsPerSecond Rate above which a ticker is salted
+     * @param maxSaltBuckets Maximum number of buckets of a ticker
+     */
+    public HotKeyDetector(double hotRecordsPerSecond, int maxSaltBuckets) {
+        this(hotRecordsPerSecond, maxSaltBuckets, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param hotRecordsPerSecond Rate above which a ticker is salted
+     * @param maxSaltBuckets Maximum number of buckets of a ticker
+     * @param intervalMillis Interval over which rates are measured
+     */
+    public HotKeyDetector(double hotRecordsPerSecond, int maxSaltBuckets, long intervalMillis) {
+        if (hotRecordsPerSecond <= 0 || maxSaltBuckets < 1 || intervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid hot key settings: rate " + hotRecordsPerSecond + ", "
+                    + maxSaltBuckets + " bucket(s), interval " + intervalMillis + " ms");
+        }
+        this.hotRecordsPerSecond = hotRecordsPerSecond;
+        this.maxSaltBuckets = maxSaltBuckets;
+        this.intervalMillis = intervalMillis;
+        this.intervalStartMillis = System.currentTimeMillis();
+        this.nextRollMillis = intervalStartMillis + intervalMillis;
+    }
+
+    public int getMaxSaltBuckets() {
+        return maxSaltBuckets;
+    }
+
+    /**
+     * Counts a put of the ticker.
+     *
+     * @return the number of salt buckets the ticker's keys should be spread over, 1 if the
+     *         ticker is not hot
+     */
+    public int recordPut(String tickerSymbol) {
+        long now = System.currentTimeMillis();
+        if (now >= nextRollMillis) {
+            roll(now);
+        }
+        KeyStats stats = keys.get(tickerSymbol);
+        if (stats == null) {
+            stats = keys.computeIfAbsent(tickerSymbol, t -> new KeyStats());
+        }
+        stats.puts.increment();
+        return stats.buckets;
+    }
+
+    /**
+     * Reports that a put of the ticker was throttled. May be called from any thread.
+     */
+    public void throttled(String tickerSymbol) {
+        KeyStats stats = keys.get(tickerSymbol);
+        if (stats != null) {
+            stats.throttles.increment();
+        }
+    }
+
+    /**
+     * @return the current number of salt buckets of the ticker
+     */
+    public int saltBuckets(String tickerSymbol) {
+        KeyStats stats = keys.get(tickerSymbol);
+        return stats == null ? 1 : stats.buckets;
+    }
+
+    private synchronized void roll(long now) {
+        if (now < nextRollMillis) {
+            return;
+        }
+        double seconds = Math.max(1L, now - intervalStartMillis) / 1000.0;
+        intervalStartMillis = now;
+        nextRollMillis = now + intervalMillis;
+
+        for (Map.Entry<String, KeyStats> entry : keys.entrySet()) {
+            KeyStats stats = entry.getValue();
+            double rate = stats.puts.sumThenReset() / seconds;
+            long throttles = stats.throttles.sumThenReset();
+            int needed = (int) Math.min(maxSaltBuckets, Math.max(1, Math.ceil(rate / hotRecordsPerSecond)));
+            int buckets = stats.buckets;
+            if (throttles > 0) {
+                buckets = Math.min(maxSaltBuckets, Math.max(needed, buckets * 2));
+                stats.coolIntervals = 0;
+            } else if (needed > buckets) {
+                buckets = needed;
+                stats.coolIntervals = 0;
+            } else if (needed <= buckets / 2) {
+                if (++stats.coolIntervals >= COOL_DOWN_INTERVALS) {
+                    buckets = Math.max(needed, buckets / 2);
+                    stats.coolIntervals = 0;
+                }
+            } else {
+                stats.coolIntervals = 0;
+            }
+            if (buckets != stats.buckets) {
+                LOG.info("Spreading " + entry.getKey() + " over " + buckets + " salt bucket(s), at "
+                        + Math.round(rate) + " puts/s with " + throttles + " throttled");
+                stats.buckets = buckets;
+            }
+        }
+    }
+
+    private static class KeyStats {
+        private final LongAdder puts = new LongAdder();
+        private final LongAdder throttles = new LongAdder();
+        private volatile int buckets = 1;
+        private int coolIntervals;
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import software.amazon.awssdk.services.kinesis.model.HashKeyRange;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+
+/**
+ * The partition key strategies of the writer.
+ */
+public final class PartitionKeyStrategies {
+
+    /** Separates the ticker symbol from the salt in salted partition keys **/
+    public static final char SALT_SEPARATOR = '#';
+
+    private PartitionKeyStrategies() {
+    }
+
+    /**
+     * Keys every trade by its ticker symbol.
+     */
+    public static PartitionKeyStrategy ticker() {
+        return (tickerSymbol, tradeId) -> tickerSymbol;
+    }
+
+    /**
+     * Keys every trade by its ticker symbol and one of a fixed number of salt buckets, picked
+     * by trade id, such as {@code AAPL#3}.
+     *
+     * @param buckets Number of salt buckets of every ticker
+     */
+    public static PartitionKeyStrategy salted(int buckets) {
+        SaltedKeys keys = new SaltedKeys(buckets);
+        return (tickerSymbol, tradeId) -> keys.key(tickerSymbol, (int) Math.floorMod(tradeId, (long) buckets));
+    }
+
+    /**
+     * Keys every trade randomly, spreading trades evenly over all shards.
+     */
+    public static PartitionKeyStrategy random() {
+        return (tickerSymbol, tradeId) -> Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Keys every trade by its ticker symbol, but sends trades round robin by trade id to shards
+     * through explicit hash keys, one in the middle of the hash key range of each shard.
+     *
+     * @param openShards Open shards of the stream
+     */
+    public static PartitionKeyStrategy explicitHashKey(List<Shard> openShards) {
+        if (openShards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        int shards = openShards.size();
+        String[] hashKeys = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            // the ranges are uneven after a reshard, so each shard's own range is used
+            HashKeyRange range = openShards.get(i).hashKeyRange();
+            BigInteger start = new BigInteger(range.startingHashKey());
+            BigInteger end = new BigInteger(range.endingHashKey());
+            hashKeys[i] = start.add(end).shiftRight(1).toString();
+        }
+        return new PartitionKeyStrategy() {
+            @Override
+            public String partitionKey(String tickerSymbol, long tradeId) {
+                return tickerSymbol;
+            }
+
+            @Override
+            public String explicitHashKey(String tickerSymbol, long tradeId) {
+                return hashKeys[(int) Math.floorMod(tradeId, (long) shards)];
+            }
+        };
+    }
+
+    /**
+     * Keys trades by ticker symbol, and salts the keys of the tickers that the detector finds hot.
+     */
+    public static PartitionKeyStrategy adaptive(HotKeyDetector detector) {
+        SaltedKeys keys = new SaltedKeys(detector.getMaxSaltBuckets());
+        return new PartitionKeyStrategy() {
+            @Override
+            public String partitionKey(String tickerSymbol, long tradeId) {
+                int buckets = detector.recordPut(tickerSymbol);
+                return buckets <= 1 ? tickerSymbol
+                        : keys.key(tickerSymbol, (int) Math.floorMod(tradeId, (long) buckets));
+            }
+
+            @Override
+            public void throttled(String partitionKey) {
+                detector.throttled(tickerSymbol(partitionKey));
+            }
+        };
+    }
+
+    /**
+     * Returns the strategy of the given name.
+     *
+     * @param name "ticker", "salted", "random", "explicit" or "adaptive"
+     * @param saltBuckets Number of salt buckets of the salted strategy, and the maximum of the
+     *        adaptive one
+     * @param openShards Open shards of the stream, for the explicit hash key strategy
+     * @param hotRecordsPerSecond Rate above which the adaptive strategy salts a ticker
+     * @throws IllegalArgumentException if the name is not known
+     */
+    public static PartitionKeyStrategy forName(String name, int saltBuckets, List<Shard> openShards,
+                                               double hotRecordsPerSecond) {
+        if ("ticker".equalsIgnoreCase(name)) {
+            return ticker();
+        } else if ("salted".equalsIgnoreCase(name)) {
+            return salted(saltBuckets);
+        } else if ("random".equalsIgnoreCase(name)) {
+            return random();
+        } else if ("explicit".equalsIgnoreCase(name)) {
+            return explicitHashKey(openShards);
+        } else if ("adaptive".equalsIgnoreCase(name)) {
+            return adaptive(new HotKeyDetector(hotRecordsPerSecond, saltBuckets));
+        }
+        throw new IllegalArgumentException("Unknown partition key strategy: " + name);
+    }
+
+    /**
+     * @return the ticker symbol a partition key was made from, without its salt if any
+     */
+    public static String tickerSymbol(String partitionKey) {
+        int separator = partitionKey.lastIndexOf(SALT_SEPARATOR);
+        return separator < 0 ? partitionKey : partitionKey.substring(0, separator);
+    }
+
+    /**
+     * Salted keys of each ticker, built once.
+     */
+    private static class SaltedKeys {
+        private final int maxBuckets;
+        private final ConcurrentHashMap<String, String[]> keys = new ConcurrentHashMap<String, String[]>();
+
+        SaltedKeys(int maxBuckets) {
+            if (maxBuckets < 1) {
+                throw new IllegalArgumentException("At least one salt bucket is required");
+            }
+            this.maxBuckets = maxBuckets;
+        }
+
+        String key(String tickerSymbol, int bucket) {
+            String[] tickerKeys = keys.computeIfAbsent(tickerSymbol, t -> {
+                String[] k = new String[maxBuckets];
+                for (int i = 0; i < maxBuckets; i++) {
+                    k[i] = t + SALT_SEPARATOR + i;
+                }
+                return k;
+            });
+            return tickerKeys[bucket];
+        }
+    }
+
+}
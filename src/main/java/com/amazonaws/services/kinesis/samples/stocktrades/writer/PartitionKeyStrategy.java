@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+/**
+ * Chooses the partition key, and optionally the explicit hash key, of each trade the writer
+ * sends, and thereby the shard the trade lands on.
+ * <p>
+ * Keying by ticker symbol keeps the trades of a symbol in order on one shard, but sends all
+ * the trades of a heavily traded symbol to the same shard, where they are throttled while
+ * other shards sit idle. The other strategies spread trades wider at the cost of ordering.
+ * Consumers are unaffected either way: stats are keyed by the ticker symbol in the payload,
+ * not by the partition key, and the stats of all shards are merged into worker wide stats,
+ * so per ticker aggregates come out the same whichever shards the trades of a ticker landed on.
+ * <p>
+ * See {@link PartitionKeyStrategies} for the available strategies.
+ */
+public interface PartitionKeyStrategy {
+
+    /**
+     * @param tickerSymbol Ticker symbol of the trade
+     * @param tradeId Id of the trade
+     * @return the partition key of the trade
+     */
+    String partitionKey(String tickerSymbol, long tradeId);
+
+    /**
+     * @param tickerSymbol Ticker symbol of the trade
+     * @param tradeId Id of the trade
+     * @return the explicit hash key of the trade, overriding the hash of its partition key, or
+     *         null to use the partition key
+     */
+    default String explicitHashKey(String tickerSymbol, long tradeId) {
+        return null;
+    }
+
+    /**
+     * Reports that a put with the given partition key was throttled. May be called from any thread.
+     */
+    default void throttled(String partitionKey) {
+    }
+
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Counter;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Histogram;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Metrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.NoOpMetrics;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * Collects records into PutRecords batches and sends them asynchronously, keeping a bounded
+ * number of requests in flight. A batch is sent as soon as it reaches the record count or
+ * size limit of a PutRecords call, or once its oldest record has waited for the linger time.
+ * When the maximum number of requests is already in flight, {@link #add} blocks until one of
+ * them completes, which pushes back on the caller.
+ * <p>
+ * Only the failed entries of a batch are retried, with exponential backoff, until the retry
+ * limit is reached. The batcher works against any {@link KinesisAsyncClient}, so a local stub
+ * that only implements {@code putRecords} is enough to exercise it.
+ */
+public class PutRecordsBatcher implements AutoCloseable {
+
+    private static final Log LOG = LogFactory.getLog(PutRecordsBatcher.class);
+
+    /** Maximum number of records in a single PutRecords request **/
+    public static final int MAX_RECORDS_PER_REQUEST = 500;
+
+    /** Maximum size of a single PutRecords request, including partition keys **/
+    public static final int MAX_BYTES_PER_REQUEST = 5 * 1024 * 1024;
+
+    /** Maximum size of a single record, including its partition key **/
+    public static final int MAX_BYTES_PER_RECORD = 1024 * 1024;
+
+    private static final long BASE_BACKOFF_MILLIS = 50L;
+    private static final long MAX_BACKOFF_MILLIS = 5000L;
+
+    private final KinesisAsyncClient kinesisClient;
+    private final String streamName;
+    private final long lingerMillis;
+    private final int maxRetries;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final ScheduledExecutorService scheduler;
+
+    private List<PutRecordsRequestEntry> pending = new ArrayList<PutRecordsRequestEntry>();
+    private int pendingBytes;
+    private long pendingSinceMillis;
+
+    private final AtomicLong recordsSent = new AtomicLong();
+    private final AtomicLong recordsRetried = new AtomicLong();
+    private final AtomicLong recordsFailed = new AtomicLong();
+
+    // Error code of entries rejected because the shard is over its write limit
+    private static final String THROTTLED_ERROR_CODE = "ProvisionedThroughputExceededException";
+
+    private final boolean timed;
+    private final Histogram putMillis;
+    private final Counter sentCounter;
+    private final Counter throttledCounter;
+    private final Counter retriedCounter;
+    private final Counter failedCounter;
+
+    // Told about the partition key of every throttled entry
+    private volatile PartitionKeyStrategy throttleListener;
+
+    /**
+     * Constructor.
+     *
+     * @param kinesisClient Amazon Kinesis client
+     * @param streamName Name of stream
+     * @param lingerMillis Maximum time a record waits in a partially filled batch
+     * @param maxInFlight Maximum number of PutRecords requests in flight at once
+     * @param maxRetries Number of times a failed entry is retried before it is dropped
+     */
+    public PutRecordsBatcher(KinesisAsyncClient kinesisClient, String streamName, long lingerMillis,
+                             int maxInFlight, int maxRetries) {
+        this(kinesisClient, streamName, lingerMillis, maxInFlight, maxRetries, NoOpMetrics.INSTANCE);
+    }
+
+    /**
+     * Creates a batcher that reports its put latency, throttled and failed entries and
+     * requests in flight.
+     *
+     * @param kinesisClient Amazon Kinesis client
+     * @param streamName Name of stream
+     * @param lingerMillis Maximum time a record waits in a partially filled batch
+     * @param maxInFlight Maximum number of PutRecords requests in flight at once
+     * @param maxRetries Number of times a failed entry is retried before it is dropped
+     * @param metrics Receives the metrics of the batcher
+     */
+    public PutRecordsBatcher(KinesisAsyncClient kinesisClient, String streamName, long lingerMillis,
+                             int maxInFlight, int maxRetries, Metrics metrics) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.kinesisClient = kinesisClient;
+        this.streamName = streamName;
+        this.lingerMillis = lingerMillis;
+        this.maxInFlight = maxInFlight;
+        this.maxRetries = maxRetries;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timed = metrics.isEnabled();
+        this.putMillis = metrics.histogram("writer.putMillis");
+        this.sentCounter = metrics.counter("writer.recordsSent");
+        this.throttledCounter = metrics.counter("writer.recordsThrottled");
+        this.retriedCounter = metrics.counter("writer.recordsRetried");
+        this.failedCounter = metrics.counter("writer.recordsFailed");
+        metrics.gauge("writer.requestsInFlight", () -> maxInFlight - inFlight.availablePermits());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "put-records-batcher");
+            t.setDaemon(true);
+            return t;
+        });
+        long tick = Math.max(1L, lingerMillis / 2);
+        scheduler.scheduleWithFixedDelay(this::flushIfLingered, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a record to the current batch, sending the batch if it is full. Blocks while the
+     * maximum number of requests is in flight.
+     *
+     * @param partitionKey Partition key of the record
+     * @param data Record payload
+     * @throws InterruptedException if interrupted while waiting for an in-flight request
+     */
+    public void add(String partitionKey, byte[] data) throws InterruptedException {
+        add(partitionKey, null, data);
+    }
+
+    /**
+     * Adds a record with an explicit hash key to the current batch, see {@link #add(String, byte[])}.
+     *
+     * @param partitionKey Partition key of the record
+     * @param explicitHashKey Hash key deciding the shard of the record, or null to hash the partition key
+     * @param data Record payload
+     * @throws InterruptedException if interrupted while waiting for an in-flight request
+     */
+    public void add(String partitionKey, String explicitHashKey, byte[] data) throws InterruptedException {
+        add(PutRecordsRequestEntry.builder()
+                .partitionKey(partitionKey)
+                .explicitHashKey(explicitHashKey)
+                .data(SdkBytes.fromByteArray(data))
+                .build());
+    }
+
+    /**
+     * Adds a prepared entry to the current batch, sending the batch if it is full.
+     *
+     * @param entry PutRecords entry
+     * @throws InterruptedException if interrupted while waiting for an in-flight request
+     */
+    public void add(PutRecordsRequestEntry entry) throws InterruptedException {
+        int size = entrySize(entry);
+        if (size > MAX_BYTES_PER_RECORD) {
+            throw new IllegalArgumentException("Record of " + size + " bytes exceeds the "
+                    + MAX_BYTES_PER_RECORD + " byte limit");
+        }
+        List<PutRecordsRequestEntry> full = null;
+        synchronized (this) {
+            if (pendingBytes + size > MAX_BYTES_PER_REQUEST) {
+                full = takePending();
+            }
+            if (pending.isEmpty()) {
+                pendingSinceMillis = System.currentTimeMillis();
+            }
+            pending.add(entry);
+            pendingBytes += size;
+            if (full == null && pending.size() >= MAX_RECORDS_PER_REQUEST) {
+                full = takePending();
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    /**
+     * Sends the current batch, if any, without waiting for it to complete.
+     *
+     * @throws InterruptedException if interrupted while waiting for an in-flight request
+     */
+    public void flush() throws InterruptedException {
+        List<PutRecordsRequestEntry> batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends the current batch and waits for all in-flight requests, including their retries,
+     * to complete. If interrupted, the records not yet sent are abandoned and the interrupt
+     * flag is restored.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Sets the strategy told about throttled entries, so that it can spread hot keys wider.
+     */
+    public void setThrottleListener(PartitionKeyStrategy throttleListener) {
+        this.throttleListener = throttleListener;
+    }
+
+    public long getRecordsSent() {
+        return recordsSent.get();
+    }
+
+    public long getRecordsRetried() {
+        return recordsRetried.get();
+    }
+
+    public long getRecordsFailed() {
+        return recordsFailed.get();
+    }
+
+    private void flushIfLingered() {
+        // never wait for a permit on the scheduler thread, the retries releasing permits run there
+        if (!inFlight.tryAcquire()) {
+            return;
+        }
+        List<PutRecordsRequestEntry> batch = null;
+        synchronized (this) {
+            if (!pending.isEmpty() && System.currentTimeMillis() - pendingSinceMillis >= lingerMillis) {
+                batch = takePending();
+            }
+        }
+        if (batch != null) {
+            putRecords(batch, 0);
+        } else {
+            inFlight.release();
+        }
+    }
+
+    private List<PutRecordsRequestEntry> takePending() {
+        List<PutRecordsRequestEntry> batch = pending;
+        pending = new ArrayList<PutRecordsRequestEntry>();
+        pendingBytes = 0;
+        return batch;
+    }
+
+    private void send(List<PutRecordsRequestEntry> batch) throws InterruptedException {
+        // the permit is held until the batch, including any retries, has completed
+        inFlight.acquire();
+        putRecords(batch, 0);
+    }
+
+    private void putRecords(List<PutRecordsRequestEntry> batch, int attempt) {
+        PutRecordsRequest request = PutRecordsRequest.builder()
+                .streamName(streamName)
+                .records(batch)
+                .build();
+        long startNanos = timed ? System.nanoTime() : 0L;
+        try {
+            kinesisClient.putRecords(request).whenComplete((response, error) -> {
+                if (timed) {
+                    putMillis.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                }
+                try {
+                    onComplete(batch, attempt, response, error);
+                } catch (RuntimeException e) {
+                    LOG.error("Unexpected error while handling PutRecords response.", e);
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            // the client may fail before returning a future, treat it like a failed request
+            onComplete(batch, attempt, null, e);
+        }
+    }
+
+    private void onComplete(List<PutRecordsRequestEntry> batch, int attempt,
+                            PutRecordsResponse response, Throwable error) {
+        List<PutRecordsRequestEntry> failed;
+        if (error != null) {
+            LOG.warn("PutRecords request of " + batch.size() + " record(s) failed: " + error.getMessage());
+            failed = batch;
+        } else if (response.failedRecordCount() != null && response.failedRecordCount() > 0) {
+            failed = new ArrayList<PutRecordsRequestEntry>(response.failedRecordCount());
+            List<PutRecordsResultEntry> results = response.records();
+            for (int i = 0; i < results.size(); i++) {
+                String errorCode = results.get(i).errorCode();
+                if (errorCode != null) {
+                    failed.add(batch.get(i));
+                    if (THROTTLED_ERROR_CODE.equals(errorCode)) {
+                        throttledCounter.increment();
+                        PartitionKeyStrategy listener = throttleListener;
+                        if (listener != null) {
+                            listener.throttled(batch.get(i).partitionKey());
+                        }
+                    }
+                }
+            }
+        } else {
+            failed = null;
+        }
+
+        int succeeded = batch.size() - (failed == null ? 0 : failed.size());
+        recordsSent.addAndGet(succeeded);
+        sentCounter.add(succeeded);
+        if (failed == null || failed.isEmpty()) {
+            inFlight.release();
+            return;
+        }
+
+        if (attempt >= maxRetries) {
+            LOG.error("Dropping " + failed.size() + " record(s) after " + attempt + " retries.");
+            recordsFailed.addAndGet(failed.size());
+            failedCounter.add(failed.size());
+            inFlight.release();
+            return;
+        }
+
+        recordsRetried.addAndGet(failed.size());
+        retriedCounter.add(failed.size());
+        scheduler.schedule(() -> putRecords(failed, attempt + 1), backoffMillis(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    private static long backoffMillis(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        // equal jitter: at least half the ceiling, and random above that so that throttled
+        // producers do not retry in lock step
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    private static int entrySize(PutRecordsRequestEntry entry) {
+        return entry.data().asByteBuffer().remaining()
+                + entry.partitionKey().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import software.amazon.awssdk.services.kinesis.model.Shard;
+
+/**
+ * Aggregates user records bound for the same shard into KPL aggregated records, see
+ * {@link AggregatedRecordBuilder}, and hands the aggregated records to a
+ * {@link PutRecordsBatcher}.
+ * <p>
+ * Each user record is routed by its hash key, which is the MD5 of its partition key unless it
+ * has an explicit hash key, to the open shard whose hash key range holds it. The aggregated
+ * record takes the partition key of its first user record, and that record's hash key as
+ * explicit hash key, so it lands on the shard of all its user records and the KCL keeps all of
+ * them when it de-aggregates. Aggregated records are sent once full, or once their oldest user
+ * record has waited for the linger time, checked whenever a record is added.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class ShardAggregator implements AutoCloseable {
+
+    /** Default maximum size of an aggregated record, as in the KPL **/
+    public static final int DEFAULT_MAX_BYTES = 51200;
+
+    // Hash keys of partition keys are cached, up to this many keys
+    private static final int MAX_CACHED_KEYS = 100000;
+
+    private final PutRecordsBatcher batcher;
+    private final int maxBytes;
+    private final long lingerMillis;
+    private final BigInteger[] startingHashKeys;
+    private final Pending[] pending;
+    private final Map<String, BigInteger> hashKeys = new HashMap<String, BigInteger>();
+    private final MessageDigest md5;
+
+    private long oldestPendingMillis;
+    private long userRecords;
+    private long aggregatedRecords;
+
+    /**
+     * Constructor.
+     *
+     * @param batcher Batcher sending the aggregated records
+     * @param openShards Open shards of the stream, whose hash key ranges cover the hash key space
+     * @param maxBytes Maximum size of an aggregated record
+     * @param lingerMillis Maximum time a user record waits in a partially filled aggregated record
+     */
+    public ShardAggregator(PutRecordsBatcher batcher, List<Shard> openShards, int maxBytes, long lingerMillis) {
+        if (openShards.isEmpty()) {
+            throw new IllegalArgumentException("No open shard to aggregate records for");
+        }
+        if (maxBytes > PutRecordsBatcher.MAX_BYTES_PER_RECORD / 2) {
+            throw new IllegalArgumentException("Aggregated records of " + maxBytes + " bytes are too large");
+        }
+        this.batcher = batcher;
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+        List<Shard> shards = new ArrayList<Shard>(openShards);
+        shards.sort((a, b) -> new BigInteger(a.hashKeyRange().startingHashKey())
+                .compareTo(new BigInteger(b.hashKeyRange().startingHashKey())));
+        startingHashKeys = new BigInteger[shards.size()];
+        pending = new Pending[shards.size()];
+        for (int i = 0; i < shards.size(); i++) {
+            startingHashKeys[i] = new BigInteger(shards.get(i).hashKeyRange().startingHashKey());
+            pending[i] = new Pending();
+        }
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Adds a user record, sending the aggregated record of its shard first if the user record
+     * does not fit.
+     *
+     * @param partitionKey Partition key of the user record
+     * @param explicitHashKey Explicit hash key of the user record, or null
+     * @param data Data of the user record
+     * @throws InterruptedException if interrupted while waiting for an in-flight request
+     */
+    public void add(String partitionKey, String explicitHashKey, byte[] data) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        if (oldestPendingMillis > 0 && now - oldestPendingMillis >= lingerMillis) {
+            flush();
+        }
+        userRecords++;
+
+        BigInteger hashKey = explicitHashKey != null ? new BigInteger(explicitHashKey) : hashKey(partitionKey);
+        Pending shard = pending[shardIndex(hashKey)];
+        if (shard.builder.sizeWith(partitionKey, explicitHashKey, data.length) > maxBytes) {
+            send(shard);
+            if (shard.builder.sizeWith(partitionKey, explicitHashKey, data.length) > maxBytes) {
+                // too large to be aggregated at all
+                batcher.add(partitionKey, explicitHashKey, data);
+                aggregatedRecords++;
+                return;
+            }
+        }
+        if (shard.builder.getRecordCount() == 0) {
+            shard.partitionKey = partitionKey;
+            shard.hashKey = hashKey.toString();
+            if (oldestPendingMillis == 0) {
+                oldestPendingMillis = now;
+            }
+        }
+        shard.builder.add(partitionKey, explicitHashKey, data);
+    }
+
+    /**
+     * Sends every partially filled aggregated record.
+     *
+     * @throws InterruptedException if interrupted while waiting for an in-flight request
+     */
+    public void flush() throws InterruptedException {
+        for (Pending shard : pending) {
+            send(shard);
+        }
+        oldestPendingMillis = 0;
+    }
+
+    /**
+     * Sends every partially filled aggregated record. The batcher is left open. If interrupted,
+     * the records not yet sent are abandoned and the interrupt flag is restored.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getUserRecords() {
+        return userRecords;
+    }
+
+    /**
+     * @return the number of Kinesis records sent, aggregated or not
+     */
+    public long getAggregatedRecords() {
+        return aggregatedRecords;
+    }
+
+    private void send(Pending shard) throws InterruptedException {
+        if (shard.builder.getRecordCount() == 0) {
+            return;
+        }
+        batcher.add(shard.partitionKey, shard.hashKey, shard.builder.build());
+        aggregatedRecords++;
+        shard.builder.clear();
+    }
+
+    private BigInteger hashKey(String partitionKey) {
+        BigInteger hashKey = hashKeys.get(partitionKey);
+        if (hashKey == null) {
+            if (hashKeys.size() >= MAX_CACHED_KEYS) {
+                // random keys would otherwise grow the cache forever
+                hashKeys.clear();
+            }
+            hashKey = new BigInteger(1, md5.digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+            hashKeys.put(partitionKey, hashKey);
+        }
+        return hashKey;
+    }
+
+    /**
+     * @return the index of the shard whose range holds the hash key
+     */
+    private int shardIndex(BigInteger hashKey) {
+        int low = 0;
+        int high = startingHashKeys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (startingHashKeys[mid].compareTo(hashKey) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The aggregated record being filled for a shard.
+     */
+    private static class Pending {
+        private final AggregatedRecordBuilder builder = new AggregatedRecordBuilder();
+        private String partitionKey;
+        private String hashKey;
+    }
+
+}
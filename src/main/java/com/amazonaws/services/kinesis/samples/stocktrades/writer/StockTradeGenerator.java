@@ -25,12 +25,13 @@ import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
 /**
  * Generates random stock trades by picking randomly from a collection of stocks, assigning a
  * random price based on the mean, and picking a random quantity for the shares.
- *
+ * <p>
+ * See {@link TradeGeneratorEngine} to generate trades at high rates or reproducibly.
  */
 
 public class StockTradeGenerator {
 
-    private static final List<StockPrice> STOCK_PRICES = new ArrayList<StockPrice>();
+    static final List<StockPrice> STOCK_PRICES = new ArrayList<StockPrice>();
     static {
         STOCK_PRICES.add(new StockPrice("AAPL", 119.72));
         STOCK_PRICES.add(new StockPrice("XOM", 91.56));
@@ -60,16 +61,31 @@ public class StockTradeGenerator {
     }
 
     /** The ratio of the deviation from the mean price **/
-    private static final double MAX_DEVIATION = 0.2; // ie 20%
+    static final double MAX_DEVIATION = 0.2; // ie 20%
 
     /** The number of shares is picked randomly between 1 and the MAX_QUANTITY **/
-    private static final int MAX_QUANTITY = 10000;
+    static final int MAX_QUANTITY = 10000;
 
     /** Probability of trade being a sell **/
-    private static final double PROBABILITY_SELL = 0.4; // ie 40%
+    static final double PROBABILITY_SELL = 0.4; // ie 40%
 
     private final Random random = new Random();
-    private AtomicLong id = new AtomicLong(1);
+    private final AtomicLong id;
+
+    /**
+     * Creates a generator issuing ids from 1.
+     */
+    public StockTradeGenerator() {
+        this(1L);
+    }
+
+    /**
+     * Creates a generator issuing ids from the given one, such as
+     * {@link TradeGeneratorEngine#runFirstId(long)}.
+     */
+    public StockTradeGenerator(long firstId) {
+        this.id = new AtomicLong(firstId);
+    }
 
     /**
      * Return a random stock trade with a unique id every time.
@@ -98,7 +114,7 @@ public class StockTradeGenerator {
         return new StockTrade(stockPrice.tickerSymbol, tradeType, price, quantity, id.getAndIncrement());
     }
 
-    private static class StockPrice {
+    static class StockPrice {
         String tickerSymbol;
         double price;
 
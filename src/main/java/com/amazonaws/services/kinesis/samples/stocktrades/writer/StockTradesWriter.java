@@ -16,7 +16,11 @@
 package com.amazonaws.services.kinesis.samples.stocktrades.writer;
 
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 
 
@@ -26,10 +30,21 @@ import software.amazon.awssdk.regions.Region;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.MetricRegistry;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.Metrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.NoOpMetrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.CompressedStockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.CompressionDictionary;
 import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodecs;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeFormat;
+import com.amazonaws.services.kinesis.samples.stocktrades.utils.CommandLineOptions;
 import software.amazon.awssdk.services.kinesis.model.DescribeStreamRequest;
 import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
+import software.amazon.awssdk.services.kinesis.model.ProvisionedThroughputExceededException;
 import software.amazon.awssdk.services.kinesis.model.PutRecordRequest;
+import software.amazon.awssdk.services.kinesis.model.Shard;
 import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
 import software.amazon.kinesis.common.KinesisClientUtil;
 
@@ -41,21 +56,73 @@ public class StockTradesWriter {
 
     private static final Log LOG = LogFactory.getLog(StockTradesWriter.class);
 
-    private static void checkUsage(String[] args) {
-        if (args.length != 2) {
+    /** Default time a record may wait in a partially filled batch in batched mode **/
+    private static final long DEFAULT_LINGER_MILLIS = 100L;
+
+    /** Default number of PutRecords requests in flight in batched mode **/
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    /** Number of times a failed record is retried in batched mode **/
+    private static final int MAX_RETRIES = 5;
+
+    /** Default interval between metrics dumps, when metrics are enabled **/
+    private static final long DEFAULT_METRICS_INTERVAL_MILLIS = 60000L;
+
+    /** Default number of distinct ticker symbols in batched mode, those of StockTradeGenerator **/
+    private static final int DEFAULT_SYMBOLS = 25;
+
+    /** Default number of salt buckets of salted partition keys **/
+    private static final int DEFAULT_SALT_BUCKETS = 8;
+
+    /** Default rate above which the adaptive strategy salts a ticker, half the write limit of a shard **/
+    private static final double DEFAULT_HOT_KEY_RATE = 500;
+
+    /** Size of the buffer binary trades are generated into in batched mode **/
+    private static final int ENCODED_BATCH_BYTES = 64 * 1024;
+
+    private static final String METRICS_MBEAN_NAME =
+            "com.amazonaws.services.kinesis.samples.stocktrades:type=StockTradesWriter";
+
+    private static void checkUsage(CommandLineOptions options) {
+        if (options.getPositional().size() != 2 || !hasValidRate(options)) {
             System.err.println("Usage: " + StockTradesWriter.class.getSimpleName()
-                    + " <stream name> <region>");
+                    + " <stream name> <region> [--format=json|binary]"
+                    + " [--compress [--compression-dictionary=<file>]] [--produce-timestamps]"
+                    + " [--partition-key=ticker|salted|random|explicit|adaptive [--salt-buckets=<n>]"
+                    + " [--hot-key-rate=<puts per second>]]"
+                    + " [--rate=<trades per second> [--linger-millis=<millis>] [--max-in-flight=<requests>]"
+                    + " [--seed=<seed>] [--symbols=<count>] [--zipf=<skew>]"
+                    + " [--aggregate [--aggregation-max-bytes=<bytes>]]"
+                    + " [--metrics [--metrics-interval=<duration>]]]");
             System.exit(1);
         }
     }
 
+    /**
+     * @return true unless a target rate is given that is not a finite, positive number of trades per second
+     */
+    private static boolean hasValidRate(CommandLineOptions options) {
+        if (!options.has("rate")) {
+            return true;
+        }
+        try {
+            double tradesPerSecond = options.getDouble("rate", 0);
+            // an infinite rate leaves no time between trades to pace them by
+            return tradesPerSecond > 0 && !Double.isInfinite(tradesPerSecond);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     /**
      * Checks if the stream exists and is active
      *
      * @param kinesisClient Amazon Kinesis client instance
      * @param streamName Name of stream
+     * @return the open shards of the stream
      */
-    private static void validateStream(KinesisAsyncClient kinesisClient, String streamName) {
+    private static List<Shard> validateStream(KinesisAsyncClient kinesisClient, String streamName) {
+        List<Shard> openShards = new ArrayList<Shard>();
         try {
             DescribeStreamRequest describeStreamRequest =  DescribeStreamRequest.builder().streamName(streamName).build();
             DescribeStreamResponse describeStreamResponse = kinesisClient.describeStream(describeStreamRequest).get();
@@ -63,30 +130,168 @@ public class StockTradesWriter {
                 System.err.println("Stream " + streamName + " is not active. Please wait a few moments and try again.");
                 System.exit(1);
             }
+            while (true) {
+                List<Shard> shards = describeStreamResponse.streamDescription().shards();
+                for (Shard shard : shards) {
+                    if (shard.sequenceNumberRange().endingSequenceNumber() == null) {
+                        openShards.add(shard);
+                    }
+                }
+                if (!describeStreamResponse.streamDescription().hasMoreShards() || shards.isEmpty()) {
+                    break;
+                }
+                describeStreamResponse = kinesisClient.describeStream(DescribeStreamRequest.builder()
+                        .streamName(streamName)
+                        .exclusiveStartShardId(shards.get(shards.size() - 1).shardId())
+                        .build()).get();
+            }
         }catch (Exception e) {
             System.err.println("Error found while describing the stream " + streamName);
             System.err.println(e);
             System.exit(1);
         }
+        return openShards;
     }
 
     /**
      * Uses the Kinesis client to send the stock trade to the given stream.
      *
      * @param trade instance representing the stock trade
+     * @param codec Codec used to encode the trade
      * @param kinesisClient Amazon Kinesis client
      * @param streamName Name of stream
+     * @param keys Partition key strategy
+     * @param stampTrades Whether the trade carries the time it is sent
+     */
+    private static void sendStockTrade(StockTrade trade, StockTradeCodec codec, KinesisAsyncClient kinesisClient,
+                                       String streamName, PartitionKeyStrategy keys, boolean stampTrades) {
+        if (stampTrades) {
+            trade = trade.withProducedMillis(System.currentTimeMillis());
+        }
+        byte[] bytes;
+        try {
+            bytes = codec.encode(trade);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Could not encode stock trade: " + e.getMessage());
+            return;
+        }
+
+        LOG.info("Putting trade: " + trade.toString());
+        // By default we use the ticker symbol as the partition key, explained in the Supplemental Information section below.
+        String partitionKey = keys.partitionKey(trade.getTickerSymbol(), trade.getId());
+        PutRecordRequest request = PutRecordRequest.builder()
+                .partitionKey(partitionKey)
+                .explicitHashKey(keys.explicitHashKey(trade.getTickerSymbol(), trade.getId()))
+                .streamName(streamName)
+                .data(SdkBytes.fromByteArray(bytes))
+                .build();
+        try {
+            kinesisClient.putRecord(request).get();
+        } catch (InterruptedException e) {
+            LOG.info("Interrupted, assuming shutdown.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ProvisionedThroughputExceededException) {
+                keys.throttled(partitionKey);
+            }
+            LOG.error("Exception while sending data to Kinesis. Will try again next cycle.", e);
+        }
+    }
+
+    /**
+     * Sends stock trades in PutRecords batches at the given target rate, keeping several
+     * requests in flight at once.
+     *
+     * @param engine Source of the stock trades, of which the first worker is used
+     * @param codec Codec used to encode the trades
+     * @param batcher Batcher used to send the trades
+     * @param aggregator Aggregates the trades before they are batched, or null to send one trade
+     *        per Kinesis record
+     * @param keys Partition key strategy
+     * @param tradesPerSecond Target rate
+     * @param stampTrades Whether each trade carries the time it is handed to the batcher
      */
-    private static void sendStockTrade(StockTrade trade, KinesisAsyncClient kinesisClient,
-                                       String streamName) {
-        // TODO: Implement method
+    private static void sendStockTradesBatched(TradeGeneratorEngine engine, StockTradeCodec codec,
+                                               PutRecordsBatcher batcher, ShardAggregator aggregator,
+                                               PartitionKeyStrategy keys, double tradesPerSecond,
+                                               boolean stampTrades)
+            throws InterruptedException {
+        TradeGeneratorEngine.Worker worker = engine.worker(0);
+        // Binary trades are encoded by the generator straight into a reusable batch. Stamped
+        // trades are encoded about a millisecond ahead at most, so that the stamp stays accurate.
+        int encodedRecords = stampTrades
+                ? (int) Math.max(1, Math.min(PutRecordsBatcher.MAX_RECORDS_PER_REQUEST, tradesPerSecond / 1000))
+                : PutRecordsBatcher.MAX_RECORDS_PER_REQUEST;
+        EncodedTradeBatch encoded = codec.format() == StockTradeFormat.BINARY_V1
+                ? new EncodedTradeBatch(ENCODED_BATCH_BYTES, encodedRecords) : null;
+        int nextEncoded = 0;
+
+        long nanosPerTrade = (long) (TimeUnit.SECONDS.toNanos(1) / tradesPerSecond);
+        long nextTradeNanos = System.nanoTime();
+        long nextReportMillis = System.currentTimeMillis() + 10000L;
+        while (true) {
+            if (encoded != null) {
+                if (nextEncoded == encoded.size()) {
+                    worker.fill(encoded, stampTrades ? System.currentTimeMillis() : 0L);
+                    nextEncoded = 0;
+                }
+                String tickerSymbol = engine.symbol(encoded.symbol(nextEncoded));
+                long tradeId = encoded.tradeId(nextEncoded);
+                addRecord(batcher, aggregator, keys.partitionKey(tickerSymbol, tradeId),
+                        keys.explicitHashKey(tickerSymbol, tradeId), encoded.recordBytes(nextEncoded));
+                nextEncoded++;
+            } else {
+                StockTrade trade = worker.nextTrade();
+                if (stampTrades) {
+                    trade = trade.withProducedMillis(System.currentTimeMillis());
+                }
+                byte[] bytes;
+                try {
+                    bytes = codec.encode(trade);
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Could not encode stock trade: " + e.getMessage());
+                    continue;
+                }
+                addRecord(batcher, aggregator, keys.partitionKey(trade.getTickerSymbol(), trade.getId()),
+                        keys.explicitHashKey(trade.getTickerSymbol(), trade.getId()), bytes);
+            }
+
+            // pace the trades to the target rate, sleeping only once we are ahead by a millisecond or more
+            nextTradeNanos += nanosPerTrade;
+            long aheadNanos = nextTradeNanos - System.nanoTime();
+            if (aheadNanos >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } else if (aheadNanos < -TimeUnit.SECONDS.toNanos(1)) {
+                // we fell behind (for example because of backpressure), do not try to catch up in a burst
+                nextTradeNanos = System.nanoTime();
+            }
+
+            if (System.currentTimeMillis() > nextReportMillis) {
+                if (aggregator != null) {
+                    LOG.info("Aggregated " + aggregator.getUserRecords() + " trade(s) into "
+                            + aggregator.getAggregatedRecords() + " record(s)");
+                }
+                LOG.info("Sent " + batcher.getRecordsSent() + " record(s), retried " + batcher.getRecordsRetried()
+                        + ", dropped " + batcher.getRecordsFailed());
+                nextReportMillis = System.currentTimeMillis() + 10000L;
+            }
+        }
+    }
+
+    private static void addRecord(PutRecordsBatcher batcher, ShardAggregator aggregator, String partitionKey,
+                                  String explicitHashKey, byte[] data) throws InterruptedException {
+        if (aggregator != null) {
+            aggregator.add(partitionKey, explicitHashKey, data);
+        } else {
+            batcher.add(partitionKey, explicitHashKey, data);
+        }
     }
 
     public static void main(String[] args) throws Exception {
-        checkUsage(args);
+        CommandLineOptions options = new CommandLineOptions(args);
+        checkUsage(options);
 
-        String streamName = args[0];
-        String regionName = args[1];
+        String streamName = options.getPositional().get(0);
+        String regionName = options.getPositional().get(1);
         Region region = Region.of(regionName);
         if (region == null) {
             System.err.println(regionName + " is not a valid AWS region.");
@@ -96,13 +301,57 @@ public class StockTradesWriter {
         KinesisAsyncClient kinesisClient = KinesisClientUtil.createKinesisAsyncClient(KinesisAsyncClient.builder().region(region));
 
         // Validate that the stream exists and is active
-        validateStream(kinesisClient, streamName);
+        List<Shard> openShards = validateStream(kinesisClient, streamName);
+
+        // ids restart above those of earlier runs, so that deduplicating consumers keep the new trades
+        long firstId = TradeGeneratorEngine.runFirstId(System.currentTimeMillis());
+        StockTradeGenerator stockTradeGenerator = new StockTradeGenerator(firstId);
+        StockTradeCodec codec = StockTradeCodecs.forName(options.getString("format", "json"));
+        if (options.getBoolean("compress", false)) {
+            CompressionDictionary dictionary = options.has("compression-dictionary")
+                    ? CompressionDictionary.load(Paths.get(options.getString("compression-dictionary", null)))
+                    : CompressionDictionary.builtIn();
+            LOG.info("Compressing trades with dictionary " + dictionary.getId());
+            codec = new CompressedStockTradeCodec(codec, dictionary);
+        }
+        PartitionKeyStrategy keys = PartitionKeyStrategies.forName(options.getString("partition-key", "ticker"),
+                options.getInt("salt-buckets", DEFAULT_SALT_BUCKETS), openShards,
+                options.getDouble("hot-key-rate", DEFAULT_HOT_KEY_RATE));
+        // Lets the processor measure the latency from the producer to Kinesis
+        boolean stampTrades = options.getBoolean("produce-timestamps", false);
+
+        // With a target rate, send the trades in pipelined PutRecords batches
+        if (options.has("rate")) {
+            double tradesPerSecond = options.getDouble("rate", 0);
+            long lingerMillis = options.getLong("linger-millis", DEFAULT_LINGER_MILLIS);
+            int maxInFlight = options.getInt("max-in-flight", DEFAULT_MAX_IN_FLIGHT);
+            long seed = options.getLong("seed", System.nanoTime());
+            LOG.info("Generating trades with seed " + seed);
+            TradeGeneratorEngine engine = new TradeGeneratorEngine(seed, 1, options.getInt("symbols", DEFAULT_SYMBOLS),
+                    options.getDouble("zipf", 0), firstId);
+            MetricRegistry metricRegistry = options.getBoolean("metrics", false) ? MetricRegistry.start(
+                    METRICS_MBEAN_NAME, options.getDurationMillis("metrics-interval", DEFAULT_METRICS_INTERVAL_MILLIS))
+                    : null;
+            Metrics metrics = metricRegistry != null ? metricRegistry : NoOpMetrics.INSTANCE;
+            try (PutRecordsBatcher batcher = new PutRecordsBatcher(kinesisClient, streamName, lingerMillis,
+                    maxInFlight, MAX_RETRIES, metrics);
+                 ShardAggregator aggregator = options.getBoolean("aggregate", false) ? new ShardAggregator(batcher,
+                         openShards, options.getInt("aggregation-max-bytes", ShardAggregator.DEFAULT_MAX_BYTES),
+                         lingerMillis) : null) {
+                batcher.setThrottleListener(keys);
+                sendStockTradesBatched(engine, codec, batcher, aggregator, keys, tradesPerSecond, stampTrades);
+            } finally {
+                if (metricRegistry != null) {
+                    metricRegistry.close();
+                }
+            }
+            return;
+        }
 
         // Repeatedly send stock trades with a 100 milliseconds wait in between
-        StockTradeGenerator stockTradeGenerator = new StockTradeGenerator();
         while(true) {
             StockTrade trade = stockTradeGenerator.getRandomTrade();
-            sendStockTrade(trade, kinesisClient, streamName);
+            sendStockTrade(trade, codec, kinesisClient, streamName, keys, stampTrades);
             Thread.sleep(100);
         }
     }
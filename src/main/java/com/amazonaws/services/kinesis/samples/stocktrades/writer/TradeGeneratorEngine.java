@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.BinaryStockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TickerDictionary;
+
+/**
+ * Generates stock trades at high rates, from any number of independent workers.
+ * <p>
+ * The engine defines a universe of symbols, each with a mean price, and a Zipf distribution
+ * over them, so that a few symbols can be made much more popular than the rest. The first
+ * symbols are those of {@link StockTradeGenerator}, which are all in the
+ * {@link TickerDictionary}, followed by synthetic symbols. Trades follow the same rules as
+ * those of {@link StockTradeGenerator}.
+ * <p>
+ * The engine is split into workers, each with its own {@link SplittableRandom} split from the
+ * seed of the engine, and its own ids: starting from the first id f, worker i of n issues ids
+ * f + i, f + i + n, f + i + 2n and so on, so ids are unique across workers. Workers share
+ * nothing mutable, and the trades of a worker only depend on the seed, the number of workers
+ * and the worker's index, so they are the same from one run to the next, apart from the ids
+ * when the first id differs. Writers start each run at {@link #runFirstId(long)}, so that the
+ * ids of a restarted writer do not repeat those of earlier runs, see
+ * {@link com.amazonaws.services.kinesis.samples.stocktrades.processor.TradeIdDeduplicator}. Workers can
+ * write binary encoded trades straight into an {@link EncodedTradeBatch}, without creating a
+ * {@link StockTrade} or any other garbage.
+ */
+public class TradeGeneratorEngine {
+
+    // The first id of a run is its start time, in seconds since RUN_ID_ORIGIN_SECONDS, shifted
+    // left by RUN_ID_SHIFT bits, which leaves room for 2^20 ids per second of the run
+    private static final long RUN_ID_ORIGIN_SECONDS = 1577836800L; // 2020-01-01T00:00:00Z
+    private static final int RUN_ID_SHIFT = 20;
+
+    private final long seed;
+    private final String[] symbols;
+    private final byte[][] encodedTickers;
+    private final long[] meanPriceCents;
+    // Cumulative distribution of the symbols, for Zipf sampling
+    private final double[] cumulative;
+    private final Worker[] workers;
+
+    /**
+     * Constructor.
+     *
+     * @param seed Seed of the whole engine
+     * @param workerCount Number of workers
+     * @param symbolCount Number of distinct symbols
+     * @param zipfSkew Exponent of the Zipf distribution of the symbols, 0 for uniform
+     */
+    public TradeGeneratorEngine(long seed, int workerCount, int symbolCount, double zipfSkew) {
+        this(seed, workerCount, symbolCount, zipfSkew, 1L);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param seed Seed of the whole engine
+     * @param workerCount Number of workers
+     * @param symbolCount Number of distinct symbols
+     * @param zipfSkew Exponent of the Zipf distribution of the symbols, 0 for uniform
+     * @param firstId Id of the first trade of the first worker, such as {@link #runFirstId(long)}
+     */
+    public TradeGeneratorEngine(long seed, int workerCount, int symbolCount, double zipfSkew, long firstId) {
+        if (workerCount < 1 || symbolCount < 1 || zipfSkew < 0) {
+            throw new IllegalArgumentException("Invalid generator settings: " + workerCount + " worker(s), "
+                    + symbolCount + " symbol(s), skew " + zipfSkew);
+        }
+        this.seed = seed;
+        SplittableRandom random = new SplittableRandom(seed);
+
+        symbols = new String[symbolCount];
+        encodedTickers = new byte[symbolCount][];
+        meanPriceCents = new long[symbolCount];
+        List<StockTradeGenerator.StockPrice> known = StockTradeGenerator.STOCK_PRICES;
+        for (int i = 0; i < symbolCount; i++) {
+            double price;
+            if (i < known.size()) {
+                symbols[i] = known.get(i).tickerSymbol;
+                price = known.get(i).price;
+            } else {
+                symbols[i] = String.format("T%06d", i);
+                price = 5 + random.nextDouble() * 500;
+            }
+            encodedTickers[i] = BinaryStockTradeCodec.encodeTicker(symbols[i]);
+            meanPriceCents[i] = Math.round(price * 100.0);
+        }
+
+        cumulative = new double[symbolCount];
+        double total = 0;
+        for (int i = 0; i < symbolCount; i++) {
+            total += 1.0 / Math.pow(i + 1, zipfSkew);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < symbolCount; i++) {
+            cumulative[i] /= total;
+        }
+
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i, random.split(), firstId + i);
+        }
+    }
+
+    /**
+     * Returns the first trade id of a writer run started at the given time. The ids of a later
+     * run are all larger, as long as runs issue fewer than 2^20 ids per second on average, so
+     * a consumer deduplicating ids never drops the trades of a restarted writer. Such ids take
+     * 7 bytes in the binary format, against 3 or 4 for ids counted from 1.
+     *
+     * @param startMillis Start time of the run
+     */
+    public static long runFirstId(long startMillis) {
+        long seconds = Math.max(0L, startMillis / 1000L - RUN_ID_ORIGIN_SECONDS);
+        return (seconds << RUN_ID_SHIFT) + 1;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    public int getSymbolCount() {
+        return symbols.length;
+    }
+
+    /**
+     * @return the symbol at an index of the universe, the most popular first
+     */
+    public String symbol(int index) {
+        return symbols[index];
+    }
+
+    /**
+     * @return the worker with the given index, to be used by one thread at a time
+     */
+    public Worker worker(int index) {
+        return workers[index];
+    }
+
+    /**
+     * Runs every worker on a thread of its own, until each has filled the given number of
+     * batches, and waits for them.
+     *
+     * @param batchesPerWorker Number of batches each worker fills
+     * @param batchBytes Size of the batches of each worker
+     * @param maxRecordsPerBatch Maximum number of records per batch
+     * @param consumer Receives each batch on the thread of its worker. The batch is reused
+     *        once the consumer returns.
+     * @return the total number of trades generated
+     */
+    public long run(long batchesPerWorker, int batchBytes, int maxRecordsPerBatch, BatchConsumer consumer)
+            throws InterruptedException {
+        AtomicLong trades = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>(workers.length);
+        for (Worker worker : workers) {
+            Thread thread = new Thread(() -> {
+                EncodedTradeBatch batch = new EncodedTradeBatch(batchBytes, maxRecordsPerBatch);
+                long generated = 0;
+                for (long i = 0; i < batchesPerWorker && failure.get() == null; i++) {
+                    generated += worker.fill(batch);
+                    consumer.accept(worker.getIndex(), batch);
+                }
+                trades.addAndGet(generated);
+            }, "trade-generator-" + worker.getIndex());
+            thread.setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Trade generator failed", failure.get());
+        }
+        return trades.get();
+    }
+
+    /**
+     * Receives the batches filled by {@link #run(long, int, int, BatchConsumer)}.
+     */
+    public interface BatchConsumer {
+        void accept(int workerIndex, EncodedTradeBatch batch);
+    }
+
+    /**
+     * One partition of the engine. Instances are not thread safe.
+     */
+    public class Worker {
+        private final int index;
+        private final SplittableRandom random;
+        private long nextId;
+
+        // The trade drawn last, and whether it is still to be written
+        private boolean pending;
+        private int symbol;
+        private TradeType tradeType;
+        private long priceCents;
+        private long quantity;
+        private long id;
+
+        private Worker(int index, SplittableRandom random, long firstId) {
+            this.index = index;
+            this.random = random;
+            this.nextId = firstId;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the next trade, as a new object
+         */
+        public StockTrade nextTrade() {
+            if (!pending) {
+                draw();
+            }
+            pending = false;
+            return new StockTrade(symbols[symbol], tradeType, priceCents / 100.0, quantity, id);
+        }
+
+        /**
+         * Encodes trades into the batch until it is full or the next trade might not fit.
+         * The batch is cleared first. A trade that does not fit is written first by the next
+         * call, so the sequence of trades does not depend on the size of the batches.
+         *
+         * @return the number of trades written
+         * @throws IllegalArgumentException if the batch is too small for a single trade
+         */
+        public int fill(EncodedTradeBatch batch) {
+            return fill(batch, 0L);
+        }
+
+        /**
+         * Encodes trades into the batch like {@link #fill(EncodedTradeBatch)}, stamping each with
+         * the time it was produced.
+         *
+         * @param producedMillis Time stamped on every trade of the batch, or 0 to leave it out
+         * @return the number of trades written
+         */
+        public int fill(EncodedTradeBatch batch, long producedMillis) {
+            batch.clear();
+            ByteBuffer out = batch.buffer();
+            while (!batch.isFull()) {
+                if (!pending) {
+                    draw();
+                    pending = true;
+                }
+                if (out.remaining() < BinaryStockTradeCodec.maxEncodedSize(encodedTickers[symbol])) {
+                    if (batch.size() == 0) {
+                        throw new IllegalArgumentException("Batch of " + out.capacity() + " bytes too small");
+                    }
+                    break;
+                }
+                BinaryStockTradeCodec.encode(out, encodedTickers[symbol], tradeType, priceCents, quantity, id,
+                        producedMillis);
+                batch.recordWritten(symbol, id);
+                pending = false;
+            }
+            return batch.size();
+        }
+
+        private void draw() {
+            symbol = nextSymbol();
+            // pick a random deviation between -MAX_DEVIATION and +MAX_DEVIATION from the mean price
+            double deviation = (random.nextDouble() - 0.5) * 2.0 * StockTradeGenerator.MAX_DEVIATION;
+            priceCents = Math.round(meanPriceCents[symbol] * (1 + deviation));
+            tradeType = random.nextDouble() < StockTradeGenerator.PROBABILITY_SELL ? TradeType.SELL : TradeType.BUY;
+            quantity = random.nextInt(StockTradeGenerator.MAX_QUANTITY) + 1;
+            id = nextId;
+            nextId += workers.length;
+        }
+
+        private int nextSymbol() {
+            int found = Arrays.binarySearch(cumulative, random.nextDouble());
+            // not found returns -(insertion point) - 1, and the insertion point is the symbol drawn
+            return Math.min(found >= 0 ? found + 1 : -found - 1, cumulative.length - 1);
+        }
+    }
+
+}
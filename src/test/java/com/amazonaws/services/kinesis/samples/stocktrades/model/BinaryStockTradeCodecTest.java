@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+public class BinaryStockTradeCodecTest {
+
+    private final BinaryStockTradeCodec codec = new BinaryStockTradeCodec();
+
+    @Test
+    public void roundTripsDictionaryTicker() {
+        assertRoundTrip(new StockTrade("AMZN", TradeType.BUY, 1234.56, 500, 42));
+    }
+
+    @Test
+    public void roundTripsUnknownTicker() {
+        assertEquals(-1, TickerDictionary.indexOf("ZZZZ"));
+        assertRoundTrip(new StockTrade("ZZZZ", TradeType.SELL, 0.01, 1, 1));
+    }
+
+    @Test
+    public void roundTripsProducedMillisAndLargeIds() {
+        long id = (1L << 52) + 12345L;
+        assertRoundTrip(new StockTrade("KO", TradeType.SELL, 47.3, 99999, id, 1577836800123L));
+        assertRoundTrip(new StockTrade("KO", TradeType.BUY, 47.3, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void decodesFromBufferPositionWithoutMovingIt() {
+        StockTrade trade = new StockTrade("DIS", TradeType.BUY, 110.25, 10, 7);
+        byte[] payload = codec.encode(trade);
+        ByteBuffer data = ByteBuffer.allocate(payload.length + 5);
+        data.position(3);
+        data.put(payload);
+        data.limit(3 + payload.length);
+        data.position(3);
+
+        assertTradeEquals(trade, codec.decode(data));
+        assertEquals(3, data.position());
+        assertEquals(3 + payload.length, data.limit());
+    }
+
+    @Test
+    public void isDetectedFromHeader() {
+        StockTrade trade = new StockTrade("ORCL", TradeType.SELL, 55.5, 300, 9);
+        byte[] payload = codec.encode(trade);
+
+        assertEquals(StockTradeFormat.BINARY_V1.getHeader(), payload[0]);
+        assertTrue(payload.length < StockTradeCodecs.JSON.encode(trade).length);
+        assertTradeEquals(trade, StockTradeCodecs.decode(ByteBuffer.wrap(payload)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherFormat() {
+        codec.decode(ByteBuffer.wrap(StockTradeCodecs.JSON.encode(new StockTrade("T", TradeType.BUY, 1, 1, 1))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedPayload() {
+        byte[] payload = codec.encode(new StockTrade("ZZZZ", TradeType.BUY, 1, 1, 1));
+        codec.decode(ByteBuffer.wrap(payload, 0, payload.length - 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTickerReferenceBeyondDictionary() {
+        codec.decode(withTickerReference(codec.encode(new StockTrade("AMZN", TradeType.BUY, 1, 1, 1)),
+                TickerDictionary.size() + 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTickerReferenceWrappingAroundToDictionary() {
+        codec.decode(withTickerReference(codec.encode(new StockTrade("AMZN", TradeType.BUY, 1, 1, 1)),
+                (1L << 32) + 1));
+    }
+
+    /**
+     * Replaces the ticker reference of a payload with a single byte id and ticker reference.
+     */
+    static ByteBuffer withTickerReference(byte[] payload, long tickerRef) {
+        ByteBuffer data = ByteBuffer.allocate(payload.length + Varints.MAX_VARINT_SIZE);
+        data.put(payload, 0, 3);
+        Varints.write(data, tickerRef);
+        data.put(payload, 4, payload.length - 4);
+        data.flip();
+        return data;
+    }
+
+    private void assertRoundTrip(StockTrade trade) {
+        assertTradeEquals(trade, codec.decode(ByteBuffer.wrap(codec.encode(trade))));
+    }
+
+    private static void assertTradeEquals(StockTrade expected, StockTrade actual) {
+        assertEquals(expected.getTickerSymbol(), actual.getTickerSymbol());
+        assertEquals(expected.getTradeType(), actual.getTradeType());
+        assertEquals(expected.getPrice(), actual.getPrice(), 0.0);
+        assertEquals(expected.getQuantity(), actual.getQuantity());
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getProducedMillis(), actual.getProducedMillis());
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+public class StockTradeViewTest {
+
+    private final BinaryStockTradeCodec codec = new BinaryStockTradeCodec();
+    private final StockTradeView view = new StockTradeView(new TickerSymbolTable(100));
+
+    @Test
+    public void decodesBinaryTrade() {
+        view.decode(ByteBuffer.wrap(codec.encode(new StockTrade("AMZN", TradeType.SELL, 1234.56, 500, 42))));
+
+        assertEquals("AMZN", view.getTickerSymbol());
+        assertEquals(TradeType.SELL, view.getTradeType());
+        assertEquals(1234.56, view.getPrice(), 0.0);
+        assertEquals(500, view.getQuantity());
+        assertEquals(42, view.getId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTickerReferenceBeyondDictionary() {
+        view.decode(BinaryStockTradeCodecTest.withTickerReference(
+                codec.encode(new StockTrade("AMZN", TradeType.BUY, 1, 1, 1)), TickerDictionary.size() + 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTickerReferenceWrappingAroundToDictionary() {
+        view.decode(BinaryStockTradeCodecTest.withTickerReference(
+                codec.encode(new StockTrade("AMZN", TradeType.BUY, 1, 1, 1)), (1L << 32) + 1));
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.BatchPipeline.FullPolicy;
+
+public class BatchPipelineTest {
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test(timeout = 30000)
+    public void appliesBatchesInOrderOnOneThreadAtATime() throws InterruptedException {
+        int count = 200000;
+        List<Integer> applied = new ArrayList<Integer>(count);
+        Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        BatchPipeline<Integer> pipeline = new BatchPipeline<Integer>(8, batch -> {
+            if (running.incrementAndGet() > 1) {
+                overlapped.set(true);
+            }
+            // the pipeline runs one drain task at a time, and hands the list over through the draining flag
+            applied.add(batch);
+            threads.add(Thread.currentThread().getName());
+            running.decrementAndGet();
+        }, pool, FullPolicy.BLOCK);
+
+        for (int i = 0; i < count; i++) {
+            assertTrue(pipeline.submit(i));
+            if (i % 1000 == 0) {
+                // let the stage catch up now and then, so drain tasks end and are scheduled again
+                pipeline.awaitDrained();
+            }
+        }
+        pipeline.awaitDrained();
+
+        assertFalse(overlapped.get());
+        assertEquals(count, applied.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, applied.get(i).intValue());
+        }
+        assertEquals(0, pipeline.getQueuedBatches());
+        assertEquals(0, pipeline.getShedBatches());
+        assertTrue(threads.size() > 1);
+    }
+
+    @Test(timeout = 30000)
+    public void blocksUntilStageMakesRoom() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch first = new CountDownLatch(1);
+        List<Integer> applied = Collections.synchronizedList(new ArrayList<Integer>());
+        BatchPipeline<Integer> pipeline = new BatchPipeline<Integer>(2, batch -> {
+            first.countDown();
+            awaitQuietly(release);
+            applied.add(batch);
+        }, pool, FullPolicy.BLOCK);
+
+        assertTrue(pipeline.submit(0));
+        first.await();
+        // the stage holds the first batch, so these fill the ring
+        assertTrue(pipeline.submit(1));
+        assertTrue(pipeline.submit(2));
+
+        AtomicReference<Boolean> submitted = new AtomicReference<Boolean>();
+        Thread producer = new Thread(() -> {
+            try {
+                submitted.set(pipeline.submit(3));
+            } catch (InterruptedException e) {
+                submitted.set(false);
+            }
+        });
+        producer.start();
+        producer.join(200L);
+        assertTrue(producer.isAlive());
+
+        release.countDown();
+        producer.join();
+        pipeline.awaitDrained();
+
+        assertTrue(submitted.get());
+        assertEquals(4, applied.size());
+        assertTrue(pipeline.getBlockedMillis() >= 100L);
+    }
+
+    @Test(timeout = 30000)
+    public void blockedSubmitIsInterruptible() throws InterruptedException {
+        ManualExecutor manual = new ManualExecutor();
+        // the drain task never runs, so the ring stays full
+        BatchPipeline<Integer> stalled = new BatchPipeline<Integer>(1, batch -> { }, manual, FullPolicy.BLOCK);
+        assertTrue(stalled.submit(0));
+
+        AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        Thread producer = new Thread(() -> {
+            try {
+                stalled.submit(1);
+            } catch (InterruptedException e) {
+                thrown.set(e);
+            }
+        });
+        producer.start();
+        producer.join(100L);
+        producer.interrupt();
+        producer.join();
+
+        assertTrue(thrown.get() instanceof InterruptedException);
+        assertTrue(stalled.getBlockedMillis() >= 100L);
+    }
+
+    @Test
+    public void shedsBatchesWhenFull() throws InterruptedException {
+        ManualExecutor manual = new ManualExecutor();
+        List<Integer> applied = new ArrayList<Integer>();
+        BatchPipeline<Integer> pipeline = new BatchPipeline<Integer>(2, applied::add, manual, FullPolicy.SHED);
+
+        assertTrue(pipeline.submit(0));
+        assertTrue(pipeline.submit(1));
+        assertFalse(pipeline.submit(2));
+        assertFalse(pipeline.submit(3));
+        assertEquals(2, pipeline.getShedBatches());
+        assertEquals(2, pipeline.getQueuedBatches());
+        // a single drain task was scheduled for all of them
+        assertEquals(1, manual.tasks.size());
+
+        manual.runAll();
+        assertEquals(2, applied.size());
+        assertTrue(pipeline.submit(4));
+        manual.runAll();
+        assertEquals(3, applied.size());
+        assertEquals(4, applied.get(2).intValue());
+    }
+
+    @Test
+    public void drainTaskYieldsAfterARingsWorth() throws InterruptedException {
+        ManualExecutor manual = new ManualExecutor();
+        AtomicReference<BatchPipeline<Integer>> self = new AtomicReference<BatchPipeline<Integer>>();
+        List<Integer> applied = new ArrayList<Integer>();
+        BatchPipeline<Integer> pipeline = new BatchPipeline<Integer>(2, batch -> {
+            applied.add(batch);
+            if (batch < 4) {
+                // submitted while the drain task runs, as the KCL thread would
+                try {
+                    self.get().submit(batch + 2);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }, manual, FullPolicy.SHED);
+        self.set(pipeline);
+
+        pipeline.submit(0);
+        pipeline.submit(1);
+        manual.runNext();
+        // two batches were applied, and the ones submitted meanwhile got a task of their own
+        assertEquals(2, applied.size());
+        assertEquals(1, manual.tasks.size());
+        manual.runAll();
+        assertEquals(6, applied.size());
+        for (int i = 0; i < applied.size(); i++) {
+            assertEquals(i, applied.get(i).intValue());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void stopDiscardsQueuedBatches() throws InterruptedException {
+        ManualExecutor manual = new ManualExecutor();
+        List<Integer> applied = new ArrayList<Integer>();
+        BatchPipeline<Integer> pipeline = new BatchPipeline<Integer>(4, applied::add, manual, FullPolicy.BLOCK);
+        pipeline.submit(0);
+        pipeline.submit(1);
+
+        Thread stopper = new Thread(() -> {
+            try {
+                pipeline.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        stopper.start();
+        // stop waits for the scheduled drain task, which then applies nothing
+        stopper.join(100L);
+        assertTrue(stopper.isAlive());
+        manual.runAll();
+        stopper.join();
+
+        assertTrue(applied.isEmpty());
+        assertFalse(pipeline.submit(2));
+        pipeline.awaitDrained();
+    }
+
+    @Test(timeout = 30000)
+    public void awaitDrainedWaitsForBatchInProgress() throws InterruptedException {
+        AtomicInteger applied = new AtomicInteger();
+        BatchPipeline<Integer> pipeline = new BatchPipeline<Integer>(4, batch -> {
+            try {
+                Thread.sleep(50L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            applied.incrementAndGet();
+        }, pool, FullPolicy.BLOCK);
+
+        for (int i = 0; i < 3; i++) {
+            pipeline.submit(i);
+        }
+        pipeline.awaitDrained();
+
+        assertEquals(3, applied.get());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the tasks only when told to, on the calling thread.
+     */
+    private static class ManualExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runNext() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+            task.run();
+        }
+
+        void runAll() {
+            while (true) {
+                synchronized (this) {
+                    if (tasks.isEmpty()) {
+                        return;
+                    }
+                }
+                runNext();
+            }
+        }
+    }
+
+}
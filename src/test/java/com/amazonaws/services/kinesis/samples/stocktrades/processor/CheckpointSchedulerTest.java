@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import software.amazon.awssdk.services.kinesis.model.Record;
+import software.amazon.kinesis.exceptions.InvalidStateException;
+import software.amazon.kinesis.exceptions.ThrottlingException;
+import software.amazon.kinesis.processor.Checkpointer;
+import software.amazon.kinesis.processor.PreparedCheckpointer;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+public class CheckpointSchedulerTest {
+
+    private static final String SHARD_ID = "shardId-000000000000";
+
+    private ScheduledExecutorService executor;
+    private ScriptedCheckpointer checkpointer;
+
+    @Before
+    public void setUp() {
+        executor = CheckpointScheduler.newExecutor();
+        checkpointer = new ScriptedCheckpointer();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void retriesThrottledCheckpointUntilSaved() {
+        CheckpointScheduler scheduler = newScheduler(3);
+        checkpointer.failWith(new ThrottlingException("throttled"));
+        checkpointer.failWith(new ThrottlingException("throttled"));
+        scheduler.recordsProcessed(Collections.singletonList(record("42", 7)));
+
+        assertTrue(scheduler.checkpointIfDue(checkpointer, null));
+        assertTrue(scheduler.awaitInFlight());
+        assertEquals(3, checkpointer.attempts);
+        assertEquals("42", checkpointer.sequenceNumber);
+        assertEquals(7, checkpointer.subSequenceNumber);
+        assertEquals(1, scheduler.getCheckpoints());
+        assertEquals(2, scheduler.getThrottledAttempts());
+        assertEquals(0, scheduler.getFailedCheckpoints());
+        assertFalse(scheduler.isDue());
+    }
+
+    @Test(timeout = 10000)
+    public void failsOnceThrottledPastRetryLimit() {
+        CheckpointScheduler scheduler = newScheduler(1);
+        checkpointer.failWith(new ThrottlingException("throttled"));
+        checkpointer.failWith(new ThrottlingException("throttled"));
+        scheduler.recordsProcessed(Collections.singletonList(record("42", 0)));
+
+        assertTrue(scheduler.checkpointIfDue(checkpointer, null));
+        assertFalse(scheduler.awaitInFlight());
+        assertEquals(2, checkpointer.attempts);
+        assertEquals(0, scheduler.getCheckpoints());
+        assertEquals(1, scheduler.getFailedCheckpoints());
+    }
+
+    @Test(timeout = 10000)
+    public void completesWhenCallbackThrows() {
+        CheckpointScheduler scheduler = newScheduler(0);
+        scheduler.recordsProcessed(Collections.singletonList(record("42", 0)));
+
+        assertTrue(scheduler.checkpointIfDue(checkpointer, () -> {
+            throw new IllegalStateException("callback failed");
+        }));
+        assertTrue(scheduler.awaitInFlight());
+        assertFalse(scheduler.isInFlight());
+        assertEquals(1, scheduler.getCheckpoints());
+    }
+
+    @Test(timeout = 10000)
+    public void backsOffAfterFailedCheckpoint() throws InterruptedException {
+        CheckpointScheduler scheduler = newScheduler(0);
+        checkpointer.failWith(new InvalidStateException("no lease table"));
+        scheduler.recordsProcessed(Collections.singletonList(record("42", 0)));
+
+        assertTrue(scheduler.checkpointIfDue(checkpointer, null));
+        assertFalse(scheduler.awaitInFlight());
+        // the failed records are still covered, but not before the backoff has passed
+        assertFalse(scheduler.checkpointIfDue(checkpointer, null));
+        assertEquals(1, checkpointer.attempts);
+
+        while (!scheduler.isDue()) {
+            Thread.sleep(10L);
+        }
+        assertTrue(scheduler.checkpointIfDue(checkpointer, null));
+        assertTrue(scheduler.awaitInFlight());
+        assertEquals(2, checkpointer.attempts);
+        assertEquals("42", checkpointer.sequenceNumber);
+    }
+
+    @Test(timeout = 10000)
+    public void skipsCheckpointAfterCancel() {
+        CheckpointScheduler scheduler = newScheduler(3);
+        scheduler.recordsProcessed(Collections.singletonList(record("42", 0)));
+        scheduler.cancel();
+
+        assertTrue(scheduler.checkpointIfDue(checkpointer, null));
+        assertFalse(scheduler.awaitInFlight());
+        assertEquals(0, checkpointer.attempts);
+    }
+
+    @Test(timeout = 10000)
+    public void runsBeforeCheckpointFirst() {
+        CheckpointScheduler scheduler = newScheduler(0);
+        AtomicBoolean saved = new AtomicBoolean();
+        scheduler.recordsProcessed(Collections.singletonList(record("42", 0)));
+
+        assertTrue(scheduler.checkpointIfDue(checkpointer, () -> saved.set(checkpointer.attempts == 0), null));
+        assertTrue(scheduler.awaitInFlight());
+        assertTrue(saved.get());
+    }
+
+    private CheckpointScheduler newScheduler(int maxRetries) {
+        return new CheckpointScheduler(SHARD_ID, 1, 0, 0, maxRetries, executor, value -> { });
+    }
+
+    private static KinesisClientRecord record(String sequenceNumber, long subSequenceNumber) {
+        return KinesisClientRecord.builder()
+                .sequenceNumber(sequenceNumber)
+                .subSequenceNumber(subSequenceNumber)
+                .data(ByteBuffer.wrap(new byte[] { 1, 2, 3 }))
+                .build();
+    }
+
+    /**
+     * Fails checkpoints with the exceptions it was given, in order, then saves them.
+     */
+    private static class ScriptedCheckpointer implements RecordProcessorCheckpointer {
+        private final Queue<Exception> failures = new ArrayDeque<Exception>();
+        private volatile int attempts;
+        private volatile String sequenceNumber;
+        private volatile long subSequenceNumber;
+
+        void failWith(Exception failure) {
+            failures.add(failure);
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber, long subSequenceNumber)
+                throws InvalidStateException, ThrottlingException {
+            attempts++;
+            Exception failure = failures.poll();
+            if (failure instanceof ThrottlingException) {
+                throw (ThrottlingException) failure;
+            }
+            if (failure instanceof InvalidStateException) {
+                throw (InvalidStateException) failure;
+            }
+            this.sequenceNumber = sequenceNumber;
+            this.subSequenceNumber = subSequenceNumber;
+        }
+
+        @Override
+        public void checkpoint() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void checkpoint(Record record) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PreparedCheckpointer prepareCheckpoint() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PreparedCheckpointer prepareCheckpoint(Record record) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PreparedCheckpointer prepareCheckpoint(String sequenceNumber) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PreparedCheckpointer prepareCheckpoint(String sequenceNumber, long subSequenceNumber) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Checkpointer checkpointer() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
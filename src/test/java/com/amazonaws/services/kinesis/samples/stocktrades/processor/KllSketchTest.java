@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class KllSketchTest {
+
+    private static final int K = 200;
+    private static final int VALUES = 100000;
+    // about 1.7 / k with high probability, with room to spare for a fixed stream
+    private static final double MAX_RANK_ERROR = 0.02;
+
+    @Test
+    public void isExactBeforeFirstCompaction() {
+        KllSketch sketch = new KllSketch(K);
+        for (int value = 100; value > 0; value--) {
+            sketch.update(value);
+        }
+
+        assertEquals(1.0, sketch.getMin(), 0.0);
+        assertEquals(100.0, sketch.getMax(), 0.0);
+        assertEquals(50.0, sketch.getQuantile(0.5), 0.0);
+        assertEquals(99.0, sketch.getQuantile(0.99), 0.0);
+    }
+
+    @Test
+    public void boundsRankError() {
+        KllSketch sketch = new KllSketch(K);
+        for (double value : shuffledValues(new Random(1))) {
+            sketch.update(value);
+        }
+
+        assertEquals(VALUES, sketch.getCount());
+        assertRankErrorBounded(sketch);
+    }
+
+    @Test
+    public void mergedSketchBoundsRankErrorOfCombinedStream() {
+        double[] values = shuffledValues(new Random(2));
+        KllSketch merged = new KllSketch(K);
+        for (int part = 0; part < 4; part++) {
+            KllSketch sketch = new KllSketch(K);
+            for (int i = part * VALUES / 4; i < (part + 1) * VALUES / 4; i++) {
+                sketch.update(values[i]);
+            }
+            merged.merge(sketch);
+        }
+
+        assertEquals(VALUES, merged.getCount());
+        assertEquals(0.0, merged.getMin(), 0.0);
+        assertEquals(VALUES - 1, merged.getMax(), 0.0);
+        assertRankErrorBounded(merged);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMergeOfOtherK() {
+        new KllSketch(K).merge(new KllSketch(K / 2));
+    }
+
+    @Test
+    public void readsWrittenSketch() {
+        KllSketch sketch = new KllSketch(K);
+        for (double value : shuffledValues(new Random(3))) {
+            sketch.update(value);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(sketch.serializedSize());
+        sketch.writeTo(buffer);
+        assertEquals(sketch.serializedSize(), buffer.position());
+        buffer.flip();
+
+        KllSketch read = KllSketch.readFrom(buffer);
+        assertEquals(sketch.getK(), read.getK());
+        assertEquals(sketch.getCount(), read.getCount());
+        for (int percentile = 0; percentile <= 100; percentile++) {
+            assertEquals(sketch.getQuantile(percentile / 100.0), read.getQuantile(percentile / 100.0), 0.0);
+        }
+    }
+
+    private static double[] shuffledValues(Random random) {
+        double[] values = new double[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            values[i] = i;
+        }
+        for (int i = VALUES - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            double value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+        return values;
+    }
+
+    private static void assertRankErrorBounded(KllSketch sketch) {
+        // the values are 0 to VALUES - 1, so each is its own rank
+        for (int percentile = 1; percentile < 100; percentile++) {
+            double fraction = percentile / 100.0;
+            double rank = sketch.getQuantile(fraction) / VALUES;
+            assertTrue("p" + percentile + " at rank " + rank, Math.abs(rank - fraction) <= MAX_RANK_ERROR);
+        }
+    }
+
+}
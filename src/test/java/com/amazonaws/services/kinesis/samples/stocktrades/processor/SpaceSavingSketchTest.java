@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SpaceSavingSketchTest {
+
+    private static final int KEYS = 1000;
+
+    @Test
+    public void countsExactlyUntilFull() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(8);
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j <= i; j++) {
+                sketch.update("T" + i);
+            }
+        }
+
+        List<SpaceSavingSketch.Entry> top = sketch.top(3);
+        assertEquals(3, top.size());
+        assertEquals("T4", top.get(0).getKey());
+        assertEquals(5, top.get(0).getCount());
+        assertEquals(0, top.get(0).getError());
+        assertEquals("T2", top.get(2).getKey());
+        assertEquals(15, sketch.getTotalCount());
+        assertEquals(0, sketch.getMaxError());
+    }
+
+    @Test
+    public void overestimatesByAtMostTotalOverCapacity() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(50);
+        Map<String, Long> counts = new HashMap<String, Long>();
+        stream(new Random(1), 100000, sketch, counts);
+
+        assertBounded(sketch, counts);
+    }
+
+    @Test
+    public void mergedSketchKeepsBoundOnCombinedStream() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        SpaceSavingSketch merged = new SpaceSavingSketch(50);
+        Random random = new Random(2);
+        for (int part = 0; part < 4; part++) {
+            SpaceSavingSketch sketch = new SpaceSavingSketch(50);
+            stream(random, 25000 + part * 5000, sketch, counts);
+            merged.merge(sketch);
+        }
+
+        assertEquals(130000, merged.getTotalCount());
+        assertBounded(merged, counts);
+    }
+
+    @Test
+    public void readsWrittenSketch() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(20);
+        stream(new Random(3), 5000, sketch, new HashMap<String, Long>());
+        ByteBuffer buffer = ByteBuffer.allocate(sketch.serializedSize());
+        sketch.writeTo(buffer);
+        assertEquals(sketch.serializedSize(), buffer.position());
+        buffer.flip();
+
+        SpaceSavingSketch read = SpaceSavingSketch.readFrom(buffer);
+        assertEquals(sketch.getCapacity(), read.getCapacity());
+        assertEquals(sketch.getTotalCount(), read.getTotalCount());
+        assertEquals(sketch.getMaxError(), read.getMaxError());
+        List<SpaceSavingSketch.Entry> expected = sketch.top(20);
+        List<SpaceSavingSketch.Entry> actual = read.top(20);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getCount(), actual.get(i).getCount());
+            assertEquals(expected.get(i).getError(), actual.get(i).getError());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMoreEntriesThanCounters() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putInt(2).putInt(3).putLong(3L).flip();
+        SpaceSavingSketch.readFrom(buffer);
+    }
+
+    /**
+     * Feeds a skewed stream, where key i occurs about 1/(i+1) as often as key 0.
+     */
+    private static void stream(Random random, int updates, SpaceSavingSketch sketch, Map<String, Long> counts) {
+        double[] cumulative = new double[KEYS];
+        double sum = 0;
+        for (int i = 0; i < KEYS; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        for (int n = 0; n < updates; n++) {
+            int key = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            String symbol = "T" + (key >= 0 ? key : -key - 1);
+            sketch.update(symbol);
+            counts.merge(symbol, 1L, Long::sum);
+        }
+    }
+
+    private static void assertBounded(SpaceSavingSketch sketch, Map<String, Long> counts) {
+        long maxError = sketch.getTotalCount() / sketch.getCapacity();
+        assertTrue(sketch.getMaxError() <= maxError);
+        Map<String, SpaceSavingSketch.Entry> tracked = new HashMap<String, SpaceSavingSketch.Entry>();
+        for (SpaceSavingSketch.Entry entry : sketch.top(sketch.getCapacity())) {
+            long trueCount = counts.getOrDefault(entry.getKey(), 0L);
+            assertTrue(entry.getKey(), entry.getCount() >= trueCount);
+            assertTrue(entry.getKey(), entry.getCount() - entry.getError() <= trueCount);
+            assertTrue(entry.getKey(), entry.getCount() - trueCount <= maxError);
+            tracked.put(entry.getKey(), entry);
+        }
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            if (count.getValue() > maxError) {
+                assertTrue(count.getKey() + " is missing", tracked.containsKey(count.getKey()));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SpscRingTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new SpscRing<Integer>(1).capacity());
+        assertEquals(8, new SpscRing<Integer>(5).capacity());
+        assertEquals(8, new SpscRing<Integer>(8).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyCapacity() {
+        new SpscRing<Integer>(0);
+    }
+
+    @Test
+    public void keepsOrderAcrossWrapAround() {
+        SpscRing<Integer> ring = new SpscRing<Integer>(4);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 10; round++) {
+            while (ring.offer(next)) {
+                next++;
+            }
+            assertEquals(4, ring.size());
+            // drain part of the ring, so that the indexes wrap at different slots
+            for (int i = 0; i < 1 + round % 4; i++) {
+                assertEquals(Integer.valueOf(expected++), ring.poll());
+            }
+        }
+        Integer element;
+        while ((element = ring.poll()) != null) {
+            assertEquals(Integer.valueOf(expected++), element);
+        }
+        assertEquals(next, expected);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void rejectsOfferWhenFull() {
+        SpscRing<String> ring = new SpscRing<String>(2);
+        assertTrue(ring.offer("a"));
+        assertTrue(ring.offer("b"));
+        assertFalse(ring.offer("c"));
+
+        assertEquals("a", ring.poll());
+        assertTrue(ring.offer("c"));
+        assertEquals("b", ring.poll());
+        assertEquals("c", ring.poll());
+    }
+
+    @Test(timeout = 30000)
+    public void handsElementsOverBetweenThreadsInOrder() throws InterruptedException {
+        int count = 1000000;
+        SpscRing<Integer> ring = new SpscRing<Integer>(64);
+        AtomicReference<String> failure = new AtomicReference<String>();
+        Thread consumer = new Thread(() -> {
+            int expected = 0;
+            while (expected < count) {
+                Integer element = ring.poll();
+                if (element == null) {
+                    Thread.yield();
+                } else if (element != expected++) {
+                    failure.set("Expected " + (expected - 1) + " but polled " + element);
+                    return;
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            while (!ring.offer(i)) {
+                Thread.yield();
+            }
+        }
+        consumer.join();
+
+        assertNull(failure.get());
+        assertTrue(ring.isEmpty());
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+public class StatsRollupHubTest {
+
+    private static final WindowSpec WINDOW = WindowSpec.tumbling(1000L);
+    private static final long REPORT_INTERVAL_MILLIS = 10L;
+    private static final long QUIET_MILLIS = 300L;
+
+    private final BlockingQueue<Report> reports = new LinkedBlockingQueue<Report>();
+    private StatsRollupHub hub;
+
+    @After
+    public void tearDown() {
+        if (hub != null) {
+            hub.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void reportsWindowOnceEveryShardCommitted() throws InterruptedException {
+        hub = newHub(60000L);
+        StatsRollupHub.ShardCell first = hub.register("shardId-000000000000");
+        StatsRollupHub.ShardCell second = hub.register("shardId-000000000001");
+
+        first.publish(WINDOW, 0L, 1000L, stats(2));
+        first.commit(first.mark(), 1500L);
+        second.publish(WINDOW, 0L, 1000L, stats(3));
+        // the second shard has not checkpointed past its partial yet
+        assertNull(reports.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+
+        second.commit(second.mark(), 1200L);
+        Report report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertEquals(WINDOW, report.window);
+        assertEquals(0L, report.startMillis);
+        assertEquals(1000L, report.endMillis);
+        assertEquals(5, report.trades);
+    }
+
+    @Test(timeout = 10000)
+    public void idleShardHoldsUpNoWindow() throws InterruptedException {
+        hub = newHub(60000L);
+        StatsRollupHub.ShardCell busy = hub.register("shardId-000000000000");
+        hub.register("shardId-000000000001");
+
+        busy.publish(WINDOW, 0L, 1000L, stats(4));
+        busy.commit(busy.mark(), 1000L);
+
+        Report report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertEquals(4, report.trades);
+    }
+
+    @Test(timeout = 10000)
+    public void laggingShardHoldsUpLaterWindows() throws InterruptedException {
+        hub = newHub(60000L);
+        StatsRollupHub.ShardCell ahead = hub.register("shardId-000000000000");
+        StatsRollupHub.ShardCell behind = hub.register("shardId-000000000001");
+
+        ahead.publish(WINDOW, 0L, 1000L, stats(1));
+        ahead.publish(WINDOW, 1000L, 2000L, stats(1));
+        ahead.commit(ahead.mark(), 2000L);
+        behind.publish(WINDOW, 0L, 1000L, stats(1));
+        behind.commit(behind.mark(), 1000L);
+
+        Report report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertEquals(1000L, report.endMillis);
+        assertEquals(2, report.trades);
+        assertNull(reports.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+
+        behind.commit(behind.mark(), 2000L);
+        report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertEquals(2000L, report.endMillis);
+        assertEquals(1, report.trades);
+    }
+
+    @Test(timeout = 10000)
+    public void retractDropsUncommittedPartials() throws InterruptedException {
+        hub = newHub(60000L);
+        StatsRollupHub.ShardCell lost = hub.register("shardId-000000000000");
+        StatsRollupHub.ShardCell kept = hub.register("shardId-000000000001");
+
+        lost.publish(WINDOW, 0L, 1000L, stats(7));
+        lost.retract();
+        kept.publish(WINDOW, 0L, 1000L, stats(2));
+        kept.commit(kept.mark(), 1000L);
+
+        Report report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertEquals(2, report.trades);
+    }
+
+    @Test(timeout = 10000)
+    public void finishCommitsEveryPartial() throws InterruptedException {
+        hub = newHub(60000L);
+        StatsRollupHub.ShardCell ended = hub.register("shardId-000000000000");
+
+        ended.publish(WINDOW, 0L, 1000L, stats(3));
+        ended.publish(WINDOW, 1000L, 2000L, stats(1));
+        ended.finish();
+
+        Report report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertEquals(1000L, report.endMillis);
+        assertEquals(3, report.trades);
+        report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertEquals(2000L, report.endMillis);
+        assertEquals(1, report.trades);
+    }
+
+    @Test(timeout = 10000)
+    public void countsPartialsOfReportedWindowsAsLate() throws InterruptedException {
+        hub = newHub(60000L);
+        StatsRollupHub.ShardCell first = hub.register("shardId-000000000000");
+        first.publish(WINDOW, 0L, 1000L, stats(1));
+        first.commit(first.mark(), 1000L);
+        assertNotNull(reports.poll(5, TimeUnit.SECONDS));
+
+        StatsRollupHub.ShardCell late = hub.register("shardId-000000000001");
+        late.publish(WINDOW, 0L, 1000L, stats(1));
+        late.commit(late.mark(), 1000L);
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (hub.getLatePartials() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(REPORT_INTERVAL_MILLIS);
+        }
+
+        assertEquals(1, hub.getLatePartials());
+        assertNull(reports.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void reportsAfterMaxDelayDespiteLaggingShard() throws InterruptedException {
+        long maxDelayMillis = 500L;
+        hub = newHub(maxDelayMillis);
+        StatsRollupHub.ShardCell ahead = hub.register("shardId-000000000000");
+        StatsRollupHub.ShardCell stuck = hub.register("shardId-000000000001");
+
+        stuck.publish(WINDOW, 0L, 1000L, stats(1));
+        stuck.commit(stuck.mark(), 1000L);
+        assertNotNull(reports.poll(5, TimeUnit.SECONDS));
+
+        long startMillis = System.currentTimeMillis();
+        ahead.publish(WINDOW, 1000L, 2000L, stats(2));
+        ahead.commit(ahead.mark(), 2000L);
+        Report report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertTrue(System.currentTimeMillis() - startMillis >= maxDelayMillis);
+        assertEquals(2000L, report.endMillis);
+        assertEquals(2, report.trades);
+    }
+
+    @Test(timeout = 10000)
+    public void closeReportsCommittedWindows() {
+        hub = newHub(60000L);
+        StatsRollupHub.ShardCell done = hub.register("shardId-000000000000");
+        StatsRollupHub.ShardCell stuck = hub.register("shardId-000000000001");
+        stuck.publish(WINDOW, 0L, 1000L, stats(1));
+        stuck.commit(stuck.mark(), 1000L);
+        done.publish(WINDOW, 1000L, 2000L, stats(6));
+        done.commit(done.mark(), 2000L);
+
+        hub.close();
+        hub = null;
+
+        assertEquals(2, reports.size());
+        long trades = 0;
+        for (Report report : reports) {
+            trades += report.trades;
+        }
+        assertEquals(7, trades);
+    }
+
+    private StatsRollupHub newHub(long maxDelayMillis) {
+        return new StatsRollupHub((window, startMillis, endMillis, stats) ->
+                reports.add(new Report(window, startMillis, endMillis, stats.getTradeCount())),
+                REPORT_INTERVAL_MILLIS, maxDelayMillis);
+    }
+
+    private static StockStats stats(int trades) {
+        StockStats stats = new StockStats();
+        for (int i = 0; i < trades; i++) {
+            stats.addStockTrade(new StockTrade("AMZN", TradeType.BUY, 100.0, 10, i + 1));
+        }
+        return stats;
+    }
+
+    private static class Report {
+        private final WindowSpec window;
+        private final long startMillis;
+        private final long endMillis;
+        private final long trades;
+
+        Report(WindowSpec window, long startMillis, long endMillis, long trades) {
+            this.window = window;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.trades = trades;
+        }
+    }
+
+}
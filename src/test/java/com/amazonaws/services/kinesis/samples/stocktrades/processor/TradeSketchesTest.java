@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TickerSymbolTable;
+
+public class TradeSketchesTest {
+
+    @Test
+    public void internsNoMoreSymbolsThanTopK() {
+        StockTradeProcessorConfig config = new StockTradeProcessorConfig().sketches(4, 200);
+        TickerSymbolTable symbols = new TickerSymbolTable(config.maxInternedSymbols());
+        StockTradeView view = new StockTradeView(symbols);
+        StockStats stats = config.newStockStats(symbols);
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j <= i; j++) {
+                view.decode(ByteBuffer.wrap(new StockTrade("T" + i, TradeType.BUY, 10.0 + i, 100, j).toJsonAsBytes()));
+                stats.addStockTrade(view, j);
+            }
+        }
+
+        assertEquals(4, symbols.size());
+        // tickers decoded without an id are still counted
+        assertEquals(55, stats.getTradeCount());
+        List<SpaceSavingSketch.Entry> top = stats.getSketches().getTopTickers(TradeType.BUY).top(1);
+        assertEquals("T9", top.get(0).getKey());
+        // overestimated, as the last ticker took over the counter of another one
+        assertTrue(top.get(0).getCount() >= 10);
+        assertTrue(top.get(0).getCount() - top.get(0).getError() <= 10);
+    }
+
+    @Test
+    public void readsWrittenSketches() {
+        TradeSketches sketches = new TradeSketches(8, 50);
+        for (int i = 0; i < 1000; i++) {
+            sketches.addStockTrade("T" + i % 20, i % 3 == 0 ? TradeType.SELL : TradeType.BUY, i, i % 100);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(sketches.serializedSize());
+        sketches.writeTo(buffer);
+        assertEquals(sketches.serializedSize(), buffer.position());
+        buffer.flip();
+
+        TradeSketches read = TradeSketches.readFrom(buffer);
+        assertEquals(sketches.toString(), read.toString());
+        for (TradeType tradeType : TradeType.values()) {
+            assertEquals(sketches.getTopTickers(tradeType).getTotalCount(),
+                    read.getTopTickers(tradeType).getTotalCount());
+        }
+        assertEquals(sketches.getPrices().getQuantile(0.5), read.getPrices().getQuantile(0.5), 0.0);
+        assertEquals(sketches.getQuantities().getQuantile(0.9), read.getQuantities().getQuantile(0.9), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() {
+        TradeSketches.readFrom(ByteBuffer.wrap(new byte[] {99}));
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+public class WindowedStockStatsTest {
+
+    private static final WindowSpec TUMBLING = WindowSpec.tumbling(1000L);
+    private static final WindowSpec SLIDING = WindowSpec.sliding(2000L, 1000L);
+
+    private final List<String> reports = new ArrayList<String>();
+
+    @Test
+    public void closesTumblingWindowsAsWatermarkPasses() {
+        WindowedStockStats stats = newStats(Collections.singletonList(TUMBLING), 0L);
+        add(stats, 100L);
+        add(stats, 500L);
+        assertTrue(reports.isEmpty());
+
+        add(stats, 1200L);
+        assertEquals(Arrays.asList(report(TUMBLING, 0L, 1000L, 2)), reports);
+        add(stats, 2500L);
+        assertEquals(Arrays.asList(report(TUMBLING, 0L, 1000L, 2), report(TUMBLING, 1000L, 2000L, 1)), reports);
+        assertEquals(2500L, stats.getWatermarkMillis());
+    }
+
+    @Test
+    public void closesOverlappingSlidingWindows() {
+        WindowedStockStats stats = newStats(Collections.singletonList(SLIDING), 0L);
+        add(stats, 500L);
+        add(stats, 1500L);
+        add(stats, 2500L);
+        add(stats, 3500L);
+        stats.flush();
+
+        assertEquals(Arrays.asList(
+                report(SLIDING, -1000L, 1000L, 1),
+                report(SLIDING, 0L, 2000L, 2),
+                report(SLIDING, 1000L, 3000L, 2),
+                report(SLIDING, 2000L, 4000L, 2),
+                report(SLIDING, 3000L, 5000L, 1)), reports);
+    }
+
+    @Test
+    public void servesSeveralWindowsFromSharedPanes() {
+        WindowSpec wide = WindowSpec.tumbling(1500L);
+        WindowedStockStats stats = newStats(Arrays.asList(TUMBLING, wide), 0L);
+        assertEquals(500L, stats.getPaneMillis());
+        add(stats, 200L);
+        add(stats, 1200L);
+        add(stats, 3100L);
+
+        assertEquals(Arrays.asList(
+                report(TUMBLING, 0L, 1000L, 1),
+                report(TUMBLING, 1000L, 2000L, 1),
+                report(wide, 0L, 1500L, 2)), reports);
+    }
+
+    @Test
+    public void skipsEmptyWindows() {
+        WindowedStockStats stats = newStats(Collections.singletonList(TUMBLING), 0L);
+        add(stats, 100L);
+        add(stats, 10500L);
+        add(stats, 20500L);
+
+        assertEquals(Arrays.asList(report(TUMBLING, 0L, 1000L, 1), report(TUMBLING, 10000L, 11000L, 1)), reports);
+    }
+
+    @Test
+    public void acceptsEarlierTradesWithinLatenessBeforeFirstWindow() {
+        WindowedStockStats stats = newStats(Collections.singletonList(TUMBLING), 500L);
+        assertTrue(add(stats, 1100L));
+        // in an earlier window than the first trade, but within the allowed lateness
+        assertTrue(add(stats, 900L));
+        assertEquals(0, stats.getLateTrades());
+
+        add(stats, 2600L);
+        assertEquals(Arrays.asList(report(TUMBLING, 0L, 1000L, 1), report(TUMBLING, 1000L, 2000L, 1)), reports);
+    }
+
+    @Test
+    public void dropsTradesOfReportedWindows() {
+        WindowedStockStats stats = newStats(Collections.singletonList(TUMBLING), 200L);
+        add(stats, 100L);
+        add(stats, 1300L);
+        assertEquals(Arrays.asList(report(TUMBLING, 0L, 1000L, 1)), reports);
+
+        assertFalse(add(stats, 999L));
+        assertTrue(add(stats, 1000L));
+        assertEquals(1, stats.getLateTrades());
+        assertFalse(stats.mergePane(500L, tradeStats(3), 3));
+        assertEquals(4, stats.getLateTrades());
+    }
+
+    @Test
+    public void flushReportsOpenWindowsAndStartsOver() {
+        WindowedStockStats stats = newStats(Collections.singletonList(TUMBLING), 0L);
+        add(stats, 100L);
+        add(stats, 1100L);
+        add(stats, 1200L);
+        stats.flush();
+        assertEquals(Arrays.asList(report(TUMBLING, 0L, 1000L, 1), report(TUMBLING, 1000L, 2000L, 2)), reports);
+
+        // event time starts over, so an earlier trade opens a new window
+        reports.clear();
+        assertTrue(add(stats, 500L));
+        stats.flush();
+        assertEquals(Arrays.asList(report(TUMBLING, 0L, 1000L, 1)), reports);
+    }
+
+    @Test
+    public void mergesPanesAsIfTradesWereAdded() {
+        WindowedStockStats stats = newStats(Collections.singletonList(TUMBLING), 0L);
+        assertTrue(stats.mergePane(400L, tradeStats(3), 3));
+        assertTrue(stats.mergePane(1400L, tradeStats(2), 2));
+
+        assertEquals(Arrays.asList(report(TUMBLING, 0L, 1000L, 3)), reports);
+    }
+
+    @Test
+    public void restoresWrittenState() {
+        List<WindowSpec> windows = Arrays.asList(TUMBLING, SLIDING);
+        WindowedStockStats original = newStats(windows, 300L);
+        for (long time = 0; time < 3500L; time += 250L) {
+            add(original, time);
+        }
+        add(original, 10L);
+
+        ByteBuffer state = ByteBuffer.allocate(original.serializedSize());
+        original.writeTo(state);
+        assertEquals(original.serializedSize(), state.position());
+        state.flip();
+
+        List<String> restoredReports = new ArrayList<String>();
+        WindowedStockStats restored = new WindowedStockStats(windows, 300L, StockStats::new,
+                (window, startMillis, endMillis, stats) ->
+                        restoredReports.add(report(window, startMillis, endMillis, stats.getTradeCount())));
+        restored.restore(state);
+        assertEquals(original.getWatermarkMillis(), restored.getWatermarkMillis());
+        assertEquals(original.getLateTrades(), restored.getLateTrades());
+
+        // both go on exactly alike
+        reports.clear();
+        for (long time = 3000L; time < 6000L; time += 333L) {
+            assertEquals(add(original, time), add(restored, time));
+        }
+        original.flush();
+        restored.flush();
+        assertFalse(reports.isEmpty());
+        assertEquals(reports, restoredReports);
+    }
+
+    @Test
+    public void rejectsStateOfOtherWindows() {
+        WindowedStockStats original = newStats(Collections.singletonList(TUMBLING), 0L);
+        add(original, 100L);
+        ByteBuffer state = ByteBuffer.allocate(original.serializedSize());
+        original.writeTo(state);
+        state.flip();
+
+        WindowedStockStats other = newStats(Collections.singletonList(SLIDING), 0L);
+        try {
+            other.restore(state);
+            throw new AssertionError("State of other windows was restored");
+        } catch (IllegalArgumentException expected) {
+            // the state is left empty
+        }
+        assertTrue(add(other, 100L));
+        other.flush();
+        assertEquals(Arrays.asList(report(SLIDING, -1000L, 1000L, 1), report(SLIDING, 0L, 2000L, 1)), reports);
+    }
+
+    private WindowedStockStats newStats(List<WindowSpec> windows, long allowedLatenessMillis) {
+        return new WindowedStockStats(windows, allowedLatenessMillis, StockStats::new,
+                (window, startMillis, endMillis, stats) ->
+                        reports.add(report(window, startMillis, endMillis, stats.getTradeCount())));
+    }
+
+    private static boolean add(WindowedStockStats stats, long eventTimeMillis) {
+        return stats.addStockTrade(eventTimeMillis, trade(eventTimeMillis));
+    }
+
+    private static StockTrade trade(long eventTimeMillis) {
+        return new StockTrade("AMZN", TradeType.BUY, 100.0, 10, eventTimeMillis);
+    }
+
+    private static StockStats tradeStats(int trades) {
+        StockStats stats = new StockStats();
+        for (int i = 0; i < trades; i++) {
+            stats.addStockTrade(trade(i));
+        }
+        return stats;
+    }
+
+    private static String report(WindowSpec window, long startMillis, long endMillis, long trades) {
+        return window + " [" + startMillis + ", " + endMillis + "): " + trades;
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.sink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockStats;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.WindowSpec;
+
+public class AsyncStatsEmitterTest {
+
+    private static final WindowSpec WINDOW = WindowSpec.tumbling(60000L);
+
+    @Test(timeout = 10000)
+    public void emitsInBatchesTheSinkAccepts() {
+        InMemoryStatsSink sink = new InMemoryStatsSink(3);
+        AsyncStatsEmitter emitter = new AsyncStatsEmitter(sink, 10, true);
+        WindowReport first = report(0L);
+        WindowReport second = report(60000L);
+        List<StatsPoint> expected = new ArrayList<StatsPoint>();
+        first.toPoints(true, expected);
+        second.toPoints(true, expected);
+
+        assertTrue(emitter.submit(first));
+        assertTrue(emitter.submit(second));
+        emitter.close();
+
+        List<StatsPoint> points = sink.getPoints();
+        assertEquals(expected.size(), points.size());
+        for (int i = 0; i < points.size(); i++) {
+            assertEquals(expected.get(i).toString(), points.get(i).toString());
+        }
+        assertEquals(expected.size(), emitter.getEmittedPoints());
+        assertTrue(sink.getBatches() >= (expected.size() + 2) / 3);
+        assertEquals(0, emitter.getDroppedReports());
+        assertEquals(0, emitter.getFailedPoints());
+    }
+
+    @Test(timeout = 10000)
+    public void dropsReportsWhenQueueIsFull() {
+        InMemoryStatsSink sink = new InMemoryStatsSink();
+        sink.setDelayMillis(500L);
+        AsyncStatsEmitter emitter = new AsyncStatsEmitter(sink, 1, false);
+
+        int submitted = 0;
+        int dropped = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            if (emitter.submit(report(i * 60000L))) {
+                submitted++;
+            } else {
+                dropped++;
+            }
+        }
+        // submitting never waits for the slow sink
+        assertTrue(System.nanoTime() - startNanos < 400000000L);
+        assertTrue(dropped > 0);
+        assertEquals(dropped, emitter.getDroppedReports());
+
+        sink.setDelayMillis(0L);
+        emitter.close();
+        List<StatsPoint> perReport = new ArrayList<StatsPoint>();
+        report(0L).toPoints(false, perReport);
+        assertEquals(submitted * perReport.size(), sink.getPoints().size());
+    }
+
+    @Test(timeout = 10000)
+    public void countsPointsTheSinkFailsToEmit() {
+        InMemoryStatsSink sink = new InMemoryStatsSink(4);
+        sink.setFailing(true);
+        AsyncStatsEmitter emitter = new AsyncStatsEmitter(sink, 10, true);
+        WindowReport report = report(0L);
+        List<StatsPoint> expected = new ArrayList<StatsPoint>();
+        report.toPoints(true, expected);
+
+        assertTrue(emitter.submit(report));
+        emitter.close();
+
+        assertEquals(expected.size(), emitter.getFailedPoints());
+        assertEquals(0, emitter.getEmittedPoints());
+        assertTrue(sink.getPoints().isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsReportsOnceClosed() {
+        AsyncStatsEmitter emitter = new AsyncStatsEmitter(new InMemoryStatsSink(), 10, false);
+        emitter.close();
+
+        assertFalse(emitter.submit(report(0L)));
+        assertEquals(1, emitter.getDroppedReports());
+    }
+
+    private static WindowReport report(long startMillis) {
+        StockStats stats = new StockStats();
+        stats.addStockTrade(new StockTrade("AMZN", TradeType.BUY, 1800.0, 10, 1));
+        stats.addStockTrade(new StockTrade("KO", TradeType.SELL, 50.0, 200, 2));
+        stats.addStockTrade(new StockTrade("AMZN", TradeType.BUY, 1801.5, 5, 3));
+        return new WindowReport("test", WINDOW, startMillis, startMillis + WINDOW.getWidthMillis(), stats);
+    }
+
+}
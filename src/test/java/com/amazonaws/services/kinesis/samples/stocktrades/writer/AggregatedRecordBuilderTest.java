@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodecs;
+
+import software.amazon.kinesis.retrieval.AggregatorUtil;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+public class AggregatedRecordBuilderTest {
+
+    @Test
+    public void isDeaggregatedByTheKcl() {
+        AggregatedRecordBuilder builder = new AggregatedRecordBuilder();
+        builder.add("AMZN", null, bytes("first"));
+        builder.add("KO", "12345", bytes("second"));
+        builder.add("AMZN", null, bytes("third"));
+        builder.add("KO", "12345", new byte[0]);
+        byte[] aggregated = builder.build();
+        assertEquals(builder.size(), aggregated.length);
+
+        List<KinesisClientRecord> records = deaggregate(aggregated);
+        assertEquals(4, records.size());
+        assertUserRecord(records.get(0), "AMZN", null, "first", 0);
+        assertUserRecord(records.get(1), "KO", "12345", "second", 1);
+        assertUserRecord(records.get(2), "AMZN", null, "third", 2);
+        assertUserRecord(records.get(3), "KO", "12345", "", 3);
+    }
+
+    @Test
+    public void predictsItsSize() {
+        AggregatedRecordBuilder builder = new AggregatedRecordBuilder();
+        for (int i = 0; i < 200; i++) {
+            String key = "key-" + (i % 7);
+            String hashKey = i % 3 == 0 ? String.valueOf(i % 5) : null;
+            byte[] data = new byte[i];
+            int expected = builder.sizeWith(key, hashKey, data.length);
+            builder.add(key, hashKey, data);
+            assertEquals(expected, builder.size());
+        }
+        assertEquals(builder.size(), builder.build().length);
+    }
+
+    @Test
+    public void carriesBinaryTrades() {
+        AggregatedRecordBuilder builder = new AggregatedRecordBuilder();
+        StockTradeGenerator generator = new StockTradeGenerator(TradeGeneratorEngine.runFirstId(1600000000000L));
+        StockTrade[] trades = new StockTrade[50];
+        for (int i = 0; i < trades.length; i++) {
+            trades[i] = generator.getRandomTrade();
+            builder.add(trades[i].getTickerSymbol(), null, StockTradeCodecs.BINARY.encode(trades[i]));
+        }
+
+        List<KinesisClientRecord> records = deaggregate(builder.build());
+        assertEquals(trades.length, records.size());
+        for (int i = 0; i < trades.length; i++) {
+            StockTrade trade = StockTradeCodecs.decode(records.get(i).data());
+            assertEquals(trades[i].getId(), trade.getId());
+            assertEquals(trades[i].getTickerSymbol(), trade.getTickerSymbol());
+            assertEquals(trades[i].getTradeType(), trade.getTradeType());
+            assertEquals(trades[i].getPrice(), trade.getPrice(), 0.0);
+            assertEquals(trades[i].getQuantity(), trade.getQuantity());
+        }
+    }
+
+    @Test
+    public void isReusableAfterClear() {
+        AggregatedRecordBuilder builder = new AggregatedRecordBuilder();
+        builder.add("AMZN", "1", bytes("dropped"));
+        builder.clear();
+        assertEquals(0, builder.getRecordCount());
+        builder.add("KO", null, bytes("kept"));
+
+        List<KinesisClientRecord> records = deaggregate(builder.build());
+        assertEquals(1, records.size());
+        assertUserRecord(records.get(0), "KO", null, "kept", 0);
+    }
+
+    @Test
+    public void isPassedThroughWhenCorrupted() {
+        AggregatedRecordBuilder builder = new AggregatedRecordBuilder();
+        builder.add("AMZN", null, bytes("first"));
+        builder.add("AMZN", null, bytes("second"));
+        byte[] aggregated = builder.build();
+        aggregated[aggregated.length - 1] ^= 1;
+
+        // the KCL hands over a record whose checksum does not match as it is
+        List<KinesisClientRecord> records = deaggregate(aggregated);
+        assertEquals(1, records.size());
+        assertFalse(records.get(0).aggregated());
+    }
+
+    private static List<KinesisClientRecord> deaggregate(byte[] aggregated) {
+        KinesisClientRecord record = KinesisClientRecord.builder()
+                .sequenceNumber("1")
+                .partitionKey("AMZN")
+                .data(ByteBuffer.wrap(aggregated))
+                .build();
+        return new AggregatorUtil().deaggregate(Collections.singletonList(record));
+    }
+
+    private static void assertUserRecord(KinesisClientRecord record, String partitionKey, String explicitHashKey,
+                                         String data, long subSequenceNumber) {
+        assertTrue(record.aggregated());
+        assertEquals(partitionKey, record.partitionKey());
+        if (explicitHashKey == null) {
+            assertNull(record.explicitHashKey());
+        } else {
+            assertEquals(explicitHashKey, record.explicitHashKey());
+        }
+        assertEquals(data, StandardCharsets.UTF_8.decode(record.data()).toString());
+        assertEquals("1", record.sequenceNumber());
+        assertEquals(subSequenceNumber, record.subSequenceNumber());
+    }
+
+    private static byte[] bytes(String data) {
+        return data.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
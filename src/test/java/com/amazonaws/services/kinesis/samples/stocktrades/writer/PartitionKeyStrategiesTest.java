@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import software.amazon.awssdk.services.kinesis.model.HashKeyRange;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+
+public class PartitionKeyStrategiesTest {
+
+    private static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+
+    @Test
+    public void spreadsTradesEvenlyOverUnevenShards() {
+        BigInteger quarter = HASH_KEY_SPACE.shiftRight(2);
+        BigInteger half = HASH_KEY_SPACE.shiftRight(1);
+        // as left by splitting the first of two even shards
+        List<Shard> shards = Arrays.asList(
+                shard(0, BigInteger.ZERO, quarter.subtract(BigInteger.ONE)),
+                shard(1, quarter, half.subtract(BigInteger.ONE)),
+                shard(2, half, HASH_KEY_SPACE.subtract(BigInteger.ONE)));
+        PartitionKeyStrategy keys = PartitionKeyStrategies.explicitHashKey(shards);
+
+        int[] trades = new int[shards.size()];
+        for (long tradeId = 1; tradeId <= 300; tradeId++) {
+            assertEquals("AMZN", keys.partitionKey("AMZN", tradeId));
+            trades[shardOf(shards, new BigInteger(keys.explicitHashKey("AMZN", tradeId)))]++;
+        }
+        for (int count : trades) {
+            assertEquals(100, count);
+        }
+    }
+
+    @Test
+    public void usesTheMiddleOfEachRange() {
+        List<Shard> shards = Arrays.asList(shard(0, BigInteger.valueOf(10), BigInteger.valueOf(20)));
+        PartitionKeyStrategy keys = PartitionKeyStrategies.explicitHashKey(shards);
+
+        assertEquals("15", keys.explicitHashKey("KO", 7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoShards() {
+        PartitionKeyStrategies.explicitHashKey(Arrays.<Shard>asList());
+    }
+
+    @Test
+    public void saltsKeysByTradeId() {
+        PartitionKeyStrategy keys = PartitionKeyStrategies.salted(4);
+
+        assertEquals("AMZN#1", keys.partitionKey("AMZN", 5));
+        assertEquals("AMZN#3", keys.partitionKey("AMZN", -1));
+        assertNull(keys.explicitHashKey("AMZN", 5));
+        assertEquals("AMZN", PartitionKeyStrategies.tickerSymbol("AMZN#3"));
+        assertEquals("AMZN", PartitionKeyStrategies.tickerSymbol("AMZN"));
+    }
+
+    private static Shard shard(int index, BigInteger startingHashKey, BigInteger endingHashKey) {
+        return Shard.builder()
+                .shardId(String.format("shardId-%012d", index))
+                .hashKeyRange(HashKeyRange.builder()
+                        .startingHashKey(startingHashKey.toString())
+                        .endingHashKey(endingHashKey.toString())
+                        .build())
+                .build();
+    }
+
+    private static int shardOf(List<Shard> shards, BigInteger hashKey) {
+        for (int i = 0; i < shards.size(); i++) {
+            HashKeyRange range = shards.get(i).hashKeyRange();
+            if (hashKey.compareTo(new BigInteger(range.startingHashKey())) >= 0
+                    && hashKey.compareTo(new BigInteger(range.endingHashKey())) <= 0) {
+                return i;
+            }
+        }
+        throw new AssertionError("Hash key " + hashKey + " is outside every shard");
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.local.LocalKinesisClient;
+
+import software.amazon.awssdk.services.kinesis.model.GetRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.GetShardIteratorRequest;
+import software.amazon.awssdk.services.kinesis.model.Record;
+import software.amazon.awssdk.services.kinesis.model.ShardIteratorType;
+
+public class PutRecordsBatcherTest {
+
+    private static final String STREAM_NAME = "StockTradeStream";
+    private static final String SHARD_ID = "shardId-000000000000";
+    private static final int WRITE_RECORDS_PER_SECOND = 10;
+
+    private LocalKinesisClient kinesisClient;
+
+    @Before
+    public void setUp() {
+        // a single slow shard, so that most entries of a batch are throttled
+        kinesisClient = new LocalKinesisClient(WRITE_RECORDS_PER_SECOND, 0, 0, 0, 0);
+        kinesisClient.createStream(STREAM_NAME, 1);
+    }
+
+    @After
+    public void tearDown() {
+        kinesisClient.close();
+    }
+
+    @Test(timeout = 30000)
+    public void retriesOnlyThrottledEntries() throws Exception {
+        int count = 25;
+        PutRecordsBatcher batcher = new PutRecordsBatcher(kinesisClient, STREAM_NAME, 10L, 1, 10);
+        for (int i = 0; i < count; i++) {
+            batcher.add("AMZN", payload(i));
+        }
+        batcher.close();
+
+        assertEquals(count, batcher.getRecordsSent());
+        assertEquals(0, batcher.getRecordsFailed());
+        assertTrue(batcher.getRecordsRetried() > 0);
+        assertEquals(batcher.getRecordsRetried(), kinesisClient.getThrottledWrites());
+
+        // every record is in the shard exactly once
+        List<Record> records = readShard();
+        Set<String> payloads = new HashSet<String>();
+        for (Record record : records) {
+            payloads.add(record.data().asUtf8String());
+        }
+        assertEquals(count, records.size());
+        assertEquals(count, payloads.size());
+    }
+
+    @Test(timeout = 30000)
+    public void dropsEntriesPastRetryLimit() throws Exception {
+        int count = 25;
+        PutRecordsBatcher batcher = new PutRecordsBatcher(kinesisClient, STREAM_NAME, 10L, 1, 0);
+        for (int i = 0; i < count; i++) {
+            batcher.add("AMZN", payload(i));
+        }
+        batcher.close();
+
+        assertTrue(batcher.getRecordsFailed() > 0);
+        assertEquals(0, batcher.getRecordsRetried());
+        assertEquals(count, batcher.getRecordsSent() + batcher.getRecordsFailed());
+        assertEquals(batcher.getRecordsSent(), readShard().size());
+    }
+
+    private static byte[] payload(int i) {
+        return ("trade-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<Record> readShard() throws Exception {
+        String iterator = kinesisClient.getShardIterator(GetShardIteratorRequest.builder()
+                .streamName(STREAM_NAME)
+                .shardId(SHARD_ID)
+                .shardIteratorType(ShardIteratorType.TRIM_HORIZON)
+                .build()).get().shardIterator();
+        return kinesisClient.getRecords(GetRecordsRequest.builder().shardIterator(iterator).build()).get().records();
+    }
+
+}
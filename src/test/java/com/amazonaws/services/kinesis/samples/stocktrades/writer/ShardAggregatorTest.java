@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ * http://aws.amazon.com/asl/
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.local.LocalKinesisClient;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodecs;
+
+import software.amazon.awssdk.services.kinesis.model.GetRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.GetShardIteratorRequest;
+import software.amazon.awssdk.services.kinesis.model.ListShardsRequest;
+import software.amazon.awssdk.services.kinesis.model.Record;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+import software.amazon.awssdk.services.kinesis.model.ShardIteratorType;
+import software.amazon.kinesis.retrieval.AggregatorUtil;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+public class ShardAggregatorTest {
+
+    private static final String STREAM_NAME = "StockTradeStream";
+
+    private LocalKinesisClient kinesisClient;
+    private List<Shard> shards;
+
+    @Before
+    public void setUp() throws Exception {
+        kinesisClient = new LocalKinesisClient(0, 0, 0, 0, 0);
+        kinesisClient.createStream(STREAM_NAME, 4);
+        shards = kinesisClient.listShards(ListShardsRequest.builder().streamName(STREAM_NAME).build()).get().shards();
+    }
+
+    @After
+    public void tearDown() {
+        kinesisClient.close();
+    }
+
+    @Test(timeout = 30000)
+    public void keepsEveryTradeOnItsShard() throws Exception {
+        int count = 2000;
+        StockTradeGenerator generator = new StockTradeGenerator();
+        PutRecordsBatcher batcher = new PutRecordsBatcher(kinesisClient, STREAM_NAME, 50L, 4, 3);
+        ShardAggregator aggregator = new ShardAggregator(batcher, shards, 4096, 1000L);
+        for (int i = 0; i < count; i++) {
+            StockTrade trade = generator.getRandomTrade();
+            aggregator.add(trade.getTickerSymbol(), null, StockTradeCodecs.BINARY.encode(trade));
+        }
+        aggregator.close();
+        batcher.close();
+
+        assertEquals(count, aggregator.getUserRecords());
+        assertTrue(aggregator.getAggregatedRecords() < count / 10);
+        assertEquals(aggregator.getAggregatedRecords(), batcher.getRecordsSent());
+
+        // the KCL drops user records outside the hash key range of the shard they were read from
+        Set<Long> ids = new HashSet<Long>();
+        for (Shard shard : shards) {
+            List<KinesisClientRecord> userRecords = new AggregatorUtil().deaggregate(readShard(shard),
+                    new BigInteger(shard.hashKeyRange().startingHashKey()),
+                    new BigInteger(shard.hashKeyRange().endingHashKey()));
+            for (KinesisClientRecord userRecord : userRecords) {
+                assertTrue(userRecord.aggregated());
+                ids.add(StockTradeCodecs.decode(userRecord.data()).getId());
+            }
+        }
+        assertEquals(count, ids.size());
+    }
+
+    private List<KinesisClientRecord> readShard(Shard shard) throws Exception {
+        String iterator = kinesisClient.getShardIterator(GetShardIteratorRequest.builder()
+                .streamName(STREAM_NAME)
+                .shardId(shard.shardId())
+                .shardIteratorType(ShardIteratorType.TRIM_HORIZON)
+                .build()).get().shardIterator();
+        List<KinesisClientRecord> records = new ArrayList<KinesisClientRecord>();
+        for (Record record : kinesisClient.getRecords(GetRecordsRequest.builder().shardIterator(iterator).build())
+                .get().records()) {
+            records.add(KinesisClientRecord.fromRecord(record));
+        }
+        return records;
+    }
+
+}